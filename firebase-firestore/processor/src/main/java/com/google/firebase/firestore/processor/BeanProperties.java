@@ -0,0 +1,404 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.processor;
+
+import androidx.annotation.Nullable;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+
+/**
+ * Finds the properties of a POJO class by the same rules as the reflection-based {@code
+ * CustomClassMapper.BeanMapper} of the Firestore SDK, and reports the same errors.
+ */
+final class BeanProperties {
+  static final String DOCUMENT_ID = "com.google.firebase.firestore.DocumentId";
+  static final String DOCUMENT_REFERENCE = "com.google.firebase.firestore.DocumentReference";
+  static final String EXCLUDE = "com.google.firebase.firestore.Exclude";
+  static final String PROPERTY_NAME = "com.google.firebase.firestore.PropertyName";
+  static final String SERVER_TIMESTAMP = "com.google.firebase.firestore.ServerTimestamp";
+  static final String TIMESTAMP = "com.google.firebase.Timestamp";
+
+  private final Types types;
+  private final Elements elements;
+
+  BeanProperties(Types types, Elements elements) {
+    this.types = types;
+    this.elements = elements;
+  }
+
+  /** Returns the properties of the given class, keyed by name, in the order they were found. */
+  Map<String, BeanProperty> collect(TypeElement clazz) throws InvalidBeanException {
+    DeclaredType classType = (DeclaredType) clazz.asType();
+    Map<String, BeanProperty> properties = new LinkedHashMap<>();
+    // Case insensitive mapping of properties to their case sensitive versions
+    Map<String, String> propertyNames = new HashMap<>();
+
+    List<? extends Element> members = elements.getAllMembers(clazz);
+    for (ExecutableElement method : ElementFilter.methodsIn(members)) {
+      if (shouldIncludeGetter(method)) {
+        BeanProperty property =
+            addProperty(properties, propertyNames, propertyName(method), method);
+        if (property.getter != null) {
+          throw new InvalidBeanException(
+              "Found conflicting getters for name "
+                  + method.getSimpleName()
+                  + " on class "
+                  + clazz.getQualifiedName(),
+              method);
+        }
+        property.getter = method;
+        applyGetterAnnotations(property, method, classType);
+      }
+    }
+
+    for (VariableElement field : ElementFilter.fieldsIn(members)) {
+      if (shouldIncludeField(field)) {
+        BeanProperty property = addProperty(properties, propertyNames, propertyName(field), field);
+        property.publicField = field;
+        applyFieldAnnotations(property, field, classType);
+      }
+    }
+
+    // Setters and fields of any visibility are used for the properties found above. Whether the
+    // generated mapper can access them is checked when it is generated.
+    TypeElement currentClass = clazz;
+    do {
+      for (ExecutableElement method : ElementFilter.methodsIn(currentClass.getEnclosedElements())) {
+        if (!shouldIncludeSetter(method)) {
+          continue;
+        }
+        String propertyName = propertyName(method);
+        String existingPropertyName = propertyNames.get(propertyName.toLowerCase(Locale.US));
+        if (existingPropertyName == null) {
+          continue;
+        }
+        if (!existingPropertyName.equals(propertyName)) {
+          throw new InvalidBeanException(
+              "Found setter on "
+                  + currentClass.getQualifiedName()
+                  + " with invalid case-sensitive name: "
+                  + method.getSimpleName(),
+              method);
+        }
+        BeanProperty property = properties.get(propertyName);
+        if (property.setter == null) {
+          property.setter = method;
+          applySetterAnnotations(property, method, classType);
+        } else if (!isSetterOverride(property.setter, method)) {
+          if (currentClass == clazz) {
+            throw new InvalidBeanException(
+                "Class "
+                    + clazz.getQualifiedName()
+                    + " has multiple setter overloads with name "
+                    + method.getSimpleName(),
+                method);
+          } else {
+            throw new InvalidBeanException(
+                "Found conflicting setters with name: "
+                    + method.getSimpleName()
+                    + " (conflicts with "
+                    + property.setter.getSimpleName()
+                    + " defined on "
+                    + property.setter.getEnclosingElement()
+                    + ")",
+                method);
+          }
+        }
+      }
+
+      for (VariableElement field : ElementFilter.fieldsIn(currentClass.getEnclosedElements())) {
+        if (field.getModifiers().contains(Modifier.STATIC)) {
+          continue;
+        }
+        // Fields are only added if they don't exist on a subclass
+        BeanProperty property = properties.get(propertyName(field));
+        if (property != null && property.field == null) {
+          property.field = field;
+          applyFieldAnnotations(property, field, classType);
+        }
+      }
+
+      currentClass = superclass(currentClass);
+    } while (currentClass != null && !isObject(currentClass));
+
+    if (properties.isEmpty()) {
+      throw new InvalidBeanException(
+          "No properties to serialize found on class " + clazz.getQualifiedName(), clazz);
+    }
+
+    for (BeanProperty property : properties.values()) {
+      if (property.documentId && property.writer() == null) {
+        throw new InvalidBeanException(
+            "@DocumentId is annotated on property "
+                + property.name
+                + " of class "
+                + clazz.getQualifiedName()
+                + " but no field or public setter was found",
+            property.reader());
+      }
+    }
+    return properties;
+  }
+
+  /** Returns the type of the value that the given member reads or writes, as seen by the class. */
+  TypeMirror valueType(Element member, DeclaredType classType) {
+    TypeMirror memberType = types.asMemberOf(classType, member);
+    if (member instanceof ExecutableElement) {
+      ExecutableElement method = (ExecutableElement) member;
+      ExecutableType methodType = (ExecutableType) memberType;
+      return method.getParameters().isEmpty()
+          ? methodType.getReturnType()
+          : methodType.getParameterTypes().get(0);
+    }
+    return memberType;
+  }
+
+  /** Returns whether the given type is exactly the class with the given name. */
+  boolean isClass(TypeMirror type, String className) {
+    return type.getKind() == TypeKind.DECLARED
+        && ((TypeElement) types.asElement(type)).getQualifiedName().contentEquals(className);
+  }
+
+  private BeanProperty addProperty(
+      Map<String, BeanProperty> properties,
+      Map<String, String> propertyNames,
+      String propertyName,
+      Element member)
+      throws InvalidBeanException {
+    String oldValue = propertyNames.put(propertyName.toLowerCase(Locale.US), propertyName);
+    if (oldValue != null && !propertyName.equals(oldValue)) {
+      throw new InvalidBeanException(
+          "Found two getters or fields with conflicting case sensitivity for property: "
+              + propertyName.toLowerCase(Locale.US),
+          member);
+    }
+    BeanProperty property = properties.get(propertyName);
+    if (property == null) {
+      property = new BeanProperty(propertyName);
+      properties.put(propertyName, property);
+    }
+    return property;
+  }
+
+  private void applyFieldAnnotations(
+      BeanProperty property, VariableElement field, DeclaredType classType)
+      throws InvalidBeanException {
+    TypeMirror fieldType = valueType(field, classType);
+    if (hasAnnotation(field, SERVER_TIMESTAMP)) {
+      if (!isClass(fieldType, Date.class.getName()) && !isClass(fieldType, TIMESTAMP)) {
+        throw new InvalidBeanException(
+            "Field "
+                + field.getSimpleName()
+                + " is annotated with @ServerTimestamp but is "
+                + fieldType
+                + " instead of Date or Timestamp.",
+            field);
+      }
+      property.serverTimestamp = true;
+    }
+    if (hasAnnotation(field, DOCUMENT_ID)) {
+      ensureValidDocumentIdType("Field", "is", fieldType, field);
+      property.documentId = true;
+    }
+  }
+
+  private void applyGetterAnnotations(
+      BeanProperty property, ExecutableElement method, DeclaredType classType)
+      throws InvalidBeanException {
+    TypeMirror returnType = valueType(method, classType);
+    if (hasAnnotation(method, SERVER_TIMESTAMP)) {
+      if (!isClass(returnType, Date.class.getName()) && !isClass(returnType, TIMESTAMP)) {
+        throw new InvalidBeanException(
+            "Method "
+                + method.getSimpleName()
+                + " is annotated with @ServerTimestamp but returns "
+                + returnType
+                + " instead of Date or Timestamp.",
+            method);
+      }
+      property.serverTimestamp = true;
+    }
+    // Even though the value will be skipped, we still check for type matching for consistency.
+    if (hasAnnotation(method, DOCUMENT_ID)) {
+      ensureValidDocumentIdType("Method", "returns", returnType, method);
+      property.documentId = true;
+    }
+  }
+
+  private void applySetterAnnotations(
+      BeanProperty property, ExecutableElement method, DeclaredType classType)
+      throws InvalidBeanException {
+    if (hasAnnotation(method, SERVER_TIMESTAMP)) {
+      throw new InvalidBeanException(
+          "Method "
+              + method.getSimpleName()
+              + " is annotated with @ServerTimestamp but should not be. @ServerTimestamp can"
+              + " only be applied to fields and getters, not setters.",
+          method);
+    }
+    if (hasAnnotation(method, DOCUMENT_ID)) {
+      ensureValidDocumentIdType("Method", "accepts", valueType(method, classType), method);
+      property.documentId = true;
+    }
+  }
+
+  private void ensureValidDocumentIdType(
+      String fieldDescription, String operation, TypeMirror type, Element member)
+      throws InvalidBeanException {
+    if (!isClass(type, String.class.getName()) && !isClass(type, DOCUMENT_REFERENCE)) {
+      throw new InvalidBeanException(
+          fieldDescription
+              + " is annotated with @DocumentId but "
+              + operation
+              + " "
+              + type
+              + " instead of String or DocumentReference.",
+          member);
+    }
+  }
+
+  private boolean shouldIncludeGetter(ExecutableElement method) {
+    String name = method.getSimpleName().toString();
+    return (name.startsWith("get") || name.startsWith("is"))
+        && !isDeclaredByObject(method)
+        && method.getModifiers().contains(Modifier.PUBLIC)
+        && !method.getModifiers().contains(Modifier.STATIC)
+        && method.getReturnType().getKind() != TypeKind.VOID
+        && method.getParameters().isEmpty()
+        && !hasAnnotation(method, EXCLUDE);
+  }
+
+  private boolean shouldIncludeSetter(ExecutableElement method) {
+    return method.getSimpleName().toString().startsWith("set")
+        && !isDeclaredByObject(method)
+        && !method.getModifiers().contains(Modifier.STATIC)
+        && method.getReturnType().getKind() == TypeKind.VOID
+        && method.getParameters().size() == 1
+        && !hasAnnotation(method, EXCLUDE);
+  }
+
+  private boolean shouldIncludeField(VariableElement field) {
+    Collection<Modifier> modifiers = field.getModifiers();
+    return !isDeclaredByObject(field)
+        && modifiers.contains(Modifier.PUBLIC)
+        && !modifiers.contains(Modifier.STATIC)
+        && !modifiers.contains(Modifier.TRANSIENT)
+        && !hasAnnotation(field, EXCLUDE);
+  }
+
+  private boolean isSetterOverride(ExecutableElement base, ExecutableElement override) {
+    TypeMirror baseParameterType = base.getParameters().get(0).asType();
+    TypeMirror overrideParameterType = override.getParameters().get(0).asType();
+    return base.getSimpleName().contentEquals(override.getSimpleName())
+        && types.isSameType(types.erasure(baseParameterType), types.erasure(overrideParameterType));
+  }
+
+  private boolean isDeclaredByObject(Element member) {
+    return isObject((TypeElement) member.getEnclosingElement());
+  }
+
+  private static boolean isObject(TypeElement type) {
+    return type.getQualifiedName().contentEquals(Object.class.getName());
+  }
+
+  @Nullable
+  private TypeElement superclass(TypeElement type) {
+    TypeMirror superclass = type.getSuperclass();
+    return superclass.getKind() == TypeKind.DECLARED
+        ? (TypeElement) types.asElement(superclass)
+        : null;
+  }
+
+  private static String propertyName(VariableElement field) {
+    String annotatedName = annotatedName(field);
+    return annotatedName != null ? annotatedName : field.getSimpleName().toString();
+  }
+
+  private static String propertyName(ExecutableElement method) {
+    String annotatedName = annotatedName(method);
+    return annotatedName != null
+        ? annotatedName
+        : serializedName(method.getSimpleName().toString());
+  }
+
+  @Nullable
+  private static String annotatedName(Element member) {
+    AnnotationMirror annotation = findAnnotation(member, PROPERTY_NAME);
+    if (annotation == null) {
+      return null;
+    }
+    for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry :
+        annotation.getElementValues().entrySet()) {
+      if (entry.getKey().getSimpleName().contentEquals("value")) {
+        return (String) entry.getValue().getValue();
+      }
+    }
+    return null;
+  }
+
+  private static String serializedName(String methodName) {
+    String[] prefixes = new String[] {"get", "set", "is"};
+    String methodPrefix = null;
+    for (String prefix : prefixes) {
+      if (methodName.startsWith(prefix)) {
+        methodPrefix = prefix;
+      }
+    }
+    String strippedName = methodName.substring(methodPrefix.length());
+
+    // Make sure the first word or upper-case prefix is converted to lower-case
+    char[] chars = strippedName.toCharArray();
+    int pos = 0;
+    while (pos < chars.length && Character.isUpperCase(chars[pos])) {
+      chars[pos] = Character.toLowerCase(chars[pos]);
+      pos++;
+    }
+    return new String(chars);
+  }
+
+  static boolean hasAnnotation(Element element, String annotationName) {
+    return findAnnotation(element, annotationName) != null;
+  }
+
+  @Nullable
+  private static AnnotationMirror findAnnotation(Element element, String annotationName) {
+    for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+      TypeElement annotationType = (TypeElement) annotation.getAnnotationType().asElement();
+      if (annotationType.getQualifiedName().contentEquals(annotationName)) {
+        return annotation;
+      }
+    }
+    return null;
+  }
+}
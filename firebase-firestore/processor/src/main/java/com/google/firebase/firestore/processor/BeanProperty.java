@@ -0,0 +1,58 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.processor;
+
+import androidx.annotation.Nullable;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.VariableElement;
+
+/** A property of a POJO class, and the members that read and write it. */
+final class BeanProperty {
+  final String name;
+
+  /** The public getter of the property, if any. */
+  @Nullable ExecutableElement getter;
+
+  /** The public field of the property, which is read if there is no getter. */
+  @Nullable VariableElement publicField;
+
+  /** The setter of the property, if any. */
+  @Nullable ExecutableElement setter;
+
+  /** The field of the property, which is written if there is no setter. */
+  @Nullable VariableElement field;
+
+  /** Whether the property is annotated with {@code @ServerTimestamp}. */
+  boolean serverTimestamp;
+
+  /** Whether the property is annotated with {@code @DocumentId}. */
+  boolean documentId;
+
+  BeanProperty(String name) {
+    this.name = name;
+  }
+
+  /** Returns the member that is read to serialize the property. */
+  Element reader() {
+    return getter != null ? getter : publicField;
+  }
+
+  /** Returns the member that is written to deserialize the property, or null if there is none. */
+  @Nullable
+  Element writer() {
+    return setter != null ? setter : field;
+  }
+}
@@ -0,0 +1,27 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.processor;
+
+import javax.lang.model.element.Element;
+
+/** Thrown if no mapper can be generated for a class, reported as an error on {@link #element}. */
+final class InvalidBeanException extends Exception {
+  final Element element;
+
+  InvalidBeanException(String message, Element element) {
+    super(message);
+    this.element = element;
+  }
+}
@@ -0,0 +1,449 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.processor;
+
+import com.google.auto.service.AutoService;
+import com.squareup.javapoet.AnnotationSpec;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.JavaFile;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeName;
+import com.squareup.javapoet.TypeSpec;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a {@code ClassMapper} for each class annotated with {@code @GenerateMapper}, which
+ * converts objects of the class to and from documents without reflection.
+ */
+@AutoService(Processor.class)
+@SupportedAnnotationTypes(MapperProcessor.GENERATE_MAPPER_ANNOTATION)
+public class MapperProcessor extends AbstractProcessor {
+  static final String GENERATE_MAPPER_ANNOTATION = "com.google.firebase.firestore.GenerateMapper";
+
+  private static final ClassName CLASS_MAPPER =
+      ClassName.get("com.google.firebase.firestore", "ClassMapper");
+  private static final ClassName MAPPING_CONTEXT =
+      ClassName.get("com.google.firebase.firestore", "MappingContext");
+  private static final ClassName FIELD_VALUE =
+      ClassName.get("com.google.firebase.firestore", "FieldValue");
+  private static final TypeName STRING_OBJECT_MAP =
+      ParameterizedTypeName.get(Map.class, String.class, Object.class);
+
+  /** Types whose values are stored as they are, without calling {@code serialize()}. */
+  private static final List<TypeName> STORED_AS_IS =
+      Arrays.asList(
+          TypeName.BOOLEAN,
+          TypeName.INT,
+          TypeName.LONG,
+          TypeName.FLOAT,
+          TypeName.DOUBLE,
+          TypeName.BOOLEAN.box(),
+          TypeName.INT.box(),
+          TypeName.LONG.box(),
+          TypeName.FLOAT.box(),
+          TypeName.DOUBLE.box(),
+          ClassName.get(String.class));
+
+  private Elements elements;
+  private Types types;
+  private BeanProperties beanProperties;
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public synchronized void init(ProcessingEnvironment processingEnvironment) {
+    super.init(processingEnvironment);
+    elements = processingEnvironment.getElementUtils();
+    types = processingEnvironment.getTypeUtils();
+    beanProperties = new BeanProperties(types, elements);
+  }
+
+  @Override
+  public boolean process(
+      Set<? extends TypeElement> annotations, RoundEnvironment roundEnvironment) {
+    TypeElement generateMapper = elements.getTypeElement(GENERATE_MAPPER_ANNOTATION);
+    if (generateMapper == null) {
+      return false;
+    }
+    for (Element element : roundEnvironment.getElementsAnnotatedWith(generateMapper)) {
+      try {
+        processClass(element);
+      } catch (InvalidBeanException e) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, e.getMessage(), e.element);
+      }
+    }
+    return false;
+  }
+
+  private void processClass(Element element) throws InvalidBeanException {
+    // generates a class of the following shape:
+    //
+    // public final class AutoFooFirestoreMapper extends ClassMapper<Foo> {
+    //   public AutoFooFirestoreMapper() {
+    //     super(Foo.class);
+    //   }
+    //
+    //   public Map<String, Object> serialize(Foo object, MappingContext context) {...}
+    //
+    //   public Foo deserialize(Map<String, Object> values, MappingContext context) {...}
+    // }
+    TypeElement clazz = validateClass(element);
+    String packageName = elements.getPackageOf(clazz).getQualifiedName().toString();
+    ClassName className =
+        ClassName.get(packageName, "Auto" + generatedClassName(clazz) + "FirestoreMapper");
+    ClassName beanType = ClassName.get(clazz);
+    DeclaredType classType = (DeclaredType) clazz.asType();
+    Map<String, BeanProperty> properties = beanProperties.collect(clazz);
+
+    TypeSpec.Builder mapperBuilder =
+        TypeSpec.classBuilder(className)
+            .addOriginatingElement(clazz)
+            .addModifiers(Modifier.PUBLIC, Modifier.FINAL)
+            .superclass(ParameterizedTypeName.get(CLASS_MAPPER, beanType))
+            .addMethod(
+                MethodSpec.constructorBuilder()
+                    .addModifiers(Modifier.PUBLIC)
+                    .addStatement("super($T.class)", beanType)
+                    .build());
+
+    mapperBuilder.addMethod(serializeMethod(beanType, classType, properties.values()));
+
+    List<FieldSpec> typeFields = new ArrayList<>();
+    mapperBuilder.addMethod(
+        deserializeMethod(clazz, beanType, classType, properties.values(), typeFields));
+    mapperBuilder.addFields(typeFields);
+
+    JavaFile file = JavaFile.builder(packageName, mapperBuilder.build()).build();
+    try {
+      file.writeTo(processingEnv.getFiler());
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private TypeElement validateClass(Element element) throws InvalidBeanException {
+    if (element.getKind() != ElementKind.CLASS) {
+      throw new InvalidBeanException("@GenerateMapper can only be applied to classes", element);
+    }
+    TypeElement clazz = (TypeElement) element;
+    if (!clazz.getTypeParameters().isEmpty()) {
+      throw new InvalidBeanException(
+          "@GenerateMapper does not support generic classes, please remove it from "
+              + clazz.getQualifiedName(),
+          clazz);
+    }
+    for (Element current = clazz;
+        !(current instanceof PackageElement);
+        current = current.getEnclosingElement()) {
+      if (current.getModifiers().contains(Modifier.PRIVATE)) {
+        throw new InvalidBeanException(
+            "Classes annotated with @GenerateMapper must not be private", current);
+      }
+      if (current.getEnclosingElement() instanceof TypeElement
+          && !current.getModifiers().contains(Modifier.STATIC)) {
+        throw new InvalidBeanException(
+            "Nested classes annotated with @GenerateMapper must be static", current);
+      }
+    }
+    return clazz;
+  }
+
+  private MethodSpec serializeMethod(
+      ClassName beanType, DeclaredType classType, Iterable<BeanProperty> properties) {
+    MethodSpec.Builder method =
+        MethodSpec.methodBuilder("serialize")
+            .addAnnotation(Override.class)
+            .addModifiers(Modifier.PUBLIC)
+            .returns(STRING_OBJECT_MAP)
+            .addParameter(beanType, "object")
+            .addParameter(MAPPING_CONTEXT, "context")
+            .addStatement("$T result = new $T<>()", STRING_OBJECT_MAP, HashMap.class);
+
+    for (BeanProperty property : properties) {
+      // @DocumentId properties are populated from the document's key and not stored.
+      if (property.documentId) {
+        continue;
+      }
+      Element reader = property.reader();
+      CodeBlock value =
+          reader instanceof ExecutableElement
+              ? CodeBlock.of("object.$N()", reader.getSimpleName())
+              : CodeBlock.of("object.$N", reader.getSimpleName());
+      TypeName valueType = TypeName.get(beanProperties.valueType(reader, classType));
+
+      if (property.serverTimestamp) {
+        // Replace null ServerTimestamp-annotated properties with the sentinel.
+        method
+            .addCode("{\n$>")
+            .addStatement("$T value = $L", valueType, value)
+            .addStatement(
+                "result.put($S, value == null ? $T.serverTimestamp() : "
+                    + "context.serialize(value, $S))",
+                property.name,
+                FIELD_VALUE,
+                property.name)
+            .addCode("$<}\n");
+      } else if (STORED_AS_IS.contains(valueType)) {
+        method.addStatement("result.put($S, $L)", property.name, value);
+      } else {
+        method.addStatement(
+            "result.put($S, context.serialize($L, $S))", property.name, value, property.name);
+      }
+    }
+    return method.addStatement("return result").build();
+  }
+
+  private MethodSpec deserializeMethod(
+      TypeElement clazz,
+      ClassName beanType,
+      DeclaredType classType,
+      Iterable<BeanProperty> properties,
+      List<FieldSpec> typeFields)
+      throws InvalidBeanException {
+    MethodSpec.Builder method =
+        MethodSpec.methodBuilder("deserialize")
+            .addAnnotation(Override.class)
+            .addModifiers(Modifier.PUBLIC)
+            .returns(beanType)
+            .addParameter(STRING_OBJECT_MAP, "values")
+            .addParameter(MAPPING_CONTEXT, "context");
+
+    if (!hasAccessibleConstructor(clazz)) {
+      // As with reflection, classes without a constructor can still be serialized.
+      return method.addStatement("throw missingConstructor()").build();
+    }
+
+    String packageName = elements.getPackageOf(clazz).getQualifiedName().toString();
+    boolean uncheckedCasts = false;
+    List<BeanProperty> documentIdProperties = new ArrayList<>();
+
+    method
+        .addStatement("$T instance = new $T()", beanType, beanType)
+        .beginControlFlow(
+            "for ($T entry : values.entrySet())",
+            ParameterizedTypeName.get(Map.Entry.class, String.class, Object.class))
+        .beginControlFlow("switch (entry.getKey())");
+
+    for (BeanProperty property : properties) {
+      Element writer = property.writer();
+      if (writer == null) {
+        continue;
+      }
+      ensureWritable(clazz, property, writer, packageName);
+
+      method.addCode("case $S:\n$>", property.name);
+      if (property.documentId) {
+        documentIdProperties.add(property);
+        method.addStatement("throw documentIdConflict($S, context)", property.name).addCode("$<");
+        continue;
+      }
+
+      TypeMirror valueType = beanProperties.valueType(writer, classType);
+      CodeBlock typeExpression = typeExpression(valueType, writer);
+      if (isParameterized(valueType)) {
+        // Generic types are created once instead of for every object.
+        String fieldName = "TYPE_" + typeFields.size();
+        typeFields.add(
+            FieldSpec.builder(
+                    Type.class, fieldName, Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer(typeExpression)
+                .build());
+        typeExpression = CodeBlock.of("$N", fieldName);
+        uncheckedCasts = true;
+      }
+
+      CodeBlock value =
+          CodeBlock.of(
+              "($T) context.deserialize(entry.getValue(), $L, $S)",
+              TypeName.get(valueType).box(),
+              typeExpression,
+              property.name);
+      if (writer instanceof ExecutableElement) {
+        method.addStatement("instance.$N($L)", writer.getSimpleName(), value);
+      } else {
+        method.addStatement("instance.$N = $L", writer.getSimpleName(), value);
+      }
+      method.addStatement("break").addCode("$<");
+    }
+
+    method
+        .addCode("default:\n$>")
+        .addStatement("handleUnknownProperty(entry.getKey())")
+        .addCode("$<")
+        .endControlFlow()
+        .endControlFlow();
+
+    if (!documentIdProperties.isEmpty()) {
+      method.beginControlFlow("if (context.getDocumentReference() != null)");
+    }
+    for (BeanProperty property : documentIdProperties) {
+      Element writer = property.writer();
+      boolean isString =
+          beanProperties.isClass(
+              beanProperties.valueType(writer, classType), String.class.getName());
+      CodeBlock value =
+          isString
+              ? CodeBlock.of("context.getDocumentReference().getId()")
+              : CodeBlock.of("context.getDocumentReference()");
+      if (writer instanceof ExecutableElement) {
+        method.addStatement("instance.$N($L)", writer.getSimpleName(), value);
+      } else {
+        method.addStatement("instance.$N = $L", writer.getSimpleName(), value);
+      }
+    }
+    if (!documentIdProperties.isEmpty()) {
+      method.endControlFlow();
+    }
+
+    if (uncheckedCasts) {
+      method.addAnnotation(
+          AnnotationSpec.builder(SuppressWarnings.class)
+              .addMember("value", "$S", "unchecked")
+              .build());
+    }
+    return method.addStatement("return instance").build();
+  }
+
+  private boolean hasAccessibleConstructor(TypeElement clazz) {
+    if (clazz.getModifiers().contains(Modifier.ABSTRACT)) {
+      return false;
+    }
+    for (ExecutableElement constructor :
+        ElementFilter.constructorsIn(clazz.getEnclosedElements())) {
+      if (constructor.getParameters().isEmpty()) {
+        return !constructor.getModifiers().contains(Modifier.PRIVATE);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Ensures that the generated mapper, which is in the package of the class, can write to the given
+   * setter or field.
+   */
+  private void ensureWritable(
+      TypeElement clazz, BeanProperty property, Element writer, String packageName)
+      throws InvalidBeanException {
+    boolean accessible;
+    if (writer.getModifiers().contains(Modifier.PUBLIC)) {
+      accessible = true;
+    } else if (writer.getModifiers().contains(Modifier.PRIVATE)) {
+      accessible = false;
+    } else {
+      accessible = elements.getPackageOf(writer).getQualifiedName().contentEquals(packageName);
+    }
+    if (!accessible || writer.getModifiers().contains(Modifier.FINAL)) {
+      throw new InvalidBeanException(
+          "Property "
+              + property.name
+              + " of class "
+              + clazz.getQualifiedName()
+              + " can only be set through "
+              + writer.getSimpleName()
+              + ", which the generated mapper can't access. Add a public setter or make "
+              + writer.getSimpleName()
+              + " non-private and non-final.",
+          writer);
+    }
+  }
+
+  /** Returns an expression that creates the {@link Type} of the given type mirror at runtime. */
+  private CodeBlock typeExpression(TypeMirror type, Element member) throws InvalidBeanException {
+    switch (type.getKind()) {
+      case DECLARED:
+        List<? extends TypeMirror> typeArguments = ((DeclaredType) type).getTypeArguments();
+        if (typeArguments.isEmpty()) {
+          return CodeBlock.of("$T.class", TypeName.get(types.erasure(type)));
+        }
+        List<CodeBlock> arguments = new ArrayList<>();
+        arguments.add(CodeBlock.of("$T.class", TypeName.get(types.erasure(type))));
+        for (TypeMirror typeArgument : typeArguments) {
+          arguments.add(typeExpression(typeArgument, member));
+        }
+        return CodeBlock.of("parameterizedType($L)", CodeBlock.join(arguments, ", "));
+      case WILDCARD:
+        WildcardType wildcard = (WildcardType) type;
+        if (wildcard.getSuperBound() != null) {
+          throw new InvalidBeanException(
+              "Generic lower-bounded wildcard types are not supported", member);
+        }
+        return wildcard.getExtendsBound() != null
+            ? typeExpression(wildcard.getExtendsBound(), member)
+            : CodeBlock.of("$T.class", Object.class);
+      case ARRAY:
+        // Deserializing arrays fails at runtime, as it does with reflection.
+        return CodeBlock.of("$T.class", TypeName.get(types.erasure(type)));
+      default:
+        if (type.getKind().isPrimitive()) {
+          return CodeBlock.of("$T.class", TypeName.get(type));
+        }
+        throw new InvalidBeanException("Properties of type " + type + " are not supported", member);
+    }
+  }
+
+  private static boolean isParameterized(TypeMirror type) {
+    return type.getKind() == TypeKind.DECLARED
+        && !((DeclaredType) type).getTypeArguments().isEmpty();
+  }
+
+  /**
+   * Returns the class name that corresponds to a given element.
+   *
+   * <p>For top level classes returns the class name unchanged. For nested classes returns {@code
+   * ParentNested} for {@code Parent$Nested} classes.
+   */
+  private static String generatedClassName(Element element) {
+    StringBuilder sb = new StringBuilder(element.getSimpleName().toString());
+    Element enclosingElement = element.getEnclosingElement();
+    while (!(enclosingElement instanceof PackageElement)) {
+      sb.insert(0, enclosingElement.getSimpleName().toString());
+      enclosingElement = enclosingElement.getEnclosingElement();
+    }
+    return sb.toString();
+  }
+}
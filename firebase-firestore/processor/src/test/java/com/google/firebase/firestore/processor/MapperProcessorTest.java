@@ -0,0 +1,283 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.processor;
+
+import static com.google.testing.compile.CompilationSubject.assertThat;
+import static com.google.testing.compile.Compiler.javac;
+
+import com.google.testing.compile.Compilation;
+import com.google.testing.compile.JavaFileObjects;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.tools.JavaFileObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MapperProcessorTest {
+
+  @Test
+  public void compile_validClass_shouldProduceValidMapper() {
+    Compilation result =
+        compile(
+            JavaFileObjects.forSourceLines(
+                "com.example.Person",
+                "package com.example;",
+                "import com.google.firebase.firestore.*;",
+                "import java.util.Date;",
+                "import java.util.List;",
+                "import java.util.Map;",
+                "@GenerateMapper public class Person {",
+                "  private String name;",
+                "  public int age;",
+                "  List<String> tags;",
+                "  private Date created;",
+                "  @DocumentId String id;",
+                "  public String getName() { return name; }",
+                "  public void setName(String name) { this.name = name; }",
+                "  public List<String> getTags() { return tags; }",
+                "  @ServerTimestamp public Date getCreated() { return created; }",
+                "  void setCreated(Date created) { this.created = created; }",
+                "  @PropertyName(\"tagsByKey\") public Map<String, List<Long>> getIndex() {",
+                "    return null;",
+                "  }",
+                "  @PropertyName(\"tagsByKey\") void setIndex(Map<String, List<Long>> index) {}",
+                "  @Exclude public String getExcluded() { return null; }",
+                "  public String getId() { return id; }",
+                "  public static class Address {",
+                "    public String street;",
+                "  }",
+                "}"),
+            JavaFileObjects.forSourceLines(
+                "com.example.Other",
+                "package com.example;",
+                "import com.google.firebase.firestore.*;",
+                "@GenerateMapper public class Other {",
+                "  public Person.Address address;",
+                "}"));
+
+    assertThat(result).succeededWithoutWarnings();
+    String generated = generatedSource(result, "com.example.AutoPersonFirestoreMapper");
+    assertContains(generated, "extends ClassMapper<Person>");
+    assertContains(generated, "result.put(\"name\", object.getName());");
+    assertContains(generated, "result.put(\"age\", object.age);");
+    assertContains(generated, "FieldValue.serverTimestamp()");
+    assertContains(generated, "parameterizedType(List.class, String.class)");
+    assertContains(
+        generated, "parameterizedType(Map.class, String.class, parameterizedType(List.class,");
+    assertContains(generated, "instance.setName((String) context.deserialize(");
+    assertContains(generated, "instance.age = (Integer) context.deserialize(");
+    assertContains(generated, "instance.tags = (List<String>) context.deserialize(");
+    assertContains(generated, "throw documentIdConflict(\"id\", context);");
+    assertContains(generated, "instance.id = context.getDocumentReference().getId();");
+    assertDoesNotContain(generated, "excluded");
+    assertDoesNotContain(generated, "result.put(\"id\"");
+
+    assertThat(result).generatedSourceFile("com.example.AutoOtherFirestoreMapper");
+  }
+
+  @Test
+  public void compile_nestedClass_shouldUseParentNestedName() {
+    Compilation result =
+        compile(
+            JavaFileObjects.forSourceLines(
+                "com.example.Parent",
+                "package com.example;",
+                "import com.google.firebase.firestore.*;",
+                "public class Parent {",
+                "  @GenerateMapper public static class Nested {",
+                "    public String value;",
+                "  }",
+                "}"));
+
+    assertThat(result).succeededWithoutWarnings();
+    assertThat(result).generatedSourceFile("com.example.AutoParentNestedFirestoreMapper");
+  }
+
+  @Test
+  public void compile_classWithoutConstructor_shouldOnlySerialize() {
+    Compilation result =
+        compile(
+            JavaFileObjects.forSourceLines(
+                "com.example.Immutable",
+                "package com.example;",
+                "import com.google.firebase.firestore.*;",
+                "@GenerateMapper public class Immutable {",
+                "  public Immutable(String value) {}",
+                "  public String getValue() { return null; }",
+                "}"));
+
+    assertThat(result).succeededWithoutWarnings();
+    assertContains(
+        generatedSource(result, "com.example.AutoImmutableFirestoreMapper"),
+        "throw missingConstructor();");
+  }
+
+  @Test
+  public void compile_privateSetter_shouldFail() {
+    Compilation result =
+        compile(
+            JavaFileObjects.forSourceLines(
+                "com.example.PrivateSetter",
+                "package com.example;",
+                "import com.google.firebase.firestore.*;",
+                "@GenerateMapper public class PrivateSetter {",
+                "  public String getValue() { return null; }",
+                "  private void setValue(String value) {}",
+                "}"));
+
+    assertThat(result).hadErrorContaining("can only be set through setValue");
+  }
+
+  @Test
+  public void compile_genericClass_shouldFail() {
+    Compilation result =
+        compile(
+            JavaFileObjects.forSourceLines(
+                "com.example.Generic",
+                "package com.example;",
+                "import com.google.firebase.firestore.*;",
+                "@GenerateMapper public class Generic<T> {",
+                "  public T value;",
+                "}"));
+
+    assertThat(result).hadErrorContaining("does not support generic classes");
+  }
+
+  @Test
+  public void compile_invalidServerTimestamp_shouldFail() {
+    Compilation result =
+        compile(
+            JavaFileObjects.forSourceLines(
+                "com.example.InvalidTimestamp",
+                "package com.example;",
+                "import com.google.firebase.firestore.*;",
+                "@GenerateMapper public class InvalidTimestamp {",
+                "  @ServerTimestamp public String getTime() { return null; }",
+                "}"));
+
+    assertThat(result)
+        .hadErrorContaining("is annotated with @ServerTimestamp but returns java.lang.String");
+  }
+
+  @Test
+  public void compile_conflictingCase_shouldFail() {
+    Compilation result =
+        compile(
+            JavaFileObjects.forSourceLines(
+                "com.example.ConflictingCase",
+                "package com.example;",
+                "import com.google.firebase.firestore.*;",
+                "@GenerateMapper public class ConflictingCase {",
+                "  public String value;",
+                "  public String Value;",
+                "}"));
+
+    assertThat(result).hadErrorContaining("conflicting case sensitivity for property: value");
+  }
+
+  private static Compilation compile(JavaFileObject... sources) {
+    List<JavaFileObject> files = new ArrayList<>(firestoreStubs());
+    files.addAll(Arrays.asList(sources));
+    return javac().withProcessors(new MapperProcessor()).compile(files);
+  }
+
+  private static String generatedSource(Compilation result, String className) {
+    try {
+      return result
+          .generatedSourceFile(className)
+          .orElseThrow(() -> new AssertionError("Missing generated source " + className))
+          .getCharContent(false)
+          .toString();
+    } catch (java.io.IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void assertContains(String source, String expected) {
+    if (!source.contains(expected)) {
+      throw new AssertionError("Expected \"" + expected + "\" in generated source:\n" + source);
+    }
+  }
+
+  private static void assertDoesNotContain(String source, String unexpected) {
+    if (source.contains(unexpected)) {
+      throw new AssertionError(
+          "Unexpected \"" + unexpected + "\" in generated source:\n" + source);
+    }
+  }
+
+  /** Minimal versions of the Firestore classes that the processor and generated mappers use. */
+  private static List<JavaFileObject> firestoreStubs() {
+    return Arrays.asList(
+        annotationStub("GenerateMapper", "TYPE", ""),
+        annotationStub("DocumentId", "FIELD, ElementType.METHOD", ""),
+        annotationStub("Exclude", "FIELD, ElementType.METHOD", ""),
+        annotationStub("ServerTimestamp", "FIELD, ElementType.METHOD", ""),
+        annotationStub("PropertyName", "FIELD, ElementType.METHOD", "String value();"),
+        JavaFileObjects.forSourceLines(
+            "com.google.firebase.firestore.DocumentReference",
+            "package com.google.firebase.firestore;",
+            "public class DocumentReference {",
+            "  public String getId() { return null; }",
+            "}"),
+        JavaFileObjects.forSourceLines(
+            "com.google.firebase.firestore.FieldValue",
+            "package com.google.firebase.firestore;",
+            "public class FieldValue {",
+            "  public static FieldValue serverTimestamp() { return null; }",
+            "}"),
+        JavaFileObjects.forSourceLines(
+            "com.google.firebase.firestore.MappingContext",
+            "package com.google.firebase.firestore;",
+            "public abstract class MappingContext {",
+            "  public abstract Object serialize(Object value, String propertyName);",
+            "  public abstract Object deserialize(",
+            "      Object value, java.lang.reflect.Type type, String propertyName);",
+            "  public abstract DocumentReference getDocumentReference();",
+            "}"),
+        JavaFileObjects.forSourceLines(
+            "com.google.firebase.firestore.ClassMapper",
+            "package com.google.firebase.firestore;",
+            "import java.lang.reflect.Type;",
+            "import java.util.Map;",
+            "public abstract class ClassMapper<T> {",
+            "  protected ClassMapper(Class<T> clazz) {}",
+            "  public abstract Map<String, Object> serialize(T object, MappingContext context);",
+            "  public abstract T deserialize(Map<String, Object> values, MappingContext context);",
+            "  protected final void handleUnknownProperty(String propertyName) {}",
+            "  protected final RuntimeException documentIdConflict(",
+            "      String propertyName, MappingContext context) {",
+            "    return null;",
+            "  }",
+            "  protected final RuntimeException missingConstructor() { return null; }",
+            "  protected static Type parameterizedType(Class<?> rawType, Type... arguments) {",
+            "    return null;",
+            "  }",
+            "}"));
+  }
+
+  private static JavaFileObject annotationStub(String name, String targets, String body) {
+    return JavaFileObjects.forSourceLines(
+        "com.google.firebase.firestore." + name,
+        "package com.google.firebase.firestore;",
+        "import java.lang.annotation.*;",
+        "@Retention(RetentionPolicy.RUNTIME)",
+        "@Target({ElementType." + targets + "})",
+        "public @interface " + name + " {" + body + "}");
+  }
+}
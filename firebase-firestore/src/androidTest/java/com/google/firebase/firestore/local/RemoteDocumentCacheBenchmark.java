@@ -0,0 +1,122 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.local;
+
+import static com.google.firebase.firestore.testutil.TestUtil.doc;
+import static com.google.firebase.firestore.testutil.TestUtil.filter;
+import static com.google.firebase.firestore.testutil.TestUtil.map;
+import static com.google.firebase.firestore.testutil.TestUtil.query;
+import static com.google.firebase.firestore.testutil.TestUtil.version;
+
+import android.content.Context;
+import androidx.test.core.app.ApplicationProvider;
+import com.google.firebase.database.collection.ImmutableSortedMap;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+import com.google.firebase.firestore.core.Query;
+import com.google.firebase.firestore.model.DatabaseId;
+import com.google.firebase.firestore.model.Document;
+import com.google.firebase.firestore.model.DocumentKey;
+import com.google.firebase.firestore.model.SnapshotVersion;
+import com.google.firebase.firestore.remote.RemoteSerializer;
+import com.google.firebase.firestore.util.Executors;
+import org.junit.Assert;
+
+/**
+ * Benchmarks for collection scans of the SQLite remote document cache. These need to run on a
+ * device to produce meaningful numbers and are disabled by default. Uncomment the {@code @Test}
+ * annotations to run them.
+ */
+public class RemoteDocumentCacheBenchmark {
+
+  private static final int ITERATIONS = 5;
+
+  // @Test
+  public void collectionScanWith10kDocuments() throws FirebaseFirestoreException {
+    benchmarkCollectionScan(10000);
+  }
+
+  // @Test
+  public void collectionScanWith100kDocuments() throws FirebaseFirestoreException {
+    benchmarkCollectionScan(100000);
+  }
+
+  private static void benchmarkCollectionScan(int documentCount) throws FirebaseFirestoreException {
+    SQLitePersistence persistence = openPersistence("benchmark-" + documentCount);
+    RemoteDocumentCache remoteDocumentCache = persistence.getRemoteDocumentCache();
+
+    System.err.println(String.format("Writing %d documents...", documentCount));
+    persistence.runTransaction(
+        "add documents",
+        () -> {
+          for (int i = 0; i < documentCount; ++i) {
+            remoteDocumentCache.add(
+                doc("coll/doc" + i, 1, map("index", i, "even", i % 2 == 0, "text", "value" + i)),
+                version(1));
+          }
+        });
+
+    System.err.println(
+        String.format(
+            "Benchmarking with %d decode tasks on %d cores...",
+            Executors.BACKGROUND_PARALLELISM, Runtime.getRuntime().availableProcessors()));
+
+    // Half of the documents match the filtered query, so both the decode and the bulk build of the
+    // result map contribute to its runtime.
+    runQuery(persistence, remoteDocumentCache, query("coll"), documentCount);
+    runQuery(
+        persistence,
+        remoteDocumentCache,
+        query("coll").filter(filter("even", "==", true)),
+        documentCount / 2);
+
+    persistence.shutdown();
+  }
+
+  private static void runQuery(
+      SQLitePersistence persistence,
+      RemoteDocumentCache remoteDocumentCache,
+      Query query,
+      int expectedCount) {
+    long totalMillis = 0;
+    for (int i = 0; i < ITERATIONS; ++i) {
+      long start = System.currentTimeMillis();
+      ImmutableSortedMap<DocumentKey, Document> results =
+          persistence.runTransaction(
+              "query",
+              () -> remoteDocumentCache.getAllDocumentsMatchingQuery(query, SnapshotVersion.NONE));
+      totalMillis += System.currentTimeMillis() - start;
+      Assert.assertEquals(expectedCount, results.size());
+    }
+
+    System.err.println(
+        String.format(
+            "%s took %dms on average (%d results)",
+            query,
+            totalMillis / ITERATIONS,
+            expectedCount));
+  }
+
+  private static SQLitePersistence openPersistence(String name) throws FirebaseFirestoreException {
+    DatabaseId databaseId = DatabaseId.forProject("projectId");
+    LocalSerializer serializer = new LocalSerializer(new RemoteSerializer(databaseId));
+    Context context = ApplicationProvider.getApplicationContext();
+    SQLitePersistence.clearPersistence(context, databaseId, name);
+    SQLitePersistence persistence =
+        new SQLitePersistence(
+            context, name, databaseId, serializer, LruGarbageCollector.Params.Default());
+    persistence.start();
+    return persistence;
+  }
+}
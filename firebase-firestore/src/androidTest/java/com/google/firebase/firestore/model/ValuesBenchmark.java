@@ -0,0 +1,98 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.model;
+
+import static com.google.firebase.firestore.testutil.TestUtil.doc;
+import static com.google.firebase.firestore.testutil.TestUtil.filter;
+import static com.google.firebase.firestore.testutil.TestUtil.map;
+import static com.google.firebase.firestore.testutil.TestUtil.orderBy;
+import static com.google.firebase.firestore.testutil.TestUtil.query;
+
+import com.google.firebase.firestore.core.Query;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+
+/**
+ * Benchmarks for comparing map values and computing canonical IDs, which happen for every document
+ * when sorting query results. These need to run on a device to produce meaningful numbers and are
+ * disabled by default. Uncomment the {@code @Test} annotations to run them.
+ */
+public class ValuesBenchmark {
+
+  private static final int ITERATIONS = 5;
+
+  // @Test
+  public void sortByMapFieldWith10kDocuments() {
+    benchmarkSortByMapField(10000);
+  }
+
+  // @Test
+  public void canonicalIdsOf10kQueries() {
+    long totalMillis = 0;
+    for (int i = 0; i < ITERATIONS; ++i) {
+      // Queries memoize their canonical ID, so each one is only asked once.
+      List<Query> queries = new ArrayList<>(10000);
+      for (int j = 0; j < 10000; ++j) {
+        queries.add(
+            query("coll")
+                .filter(filter("nested", "==", map("a", i, "b", map("c", "value", "d", j))))
+                .orderBy(orderBy("nested")));
+      }
+      long start = System.currentTimeMillis();
+      String canonicalId = null;
+      for (Query query : queries) {
+        canonicalId = query.getCanonicalId();
+      }
+      totalMillis += System.currentTimeMillis() - start;
+      Assert.assertNotNull(canonicalId);
+    }
+
+    System.err.println(
+        String.format(
+            "Computing 10000 canonical IDs took %dms on average", totalMillis / ITERATIONS));
+  }
+
+  private static void benchmarkSortByMapField(int documentCount) {
+    Random random = new Random(42);
+    List<Document> documents = new ArrayList<>(documentCount);
+    for (int i = 0; i < documentCount; ++i) {
+      // The fields are deliberately written in reverse order, as they would be after local edits.
+      Object nested =
+          map("z", random.nextInt(10), "m", random.nextInt(10), "a", random.nextInt(documentCount));
+      documents.add(doc("coll/doc" + i, 1, map("nested", nested)));
+    }
+
+    Comparator<Document> comparator = query("coll").orderBy(orderBy("nested")).comparator();
+    long totalMillis = 0;
+    for (int i = 0; i < ITERATIONS; ++i) {
+      List<Document> sorted = new ArrayList<>(documents);
+      Collections.shuffle(sorted, random);
+      long start = System.currentTimeMillis();
+      Collections.sort(sorted, comparator);
+      totalMillis += System.currentTimeMillis() - start;
+      Assert.assertEquals(documentCount, sorted.size());
+    }
+
+    System.err.println(
+        String.format(
+            "Sorting %d documents by a map field took %dms on average",
+            documentCount,
+            totalMillis / ITERATIONS));
+  }
+}
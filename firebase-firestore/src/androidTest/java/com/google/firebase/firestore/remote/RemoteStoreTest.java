@@ -19,6 +19,7 @@ import static com.google.firebase.firestore.testutil.IntegrationTestUtil.waitFor
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import com.google.firebase.database.collection.ImmutableSortedSet;
+import com.google.firebase.firestore.FirebaseFirestoreSettings;
 import com.google.firebase.firestore.auth.User;
 import com.google.firebase.firestore.core.OnlineState;
 import com.google.firebase.firestore.local.LocalStore;
@@ -78,8 +79,16 @@ public class RemoteStoreTest {
     Persistence persistence = MemoryPersistence.createEagerGcMemoryPersistence();
     persistence.start();
     LocalStore localStore = new LocalStore(persistence, queryEngine, User.UNAUTHENTICATED);
+    FirebaseFirestoreSettings settings = new FirebaseFirestoreSettings.Builder().build();
     RemoteStore remoteStore =
-        new RemoteStore(callback, localStore, datastore, testQueue, connectivityMonitor);
+        new RemoteStore(
+            callback,
+            localStore,
+            datastore,
+            testQueue,
+            connectivityMonitor,
+            settings.getMaxPendingWrites(),
+            settings.isWriteCoalescingEnabled());
 
     waitFor(testQueue.enqueue(() -> remoteStore.forceEnableNetwork()));
     drain(testQueue);
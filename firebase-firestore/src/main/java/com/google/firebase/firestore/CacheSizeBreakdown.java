@@ -0,0 +1,93 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.util.Map;
+
+/**
+ * The approximate sizes of the data in the offline cache, as returned by {@link
+ * FirebaseFirestore#getCacheSizeBreakdown()}.
+ *
+ * <p>Sizes count the encoded data of the cached documents and queries. They don't include pending
+ * writes or the overhead of the underlying database, so the cache uses more space on disk.
+ *
+ * <p><b>Subclassing Note</b>: Cloud Firestore classes are not meant to be subclassed except for use
+ * in test mocks. Subclassing is not supported in production code and new SDK releases may break
+ * code that does so.
+ */
+public class CacheSizeBreakdown {
+  private final Map<String, Long> collectionBytes;
+  private final long queryBytes;
+
+  CacheSizeBreakdown(Map<String, Long> collectionBytes, long queryBytes) {
+    this.collectionBytes = collectionBytes;
+    this.queryBytes = queryBytes;
+  }
+
+  /**
+   * Returns the size in bytes of the cached documents of each collection, keyed by the path of the
+   * collection (for example {@code "users"} or {@code "users/alice/posts"}). Documents in
+   * subcollections are only counted for their own collection.
+   */
+  @NonNull
+  public Map<String, Long> getCollectionBytes() {
+    return collectionBytes;
+  }
+
+  /** Returns the size in bytes of the data used to track the results of cached queries. */
+  public long getQueryBytes() {
+    return queryBytes;
+  }
+
+  /** Returns the size in bytes of all cached documents and queries. */
+  public long getTotalBytes() {
+    long totalBytes = queryBytes;
+    for (long bytes : collectionBytes.values()) {
+      totalBytes += bytes;
+    }
+    return totalBytes;
+  }
+
+  @Override
+  public boolean equals(@Nullable Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof CacheSizeBreakdown)) {
+      return false;
+    }
+    CacheSizeBreakdown other = (CacheSizeBreakdown) obj;
+    return queryBytes == other.queryBytes && collectionBytes.equals(other.collectionBytes);
+  }
+
+  @Override
+  public int hashCode() {
+    int hash = collectionBytes.hashCode();
+    hash = hash * 31 + (int) (queryBytes ^ (queryBytes >>> 32));
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return "CacheSizeBreakdown{"
+        + "collectionBytes="
+        + collectionBytes
+        + ", queryBytes="
+        + queryBytes
+        + '}';
+  }
+}
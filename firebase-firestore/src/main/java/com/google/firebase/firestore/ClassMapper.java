@@ -0,0 +1,163 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.google.firebase.firestore.util.Logger;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Converts objects of a POJO class to and from the maps that are stored in documents, without
+ * using reflection.
+ *
+ * <p>Subclasses are generated by the {@code firebase-firestore-processor} annotation processor for
+ * classes annotated with {@link GenerateMapper}, and should not be written by hand.
+ *
+ * @param <T> The POJO class.
+ */
+public abstract class ClassMapper<T> {
+  private final Class<T> clazz;
+  private final boolean throwOnUnknownProperties;
+  private final boolean warnOnUnknownProperties;
+
+  protected ClassMapper(@NonNull Class<T> clazz) {
+    this.clazz = clazz;
+    throwOnUnknownProperties = clazz.isAnnotationPresent(ThrowOnExtraProperties.class);
+    warnOnUnknownProperties = !clazz.isAnnotationPresent(IgnoreExtraProperties.class);
+  }
+
+  /** Converts the properties of the given object to values that can be stored in a document. */
+  @NonNull
+  public abstract Map<String, Object> serialize(@NonNull T object, @NonNull MappingContext context);
+
+  /** Creates an object with the properties from the given stored values. */
+  @NonNull
+  public abstract T deserialize(
+      @NonNull Map<String, Object> values, @NonNull MappingContext context);
+
+  /**
+   * Handles a stored property that the class has no setter or field for, according to the {@link
+   * ThrowOnExtraProperties} and {@link IgnoreExtraProperties} annotations of the class.
+   */
+  protected final void handleUnknownProperty(@NonNull String propertyName) {
+    String message = "No setter/field for " + propertyName + " found on class " + clazz.getName();
+    if (throwOnUnknownProperties) {
+      throw new RuntimeException(message);
+    } else if (warnOnUnknownProperties) {
+      Logger.warn(ClassMapper.class.getSimpleName(), "%s", message);
+    }
+  }
+
+  /**
+   * Returns the exception for a stored property that has the same name as a property annotated
+   * with {@link DocumentId}.
+   */
+  @NonNull
+  protected final RuntimeException documentIdConflict(
+      @NonNull String propertyName, @NonNull MappingContext context) {
+    DocumentReference documentRef = context.getDocumentReference();
+    return new RuntimeException(
+        "'"
+            + propertyName
+            + "' was found from document "
+            + (documentRef != null ? documentRef.getPath() : null)
+            + ", cannot apply @DocumentId on this property for class "
+            + clazz.getName());
+  }
+
+  /** Returns the exception for deserializing a class that has no no-argument constructor. */
+  @NonNull
+  protected final RuntimeException missingConstructor() {
+    return new RuntimeException(
+        "Could not deserialize object. Class "
+            + clazz.getName()
+            + " does not define a no-argument constructor that is accessible from its package");
+  }
+
+  /**
+   * Returns the generic type with the given raw type and type arguments, for example {@code
+   * List<String>}.
+   */
+  @NonNull
+  protected static Type parameterizedType(
+      @NonNull Class<?> rawType, @NonNull Type... typeArguments) {
+    return new ParameterizedTypeImpl(rawType, typeArguments);
+  }
+
+  private static final class ParameterizedTypeImpl implements ParameterizedType {
+    private final Class<?> rawType;
+    private final Type[] typeArguments;
+
+    ParameterizedTypeImpl(Class<?> rawType, Type[] typeArguments) {
+      this.rawType = rawType;
+      this.typeArguments = typeArguments.clone();
+    }
+
+    @NonNull
+    @Override
+    public Type[] getActualTypeArguments() {
+      return typeArguments.clone();
+    }
+
+    @NonNull
+    @Override
+    public Type getRawType() {
+      return rawType;
+    }
+
+    @Nullable
+    @Override
+    public Type getOwnerType() {
+      return null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof ParameterizedType)) {
+        return false;
+      }
+      ParameterizedType that = (ParameterizedType) o;
+      return rawType.equals(that.getRawType())
+          && that.getOwnerType() == null
+          && Arrays.equals(typeArguments, that.getActualTypeArguments());
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * rawType.hashCode() + Arrays.hashCode(typeArguments);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder builder = new StringBuilder(rawType.getName()).append('<');
+      for (int i = 0; i < typeArguments.length; ++i) {
+        if (i > 0) {
+          builder.append(", ");
+        }
+        Type argument = typeArguments[i];
+        builder.append(
+            argument instanceof Class ? ((Class<?>) argument).getName() : argument.toString());
+      }
+      return builder.append('>').toString();
+    }
+  }
+}
@@ -177,10 +177,8 @@ public class DocumentSnapshot {
     checkNotNull(valueType, "Provided POJO type must not be null.");
     checkNotNull(
         serverTimestampBehavior, "Provided serverTimestampBehavior value must not be null.");
-    Map<String, Object> data = getData(serverTimestampBehavior);
-    return data == null
-        ? null
-        : CustomClassMapper.convertToCustomClass(data, valueType, getReference());
+    UserDataWriter userDataWriter = new UserDataWriter(firestore, serverTimestampBehavior);
+    return doc == null ? null : userDataWriter.convertDocument(doc, valueType);
   }
 
   /**
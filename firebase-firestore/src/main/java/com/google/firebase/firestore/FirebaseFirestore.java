@@ -37,6 +37,7 @@ import com.google.firebase.firestore.core.ActivityScope;
 import com.google.firebase.firestore.core.AsyncEventListener;
 import com.google.firebase.firestore.core.DatabaseInfo;
 import com.google.firebase.firestore.core.FirestoreClient;
+import com.google.firebase.firestore.local.CacheSizes;
 import com.google.firebase.firestore.local.SQLitePersistence;
 import com.google.firebase.firestore.model.DatabaseId;
 import com.google.firebase.firestore.model.ResourcePath;
@@ -47,6 +48,9 @@ import com.google.firebase.firestore.util.Executors;
 import com.google.firebase.firestore.util.Function;
 import com.google.firebase.firestore.util.Logger;
 import com.google.firebase.firestore.util.Logger.Level;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.Executor;
 
 /**
@@ -447,6 +451,34 @@ public class FirebaseFirestore {
     return client.waitForPendingWrites();
   }
 
+  /**
+   * Returns the approximate sizes of the documents and queries in the offline cache.
+   *
+   * <p>The sizes are tracked as documents are added to and removed from the cache, so this method
+   * doesn't need to read the cached data. Apps can use the breakdown to find the collections that
+   * use most of the cache. If persistence is disabled, all sizes are zero.
+   *
+   * @return A {@code Task} that resolves with the sizes of the cached data.
+   */
+  @NonNull
+  public Task<CacheSizeBreakdown> getCacheSizeBreakdown() {
+    ensureClientConfigured();
+    return client
+        .getCacheSizes()
+        .continueWith(
+            Executors.DIRECT_EXECUTOR,
+            task -> {
+              CacheSizes cacheSizes = task.getResult();
+              Map<String, Long> collectionBytes = new HashMap<>();
+              for (Map.Entry<ResourcePath, Long> entry :
+                  cacheSizes.getCollectionByteSizes().entrySet()) {
+                collectionBytes.put(entry.getKey().canonicalString(), entry.getValue());
+              }
+              return new CacheSizeBreakdown(
+                  Collections.unmodifiableMap(collectionBytes), cacheSizes.getTargetByteSize());
+            });
+  }
+
   @VisibleForTesting
   AsyncQueue getAsyncQueue() {
     return asyncQueue;
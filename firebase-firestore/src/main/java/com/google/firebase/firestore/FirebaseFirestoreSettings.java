@@ -32,6 +32,9 @@ public final class FirebaseFirestoreSettings {
 
   private static final long MINIMUM_CACHE_BYTES = 1 * 1024 * 1024; // 1 MB
   private static final long DEFAULT_CACHE_SIZE_BYTES = 100 * 1024 * 1024; // 100 MB
+  private static final int DEFAULT_LIMBO_RESOLUTION_BATCH_SIZE = 100;
+  private static final int DEFAULT_MAX_CONCURRENT_LIMBO_RESOLUTIONS = 10;
+  private static final int DEFAULT_MAX_PENDING_WRITES = 100;
 
   /** A Builder for creating {@code FirebaseFirestoreSettings}. */
   public static final class Builder {
@@ -39,6 +42,14 @@ public final class FirebaseFirestoreSettings {
     private boolean sslEnabled;
     private boolean persistenceEnabled;
     private long cacheSizeBytes;
+    private boolean queryIndexingEnabled;
+    private int limboResolutionBatchSize;
+    private int maxConcurrentLimboResolutions;
+    private int maxPendingWrites;
+    private boolean writeCoalescingEnabled;
+    private boolean pendingWriteCompactionEnabled;
+    private boolean concurrentCacheReadsEnabled;
+    private boolean lazyStartupEnabled;
 
     /** Constructs a new {@code FirebaseFirestoreSettings} Builder object. */
     public Builder() {
@@ -46,6 +57,9 @@ public final class FirebaseFirestoreSettings {
       sslEnabled = true;
       persistenceEnabled = true;
       cacheSizeBytes = DEFAULT_CACHE_SIZE_BYTES;
+      limboResolutionBatchSize = DEFAULT_LIMBO_RESOLUTION_BATCH_SIZE;
+      maxConcurrentLimboResolutions = DEFAULT_MAX_CONCURRENT_LIMBO_RESOLUTIONS;
+      maxPendingWrites = DEFAULT_MAX_PENDING_WRITES;
     }
 
     /**
@@ -57,6 +71,14 @@ public final class FirebaseFirestoreSettings {
       host = settings.host;
       sslEnabled = settings.sslEnabled;
       persistenceEnabled = settings.persistenceEnabled;
+      queryIndexingEnabled = settings.queryIndexingEnabled;
+      limboResolutionBatchSize = settings.limboResolutionBatchSize;
+      maxConcurrentLimboResolutions = settings.maxConcurrentLimboResolutions;
+      maxPendingWrites = settings.maxPendingWrites;
+      writeCoalescingEnabled = settings.writeCoalescingEnabled;
+      pendingWriteCompactionEnabled = settings.pendingWriteCompactionEnabled;
+      concurrentCacheReadsEnabled = settings.concurrentCacheReadsEnabled;
+      lazyStartupEnabled = settings.lazyStartupEnabled;
     }
 
     /**
@@ -115,6 +137,142 @@ public final class FirebaseFirestoreSettings {
       return this;
     }
 
+    /**
+     * Enables or disables the use of a persisted index of document field values to execute queries
+     * against the local cache. The index is only used when local persistent storage is enabled.
+     * For each query, the SDK only uses the index if it is estimated to be cheaper than reading the
+     * query's previous results. The default is to not use the index.
+     *
+     * @return A settings object that uses the index to execute queries as specified by the given
+     *     <tt>value</tt>.
+     */
+    @NonNull
+    public Builder setQueryIndexingEnabled(boolean value) {
+      this.queryIndexingEnabled = value;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of documents that are verified with a single request to the backend.
+     *
+     * <p>Documents need to be verified if a query's results from the backend no longer contain
+     * documents that the local cache still matches to the query, which often happens after the
+     * client reconnects. Larger batches verify many documents in fewer round trips. The default is
+     * 100 documents.
+     *
+     * @return A settings object on which the batch size is configured as specified by the given
+     *     {@code value}.
+     */
+    @NonNull
+    public Builder setLimboResolutionBatchSize(int value) {
+      if (value < 1) {
+        throw new IllegalArgumentException("Limbo resolution batch size must be at least 1");
+      }
+      this.limboResolutionBatchSize = value;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of concurrent requests that verify documents with the backend (see
+     * {@link #setLimboResolutionBatchSize}). Further documents are verified once a request
+     * completes. The default is 10 requests.
+     *
+     * @return A settings object on which the number of concurrent requests is configured as
+     *     specified by the given {@code value}.
+     */
+    @NonNull
+    public Builder setMaxConcurrentLimboResolutions(int value) {
+      if (value < 1) {
+        throw new IllegalArgumentException(
+            "Maximum number of concurrent limbo resolutions must be at least 1");
+      }
+      this.maxConcurrentLimboResolutions = value;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of write batches that are sent to the backend before their
+     * acknowledgement is received. The SDK starts with up to 10 write batches in flight and only
+     * sends more of them while the round-trip time of the connection remains stable. The default
+     * maximum is 100 write batches.
+     *
+     * @return A settings object on which the maximum number of pending writes is configured as
+     *     specified by the given {@code value}.
+     */
+    @NonNull
+    public Builder setMaxPendingWrites(int value) {
+      if (value < 1) {
+        throw new IllegalArgumentException("Maximum number of pending writes must be at least 1");
+      }
+      this.maxPendingWrites = value;
+      return this;
+    }
+
+    /**
+     * Enables or disables sending adjacent write batches that modify different documents to the
+     * backend in a single request. This reduces the number of round trips when many small write
+     * batches are sent, for example after the client comes back online. Each write batch is still
+     * acknowledged on its own. The default is to send each write batch in a request of its own.
+     *
+     * @return A settings object that coalesces write batches as specified by the given
+     *     <tt>value</tt>.
+     */
+    @NonNull
+    public Builder setWriteCoalescingEnabled(boolean value) {
+      this.writeCoalescingEnabled = value;
+      return this;
+    }
+
+    /**
+     * Enables or disables combining consecutive writes to the same documents while they are
+     * waiting to be sent to the backend, for example while the client is offline. A write is only
+     * combined with the preceding write if both consist of {@code set()} or {@code update()}
+     * operations on the same documents, don't use {@code FieldValue} transforms and the combined
+     * write succeeds or fails just like the individual writes would, except that security rules are
+     * only evaluated for the combined write. The tasks of combined writes complete at the same
+     * time. The default is to send each write on its own.
+     *
+     * @return A settings object that combines pending writes as specified by the given
+     *     <tt>value</tt>.
+     */
+    @NonNull
+    public Builder setPendingWriteCompactionEnabled(boolean value) {
+      this.pendingWriteCompactionEnabled = value;
+      return this;
+    }
+
+    /**
+     * Enables or disables serving reads from the offline cache ({@code get(Source.CACHE)}) on
+     * background threads while other operations, such as applying updates from the backend, are in
+     * progress. A read is only served on a background thread if no update of the cache completed
+     * while it ran, so that it never returns a partially applied update. This requires persistence
+     * to be enabled and switches the cache's database to write-ahead logging. The default is to
+     * serve all reads after the operations that were started before them.
+     *
+     * @return A settings object that serves cache reads as specified by the given <tt>value</tt>.
+     */
+    @NonNull
+    public Builder setConcurrentCacheReadsEnabled(boolean value) {
+      this.concurrentCacheReadsEnabled = value;
+      return this;
+    }
+
+    /**
+     * Enables or disables lazy startup. With lazy startup, Cloud Firestore only does the work that
+     * is needed to serve the first operations when it starts. Loading the state of pending writes
+     * and establishing the connection to the backend are deferred until they are first needed, or
+     * until there are no other operations left to run. The default is to do all startup work before
+     * the first operation runs.
+     *
+     * @return A settings object that starts Cloud Firestore as specified by the given
+     *     <tt>value</tt>.
+     */
+    @NonNull
+    public Builder setLazyStartupEnabled(boolean value) {
+      this.lazyStartupEnabled = value;
+      return this;
+    }
+
     /** @return the host of the Cloud Firestore backend. */
     @NonNull
     public String getHost() {
@@ -136,6 +294,46 @@ public final class FirebaseFirestoreSettings {
       return cacheSizeBytes;
     }
 
+    /** @return boolean indicating whether queries are executed using the index or not. */
+    public boolean isQueryIndexingEnabled() {
+      return queryIndexingEnabled;
+    }
+
+    /** @return the maximum number of documents verified with a single request. */
+    public int getLimboResolutionBatchSize() {
+      return limboResolutionBatchSize;
+    }
+
+    /** @return the maximum number of concurrent requests that verify documents. */
+    public int getMaxConcurrentLimboResolutions() {
+      return maxConcurrentLimboResolutions;
+    }
+
+    /** @return the maximum number of write batches that are sent before they are acknowledged. */
+    public int getMaxPendingWrites() {
+      return maxPendingWrites;
+    }
+
+    /** @return boolean indicating whether write batches are coalesced or not. */
+    public boolean isWriteCoalescingEnabled() {
+      return writeCoalescingEnabled;
+    }
+
+    /** @return boolean indicating whether pending writes are combined or not. */
+    public boolean isPendingWriteCompactionEnabled() {
+      return pendingWriteCompactionEnabled;
+    }
+
+    /** @return boolean indicating whether cache reads are served concurrently or not. */
+    public boolean isConcurrentCacheReadsEnabled() {
+      return concurrentCacheReadsEnabled;
+    }
+
+    /** @return boolean indicating whether lazy startup is enabled or not. */
+    public boolean isLazyStartupEnabled() {
+      return lazyStartupEnabled;
+    }
+
     @NonNull
     public FirebaseFirestoreSettings build() {
       if (!this.sslEnabled && this.host.equals(DEFAULT_HOST)) {
@@ -150,6 +348,14 @@ public final class FirebaseFirestoreSettings {
   private final boolean sslEnabled;
   private final boolean persistenceEnabled;
   private final long cacheSizeBytes;
+  private final boolean queryIndexingEnabled;
+  private final int limboResolutionBatchSize;
+  private final int maxConcurrentLimboResolutions;
+  private final int maxPendingWrites;
+  private final boolean writeCoalescingEnabled;
+  private final boolean pendingWriteCompactionEnabled;
+  private final boolean concurrentCacheReadsEnabled;
+  private final boolean lazyStartupEnabled;
 
   /** Constructs a {@code FirebaseFirestoreSettings} object based on the values in the Builder. */
   private FirebaseFirestoreSettings(Builder builder) {
@@ -157,6 +363,14 @@ public final class FirebaseFirestoreSettings {
     sslEnabled = builder.sslEnabled;
     persistenceEnabled = builder.persistenceEnabled;
     cacheSizeBytes = builder.cacheSizeBytes;
+    queryIndexingEnabled = builder.queryIndexingEnabled;
+    limboResolutionBatchSize = builder.limboResolutionBatchSize;
+    maxConcurrentLimboResolutions = builder.maxConcurrentLimboResolutions;
+    maxPendingWrites = builder.maxPendingWrites;
+    writeCoalescingEnabled = builder.writeCoalescingEnabled;
+    pendingWriteCompactionEnabled = builder.pendingWriteCompactionEnabled;
+    concurrentCacheReadsEnabled = builder.concurrentCacheReadsEnabled;
+    lazyStartupEnabled = builder.lazyStartupEnabled;
   }
 
   @Override
@@ -172,7 +386,15 @@ public final class FirebaseFirestoreSettings {
     return host.equals(that.host)
         && sslEnabled == that.sslEnabled
         && persistenceEnabled == that.persistenceEnabled
-        && cacheSizeBytes == that.cacheSizeBytes;
+        && cacheSizeBytes == that.cacheSizeBytes
+        && queryIndexingEnabled == that.queryIndexingEnabled
+        && limboResolutionBatchSize == that.limboResolutionBatchSize
+        && maxConcurrentLimboResolutions == that.maxConcurrentLimboResolutions
+        && maxPendingWrites == that.maxPendingWrites
+        && writeCoalescingEnabled == that.writeCoalescingEnabled
+        && pendingWriteCompactionEnabled == that.pendingWriteCompactionEnabled
+        && concurrentCacheReadsEnabled == that.concurrentCacheReadsEnabled
+        && lazyStartupEnabled == that.lazyStartupEnabled;
   }
 
   @Override
@@ -181,6 +403,14 @@ public final class FirebaseFirestoreSettings {
     result = 31 * result + (sslEnabled ? 1 : 0);
     result = 31 * result + (persistenceEnabled ? 1 : 0);
     result = 31 * result + (int) cacheSizeBytes;
+    result = 31 * result + (queryIndexingEnabled ? 1 : 0);
+    result = 31 * result + limboResolutionBatchSize;
+    result = 31 * result + maxConcurrentLimboResolutions;
+    result = 31 * result + maxPendingWrites;
+    result = 31 * result + (writeCoalescingEnabled ? 1 : 0);
+    result = 31 * result + (pendingWriteCompactionEnabled ? 1 : 0);
+    result = 31 * result + (concurrentCacheReadsEnabled ? 1 : 0);
+    result = 31 * result + (lazyStartupEnabled ? 1 : 0);
     return result;
   }
 
@@ -196,6 +426,22 @@ public final class FirebaseFirestoreSettings {
         + persistenceEnabled
         + ", cacheSizeBytes="
         + cacheSizeBytes
+        + ", queryIndexingEnabled="
+        + queryIndexingEnabled
+        + ", limboResolutionBatchSize="
+        + limboResolutionBatchSize
+        + ", maxConcurrentLimboResolutions="
+        + maxConcurrentLimboResolutions
+        + ", maxPendingWrites="
+        + maxPendingWrites
+        + ", writeCoalescingEnabled="
+        + writeCoalescingEnabled
+        + ", pendingWriteCompactionEnabled="
+        + pendingWriteCompactionEnabled
+        + ", concurrentCacheReadsEnabled="
+        + concurrentCacheReadsEnabled
+        + ", lazyStartupEnabled="
+        + lazyStartupEnabled
         + "}";
   }
 
@@ -222,4 +468,44 @@ public final class FirebaseFirestoreSettings {
   public long getCacheSizeBytes() {
     return cacheSizeBytes;
   }
+
+  /** Returns whether or not to use the index of document field values to execute queries. */
+  public boolean isQueryIndexingEnabled() {
+    return queryIndexingEnabled;
+  }
+
+  /** Returns the maximum number of documents that are verified with a single request. */
+  public int getLimboResolutionBatchSize() {
+    return limboResolutionBatchSize;
+  }
+
+  /** Returns the maximum number of concurrent requests that verify documents. */
+  public int getMaxConcurrentLimboResolutions() {
+    return maxConcurrentLimboResolutions;
+  }
+
+  /** Returns the maximum number of write batches that are sent before they are acknowledged. */
+  public int getMaxPendingWrites() {
+    return maxPendingWrites;
+  }
+
+  /** Returns whether or not to send adjacent write batches in a single request. */
+  public boolean isWriteCoalescingEnabled() {
+    return writeCoalescingEnabled;
+  }
+
+  /** Returns whether or not to combine consecutive writes while they wait to be sent. */
+  public boolean isPendingWriteCompactionEnabled() {
+    return pendingWriteCompactionEnabled;
+  }
+
+  /** Returns whether or not to serve cache reads concurrently with other operations. */
+  public boolean isConcurrentCacheReadsEnabled() {
+    return concurrentCacheReadsEnabled;
+  }
+
+  /** Returns whether or not to defer startup work that the first operations don't need. */
+  public boolean isLazyStartupEnabled() {
+    return lazyStartupEnabled;
+  }
 }
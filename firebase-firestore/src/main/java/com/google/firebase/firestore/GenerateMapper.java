@@ -0,0 +1,34 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a POJO class for which the {@code firebase-firestore-processor} annotation processor
+ * generates a {@link ClassMapper} at compile time.
+ *
+ * <p>Objects of classes with a generated mapper are converted to and from documents without
+ * reflection, for example by {@link DocumentSnapshot#toObject} and {@link DocumentReference#set}.
+ * The mapper follows the same rules as the reflection-based conversion, but requires that the
+ * setters and fields it writes to are not private. If the annotation processor did not run, the
+ * class is converted with reflection.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE})
+public @interface GenerateMapper {}
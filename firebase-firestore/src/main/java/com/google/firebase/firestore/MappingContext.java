@@ -0,0 +1,55 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+import java.lang.reflect.Type;
+
+/**
+ * Converts the property values of an object that is converted by a {@link ClassMapper}.
+ *
+ * <p>Used by the mappers that are generated for classes annotated with {@link GenerateMapper}.
+ */
+public abstract class MappingContext {
+
+  @RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
+  protected MappingContext() {}
+
+  /**
+   * Converts the value of the given property to a value that can be stored in a document.
+   *
+   * @throws IllegalArgumentException if the value can't be stored.
+   */
+  @Nullable
+  public abstract Object serialize(@Nullable Object value, @NonNull String propertyName);
+
+  /**
+   * Converts the stored value of the given property to the given type.
+   *
+   * @throws RuntimeException if the value can't be converted.
+   */
+  @Nullable
+  public abstract Object deserialize(
+      @Nullable Object value, @NonNull Type type, @NonNull String propertyName);
+
+  /**
+   * Returns the document that is converted, which is used to populate {@link DocumentId}
+   * properties.
+   */
+  @Nullable
+  public abstract DocumentReference getDocumentReference();
+}
@@ -1115,6 +1115,24 @@ public class Query {
         Executors.DEFAULT_CALLBACK_EXECUTOR, internalOptions(metadataChanges), activity, listener);
   }
 
+  /**
+   * Starts listening to this query with the given options.
+   *
+   * @param options Options that configure the metadata changes, the executor and the coalescing
+   *     window of the listener.
+   * @param listener The event listener that will be called with the snapshots.
+   * @return A registration object that can be used to remove the listener.
+   */
+  @NonNull
+  public ListenerRegistration addSnapshotListener(
+      @NonNull SnapshotListenOptions options, @NonNull EventListener<QuerySnapshot> listener) {
+    checkNotNull(options, "Provided SnapshotListenOptions must not be null.");
+    checkNotNull(listener, "Provided EventListener must not be null.");
+    ListenOptions internalOptions = internalOptions(options.getMetadataChanges());
+    internalOptions.coalescingWindowMs = options.getCoalescingWindowMillis();
+    return addSnapshotListenerInternal(options.getExecutor(), internalOptions, null, listener);
+  }
+
   /**
    * Internal helper method to create add a snapshot listener.
    *
@@ -14,12 +14,17 @@
 
 package com.google.firebase.firestore;
 
+import static com.google.firebase.firestore.util.Assert.fail;
 import static com.google.firebase.firestore.util.Preconditions.checkNotNull;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.firestore.core.ViewSnapshot;
 import com.google.firebase.firestore.model.Document;
+import com.google.firebase.firestore.util.BackgroundQueue;
+import com.google.firebase.firestore.util.Executors;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
@@ -35,6 +40,12 @@ import java.util.List;
  */
 public class QuerySnapshot implements Iterable<QueryDocumentSnapshot> {
 
+  /**
+   * The number of documents from which on {@link #toObjects} splits the conversion across
+   * background threads. Smaller snapshots are converted faster than the tasks can be scheduled.
+   */
+  private static final int PARALLEL_CONVERSION_THRESHOLD = 200;
+
   private final Query originalQuery;
 
   private final ViewSnapshot snapshot;
@@ -179,13 +190,146 @@ public class QuerySnapshot implements Iterable<QueryDocumentSnapshot> {
       @NonNull Class<T> clazz,
       @NonNull DocumentSnapshot.ServerTimestampBehavior serverTimestampBehavior) {
     checkNotNull(clazz, "Provided POJO type must not be null.");
-    List<T> res = new ArrayList<>();
-    for (DocumentSnapshot d : this) {
-      res.add(d.toObject(clazz, serverTimestampBehavior));
+    checkNotNull(
+        serverTimestampBehavior, "Provided serverTimestampBehavior value must not be null.");
+
+    List<ConversionChunk<T>> chunks = splitIntoChunks(clazz, serverTimestampBehavior);
+    BackgroundQueue backgroundQueue = new BackgroundQueue(Executors.BACKGROUND_PARALLELISM);
+    for (int i = 1; i < chunks.size(); ++i) {
+      backgroundQueue.execute(chunks.get(i));
+    }
+
+    // Since scheduling background tasks incurs overhead, the first chunk is converted on the
+    // calling thread, which would otherwise just be waiting for the background tasks.
+    if (!chunks.isEmpty()) {
+      chunks.get(0).run();
+    }
+
+    try {
+      backgroundQueue.drain();
+    } catch (InterruptedException e) {
+      throw fail(e, "Interrupted while converting documents");
+    }
+
+    List<T> res = new ArrayList<>(size());
+    for (ConversionChunk<T> chunk : chunks) {
+      res.addAll(chunk.getObjects());
     }
     return res;
   }
 
+  /**
+   * Splits the documents into the chunks that are converted in parallel, or a single chunk if the
+   * snapshot is too small for parallel conversion to pay off.
+   */
+  private <T> List<ConversionChunk<T>> splitIntoChunks(
+      Class<T> clazz, DocumentSnapshot.ServerTimestampBehavior serverTimestampBehavior) {
+    List<Document> documents = snapshot.getDocuments().toList();
+    UserDataWriter userDataWriter = new UserDataWriter(firestore, serverTimestampBehavior);
+    int chunkCount =
+        documents.size() < PARALLEL_CONVERSION_THRESHOLD ? 1 : Executors.BACKGROUND_PARALLELISM;
+    int chunkSize = Math.max(1, (documents.size() + chunkCount - 1) / chunkCount);
+
+    List<ConversionChunk<T>> chunks = new ArrayList<>(chunkCount);
+    for (int start = 0; start < documents.size(); start += chunkSize) {
+      int end = Math.min(start + chunkSize, documents.size());
+      chunks.add(new ConversionChunk<>(documents.subList(start, end), clazz, userDataWriter));
+    }
+    return chunks;
+  }
+
+  /**
+   * Converts the documents in the {@code QuerySnapshot} to the provided class on a background
+   * thread, so that large snapshots don't block the calling thread.
+   *
+   * @param clazz The POJO type used to convert the documents in the list.
+   * @return A Task that will be resolved with the converted documents, in the order of the query.
+   */
+  @NonNull
+  public <T> Task<List<T>> toObjectsAsync(@NonNull Class<T> clazz) {
+    return toObjectsAsync(clazz, DocumentSnapshot.ServerTimestampBehavior.DEFAULT);
+  }
+
+  /**
+   * Converts the documents in the {@code QuerySnapshot} to the provided class on a background
+   * thread, so that large snapshots don't block the calling thread.
+   *
+   * @param clazz The POJO type used to convert the documents in the list.
+   * @param serverTimestampBehavior Configures the behavior for server timestamps that have not yet
+   *     been set to their final value.
+   * @return A Task that will be resolved with the converted documents, in the order of the query.
+   */
+  @NonNull
+  public <T> Task<List<T>> toObjectsAsync(
+      @NonNull Class<T> clazz,
+      @NonNull DocumentSnapshot.ServerTimestampBehavior serverTimestampBehavior) {
+    checkNotNull(clazz, "Provided POJO type must not be null.");
+    checkNotNull(
+        serverTimestampBehavior, "Provided serverTimestampBehavior value must not be null.");
+
+    // Each chunk is converted by its own task instead of calling toObjects() in the background,
+    // which would block a thread of the shared pool until the other chunks are converted.
+    List<Task<List<T>>> chunkTasks = new ArrayList<>();
+    for (ConversionChunk<T> chunk : splitIntoChunks(clazz, serverTimestampBehavior)) {
+      chunkTasks.add(
+          Tasks.call(
+              Executors.BACKGROUND_EXECUTOR,
+              () -> {
+                chunk.run();
+                return chunk.getObjects();
+              }));
+    }
+    return Tasks.<List<T>>whenAllSuccess(chunkTasks)
+        .onSuccessTask(
+            Executors.DIRECT_EXECUTOR,
+            chunkObjects -> {
+              List<T> res = new ArrayList<>(size());
+              for (List<T> objects : chunkObjects) {
+                res.addAll(objects);
+              }
+              return Tasks.forResult(res);
+            });
+  }
+
+  /**
+   * Converts a range of the snapshot's documents into its own list, so that chunks that are
+   * converted on different threads never contend on a shared result.
+   */
+  private static class ConversionChunk<T> implements Runnable {
+    private final List<Document> documents;
+    private final Class<T> clazz;
+    private final UserDataWriter userDataWriter;
+    private final List<T> objects;
+    @Nullable private RuntimeException failure;
+
+    ConversionChunk(List<Document> documents, Class<T> clazz, UserDataWriter userDataWriter) {
+      this.documents = documents;
+      this.clazz = clazz;
+      this.userDataWriter = userDataWriter;
+      this.objects = new ArrayList<>(documents.size());
+    }
+
+    @Override
+    public void run() {
+      // Exceptions are rethrown on the calling thread by getObjects(), since a background task
+      // that throws would never be reported as completed to the BackgroundQueue.
+      try {
+        for (Document document : documents) {
+          objects.add(userDataWriter.convertDocument(document, clazz));
+        }
+      } catch (RuntimeException e) {
+        failure = e;
+      }
+    }
+
+    List<T> getObjects() {
+      if (failure != null) {
+        throw failure;
+      }
+      return objects;
+    }
+  }
+
   private QueryDocumentSnapshot convertDocument(Document document) {
     return QueryDocumentSnapshot.fromDocument(
         firestore,
@@ -0,0 +1,159 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore;
+
+import static com.google.firebase.firestore.util.Preconditions.checkNotNull;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.google.firebase.firestore.util.Executors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Options used to configure a snapshot listener added with {@link
+ * Query#addSnapshotListener(SnapshotListenOptions, EventListener)}.
+ */
+public final class SnapshotListenOptions {
+
+  /** A Builder for creating {@code SnapshotListenOptions}. */
+  public static final class Builder {
+    private MetadataChanges metadataChanges;
+    private Executor executor;
+    private long coalescingWindowMs;
+
+    /** Constructs a new {@code SnapshotListenOptions} Builder object. */
+    public Builder() {
+      metadataChanges = MetadataChanges.EXCLUDE;
+      executor = Executors.DEFAULT_CALLBACK_EXECUTOR;
+      coalescingWindowMs = 0;
+    }
+
+    /**
+     * Sets whether metadata-only changes (i.e. only {@code QuerySnapshot.getMetadata()} changed)
+     * should trigger snapshot events. Defaults to {@link MetadataChanges#EXCLUDE}.
+     *
+     * @return An options object that includes the provided value.
+     */
+    @NonNull
+    public Builder setMetadataChanges(@NonNull MetadataChanges metadataChanges) {
+      this.metadataChanges =
+          checkNotNull(metadataChanges, "Provided MetadataChanges value must not be null.");
+      return this;
+    }
+
+    /**
+     * Sets the executor that is used to call the listener. Defaults to the main thread.
+     *
+     * @return An options object that includes the provided value.
+     */
+    @NonNull
+    public Builder setExecutor(@NonNull Executor executor) {
+      this.executor = checkNotNull(executor, "Provided executor must not be null.");
+      return this;
+    }
+
+    /**
+     * Sets the time window in which consecutive snapshots are coalesced into a single event.
+     *
+     * <p>The first snapshot after a quiet period is raised immediately. Snapshots that arrive
+     * within the window after an event are held back and raised as a single snapshot once the
+     * window elapses. The coalesced snapshot contains the latest query results and the combined
+     * document changes since the previous event. A window of zero (the default) raises every
+     * snapshot as soon as it is available.
+     *
+     * @param duration The length of the window in the given unit.
+     * @param unit The unit of {@code duration}.
+     * @return An options object that includes the provided value.
+     */
+    @NonNull
+    public Builder setCoalescingWindow(long duration, @NonNull TimeUnit unit) {
+      checkNotNull(unit, "Provided TimeUnit must not be null.");
+      if (duration < 0) {
+        throw new IllegalArgumentException("Coalescing window must not be negative.");
+      }
+      this.coalescingWindowMs = unit.toMillis(duration);
+      return this;
+    }
+
+    @NonNull
+    public SnapshotListenOptions build() {
+      return new SnapshotListenOptions(this);
+    }
+  }
+
+  private final MetadataChanges metadataChanges;
+  private final Executor executor;
+  private final long coalescingWindowMs;
+
+  private SnapshotListenOptions(Builder builder) {
+    metadataChanges = builder.metadataChanges;
+    executor = builder.executor;
+    coalescingWindowMs = builder.coalescingWindowMs;
+  }
+
+  /** Returns whether metadata-only changes trigger snapshot events. */
+  @NonNull
+  public MetadataChanges getMetadataChanges() {
+    return metadataChanges;
+  }
+
+  /** Returns the executor that is used to call the listener. */
+  @NonNull
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  /** Returns the time window in milliseconds in which consecutive snapshots are coalesced. */
+  public long getCoalescingWindowMillis() {
+    return coalescingWindowMs;
+  }
+
+  @Override
+  public boolean equals(@Nullable Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+
+    SnapshotListenOptions that = (SnapshotListenOptions) o;
+    return metadataChanges == that.metadataChanges
+        && executor.equals(that.executor)
+        && coalescingWindowMs == that.coalescingWindowMs;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = metadataChanges.hashCode();
+    result = 31 * result + executor.hashCode();
+    result = 31 * result + (int) (coalescingWindowMs ^ (coalescingWindowMs >>> 32));
+    return result;
+  }
+
+  @Override
+  @NonNull
+  public String toString() {
+    return "SnapshotListenOptions{"
+        + "metadataChanges="
+        + metadataChanges
+        + ", executor="
+        + executor
+        + ", coalescingWindowMs="
+        + coalescingWindowMs
+        + "}";
+  }
+}
@@ -33,14 +33,21 @@ import static com.google.firebase.firestore.util.Assert.fail;
 import androidx.annotation.RestrictTo;
 import com.google.firebase.Timestamp;
 import com.google.firebase.firestore.model.DatabaseId;
+import com.google.firebase.firestore.model.Document;
 import com.google.firebase.firestore.model.DocumentKey;
+import com.google.firebase.firestore.util.CustomClassMapper;
 import com.google.firebase.firestore.util.Logger;
 import com.google.firestore.v1.ArrayValue;
 import com.google.firestore.v1.Value;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Converts Firestore's internal types to the Java API types that we expose to the user.
@@ -99,6 +106,165 @@ public class UserDataWriter {
     return result;
   }
 
+  /**
+   * Converts the document to an instance of {@code clazz}.
+   *
+   * <p>The POJO is populated from the document's protos directly: nested maps and arrays are
+   * exposed to {@link CustomClassMapper} as read-only views that convert their values on access,
+   * so no intermediate {@code Map} is built for the document and fields that the class doesn't
+   * declare are never converted.
+   */
+  <T> T convertDocument(Document document, Class<T> clazz) {
+    return CustomClassMapper.convertToCustomClass(
+        new LazyObject(document.getData().getFieldsMap()),
+        clazz,
+        new DocumentReference(document.getKey(), firestore),
+        this::toPlainValue);
+  }
+
+  /**
+   * Returns a copy of a value that was produced by {@link #convertDocument}, in which all views
+   * have been replaced by the {@code HashMap} and {@code ArrayList} instances that {@link
+   * #convertValue} returns. Used for values that are handed to the user as-is.
+   */
+  private Object toPlainValue(Object value) {
+    if (value instanceof LazyObject) {
+      return convertObject(((LazyObject) value).fields);
+    } else if (value instanceof LazyArray) {
+      return convertArray(((LazyArray) value).arrayValue);
+    }
+    return value;
+  }
+
+  private Object convertValueLazily(Value value) {
+    switch (typeOrder(value)) {
+      case TYPE_ORDER_MAP:
+        return new LazyObject(value.getMapValue().getFieldsMap());
+      case TYPE_ORDER_ARRAY:
+        return new LazyArray(value.getArrayValue());
+      default:
+        return convertValue(value);
+    }
+  }
+
+  /** A read-only view of a map value that converts its values on access. */
+  private class LazyObject extends AbstractMap<String, Object> {
+    private final Map<String, Value> fields;
+
+    LazyObject(Map<String, Value> fields) {
+      this.fields = fields;
+    }
+
+    @Override
+    public int size() {
+      return fields.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return fields.containsKey(key);
+    }
+
+    @Override
+    public Object get(Object key) {
+      Value value = fields.get(key);
+      return value == null ? null : convertValueLazily(value);
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+      return new AbstractSet<Entry<String, Object>>() {
+        @Override
+        public int size() {
+          return fields.size();
+        }
+
+        @Override
+        public Iterator<Entry<String, Object>> iterator() {
+          Iterator<Entry<String, Value>> it = fields.entrySet().iterator();
+          return new Iterator<Entry<String, Object>>() {
+            @Override
+            public boolean hasNext() {
+              return it.hasNext();
+            }
+
+            @Override
+            public Entry<String, Object> next() {
+              Entry<String, Value> entry = it.next();
+              return new LazyEntry(entry.getKey(), entry.getValue());
+            }
+          };
+        }
+      };
+    }
+  }
+
+  /** A field of a {@link LazyObject}, whose value is converted when it is first accessed. */
+  private class LazyEntry implements Map.Entry<String, Object> {
+    private final String key;
+    private Value value;
+    private Object convertedValue;
+
+    LazyEntry(String key, Value value) {
+      this.key = key;
+      this.value = value;
+    }
+
+    @Override
+    public String getKey() {
+      return key;
+    }
+
+    @Override
+    public Object getValue() {
+      if (value != null) {
+        convertedValue = convertValueLazily(value);
+        value = null;
+      }
+      return convertedValue;
+    }
+
+    @Override
+    public Object setValue(Object value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+      Object otherValue = other.getValue();
+      return key.equals(other.getKey())
+          && (getValue() == null ? otherValue == null : getValue().equals(otherValue));
+    }
+
+    @Override
+    public int hashCode() {
+      return key.hashCode() ^ (getValue() == null ? 0 : getValue().hashCode());
+    }
+  }
+
+  /** A read-only view of an array value that converts its elements on access. */
+  private class LazyArray extends AbstractList<Object> {
+    private final ArrayValue arrayValue;
+
+    LazyArray(ArrayValue arrayValue) {
+      this.arrayValue = arrayValue;
+    }
+
+    @Override
+    public int size() {
+      return arrayValue.getValuesCount();
+    }
+
+    @Override
+    public Object get(int index) {
+      return convertValueLazily(arrayValue.getValues(index));
+    }
+  }
+
   private Object convertServerTimestamp(Value serverTimestampValue) {
     switch (serverTimestampBehavior) {
       case PREVIOUS:
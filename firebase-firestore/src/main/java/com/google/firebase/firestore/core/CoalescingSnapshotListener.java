@@ -0,0 +1,149 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.core;
+
+import static com.google.firebase.firestore.util.Util.compareIntegers;
+
+import androidx.annotation.Nullable;
+import com.google.firebase.firestore.EventListener;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+import com.google.firebase.firestore.util.AsyncQueue;
+import com.google.firebase.firestore.util.AsyncQueue.DelayedTask;
+import com.google.firebase.firestore.util.AsyncQueue.TimerId;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An EventListener that coalesces the view snapshots raised within a time window into a single
+ * snapshot.
+ *
+ * <p>The first snapshot after a quiet period is delivered immediately and opens a window of the
+ * configured length. Snapshots that are raised while the window is open are merged and delivered
+ * when the window closes, which opens the next window. Errors are delivered immediately and
+ * discard any pending snapshot.
+ *
+ * <p>This class must only be called on the AsyncQueue.
+ */
+public class CoalescingSnapshotListener implements EventListener<ViewSnapshot> {
+  private final AsyncQueue asyncQueue;
+  private final long windowMs;
+  private final boolean includeQueryMetadataChanges;
+  private final EventListener<ViewSnapshot> listener;
+
+  /** The timer that closes the current window, or null if no window is open. */
+  @Nullable private DelayedTask windowTimer;
+
+  /** The merged snapshots raised since the current window was opened. */
+  @Nullable private ViewSnapshot pendingSnapshot;
+
+  /** The last snapshot that was delivered to the listener. */
+  @Nullable private ViewSnapshot lastSnapshot;
+
+  public CoalescingSnapshotListener(
+      AsyncQueue asyncQueue,
+      long windowMs,
+      boolean includeQueryMetadataChanges,
+      EventListener<ViewSnapshot> listener) {
+    this.asyncQueue = asyncQueue;
+    this.windowMs = windowMs;
+    this.includeQueryMetadataChanges = includeQueryMetadataChanges;
+    this.listener = listener;
+  }
+
+  @Override
+  public void onEvent(@Nullable ViewSnapshot snapshot, @Nullable FirebaseFirestoreException error) {
+    if (error != null) {
+      if (windowTimer != null) {
+        windowTimer.cancel();
+        windowTimer = null;
+      }
+      pendingSnapshot = null;
+      listener.onEvent(null, error);
+      return;
+    }
+
+    if (windowTimer == null) {
+      deliver(snapshot);
+    } else {
+      pendingSnapshot = pendingSnapshot == null ? snapshot : merge(pendingSnapshot, snapshot);
+    }
+  }
+
+  private void deliver(ViewSnapshot snapshot) {
+    lastSnapshot = snapshot;
+    windowTimer = asyncQueue.enqueueAfterDelay(TimerId.SNAPSHOT_COALESCING, windowMs, this::flush);
+    listener.onEvent(snapshot, null);
+  }
+
+  private void flush() {
+    windowTimer = null;
+    ViewSnapshot snapshot = pendingSnapshot;
+    pendingSnapshot = null;
+    if (snapshot != null && shouldDeliver(snapshot)) {
+      deliver(snapshot);
+    }
+  }
+
+  /**
+   * Returns whether a merged snapshot needs to be delivered. The changes of the merged snapshots
+   * may cancel each other out, in which case the snapshot is only delivered if its metadata changed
+   * and the listener asked for metadata-only changes.
+   */
+  private boolean shouldDeliver(ViewSnapshot snapshot) {
+    if (!snapshot.getChanges().isEmpty()) {
+      return true;
+    }
+    return includeQueryMetadataChanges
+        && (snapshot.didSyncStateChange()
+            || snapshot.hasPendingWrites() != lastSnapshot.hasPendingWrites());
+  }
+
+  /**
+   * Merges two consecutive snapshots into a snapshot that contains the results of the newer
+   * snapshot and the combined changes of both.
+   */
+  private static ViewSnapshot merge(ViewSnapshot older, ViewSnapshot newer) {
+    DocumentViewChangeSet changeSet = new DocumentViewChangeSet();
+    for (DocumentViewChange change : older.getChanges()) {
+      changeSet.addChange(change);
+    }
+    for (DocumentViewChange change : newer.getChanges()) {
+      changeSet.addChange(change);
+    }
+
+    Query query = newer.getQuery();
+    List<DocumentViewChange> changes = changeSet.getChanges();
+    Collections.sort(
+        changes,
+        (DocumentViewChange o1, DocumentViewChange o2) -> {
+          int typeComp = compareIntegers(View.changeTypeOrder(o1), View.changeTypeOrder(o2));
+          if (typeComp != 0) {
+            return typeComp;
+          }
+          return query.comparator().compare(o1.getDocument(), o2.getDocument());
+        });
+
+    boolean wasFromCache = older.didSyncStateChange() != older.isFromCache();
+    return new ViewSnapshot(
+        query,
+        newer.getDocuments(),
+        older.getOldDocuments(),
+        changes,
+        newer.isFromCache(),
+        newer.getMutatedKeys(),
+        newer.isFromCache() != wasFromCache,
+        newer.excludesMetadataChanges());
+  }
+}
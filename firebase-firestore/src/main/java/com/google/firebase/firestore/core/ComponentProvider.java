@@ -19,6 +19,7 @@ import androidx.annotation.Nullable;
 import com.google.firebase.firestore.FirebaseFirestoreSettings;
 import com.google.firebase.firestore.auth.User;
 import com.google.firebase.firestore.local.GarbageCollectionScheduler;
+import com.google.firebase.firestore.local.LocalCacheReader;
 import com.google.firebase.firestore.local.LocalStore;
 import com.google.firebase.firestore.local.Persistence;
 import com.google.firebase.firestore.remote.ConnectivityMonitor;
@@ -40,6 +41,7 @@ public abstract class ComponentProvider {
   private EventManager eventManager;
   private ConnectivityMonitor connectityMonitor;
   @Nullable private GarbageCollectionScheduler gargabeCollectionScheduler;
+  @Nullable private LocalCacheReader localCacheReader;
 
   /** Configuration options for the component provider. */
   public static class Configuration {
@@ -50,6 +52,7 @@ public abstract class ComponentProvider {
     private final Datastore datastore;
     private final User initialUser;
     private final int maxConcurrentLimboResolutions;
+    private final int limboResolutionBatchSize;
     private final FirebaseFirestoreSettings settings;
 
     public Configuration(
@@ -59,6 +62,7 @@ public abstract class ComponentProvider {
         Datastore datastore,
         User initialUser,
         int maxConcurrentLimboResolutions,
+        int limboResolutionBatchSize,
         FirebaseFirestoreSettings settings) {
       this.context = context;
       this.asyncQueue = asyncQueue;
@@ -66,6 +70,7 @@ public abstract class ComponentProvider {
       this.datastore = datastore;
       this.initialUser = initialUser;
       this.maxConcurrentLimboResolutions = maxConcurrentLimboResolutions;
+      this.limboResolutionBatchSize = limboResolutionBatchSize;
       this.settings = settings;
     }
 
@@ -93,6 +98,10 @@ public abstract class ComponentProvider {
       return maxConcurrentLimboResolutions;
     }
 
+    int getLimboResolutionBatchSize() {
+      return limboResolutionBatchSize;
+    }
+
     Context getContext() {
       return context;
     }
@@ -107,6 +116,11 @@ public abstract class ComponentProvider {
     return gargabeCollectionScheduler;
   }
 
+  @Nullable
+  public LocalCacheReader getLocalCacheReader() {
+    return localCacheReader;
+  }
+
   public LocalStore getLocalStore() {
     return localStore;
   }
@@ -128,21 +142,30 @@ public abstract class ComponentProvider {
   }
 
   public void initialize(Configuration configuration) {
+    initialize(configuration, new StartupTimings());
+  }
+
+  /** Initializes all components and records the duration of each startup phase in timings. */
+  public void initialize(Configuration configuration, StartupTimings timings) {
     persistence = createPersistence(configuration);
-    persistence.start();
+    timings.measure(StartupTimings.Phase.START_PERSISTENCE, persistence::start);
     localStore = createLocalStore(configuration);
     connectityMonitor = createConnectivityMonitor(configuration);
     remoteStore = createRemoteStore(configuration);
     syncEngine = createSyncEngine(configuration);
     eventManager = createEventManager(configuration);
-    localStore.start();
-    remoteStore.start();
+    boolean lazyStartup = configuration.getSettings().isLazyStartupEnabled();
+    timings.measure(StartupTimings.Phase.START_LOCAL_STORE, () -> localStore.start(lazyStartup));
+    timings.measure(StartupTimings.Phase.START_REMOTE_STORE, remoteStore::start);
     gargabeCollectionScheduler = createGarbageCollectionScheduler(configuration);
+    localCacheReader = createLocalCacheReader(configuration);
   }
 
   protected abstract GarbageCollectionScheduler createGarbageCollectionScheduler(
       Configuration configuration);
 
+  protected abstract LocalCacheReader createLocalCacheReader(Configuration configuration);
+
   protected abstract EventManager createEventManager(Configuration configuration);
 
   protected abstract LocalStore createLocalStore(Configuration configuration);
@@ -53,6 +53,12 @@ public final class EventManager implements SyncEngineCallback {
 
     /** Wait for a sync with the server when online, but still raise events while offline. */
     public boolean waitForSyncWhenOnline;
+
+    /**
+     * The time window in milliseconds in which consecutive snapshots are coalesced into a single
+     * event, or 0 to raise all snapshots immediately.
+     */
+    public long coalescingWindowMs;
   }
 
   private final SyncEngine syncEngine;
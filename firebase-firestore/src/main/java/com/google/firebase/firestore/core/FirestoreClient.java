@@ -21,6 +21,8 @@ import androidx.annotation.Nullable;
 import com.google.android.gms.tasks.Task;
 import com.google.android.gms.tasks.TaskCompletionSource;
 import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.database.collection.ImmutableSortedMap;
+import com.google.firebase.database.collection.ImmutableSortedSet;
 import com.google.firebase.firestore.EventListener;
 import com.google.firebase.firestore.FirebaseFirestoreException;
 import com.google.firebase.firestore.FirebaseFirestoreException.Code;
@@ -28,7 +30,9 @@ import com.google.firebase.firestore.FirebaseFirestoreSettings;
 import com.google.firebase.firestore.auth.CredentialsProvider;
 import com.google.firebase.firestore.auth.User;
 import com.google.firebase.firestore.core.EventManager.ListenOptions;
+import com.google.firebase.firestore.local.CacheSizes;
 import com.google.firebase.firestore.local.GarbageCollectionScheduler;
+import com.google.firebase.firestore.local.LocalCacheReader;
 import com.google.firebase.firestore.local.LocalStore;
 import com.google.firebase.firestore.local.Persistence;
 import com.google.firebase.firestore.local.QueryResult;
@@ -41,9 +45,12 @@ import com.google.firebase.firestore.remote.Datastore;
 import com.google.firebase.firestore.remote.GrpcMetadataProvider;
 import com.google.firebase.firestore.remote.RemoteStore;
 import com.google.firebase.firestore.util.AsyncQueue;
+import com.google.firebase.firestore.util.AsyncQueue.Priority;
+import com.google.firebase.firestore.util.Executors;
 import com.google.firebase.firestore.util.Function;
 import com.google.firebase.firestore.util.Logger;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -54,7 +61,6 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public final class FirestoreClient {
 
   private static final String LOG_TAG = "FirestoreClient";
-  private static final int MAX_CONCURRENT_LIMBO_RESOLUTIONS = 100;
 
   private final DatabaseInfo databaseInfo;
   private final CredentialsProvider credentialsProvider;
@@ -70,6 +76,11 @@ public final class FirestoreClient {
   // LRU-related
   @Nullable private GarbageCollectionScheduler gcScheduler;
 
+  /** Serves cache-only reads off the AsyncQueue, if enabled. Accessed from the user's threads. */
+  @Nullable private volatile LocalCacheReader cacheReader;
+
+  private final StartupTimings startupTimings = new StartupTimings();
+
   public FirestoreClient(
       final Context context,
       DatabaseInfo databaseInfo,
@@ -87,12 +98,16 @@ public final class FirestoreClient {
 
     // Defer initialization until we get the current user from the changeListener. This is
     // guaranteed to be synchronously dispatched onto our worker queue, so we will be initialized
-    // before any subsequently queued work runs.
+    // before any subsequently queued work runs. It is queued in the highest priority lane, which
+    // all API calls use.
     asyncQueue.enqueueAndForget(
+        Priority.INTERACTIVE,
         () -> {
           try {
             // Block on initial user being available
+            long startNanos = System.nanoTime();
             User initialUser = Tasks.await(firstUser.getTask());
+            startupTimings.recordSince(StartupTimings.Phase.WAIT_FOR_USER, startNanos);
             initialize(context, initialUser, settings);
           } catch (InterruptedException | ExecutionException e) {
             throw new RuntimeException(e);
@@ -105,10 +120,18 @@ public final class FirestoreClient {
             hardAssert(!firstUser.getTask().isComplete(), "Already fulfilled first user task");
             firstUser.setResult(user);
           } else {
+            // Queued in the same lane as writes, so that writes made after the change use the new
+            // user's mutation queue.
             asyncQueue.enqueueAndForget(
+                Priority.INTERACTIVE,
                 () -> {
                   hardAssert(syncEngine != null, "SyncEngine not yet initialized");
                   Logger.debug(LOG_TAG, "Credential changed. Current user: %s", user.getUid());
+                  // Switch the cache reader first, so that no read started after the sync engine
+                  // switched sees the previous user's documents.
+                  if (cacheReader != null) {
+                    cacheReader.handleUserChange(user);
+                  }
                   syncEngine.handleCredentialChange(user);
                 });
           }
@@ -117,12 +140,12 @@ public final class FirestoreClient {
 
   public Task<Void> disableNetwork() {
     this.verifyNotTerminated();
-    return asyncQueue.enqueue(() -> remoteStore.disableNetwork());
+    return asyncQueue.enqueue(Priority.INTERACTIVE, () -> remoteStore.disableNetwork());
   }
 
   public Task<Void> enableNetwork() {
     this.verifyNotTerminated();
-    return asyncQueue.enqueue(() -> remoteStore.enableNetwork());
+    return asyncQueue.enqueue(Priority.INTERACTIVE, () -> remoteStore.enableNetwork());
   }
 
   /** Terminates this client, cancels all writes / listeners, and releases all resources. */
@@ -130,11 +153,25 @@ public final class FirestoreClient {
     credentialsProvider.removeChangeListener();
     return asyncQueue.enqueueAndInitiateShutdown(
         () -> {
+          LocalCacheReader reader = cacheReader;
+          if (reader != null) {
+            // New reads go to the AsyncQueue, which rejects them. The reads that are already
+            // running complete before the database is closed below.
+            cacheReader = null;
+            reader.shutdown();
+          }
           remoteStore.shutdown();
           persistence.shutdown();
           if (gcScheduler != null) {
             gcScheduler.stop();
           }
+          for (Priority priority : Priority.values()) {
+            Logger.debug(
+                LOG_TAG,
+                "Queue wait times of %s tasks: %s",
+                priority,
+                asyncQueue.getQueueWaitStats(priority));
+          }
         });
   }
 
@@ -149,8 +186,17 @@ public final class FirestoreClient {
   public QueryListener listen(
       Query query, ListenOptions options, EventListener<ViewSnapshot> listener) {
     this.verifyNotTerminated();
+    if (options.coalescingWindowMs > 0) {
+      listener =
+          new CoalescingSnapshotListener(
+              asyncQueue,
+              options.coalescingWindowMs,
+              options.includeQueryMetadataChanges,
+              listener);
+    }
     QueryListener queryListener = new QueryListener(query, options, listener);
-    asyncQueue.enqueueAndForget(() -> eventManager.addQueryListener(queryListener));
+    asyncQueue.enqueueAndForget(
+        Priority.INTERACTIVE, () -> eventManager.addQueryListener(queryListener));
     return queryListener;
   }
 
@@ -161,13 +207,14 @@ public final class FirestoreClient {
     if (this.isTerminated()) {
       return;
     }
-    asyncQueue.enqueueAndForget(() -> eventManager.removeQueryListener(listener));
+    asyncQueue.enqueueAndForget(
+        Priority.INTERACTIVE, () -> eventManager.removeQueryListener(listener));
   }
 
   public Task<Document> getDocumentFromLocalCache(DocumentKey docKey) {
     this.verifyNotTerminated();
-    return asyncQueue
-        .enqueue(() -> localStore.readDocument(docKey))
+    return readFromLocalCache(
+            reader -> reader.readDocument(docKey), () -> localStore.readDocument(docKey))
         .continueWith(
             (result) -> {
               @Nullable MaybeDocument maybeDoc = result.getResult();
@@ -188,20 +235,77 @@ public final class FirestoreClient {
 
   public Task<ViewSnapshot> getDocumentsFromLocalCache(Query query) {
     this.verifyNotTerminated();
-    return asyncQueue.enqueue(
+    return readFromLocalCache(
+        reader ->
+            reader
+                .executeQuery(query)
+                .continueWith(
+                    Executors.DIRECT_EXECUTOR,
+                    task ->
+                        computeSnapshot(
+                            query,
+                            task.getResult(),
+                            DocumentKey.emptyKeySet(),
+                            /* previousOrder= */ null)),
         () -> {
           QueryResult queryResult = localStore.executeQuery(query, /* usePreviousResults= */ true);
-          View view = new View(query, queryResult.getRemoteKeys());
-          View.DocumentChanges viewDocChanges = view.computeDocChanges(queryResult.getDocuments());
-          return view.applyChanges(viewDocChanges).getSnapshot();
+          return computeSnapshot(
+              query,
+              queryResult.getDocuments(),
+              queryResult.getRemoteKeys(),
+              queryResult.getPreviousOrder());
         });
   }
 
+  private static ViewSnapshot computeSnapshot(
+      Query query,
+      ImmutableSortedMap<DocumentKey, Document> documents,
+      ImmutableSortedSet<DocumentKey> remoteKeys,
+      @Nullable List<DocumentKey> previousOrder) {
+    View view = new View(query, remoteKeys);
+    View.DocumentChanges viewDocChanges = view.computeInitialDocChanges(documents, previousOrder);
+    return view.applyChanges(viewDocChanges).getSnapshot();
+  }
+
+  /**
+   * Runs a read of the local cache with the LocalCacheReader if it is enabled, or on the AsyncQueue
+   * otherwise. Reads that the LocalCacheReader can't complete because the LocalStore keeps
+   * committing changes are queued on the AsyncQueue instead.
+   */
+  private <T> Task<T> readFromLocalCache(
+      Function<LocalCacheReader, Task<T>> concurrentRead, Callable<T> queuedRead) {
+    LocalCacheReader reader = cacheReader;
+    if (reader == null) {
+      return asyncQueue.enqueue(Priority.INTERACTIVE, queuedRead);
+    }
+    return concurrentRead
+        .apply(reader)
+        .continueWithTask(
+            Executors.DIRECT_EXECUTOR,
+            task -> {
+              if (task.isSuccessful()) {
+                return task;
+              }
+              Logger.debug(
+                  LOG_TAG,
+                  "Concurrent cache read failed, retrying on the AsyncQueue: %s",
+                  task.getException());
+              return asyncQueue.enqueue(Priority.INTERACTIVE, queuedRead);
+            });
+  }
+
+  /** Returns the approximate sizes of the documents and targets in the local cache. */
+  public Task<CacheSizes> getCacheSizes() {
+    this.verifyNotTerminated();
+    return asyncQueue.enqueue(Priority.INTERACTIVE, () -> localStore.getCacheSizes());
+  }
+
   /** Writes mutations. The returned task will be notified when it's written to the backend. */
   public Task<Void> write(final List<Mutation> mutations) {
     this.verifyNotTerminated();
     final TaskCompletionSource<Void> source = new TaskCompletionSource<>();
-    asyncQueue.enqueueAndForget(() -> syncEngine.writeMutations(mutations, source));
+    asyncQueue.enqueueAndForget(
+        Priority.INTERACTIVE, () -> syncEngine.writeMutations(mutations, source));
     return source.getTask();
   }
 
@@ -209,7 +313,8 @@ public final class FirestoreClient {
   public <TResult> Task<TResult> transaction(Function<Transaction, Task<TResult>> updateFunction) {
     this.verifyNotTerminated();
     return AsyncQueue.callTask(
-        asyncQueue.getExecutor(), () -> syncEngine.transaction(asyncQueue, updateFunction));
+        asyncQueue.getExecutor(Priority.INTERACTIVE),
+        () -> syncEngine.transaction(asyncQueue, updateFunction));
   }
 
   /**
@@ -220,7 +325,8 @@ public final class FirestoreClient {
     this.verifyNotTerminated();
 
     final TaskCompletionSource<Void> source = new TaskCompletionSource<>();
-    asyncQueue.enqueueAndForget(() -> syncEngine.registerPendingWritesTask(source));
+    asyncQueue.enqueueAndForget(
+        Priority.INTERACTIVE, () -> syncEngine.registerPendingWritesTask(source));
     return source.getTask();
   }
 
@@ -231,7 +337,13 @@ public final class FirestoreClient {
     Logger.debug(LOG_TAG, "Initializing. user=%s", user.getUid());
 
     Datastore datastore =
-        new Datastore(databaseInfo, asyncQueue, credentialsProvider, context, metadataProvider);
+        new Datastore(
+            databaseInfo,
+            asyncQueue,
+            credentialsProvider,
+            context,
+            metadataProvider,
+            /* deferChannelCreation= */ settings.isLazyStartupEnabled());
     ComponentProvider.Configuration configuration =
         new ComponentProvider.Configuration(
             context,
@@ -239,29 +351,67 @@ public final class FirestoreClient {
             databaseInfo,
             datastore,
             user,
-            MAX_CONCURRENT_LIMBO_RESOLUTIONS,
+            settings.getMaxConcurrentLimboResolutions(),
+            settings.getLimboResolutionBatchSize(),
             settings);
 
     ComponentProvider provider =
         settings.isPersistenceEnabled()
             ? new SQLiteComponentProvider()
             : new MemoryComponentProvider();
-    provider.initialize(configuration);
+    provider.initialize(configuration, startupTimings);
     persistence = provider.getPersistence();
     gcScheduler = provider.getGargabeCollectionScheduler();
     localStore = provider.getLocalStore();
     remoteStore = provider.getRemoteStore();
     syncEngine = provider.getSyncEngine();
     eventManager = provider.getEventManager();
+    cacheReader = provider.getLocalCacheReader();
 
     if (gcScheduler != null) {
       gcScheduler.start();
     }
+
+    Logger.debug(LOG_TAG, "Initialized. %s", startupTimings);
+
+    if (settings.isLazyStartupEnabled()) {
+      // Finishing the deferred startup work is not needed for correctness, so it can wait until
+      // the operations that were queued during startup ran.
+      asyncQueue.enqueueAndForget(Priority.BACKGROUND, () -> prewarm(datastore));
+    }
+  }
+
+  /**
+   * Does the startup work that was deferred by lazy startup, unless the operations that ran since
+   * the startup already needed it.
+   */
+  private void prewarm(Datastore datastore) {
+    long startNanos = System.nanoTime();
+    if (localStore.ensureMutationQueueStarted()) {
+      startupTimings.recordSince(StartupTimings.Phase.START_MUTATION_QUEUE, startNanos);
+    }
+
+    long channelStartNanos = System.nanoTime();
+    Task<Void> channelCreation = datastore.prewarmChannel();
+    if (channelCreation != null) {
+      channelCreation.addOnCompleteListener(
+          Executors.DIRECT_EXECUTOR,
+          task -> {
+            startupTimings.recordSince(StartupTimings.Phase.CREATE_CHANNEL, channelStartNanos);
+            Logger.debug(LOG_TAG, "Finished lazy startup. %s", startupTimings);
+          });
+    }
+  }
+
+  /** Returns the durations of the startup phases that completed so far. */
+  public StartupTimings getStartupTimings() {
+    return startupTimings;
   }
 
   public void addSnapshotsInSyncListener(EventListener<Void> listener) {
     verifyNotTerminated();
-    asyncQueue.enqueueAndForget(() -> eventManager.addSnapshotsInSyncListener(listener));
+    asyncQueue.enqueueAndForget(
+        Priority.INTERACTIVE, () -> eventManager.addSnapshotsInSyncListener(listener));
   }
 
   public void removeSnapshotsInSyncListener(EventListener<Void> listener) {
@@ -269,7 +419,8 @@ public final class FirestoreClient {
     if (isTerminated()) {
       return;
     }
-    asyncQueue.enqueueAndForget(() -> eventManager.removeSnapshotsInSyncListener(listener));
+    asyncQueue.enqueueAndForget(
+        Priority.INTERACTIVE, () -> eventManager.removeSnapshotsInSyncListener(listener));
   }
 
   private void verifyNotTerminated() {
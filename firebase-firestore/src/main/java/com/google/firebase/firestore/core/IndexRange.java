@@ -27,11 +27,13 @@ public class IndexRange {
   @Nullable private final Value start;
   @Nullable private final Value end;
   private final FieldPath fieldPath;
+  private final boolean arrayElement;
 
   private IndexRange(Builder builder) {
     this.fieldPath = builder.fieldPath;
     this.start = builder.start;
     this.end = builder.end;
+    this.arrayElement = builder.arrayElement;
   }
 
   /** Returns the field path to use for the index lookup. */
@@ -39,6 +41,14 @@ public class IndexRange {
     return fieldPath;
   }
 
+  /**
+   * Returns whether the range applies to the individual elements of an array field (as used by
+   * array-contains lookups) rather than to the field value itself.
+   */
+  public boolean isArrayElement() {
+    return arrayElement;
+  }
+
   /** Returns the inclusive start position of the index lookup. */
   @Nullable
   public Value getStart() {
@@ -60,6 +70,7 @@ public class IndexRange {
     private FieldPath fieldPath;
     private Value start;
     private Value end;
+    private boolean arrayElement;
 
     /** Specifies the field path for the index lookup. */
     public Builder setFieldPath(FieldPath fieldPath) {
@@ -79,6 +90,12 @@ public class IndexRange {
       return this;
     }
 
+    /** Specifies whether the lookup should match the elements of an array field. */
+    public Builder setArrayElement(boolean arrayElement) {
+      this.arrayElement = arrayElement;
+      return this;
+    }
+
     public IndexRange build() {
       hardAssert(fieldPath != null, "Field path must be specified");
       return new IndexRange(this);
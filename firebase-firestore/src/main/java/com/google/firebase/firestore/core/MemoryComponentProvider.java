@@ -18,6 +18,7 @@ import androidx.annotation.Nullable;
 import com.google.firebase.database.collection.ImmutableSortedSet;
 import com.google.firebase.firestore.local.GarbageCollectionScheduler;
 import com.google.firebase.firestore.local.IndexFreeQueryEngine;
+import com.google.firebase.firestore.local.LocalCacheReader;
 import com.google.firebase.firestore.local.LocalStore;
 import com.google.firebase.firestore.local.MemoryPersistence;
 import com.google.firebase.firestore.local.Persistence;
@@ -41,6 +42,12 @@ public class MemoryComponentProvider extends ComponentProvider {
     return null;
   }
 
+  @Override
+  @Nullable
+  protected LocalCacheReader createLocalCacheReader(Configuration configuration) {
+    return null;
+  }
+
   @Override
   protected EventManager createEventManager(Configuration configuration) {
     return new EventManager(getSyncEngine());
@@ -49,7 +56,10 @@ public class MemoryComponentProvider extends ComponentProvider {
   @Override
   protected LocalStore createLocalStore(Configuration configuration) {
     return new LocalStore(
-        getPersistence(), new IndexFreeQueryEngine(), configuration.getInitialUser());
+        getPersistence(),
+        new IndexFreeQueryEngine(),
+        configuration.getInitialUser(),
+        configuration.getSettings().isPendingWriteCompactionEnabled());
   }
 
   @Override
@@ -69,7 +79,9 @@ public class MemoryComponentProvider extends ComponentProvider {
         getLocalStore(),
         configuration.getDatastore(),
         configuration.getAsyncQueue(),
-        getConnectivityMonitor());
+        getConnectivityMonitor(),
+        configuration.getSettings().getMaxPendingWrites(),
+        configuration.getSettings().isWriteCoalescingEnabled());
   }
 
   @Override
@@ -78,7 +90,8 @@ public class MemoryComponentProvider extends ComponentProvider {
         getLocalStore(),
         getRemoteStore(),
         configuration.getInitialUser(),
-        configuration.getMaxConcurrentLimboResolutions());
+        configuration.getMaxConcurrentLimboResolutions(),
+        configuration.getLimboResolutionBatchSize());
   }
 
   /**
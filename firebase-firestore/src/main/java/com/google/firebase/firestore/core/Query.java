@@ -63,6 +63,8 @@ public final class Query {
   // The corresponding Target of this Query instance.
   private @Nullable Target memoizedTarget;
 
+  private @Nullable String memoizedCanonicalId;
+
   private final List<Filter> filters;
 
   private final ResourcePath path;
@@ -546,7 +548,10 @@ public final class Query {
    */
   // TODO(wuandy): This is now only used in tests and SpecTestCase. Maybe we can delete it?
   public String getCanonicalId() {
-    return this.toTarget().getCanonicalId() + "|lt:" + limitType;
+    if (memoizedCanonicalId == null) {
+      memoizedCanonicalId = this.toTarget().getCanonicalId() + "|lt:" + limitType;
+    }
+    return memoizedCanonicalId;
   }
 
   @Override
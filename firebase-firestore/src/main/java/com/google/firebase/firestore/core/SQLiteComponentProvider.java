@@ -14,11 +14,16 @@
 
 package com.google.firebase.firestore.core;
 
+import androidx.annotation.Nullable;
 import com.google.firebase.firestore.local.GarbageCollectionScheduler;
+import com.google.firebase.firestore.local.IndexedQueryEngine;
+import com.google.firebase.firestore.local.LocalCacheReader;
 import com.google.firebase.firestore.local.LocalSerializer;
+import com.google.firebase.firestore.local.LocalStore;
 import com.google.firebase.firestore.local.LruDelegate;
 import com.google.firebase.firestore.local.LruGarbageCollector;
 import com.google.firebase.firestore.local.Persistence;
+import com.google.firebase.firestore.local.SQLiteCollectionIndex;
 import com.google.firebase.firestore.local.SQLitePersistence;
 import com.google.firebase.firestore.remote.RemoteSerializer;
 
@@ -33,6 +38,30 @@ public class SQLiteComponentProvider extends MemoryComponentProvider {
     return gc.newScheduler(configuration.getAsyncQueue(), getLocalStore());
   }
 
+  @Override
+  @Nullable
+  protected LocalCacheReader createLocalCacheReader(Configuration configuration) {
+    // Concurrent reads are disabled by the settings or unsupported by the device.
+    SQLitePersistence persistence = (SQLitePersistence) getPersistence();
+    if (!persistence.isConcurrentReadsEnabled()) {
+      return null;
+    }
+    return new LocalCacheReader(persistence, configuration.getInitialUser());
+  }
+
+  @Override
+  protected LocalStore createLocalStore(Configuration configuration) {
+    if (!configuration.getSettings().isQueryIndexingEnabled()) {
+      return super.createLocalStore(configuration);
+    }
+    SQLitePersistence persistence = (SQLitePersistence) getPersistence();
+    return new LocalStore(
+        persistence,
+        new IndexedQueryEngine(new SQLiteCollectionIndex(persistence)),
+        configuration.getInitialUser(),
+        configuration.getSettings().isPendingWriteCompactionEnabled());
+  }
+
   @Override
   protected Persistence createPersistence(Configuration configuration) {
     LocalSerializer serializer =
@@ -45,6 +74,7 @@ public class SQLiteComponentProvider extends MemoryComponentProvider {
         configuration.getDatabaseInfo().getPersistenceKey(),
         configuration.getDatabaseInfo().getDatabaseId(),
         serializer,
-        params);
+        params,
+        configuration.getSettings().isConcurrentCacheReadsEnabled());
   }
 }
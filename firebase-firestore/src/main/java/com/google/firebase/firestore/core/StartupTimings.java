@@ -0,0 +1,67 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.core;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Records how long each phase of the startup of a FirestoreClient took. */
+public final class StartupTimings {
+
+  /** The phases of the startup, in the order in which they usually run. */
+  public enum Phase {
+    /** Waiting for the CredentialsProvider to determine the initial user. */
+    WAIT_FOR_USER,
+    /** Opening the persistence, which includes running the SQLite schema migrations. */
+    START_PERSISTENCE,
+    /** Starting the LocalStore, which includes the mutation queue unless startup is lazy. */
+    START_LOCAL_STORE,
+    /** Starting the RemoteStore, which starts the streams that have work to do. */
+    START_REMOTE_STORE,
+    /** Starting the mutation queue after the rest of the startup, if startup is lazy. */
+    START_MUTATION_QUEUE,
+    /** Creating the gRPC channel after the rest of the startup, if startup is lazy. */
+    CREATE_CHANNEL
+  }
+
+  private final Map<Phase, Long> durationsMs = new EnumMap<>(Phase.class);
+
+  /** Runs {@code operation} and records its duration as the duration of {@code phase}. */
+  void measure(Phase phase, Runnable operation) {
+    long startNanos = System.nanoTime();
+    operation.run();
+    recordSince(phase, startNanos);
+  }
+
+  /** Records the time since {@code startNanos} as the duration of {@code phase}. */
+  synchronized void recordSince(Phase phase, long startNanos) {
+    durationsMs.put(phase, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+  }
+
+  /**
+   * Returns the duration of the given phase in milliseconds, or -1 if the phase did not complete
+   * (yet) or was run as part of a user operation.
+   */
+  public synchronized long getDurationMs(Phase phase) {
+    Long durationMs = durationsMs.get(phase);
+    return durationMs == null ? -1 : durationMs;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "StartupTimings" + durationsMs;
+  }
+}
@@ -33,6 +33,7 @@ import com.google.firebase.firestore.local.QueryPurpose;
 import com.google.firebase.firestore.local.QueryResult;
 import com.google.firebase.firestore.local.ReferenceSet;
 import com.google.firebase.firestore.local.TargetData;
+import com.google.firebase.firestore.model.Document;
 import com.google.firebase.firestore.model.DocumentKey;
 import com.google.firebase.firestore.model.MaybeDocument;
 import com.google.firebase.firestore.model.NoDocument;
@@ -52,6 +53,7 @@ import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
@@ -75,19 +77,23 @@ import java.util.Set;
  */
 public class SyncEngine implements RemoteStore.RemoteStoreCallback {
 
-  /** Tracks a limbo resolution. */
+  /** Tracks a limbo resolution, which resolves a batch of limbo documents with a single target. */
   private static class LimboResolution {
-    private final DocumentKey key;
+    /**
+     * The keys of the documents in the batch that are still in limbo. The target is stopped once
+     * all of them have left limbo.
+     */
+    private final Set<DocumentKey> pendingKeys;
 
     /**
-     * Set to true once we've received a document. This is used in getRemoteKeysForTarget() and
+     * The keys of the documents we've received. This is used in getRemoteKeysForTarget() and
      * ultimately used by WatchChangeAggregator to decide whether it needs to manufacture a delete
      * event for the target once the target is CURRENT.
      */
-    private boolean receivedDocument;
+    private ImmutableSortedSet<DocumentKey> receivedDocuments = DocumentKey.emptyKeySet();
 
-    LimboResolution(DocumentKey key) {
-      this.key = key;
+    LimboResolution(List<DocumentKey> keys) {
+      this.pendingKeys = new HashSet<>(keys);
     }
   }
 
@@ -117,8 +123,12 @@ public class SyncEngine implements RemoteStore.RemoteStoreCallback {
   /** Queries mapped to active targets, indexed by target id. */
   private final Map<Integer, List<Query>> queriesByTarget;
 
+  /** The maximum number of limbo resolution targets that are active at the same time. */
   private final int maxConcurrentLimboResolutions;
 
+  /** The maximum number of limbo documents that are resolved by a single target. */
+  private final int limboResolutionBatchSize;
+
   /**
    * The keys of documents that are in limbo for which we haven't yet started a limbo resolution
    * query.
@@ -137,8 +147,11 @@ public class SyncEngine implements RemoteStore.RemoteStoreCallback {
   /** Used to track any documents that are currently in limbo. */
   private final ReferenceSet limboDocumentRefs;
 
-  /** Stores user completion blocks, indexed by user and batch ID. */
-  private final Map<User, Map<Integer, TaskCompletionSource<Void>>> mutationUserCallbacks;
+  /**
+   * Stores user completion blocks, indexed by user and batch ID. A batch has several completion
+   * blocks if later writes were combined with it.
+   */
+  private final Map<User, Map<Integer, List<TaskCompletionSource<Void>>>> mutationUserCallbacks;
 
   /** Stores user callbacks waiting for all pending writes to be acknowledged. */
   private final Map<Integer, List<TaskCompletionSource<Void>>> pendingWritesCallbacks;
@@ -154,10 +167,12 @@ public class SyncEngine implements RemoteStore.RemoteStoreCallback {
       LocalStore localStore,
       RemoteStore remoteStore,
       User initialUser,
-      int maxConcurrentLimboResolutions) {
+      int maxConcurrentLimboResolutions,
+      int limboResolutionBatchSize) {
     this.localStore = localStore;
     this.remoteStore = remoteStore;
     this.maxConcurrentLimboResolutions = maxConcurrentLimboResolutions;
+    this.limboResolutionBatchSize = limboResolutionBatchSize;
 
     queryViewsByQuery = new HashMap<>();
     queriesByTarget = new HashMap<>();
@@ -221,7 +236,8 @@ public class SyncEngine implements RemoteStore.RemoteStoreCallback {
     // update tracked limbo in one place, and have both emitNewSnapsAndNotifyLocalStore
     // and here to call that.
     View view = new View(query, queryResult.getRemoteKeys());
-    View.DocumentChanges viewDocChanges = view.computeDocChanges(queryResult.getDocuments());
+    View.DocumentChanges viewDocChanges =
+        view.computeInitialDocChanges(queryResult.getDocuments(), queryResult.getPreviousOrder());
     ViewChange viewChange = view.applyChanges(viewDocChanges, synthesizedCurrentChange);
     updateTrackedLimboDocuments(viewChange.getLimboChanges(), targetId);
 
@@ -275,12 +291,18 @@ public class SyncEngine implements RemoteStore.RemoteStoreCallback {
   }
 
   private void addUserCallback(int batchId, TaskCompletionSource<Void> userTask) {
-    Map<Integer, TaskCompletionSource<Void>> userTasks = mutationUserCallbacks.get(currentUser);
+    Map<Integer, List<TaskCompletionSource<Void>>> userTasks =
+        mutationUserCallbacks.get(currentUser);
     if (userTasks == null) {
       userTasks = new HashMap<>();
       mutationUserCallbacks.put(currentUser, userTasks);
     }
-    userTasks.put(batchId, userTask);
+    List<TaskCompletionSource<Void>> batchTasks = userTasks.get(batchId);
+    if (batchTasks == null) {
+      batchTasks = new ArrayList<>();
+      userTasks.put(batchId, batchTasks);
+    }
+    batchTasks.add(userTask);
   }
 
   /**
@@ -314,27 +336,21 @@ public class SyncEngine implements RemoteStore.RemoteStoreCallback {
       TargetChange targetChange = entry.getValue();
       LimboResolution limboResolution = activeLimboResolutionsByTarget.get(targetId);
       if (limboResolution != null) {
-        // Since this is a limbo resolution lookup, it's for a single document and it could be
-        // added, modified, or removed, but not a combination.
-        hardAssert(
-            targetChange.getAddedDocuments().size()
-                    + targetChange.getModifiedDocuments().size()
-                    + targetChange.getRemovedDocuments().size()
-                <= 1,
-            "Limbo resolution for single document contains multiple changes.");
-        if (targetChange.getAddedDocuments().size() > 0) {
-          limboResolution.receivedDocument = true;
-        } else if (targetChange.getModifiedDocuments().size() > 0) {
+        // Since this is a limbo resolution lookup, each of its documents could be added, modified,
+        // or removed, but not a combination.
+        for (DocumentKey key : targetChange.getAddedDocuments()) {
+          limboResolution.receivedDocuments = limboResolution.receivedDocuments.insert(key);
+        }
+        for (DocumentKey key : targetChange.getModifiedDocuments()) {
           hardAssert(
-              limboResolution.receivedDocument,
+              limboResolution.receivedDocuments.contains(key),
               "Received change for limbo target document without add.");
-        } else if (targetChange.getRemovedDocuments().size() > 0) {
+        }
+        for (DocumentKey key : targetChange.getRemovedDocuments()) {
           hardAssert(
-              limboResolution.receivedDocument,
+              limboResolution.receivedDocuments.contains(key),
               "Received remove for limbo target document without add.");
-          limboResolution.receivedDocument = false;
-        } else {
-          // This was probably just a CURRENT targetChange or similar.
+          limboResolution.receivedDocuments = limboResolution.receivedDocuments.remove(key);
         }
       }
     }
@@ -364,8 +380,8 @@ public class SyncEngine implements RemoteStore.RemoteStoreCallback {
   @Override
   public ImmutableSortedSet<DocumentKey> getRemoteKeysForTarget(int targetId) {
     LimboResolution limboResolution = activeLimboResolutionsByTarget.get(targetId);
-    if (limboResolution != null && limboResolution.receivedDocument) {
-      return DocumentKey.emptyKeySet().insert(limboResolution.key);
+    if (limboResolution != null) {
+      return limboResolution.receivedDocuments;
     } else {
       ImmutableSortedSet<DocumentKey> remoteKeys = DocumentKey.emptyKeySet();
       if (queriesByTarget.containsKey(targetId)) {
@@ -387,24 +403,27 @@ public class SyncEngine implements RemoteStore.RemoteStoreCallback {
     assertCallback("handleRejectedListen");
 
     LimboResolution limboResolution = activeLimboResolutionsByTarget.get(targetId);
-    DocumentKey limboKey = limboResolution != null ? limboResolution.key : null;
-    if (limboKey != null) {
+    if (limboResolution != null) {
       // Since this query failed, we won't want to manually unlisten to it.
       // So go ahead and remove it from bookkeeping.
-      activeLimboTargetsByKey.remove(limboKey);
       activeLimboResolutionsByTarget.remove(targetId);
+      for (DocumentKey limboKey : limboResolution.pendingKeys) {
+        activeLimboTargetsByKey.remove(limboKey);
+      }
       pumpEnqueuedLimboResolutions();
 
       // TODO: Retry on transient errors?
 
-      // It's a limbo doc. Create a synthetic event saying it was deleted. This is kind of a hack.
-      // Ideally, we would have a method in the local store to purge a document. However, it would
-      // be tricky to keep all of the local store's invariants with another method.
-      Map<DocumentKey, MaybeDocument> documentUpdates =
-          Collections.singletonMap(
-              limboKey,
-              new NoDocument(limboKey, SnapshotVersion.NONE, /*hasCommittedMutations=*/ false));
-      Set<DocumentKey> limboDocuments = Collections.singleton(limboKey);
+      // They are limbo docs. Create a synthetic event saying they were deleted. This is kind of a
+      // hack. Ideally, we would have a method in the local store to purge a document. However, it
+      // would be tricky to keep all of the local store's invariants with another method.
+      Map<DocumentKey, MaybeDocument> documentUpdates = new HashMap<>();
+      for (DocumentKey limboKey : limboResolution.pendingKeys) {
+        documentUpdates.put(
+            limboKey,
+            new NoDocument(limboKey, SnapshotVersion.NONE, /*hasCommittedMutations=*/ false));
+      }
+      Set<DocumentKey> limboDocuments = new HashSet<>(limboResolution.pendingKeys);
       RemoteEvent event =
           new RemoteEvent(
               SnapshotVersion.NONE,
@@ -509,18 +528,21 @@ public class SyncEngine implements RemoteStore.RemoteStoreCallback {
 
   /** Resolves the task corresponding to this write result. */
   private void notifyUser(int batchId, @Nullable Status status) {
-    Map<Integer, TaskCompletionSource<Void>> userTasks = mutationUserCallbacks.get(currentUser);
+    Map<Integer, List<TaskCompletionSource<Void>>> userTasks =
+        mutationUserCallbacks.get(currentUser);
 
     // NOTE: Mutations restored from persistence won't have task completion sources, so it's okay
-    // for this (or the task below) to be null.
+    // for this (or the tasks below) to be null.
     if (userTasks != null) {
       Integer boxedBatchId = batchId;
-      TaskCompletionSource<Void> userTask = userTasks.get(boxedBatchId);
-      if (userTask != null) {
-        if (status != null) {
-          userTask.setException(Util.exceptionFromStatus(status));
-        } else {
-          userTask.setResult(null);
+      List<TaskCompletionSource<Void>> batchTasks = userTasks.get(boxedBatchId);
+      if (batchTasks != null) {
+        for (TaskCompletionSource<Void> userTask : batchTasks) {
+          if (status != null) {
+            userTask.setException(Util.exceptionFromStatus(status));
+          } else {
+            userTask.setResult(null);
+          }
         }
         userTasks.remove(boxedBatchId);
       }
@@ -550,12 +572,16 @@ public class SyncEngine implements RemoteStore.RemoteStoreCallback {
   private void removeLimboTarget(DocumentKey key) {
     // It's possible that the target already got removed because the query failed. In that case,
     // the key won't exist in `limboTargetsByKey`. Only do the cleanup if we still have the target.
-    Integer targetId = activeLimboTargetsByKey.get(key);
+    Integer targetId = activeLimboTargetsByKey.remove(key);
     if (targetId != null) {
-      remoteStore.stopListening(targetId);
-      activeLimboTargetsByKey.remove(key);
-      activeLimboResolutionsByTarget.remove(targetId);
-      pumpEnqueuedLimboResolutions();
+      LimboResolution limboResolution = activeLimboResolutionsByTarget.get(targetId);
+      limboResolution.pendingKeys.remove(key);
+      // The other documents of the batch may still be in limbo, in which case we keep the target.
+      if (limboResolution.pendingKeys.isEmpty()) {
+        remoteStore.stopListening(targetId);
+        activeLimboResolutionsByTarget.remove(targetId);
+        pumpEnqueuedLimboResolutions();
+      }
     }
   }
 
@@ -572,6 +598,13 @@ public class SyncEngine implements RemoteStore.RemoteStoreCallback {
       QueryView queryView = entry.getValue();
       View view = queryView.getView();
       View.DocumentChanges viewDocChanges = view.computeDocChanges(changes);
+      if (viewDocChanges.needsRefill()
+          || !isInLocalCache(viewDocChanges.getDocumentsFromLimitBuffer())) {
+        // The documents that the view buffered beyond its limit were not sufficient or are stale
+        // (e.g. because they were garbage collected). Drop them and fall back to the local store.
+        view.clearLimitBuffer();
+        viewDocChanges = view.computeDocChanges(changes);
+      }
       if (viewDocChanges.needsRefill()) {
         // The query has a limit and some docs were removed/updated, so we need to re-run the query
         // against the local store to make sure we didn't lose any good docs that had been past the
@@ -596,6 +629,16 @@ public class SyncEngine implements RemoteStore.RemoteStoreCallback {
     localStore.notifyLocalViewChanges(documentChangesInAllViews);
   }
 
+  /** Returns whether the local store still contains the given versions of the documents. */
+  private boolean isInLocalCache(List<Document> documents) {
+    for (Document document : documents) {
+      if (!document.equals(localStore.readDocument(document.getKey()))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /** Updates the limbo document state for the given targetId. */
   private void updateTrackedLimboDocuments(List<LimboDocumentChange> limboChanges, int targetId) {
     for (LimboDocumentChange limboChange : limboChanges) {
@@ -617,6 +660,10 @@ public class SyncEngine implements RemoteStore.RemoteStoreCallback {
           throw fail("Unknown limbo change type: %s", limboChange.getType());
       }
     }
+
+    // Start the resolutions only after all new limbo documents of the view have been enqueued, so
+    // that they can be batched.
+    pumpEnqueuedLimboResolutions();
   }
 
   private void trackLimboChange(LimboDocumentChange change) {
@@ -624,13 +671,14 @@ public class SyncEngine implements RemoteStore.RemoteStoreCallback {
     if (!activeLimboTargetsByKey.containsKey(key)) {
       Logger.debug(TAG, "New document in limbo: %s", key);
       enqueuedLimboResolutions.add(key);
-      pumpEnqueuedLimboResolutions();
     }
   }
 
   /**
    * Starts listens for documents in limbo that are enqueued for resolution, subject to a maximum
-   * number of concurrent resolutions.
+   * number of concurrent resolutions. Each listen resolves a batch of up to {@code
+   * limboResolutionBatchSize} documents with a single documents target, so that a large number of
+   * limbo documents (e.g. after a reconnect) only needs a few round trips.
    *
    * <p>Without bounding the number of concurrent resolutions, the server can fail with "resource
    * exhausted" errors which can lead to pathological client behavior as seen in
@@ -638,14 +686,27 @@ public class SyncEngine implements RemoteStore.RemoteStoreCallback {
    */
   private void pumpEnqueuedLimboResolutions() {
     while (!enqueuedLimboResolutions.isEmpty()
-        && activeLimboTargetsByKey.size() < maxConcurrentLimboResolutions) {
-      DocumentKey key = enqueuedLimboResolutions.remove();
+        && activeLimboResolutionsByTarget.size() < maxConcurrentLimboResolutions) {
+      List<DocumentKey> keys = new ArrayList<>();
+      while (!enqueuedLimboResolutions.isEmpty() && keys.size() < limboResolutionBatchSize) {
+        DocumentKey key = enqueuedLimboResolutions.remove();
+        // A document can be enqueued more than once if it entered limbo in multiple views.
+        if (!activeLimboTargetsByKey.containsKey(key)) {
+          keys.add(key);
+        }
+      }
+      if (keys.isEmpty()) {
+        break;
+      }
+
       int limboTargetId = targetIdGenerator.nextId();
-      activeLimboResolutionsByTarget.put(limboTargetId, new LimboResolution(key));
-      activeLimboTargetsByKey.put(key, limboTargetId);
+      activeLimboResolutionsByTarget.put(limboTargetId, new LimboResolution(keys));
+      for (DocumentKey key : keys) {
+        activeLimboTargetsByKey.put(key, limboTargetId);
+      }
       remoteStore.listen(
           new TargetData(
-              Query.atPath(key.getPath()).toTarget(),
+              Target.forDocuments(keys),
               limboTargetId,
               ListenSequence.INVALID,
               QueryPurpose.LIMBO_RESOLUTION));
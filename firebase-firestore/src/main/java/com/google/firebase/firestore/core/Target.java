@@ -20,6 +20,7 @@ import androidx.annotation.Nullable;
 import com.google.firebase.firestore.core.OrderBy.Direction;
 import com.google.firebase.firestore.model.DocumentKey;
 import com.google.firebase.firestore.model.ResourcePath;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -45,6 +46,9 @@ public final class Target {
   private final @Nullable Bound startAt;
   private final @Nullable Bound endAt;
 
+  /** The keys of the documents of a multi-document target, or an empty list for other targets. */
+  private final List<DocumentKey> documentKeys;
+
   /**
    * Initializes a Target with a path and additional query constraints. Path must currently be empty
    * if this is a collection group query.
@@ -60,6 +64,18 @@ public final class Target {
       long limit,
       @Nullable Bound startAt,
       @Nullable Bound endAt) {
+    this(path, collectionGroup, filters, orderBy, limit, startAt, endAt, Collections.emptyList());
+  }
+
+  private Target(
+      ResourcePath path,
+      @Nullable String collectionGroup,
+      List<Filter> filters,
+      List<OrderBy> orderBy,
+      long limit,
+      @Nullable Bound startAt,
+      @Nullable Bound endAt,
+      List<DocumentKey> documentKeys) {
     this.path = path;
     this.collectionGroup = collectionGroup;
     this.orderBy = orderBy;
@@ -67,6 +83,28 @@ public final class Target {
     this.limit = limit;
     this.startAt = startAt;
     this.endAt = endAt;
+    this.documentKeys = documentKeys;
+  }
+
+  /**
+   * Creates a target that matches the documents with the given keys, which lets the RemoteStore
+   * listen to multiple documents with a single watch target. For a single key, this returns the
+   * target of the document query for that key.
+   */
+  public static Target forDocuments(List<DocumentKey> keys) {
+    hardAssert(!keys.isEmpty(), "A documents target needs at least one document");
+    if (keys.size() == 1) {
+      return Query.atPath(keys.get(0).getPath()).toTarget();
+    }
+    return new Target(
+        ResourcePath.EMPTY,
+        /* collectionGroup= */ null,
+        Collections.emptyList(),
+        Collections.emptyList(),
+        NO_LIMIT,
+        /* startAt= */ null,
+        /* endAt= */ null,
+        keys);
   }
 
   /** The base path of the query. */
@@ -81,7 +119,24 @@ public final class Target {
 
   /** Returns true if this Query is for a specific document. */
   public boolean isDocumentQuery() {
-    return DocumentKey.isDocumentKey(path) && collectionGroup == null && filters.isEmpty();
+    return DocumentKey.isDocumentKey(path)
+        && collectionGroup == null
+        && filters.isEmpty()
+        && documentKeys.isEmpty();
+  }
+
+  /**
+   * Returns true if this target matches a fixed set of documents, i.e. if it is a document query
+   * or was created by {@link #forDocuments}.
+   */
+  public boolean isDocumentsTarget() {
+    return isDocumentQuery() || !documentKeys.isEmpty();
+  }
+
+  /** Returns the keys of the documents matched by a documents target. */
+  public List<DocumentKey> getDocumentKeys() {
+    hardAssert(isDocumentsTarget(), "Called getDocumentKeys() on a query target");
+    return isDocumentQuery() ? Collections.singletonList(DocumentKey.fromPath(path)) : documentKeys;
   }
 
   /** The filters on the documents returned by the query. */
@@ -159,6 +214,14 @@ public final class Target {
       builder.append(endAt.canonicalString());
     }
 
+    if (!documentKeys.isEmpty()) {
+      builder.append("|docs:");
+      for (DocumentKey key : documentKeys) {
+        builder.append(key.getPath().canonicalString());
+        builder.append(",");
+      }
+    }
+
     memoizedCannonicalId = builder.toString();
     return memoizedCannonicalId;
   }
@@ -194,6 +257,9 @@ public final class Target {
     if (startAt != null ? !startAt.equals(target.startAt) : target.startAt != null) {
       return false;
     }
+    if (!documentKeys.equals(target.documentKeys)) {
+      return false;
+    }
     return endAt != null ? endAt.equals(target.endAt) : target.endAt == null;
   }
 
@@ -206,6 +272,7 @@ public final class Target {
     result = 31 * result + (int) (limit ^ (limit >>> 32));
     result = 31 * result + (startAt != null ? startAt.hashCode() : 0);
     result = 31 * result + (endAt != null ? endAt.hashCode() : 0);
+    result = 31 * result + documentKeys.hashCode();
     return result;
   }
 
@@ -214,6 +281,10 @@ public final class Target {
     StringBuilder builder = new StringBuilder();
     builder.append("Query(");
     builder.append(path.canonicalString());
+    if (!documentKeys.isEmpty()) {
+      builder.append(" documents=");
+      builder.append(documentKeys);
+    }
     if (collectionGroup != null) {
       builder.append(" collectionGroup=");
       builder.append(collectionGroup);
@@ -29,8 +29,11 @@ import com.google.firebase.firestore.model.MaybeDocument;
 import com.google.firebase.firestore.remote.TargetChange;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * View is responsible for computing the final merged truth of what docs are in a query. It gets
@@ -38,25 +41,41 @@ import java.util.Map;
  * determine the most correct possible results.
  */
 public class View {
+  /**
+   * The maximum number of documents that a view for a query with a limit keeps beyond its limit.
+   * When documents leave the limit, buffered documents take their place without a query against
+   * the local store.
+   */
+  private static final int MAX_LIMIT_BUFFER_SIZE = 50;
+
   /** The result of applying a set of doc changes to a view. */
   public static class DocumentChanges {
     private DocumentChanges(
         DocumentSet newDocuments,
+        DocumentSet limitBuffer,
         DocumentViewChangeSet changes,
         ImmutableSortedSet<DocumentKey> mutatedKeys,
+        List<Document> documentsFromLimitBuffer,
         boolean needsRefill) {
       this.documentSet = newDocuments;
+      this.limitBuffer = limitBuffer;
       this.changeSet = changes;
       this.mutatedKeys = mutatedKeys;
+      this.documentsFromLimitBuffer = documentsFromLimitBuffer;
       this.needsRefill = needsRefill;
     }
 
     /** The new set of docs that should be in the view. */
     final DocumentSet documentSet;
 
+    /** The new set of docs that the view keeps beyond its limit. */
+    final DocumentSet limitBuffer;
+
     /** The diff of these docs with the previous set of docs. */
     final DocumentViewChangeSet changeSet;
 
+    private final List<Document> documentsFromLimitBuffer;
+
     private final boolean needsRefill;
 
     final ImmutableSortedSet<DocumentKey> mutatedKeys;
@@ -68,6 +87,15 @@ public class View {
     public boolean needsRefill() {
       return needsRefill;
     }
+
+    /**
+     * Returns the unchanged documents that moved into the limit from the documents that the view
+     * buffered beyond its limit. These documents were read from the local cache before the current
+     * changes and are not pinned by the view's target.
+     */
+    public List<Document> getDocumentsFromLimitBuffer() {
+      return documentsFromLimitBuffer;
+    }
   }
 
   private final Query query;
@@ -83,6 +111,13 @@ public class View {
 
   private DocumentSet documentSet;
 
+  /**
+   * For queries with a limit, the matching documents that immediately follow the last document in
+   * the limit (or precede the first document for limitToLast queries). Together with the documents
+   * in the view, these form a contiguous range of the query's results.
+   */
+  private DocumentSet limitBuffer;
+
   /** Documents included in the remote target */
   private ImmutableSortedSet<DocumentKey> syncedDocuments;
 
@@ -96,6 +131,7 @@ public class View {
     this.query = query;
     syncState = SyncState.NONE;
     documentSet = DocumentSet.emptySet(query.comparator());
+    limitBuffer = DocumentSet.emptySet(query.comparator());
     syncedDocuments = remoteDocuments;
     limboDocuments = DocumentKey.emptyKeySet();
     mutatedKeys = DocumentKey.emptyKeySet();
@@ -134,31 +170,37 @@ public class View {
         previousChanges != null ? previousChanges.changeSet : new DocumentViewChangeSet();
     DocumentSet oldDocumentSet =
         previousChanges != null ? previousChanges.documentSet : documentSet;
+    DocumentSet oldLimitBuffer =
+        previousChanges != null ? previousChanges.limitBuffer : limitBuffer;
     ImmutableSortedSet<DocumentKey> newMutatedKeys =
         previousChanges != null ? previousChanges.mutatedKeys : mutatedKeys;
-    DocumentSet newDocumentSet = oldDocumentSet;
-    boolean needsRefill = false;
 
-    // Track the last doc in a (full) limit. This is necessary, because some update (a delete, or an
-    // update moving a doc past the old limit) might mean there is some other document in the local
-    // cache that either should come (1) between the old last limit doc and the new last document,
-    // in the case of updates, or (2) after the new last document, in the case of deletes. So we
-    // keep this doc at the old limit to compare the updates to.
+    // The changes are applied to the documents in the view and in the limit buffer. If the limit
+    // is full, the local cache might contain more matching documents beyond the edge of the limit
+    // buffer. An update might move a document past this edge, or a document might be added past
+    // it, in which case other documents that we don't know about might sort before it.
     //
-    // Note that this should never get used in a refill (when previousChanges is set), because there
-    // will only be adds -- no deletes or updates.
-    Document lastDocInLimit =
-        (query.hasLimitToFirst() && oldDocumentSet.size() == query.getLimitToFirst())
-            ? oldDocumentSet.getLastDocument()
-            : null;
-    Document firstDocInLimit =
-        (query.hasLimitToLast() && oldDocumentSet.size() == query.getLimitToLast())
-            ? oldDocumentSet.getFirstDocument()
+    // Note that this edge should never get used in a refill (when previousChanges is set), because
+    // a refill includes all matching documents.
+    DocumentSet newDocumentSet = oldDocumentSet;
+    for (Document document : oldLimitBuffer) {
+      newDocumentSet = newDocumentSet.add(document);
+    }
+    Document limitBufferEdge =
+        previousChanges == null
+                && (query.hasLimitToFirst() || query.hasLimitToLast())
+                && oldDocumentSet.size() == getLimit()
+            ? getLimitEdge(newDocumentSet)
             : null;
 
+    // The latest version of each document that was changed, used to compute the view changes once
+    // the limit is applied.
+    Map<DocumentKey, Document> changedDocuments = new HashMap<>();
+    List<DocumentKey> keysPastLimitBufferEdge = new ArrayList<>();
+
     for (Map.Entry<DocumentKey, ? extends MaybeDocument> entry : docChanges) {
       DocumentKey key = entry.getKey();
-      Document oldDoc = oldDocumentSet.getDocument(key);
+      Document oldDoc = newDocumentSet.getDocument(key);
       Document newDoc = null;
       MaybeDocument maybeDoc = entry.getValue();
 
@@ -188,67 +230,44 @@ public class View {
                   || (this.mutatedKeys.contains(newDoc.getKey())
                       && newDoc.hasCommittedMutations()));
 
-      boolean changeApplied = false;
+      boolean changeApplied;
 
       // Calculate change
       if (oldDoc != null && newDoc != null) {
         boolean docsEqual = oldDoc.getData().equals(newDoc.getData());
         if (!docsEqual) {
-          if (!shouldWaitForSyncedDocument(oldDoc, newDoc)) {
-            changeSet.addChange(DocumentViewChange.create(Type.MODIFIED, newDoc));
-            changeApplied = true;
-
-            if ((lastDocInLimit != null && query.comparator().compare(newDoc, lastDocInLimit) > 0)
-                || (firstDocInLimit != null
-                    && query.comparator().compare(newDoc, firstDocInLimit) < 0)) {
-              // This doc moved from inside the limit to outside the limit. That means there may be
-              // some doc in the local cache that should be included instead.
-              needsRefill = true;
-            }
-          }
-        } else if (oldDocHadPendingMutations != newDocHasPendingMutations) {
-          changeSet.addChange(DocumentViewChange.create(Type.METADATA, newDoc));
-          changeApplied = true;
-        }
-      } else if (oldDoc == null && newDoc != null) {
-        changeSet.addChange(DocumentViewChange.create(Type.ADDED, newDoc));
-        changeApplied = true;
-      } else if (oldDoc != null && newDoc == null) {
-        changeSet.addChange(DocumentViewChange.create(Type.REMOVED, oldDoc));
-        changeApplied = true;
-        if (lastDocInLimit != null || firstDocInLimit != null) {
-          // A doc was removed from a full limit query. We'll need to requery from the local cache
-          // to see if we know about some other doc that should be in the results.
-          needsRefill = true;
+          changeApplied = !shouldWaitForSyncedDocument(oldDoc, newDoc);
+        } else {
+          changeApplied = oldDocHadPendingMutations != newDocHasPendingMutations;
         }
+      } else {
+        changeApplied = oldDoc != null || newDoc != null;
       }
 
       if (changeApplied) {
+        changedDocuments.put(key, newDoc != null ? newDoc : oldDoc);
         if (newDoc != null) {
           newDocumentSet = newDocumentSet.add(newDoc);
-          if (newDoc.hasLocalMutations()) {
-            newMutatedKeys = newMutatedKeys.insert(newDoc.getKey());
-          } else {
-            newMutatedKeys = newMutatedKeys.remove(newDoc.getKey());
+          if (limitBufferEdge != null && isPastLimitEdge(newDoc, limitBufferEdge)) {
+            keysPastLimitBufferEdge.add(key);
           }
         } else {
           newDocumentSet = newDocumentSet.remove(key);
-          newMutatedKeys = newMutatedKeys.remove(key);
         }
       }
     }
 
-    // Drop documents out to meet limitToFirst/limitToLast requirement.
-    if (query.hasLimitToFirst() || query.hasLimitToLast()) {
-      long limit = query.hasLimitToFirst() ? query.getLimitToFirst() : query.getLimitToLast();
-      for (long i = newDocumentSet.size() - limit; i > 0; --i) {
-        Document oldDoc =
-            query.hasLimitToFirst()
-                ? newDocumentSet.getLastDocument()
-                : newDocumentSet.getFirstDocument();
-        newDocumentSet = newDocumentSet.remove(oldDoc.getKey());
-        newMutatedKeys = newMutatedKeys.remove(oldDoc.getKey());
-        changeSet.addChange(DocumentViewChange.create(Type.REMOVED, oldDoc));
+    // Documents past the edge of the limit buffer are dropped, as long as the remaining documents
+    // still fill the limit. Otherwise, there may be some doc in the local cache that should be
+    // included instead, and we need to requery the local cache.
+    boolean needsRefill = false;
+    if (limitBufferEdge != null) {
+      if (newDocumentSet.size() - keysPastLimitBufferEdge.size() < getLimit()) {
+        needsRefill = true;
+      } else {
+        for (DocumentKey key : keysPastLimitBufferEdge) {
+          newDocumentSet = newDocumentSet.remove(key);
+        }
       }
     }
 
@@ -256,7 +275,184 @@ public class View {
         !needsRefill || previousChanges == null,
         "View was refilled using docs that themselves needed refilling.");
 
-    return new DocumentChanges(newDocumentSet, changeSet, newMutatedKeys, needsRefill);
+    return applyLimit(
+        oldDocumentSet,
+        oldLimitBuffer,
+        newDocumentSet,
+        changedDocuments,
+        changeSet,
+        newMutatedKeys,
+        needsRefill);
+  }
+
+  /**
+   * Computes the changes for the initial documents of a view that does not contain any documents
+   * yet. Does not make any changes to the view.
+   *
+   * <p>Unlike {@link #computeDocChanges}, this sorts all matching documents at once, which is
+   * faster than inserting them one at a time. Sorting is close to linear if the documents are
+   * already mostly in the order of the query.
+   *
+   * @param documents The documents that might match the query.
+   * @param orderedKeys An optional hint with the keys of the documents in the order in which they
+   *     were last sorted by the query. Documents that are not included are sorted after the others.
+   * @return a new set of docs, changes, and refill flag.
+   */
+  public DocumentChanges computeInitialDocChanges(
+      ImmutableSortedMap<DocumentKey, Document> documents,
+      @Nullable List<DocumentKey> orderedKeys) {
+    hardAssert(documentSet.isEmpty(), "Initial changes can only be computed for an empty view");
+
+    List<Document> matchingDocuments = new ArrayList<>();
+    Map<DocumentKey, Document> changedDocuments = new HashMap<>();
+
+    // Visit the documents in the order of the hint first, followed by the remaining documents in
+    // key order.
+    List<Document> orderedDocuments = new ArrayList<>(documents.size());
+    Set<DocumentKey> orderedDocumentKeys = new HashSet<>();
+    if (orderedKeys != null) {
+      for (DocumentKey key : orderedKeys) {
+        Document document = documents.get(key);
+        if (document != null && orderedDocumentKeys.add(key)) {
+          orderedDocuments.add(document);
+        }
+      }
+    }
+    for (Map.Entry<DocumentKey, Document> entry : documents) {
+      if (!orderedDocumentKeys.contains(entry.getKey())) {
+        orderedDocuments.add(entry.getValue());
+      }
+    }
+
+    for (Document document : orderedDocuments) {
+      if (query.matches(document)) {
+        matchingDocuments.add(document);
+        changedDocuments.put(document.getKey(), document);
+      }
+    }
+
+    return applyLimit(
+        documentSet,
+        limitBuffer,
+        documentSet.addAll(matchingDocuments),
+        changedDocuments,
+        new DocumentViewChangeSet(),
+        mutatedKeys,
+        /* needsRefill= */ false);
+  }
+
+  /**
+   * Drops documents out to meet the limitToFirst/limitToLast requirement of the query and computes
+   * the view changes between the old and the new documents in the view.
+   *
+   * <p>The documents that are dropped out first are kept in the new limit buffer, up to its maximum
+   * size.
+   *
+   * @param oldDocumentSet The documents in the view before the changes.
+   * @param oldLimitBuffer The limit buffer before the changes.
+   * @param documents The matching documents after the changes, including the documents that were
+   *     kept in the limit buffer.
+   * @param changedDocuments The latest version of each document that was changed.
+   */
+  private DocumentChanges applyLimit(
+      DocumentSet oldDocumentSet,
+      DocumentSet oldLimitBuffer,
+      DocumentSet documents,
+      Map<DocumentKey, Document> changedDocuments,
+      DocumentViewChangeSet changeSet,
+      ImmutableSortedSet<DocumentKey> mutatedKeys,
+      boolean needsRefill) {
+    DocumentSet newDocumentSet = documents;
+    DocumentSet newLimitBuffer = DocumentSet.emptySet(query.comparator());
+    ImmutableSortedSet<DocumentKey> newMutatedKeys = mutatedKeys;
+
+    if (query.hasLimitToFirst() || query.hasLimitToLast()) {
+      long limit = getLimit();
+      long limitBufferSize = Math.min(limit, MAX_LIMIT_BUFFER_SIZE);
+      for (long i = newDocumentSet.size() - limit; i > 0; --i) {
+        Document oldDoc = getLimitEdge(newDocumentSet);
+        newDocumentSet = newDocumentSet.remove(oldDoc.getKey());
+        if (i <= limitBufferSize) {
+          newLimitBuffer = newLimitBuffer.add(oldDoc);
+        }
+
+        if (oldDocumentSet.contains(oldDoc.getKey())
+            && !changedDocuments.containsKey(oldDoc.getKey())) {
+          newMutatedKeys = newMutatedKeys.remove(oldDoc.getKey());
+          changeSet.addChange(DocumentViewChange.create(Type.REMOVED, oldDoc));
+        }
+      }
+    }
+
+    for (Map.Entry<DocumentKey, Document> entry : changedDocuments.entrySet()) {
+      DocumentKey key = entry.getKey();
+      Document oldDoc = oldDocumentSet.getDocument(key);
+      Document newDoc = newDocumentSet.getDocument(key);
+      if (newDoc != null) {
+        Type type =
+            oldDoc == null
+                ? Type.ADDED
+                : oldDoc.getData().equals(newDoc.getData()) ? Type.METADATA : Type.MODIFIED;
+        changeSet.addChange(DocumentViewChange.create(type, newDoc));
+        newMutatedKeys = updateMutatedKeys(newMutatedKeys, newDoc);
+      } else if (oldDoc != null) {
+        changeSet.addChange(DocumentViewChange.create(Type.REMOVED, entry.getValue()));
+        newMutatedKeys = newMutatedKeys.remove(key);
+      }
+    }
+
+    List<Document> documentsFromLimitBuffer = new ArrayList<>();
+    for (Document document : oldLimitBuffer) {
+      if (newDocumentSet.contains(document.getKey())
+          && !changedDocuments.containsKey(document.getKey())) {
+        documentsFromLimitBuffer.add(document);
+        changeSet.addChange(DocumentViewChange.create(Type.ADDED, document));
+        newMutatedKeys = updateMutatedKeys(newMutatedKeys, document);
+      }
+    }
+
+    return new DocumentChanges(
+        newDocumentSet,
+        newLimitBuffer,
+        changeSet,
+        newMutatedKeys,
+        documentsFromLimitBuffer,
+        needsRefill);
+  }
+
+  private static ImmutableSortedSet<DocumentKey> updateMutatedKeys(
+      ImmutableSortedSet<DocumentKey> mutatedKeys, Document document) {
+    return document.hasLocalMutations()
+        ? mutatedKeys.insert(document.getKey())
+        : mutatedKeys.remove(document.getKey());
+  }
+
+  /** Returns the limit of a query with a limitToFirst or limitToLast restriction. */
+  private long getLimit() {
+    return query.hasLimitToFirst() ? query.getLimitToFirst() : query.getLimitToLast();
+  }
+
+  /**
+   * Returns the document that is dropped first when applying the limit of the query to the given
+   * documents.
+   */
+  private Document getLimitEdge(DocumentSet documents) {
+    return query.hasLimitToFirst() ? documents.getLastDocument() : documents.getFirstDocument();
+  }
+
+  /** Returns whether {@code document} would be dropped before {@code edge} by the limit. */
+  private boolean isPastLimitEdge(Document document, Document edge) {
+    int comparison = query.comparator().compare(document, edge);
+    return query.hasLimitToFirst() ? comparison > 0 : comparison < 0;
+  }
+
+  /**
+   * Drops the documents that the view keeps beyond its limit, for example because they are no
+   * longer in the local cache. Subsequent changes that remove documents from the limit then require
+   * a refill from the local cache.
+   */
+  public void clearLimitBuffer() {
+    limitBuffer = DocumentSet.emptySet(query.comparator());
   }
 
   private boolean shouldWaitForSyncedDocument(Document oldDoc, Document newDoc) {
@@ -295,6 +491,7 @@ public class View {
 
     DocumentSet oldDocumentSet = documentSet;
     documentSet = docChanges.documentSet;
+    limitBuffer = docChanges.limitBuffer;
     mutatedKeys = docChanges.mutatedKeys;
 
     // Sort changes based on type and query comparator.
@@ -344,7 +541,12 @@ public class View {
       this.current = false;
       return applyChanges(
           new DocumentChanges(
-              documentSet, new DocumentViewChangeSet(), mutatedKeys, /*needsRefill=*/ false));
+              documentSet,
+              limitBuffer,
+              new DocumentViewChangeSet(),
+              mutatedKeys,
+              Collections.emptyList(),
+              /*needsRefill=*/ false));
     } else {
       // No effect, just return a no-op ViewChange.
       return new ViewChange(null, Collections.emptyList());
@@ -438,7 +640,7 @@ public class View {
   }
 
   /** Helper function to determine order of changes */
-  private static int changeTypeOrder(DocumentViewChange change) {
+  static int changeTypeOrder(DocumentViewChange change) {
     switch (change.getType()) {
       case ADDED:
         return 1;
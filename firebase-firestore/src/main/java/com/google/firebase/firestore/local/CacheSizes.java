@@ -0,0 +1,44 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.local;
+
+import com.google.firebase.firestore.model.ResourcePath;
+import java.util.Collections;
+import java.util.Map;
+
+/** The approximate sizes of the documents and targets in the local cache. */
+public final class CacheSizes {
+  private final Map<ResourcePath, Long> collectionByteSizes;
+  private final long targetByteSize;
+
+  static CacheSizes Empty() {
+    return new CacheSizes(Collections.emptyMap(), 0);
+  }
+
+  CacheSizes(Map<ResourcePath, Long> collectionByteSizes, long targetByteSize) {
+    this.collectionByteSizes = collectionByteSizes;
+    this.targetByteSize = targetByteSize;
+  }
+
+  /** Returns the size in bytes of the cached documents of each collection, keyed by its path. */
+  public Map<ResourcePath, Long> getCollectionByteSizes() {
+    return collectionByteSizes;
+  }
+
+  /** Returns the size in bytes of the cached targets and their document associations. */
+  public long getTargetByteSize() {
+    return targetByteSize;
+  }
+}
@@ -0,0 +1,63 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.local;
+
+import androidx.annotation.Nullable;
+import com.google.firebase.firestore.model.DocumentKey;
+import com.google.firebase.firestore.model.MaybeDocument;
+import com.google.firebase.firestore.model.ResourcePath;
+import java.util.Map;
+
+/**
+ * Stores the local view of all documents that are affected by the pending mutations of a user, so
+ * that reads don't need to replay the mutation queue.
+ *
+ * <p>An overlay is the result of applying all mutation batches that affect a document to its entry
+ * in the RemoteDocumentCache, and needs to be recalculated whenever either of them changes. Only
+ * documents with pending mutations have an overlay. The local view of such a document can still be
+ * missing (e.g. if a patch is applied to a document that doesn't exist), which is represented by a
+ * null overlay.
+ */
+interface DocumentOverlayCache {
+  /**
+   * Starts the overlay cache. Overlays of all other users are removed, since they are not kept up
+   * to date while their user is inactive.
+   */
+  void start();
+
+  /** Returns true if the user doesn't have any overlays. */
+  boolean isEmpty();
+
+  /**
+   * Looks up the overlays of a set of documents.
+   *
+   * @param documentKeys The keys of the documents to look up.
+   * @return The overlays indexed by key. Documents without pending mutations are not included. A
+   *     key that is mapped to null has pending mutations, but no local view.
+   */
+  Map<DocumentKey, MaybeDocument> getOverlays(Iterable<DocumentKey> documentKeys);
+
+  /**
+   * Returns the overlays of all documents that are immediate children of the given collection, in
+   * the same form as {@link #getOverlays(Iterable)}.
+   */
+  Map<DocumentKey, MaybeDocument> getOverlays(ResourcePath collectionPath);
+
+  /** Adds or replaces the overlay of a document. */
+  void saveOverlay(DocumentKey documentKey, @Nullable MaybeDocument localView);
+
+  /** Removes the overlay of a document (no-op if the document doesn't have one). */
+  void removeOverlay(DocumentKey documentKey);
+}
@@ -19,6 +19,7 @@ import static com.google.firebase.firestore.util.Assert.hardAssert;
 import com.google.firebase.firestore.model.BasePath;
 import com.google.firebase.firestore.model.FieldPath;
 import com.google.firebase.firestore.model.ResourcePath;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -74,6 +75,14 @@ final class EncodedPath {
   private static final char ENCODED_NUL = '\u0010';
   private static final char ENCODED_ESCAPE = '\u0011';
 
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * The SQL expression for the size in bytes of an encoded path stored in a column named path. It
+   * must agree with {@link #byteLength} so that sizes added in Java can be subtracted in SQL.
+   */
+  static final String PATH_BYTE_LENGTH = "length(CAST(path AS BLOB))";
+
   /** Encodes a path into a SQLite-compatible string form. */
   static <B extends BasePath<B>> String encode(B path) {
     StringBuilder result = new StringBuilder();
@@ -186,6 +195,15 @@ final class EncodedPath {
     return segments;
   }
 
+  /**
+   * Returns the size in bytes of the given encoded path as stored by SQLite. Note that
+   * String.length() counts UTF-16 code units and SQLite's length() of a TEXT value counts
+   * characters, neither of which is the stored size.
+   */
+  static int byteLength(String encodedPath) {
+    return encodedPath.getBytes(UTF_8).length;
+  }
+
   /**
    * Computes the prefix successor of the given path, computed by encode above. A prefix successor
    * is the first key that cannot be prefixed by the given path. It's useful for defining the end of
@@ -0,0 +1,198 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.local;
+
+import static com.google.firebase.firestore.util.Assert.fail;
+
+import androidx.annotation.Nullable;
+import com.google.firebase.firestore.core.FieldFilter;
+import com.google.firebase.firestore.core.Filter;
+import com.google.firebase.firestore.core.IndexRange;
+import com.google.firebase.firestore.core.OrderBy;
+import com.google.firebase.firestore.core.Query;
+import com.google.firebase.firestore.model.FieldPath;
+import com.google.firestore.v1.Value;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Plans how a collection query is served from the field index maintained by {@link
+ * SQLiteFieldIndex}.
+ *
+ * <p>Each filter that can be served from the index is translated into a union of {@link
+ * IndexRange}s over one field. Equality, range, 'in', 'array-contains' and 'array-contains-any'
+ * filters can be served from the index. Queries without such filters use their explicit orderBy
+ * fields, since documents without a value for these fields never match. Filters are ranked by
+ * their estimated selectivity, so that callers that only perform a single index lookup can use the
+ * most selective one.
+ *
+ * <p>Index lookups are lossy, so the documents returned for a plan must always be post-filtered
+ * with {@link Query#matches}.
+ */
+final class FieldIndexQueryPlanner {
+
+  private static final double HIGH_SELECTIVITY = 1.0;
+  private static final double LOW_SELECTIVITY = 0.5;
+
+  // Booleans only have two distinct values, and arrays and maps are only indexed by their type.
+  private static final List<Value.ValueTypeCase> lowCardinalityTypes =
+      Arrays.asList(
+          Value.ValueTypeCase.BOOLEAN_VALUE,
+          Value.ValueTypeCase.ARRAY_VALUE,
+          Value.ValueTypeCase.MAP_VALUE);
+
+  private FieldIndexQueryPlanner() {}
+
+  /**
+   * Returns the index ranges that contain all documents matching the given collection query, or
+   * null if the query cannot be served from the index and requires a collection scan.
+   */
+  @Nullable
+  static List<IndexRange> planIndexScan(Query query) {
+    List<List<IndexRange>> scans = planIndexScans(query);
+    return scans.isEmpty() ? null : scans.get(0);
+  }
+
+  /**
+   * Returns all index scans that can be used to serve the given collection query, ordered by
+   * decreasing estimated selectivity. Each scan is a union of {@link IndexRange}s over one field,
+   * and a document can only match the query if it is contained in every scan.
+   *
+   * <p>All filters that can be served from the index produce a scan. Queries without such filters
+   * produce one scan for each of their explicit orderBy fields. An empty list is returned if the
+   * query requires a collection scan.
+   */
+  static List<List<IndexRange>> planIndexScans(Query query) {
+    List<FieldFilter> servableFilters = new ArrayList<>();
+    for (Filter filter : query.getFilters()) {
+      if (filter instanceof FieldFilter && estimateFilterSelectivity((FieldFilter) filter) > 0) {
+        servableFilters.add((FieldFilter) filter);
+      }
+    }
+
+    List<List<IndexRange>> scans = new ArrayList<>();
+
+    if (!servableFilters.isEmpty()) {
+      // The sort is stable, which keeps the query's filter order for filters of equal selectivity.
+      Collections.sort(
+          servableFilters,
+          (left, right) ->
+              Double.compare(estimateFilterSelectivity(right), estimateFilterSelectivity(left)));
+      for (FieldFilter filter : servableFilters) {
+        scans.add(convertFilterToIndexRanges(filter));
+      }
+      return scans;
+    }
+
+    for (OrderBy orderBy : query.getExplicitOrderBy()) {
+      if (!orderBy.getField().isKeyField()) {
+        // Any value of the orderBy field is within the range.
+        scans.add(
+            Collections.singletonList(
+                IndexRange.builder().setFieldPath(orderBy.getField()).build()));
+      }
+    }
+
+    return scans;
+  }
+
+  /**
+   * Estimates the selectivity of a filter based on its operator and operand type.
+   *
+   * @return a number from 0.0 to 1.0 (inclusive), where higher numbers indicate higher selectivity
+   *     and 0.0 indicates that the filter cannot be served from the index.
+   */
+  static double estimateFilterSelectivity(FieldFilter filter) {
+    if (filter.getField().isKeyField()) {
+      return 0;
+    }
+
+    switch (filter.getOperator()) {
+      case EQUAL:
+      case ARRAY_CONTAINS:
+        return HIGH_SELECTIVITY * estimateTypeSelectivity(filter.getValue());
+      case IN:
+      case ARRAY_CONTAINS_ANY:
+        return HIGH_SELECTIVITY;
+      case LESS_THAN:
+      case LESS_THAN_OR_EQUAL:
+      case GREATER_THAN:
+      case GREATER_THAN_OR_EQUAL:
+        return LOW_SELECTIVITY * estimateTypeSelectivity(filter.getValue());
+      default:
+        // NOT_EQUAL and NOT_IN match almost all values of a field.
+        return 0;
+    }
+  }
+
+  private static double estimateTypeSelectivity(Value value) {
+    return lowCardinalityTypes.contains(value.getValueTypeCase())
+        ? LOW_SELECTIVITY
+        : HIGH_SELECTIVITY;
+  }
+
+  /**
+   * Creates the {@code IndexRange}s that are guaranteed to capture all values that match the given
+   * filter.
+   */
+  private static List<IndexRange> convertFilterToIndexRanges(FieldFilter filter) {
+    FieldPath fieldPath = filter.getField();
+    Value value = filter.getValue();
+    List<IndexRange> ranges = new ArrayList<>();
+
+    switch (filter.getOperator()) {
+      case EQUAL:
+        ranges.add(
+            IndexRange.builder().setFieldPath(fieldPath).setStart(value).setEnd(value).build());
+        break;
+      case LESS_THAN:
+      case LESS_THAN_OR_EQUAL:
+        ranges.add(IndexRange.builder().setFieldPath(fieldPath).setEnd(value).build());
+        break;
+      case GREATER_THAN:
+      case GREATER_THAN_OR_EQUAL:
+        ranges.add(IndexRange.builder().setFieldPath(fieldPath).setStart(value).build());
+        break;
+      case ARRAY_CONTAINS:
+        ranges.add(
+            IndexRange.builder()
+                .setFieldPath(fieldPath)
+                .setArrayElement(true)
+                .setStart(value)
+                .setEnd(value)
+                .build());
+        break;
+      case IN:
+      case ARRAY_CONTAINS_ANY:
+        boolean arrayElement = filter.getOperator() == Filter.Operator.ARRAY_CONTAINS_ANY;
+        for (Value element : value.getArrayValue().getValuesList()) {
+          ranges.add(
+              IndexRange.builder()
+                  .setFieldPath(fieldPath)
+                  .setArrayElement(arrayElement)
+                  .setStart(element)
+                  .setEnd(element)
+                  .build());
+        }
+        break;
+      default:
+        throw fail("Filter cannot be served from the field index: %s", filter);
+    }
+
+    return ranges;
+  }
+}
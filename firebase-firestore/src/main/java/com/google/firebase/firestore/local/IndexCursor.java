@@ -14,6 +14,9 @@
 
 package com.google.firebase.firestore.local;
 
+import static com.google.firebase.firestore.util.Assert.hardAssert;
+
+import android.database.Cursor;
 import com.google.firebase.firestore.model.DocumentKey;
 import java.io.Closeable;
 
@@ -27,21 +30,31 @@ import java.io.Closeable;
  * lossy).
  */
 public class IndexCursor implements Closeable {
+  private final Cursor cursor;
+  private boolean hasEntry;
+
+  /** Creates a cursor over a query result whose first column contains encoded document paths. */
+  IndexCursor(Cursor cursor) {
+    this.cursor = cursor;
+  }
+
   /**
    * Advances the cursor (to the first result if this is the first call), returning false if there
    * are no more items.
    */
   public boolean next() {
-    throw new RuntimeException("Not yet implemented.");
+    hasEntry = cursor.moveToNext();
+    return hasEntry;
   }
 
   /** Returns the DocumentKey for the current index entry (throws if there are no more entries). */
   public DocumentKey getDocumentKey() {
-    throw new RuntimeException("Not yet implemented.");
+    hardAssert(hasEntry, "getDocumentKey() called without a current index entry");
+    return DocumentKey.fromPath(EncodedPath.decodeResourcePath(cursor.getString(0)));
   }
 
   @Override
   public void close() {
-    throw new RuntimeException("Not yet implemented.");
+    cursor.close();
   }
 }
@@ -16,6 +16,7 @@ package com.google.firebase.firestore.local;
 
 import static com.google.firebase.firestore.util.Assert.hardAssert;
 
+import androidx.annotation.Nullable;
 import com.google.firebase.database.collection.ImmutableSortedMap;
 import com.google.firebase.database.collection.ImmutableSortedSet;
 import com.google.firebase.firestore.core.Query;
@@ -24,7 +25,9 @@ import com.google.firebase.firestore.model.DocumentKey;
 import com.google.firebase.firestore.model.MaybeDocument;
 import com.google.firebase.firestore.model.SnapshotVersion;
 import com.google.firebase.firestore.util.Logger;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 
 // TOOD(b/140938512): Drop SimpleQueryEngine and rename IndexFreeQueryEngine.
@@ -76,11 +79,10 @@ public class IndexFreeQueryEngine implements QueryEngine {
 
     ImmutableSortedMap<DocumentKey, MaybeDocument> documents =
         localDocumentsView.getDocuments(remoteKeys);
-    ImmutableSortedSet<Document> previousResults = applyQuery(query, documents);
+    List<Document> previousResults = applyQuery(query, documents);
 
     if ((query.hasLimitToFirst() || query.hasLimitToLast())
-        && needsRefill(
-            query.getLimitType(), previousResults, remoteKeys, lastLimboFreeSnapshotVersion)) {
+        && needsRefill(query, previousResults, remoteKeys, lastLimboFreeSnapshotVersion)) {
       return executeFullCollectionScan(query);
     }
 
@@ -106,18 +108,19 @@ public class IndexFreeQueryEngine implements QueryEngine {
     return updatedResults;
   }
 
-  /** Applies the query filter and sorting to the provided documents. */
-  private ImmutableSortedSet<Document> applyQuery(
+  /**
+   * Applies the query filter to the provided documents. The results are not sorted, since only the
+   * document at the edge of a limit is needed.
+   */
+  private List<Document> applyQuery(
       Query query, ImmutableSortedMap<DocumentKey, MaybeDocument> documents) {
-    // Sort the documents and re-apply the query filter since previously matching documents do not
-    // necessarily still match the query.
-    ImmutableSortedSet<Document> queryResults =
-        new ImmutableSortedSet<>(Collections.emptyList(), query.comparator());
+    // Re-apply the query filter since previously matching documents do not necessarily still match
+    // the query.
+    List<Document> queryResults = new ArrayList<>();
     for (Map.Entry<DocumentKey, MaybeDocument> entry : documents) {
       MaybeDocument maybeDoc = entry.getValue();
       if (maybeDoc instanceof Document && query.matches((Document) maybeDoc)) {
-        Document doc = (Document) maybeDoc;
-        queryResults = queryResults.insert(doc);
+        queryResults.add((Document) maybeDoc);
       }
     }
     return queryResults;
@@ -127,20 +130,19 @@ public class IndexFreeQueryEngine implements QueryEngine {
    * Determines if a limit query needs to be refilled from cache, making it ineligible for
    * index-free execution.
    *
-   * @param limitType The type of limit query for refill calculation.
-   * @param sortedPreviousResults The documents that matched the query when it was last
-   *     synchronized, sorted by the query's comparator.
+   * @param query The limit query for refill calculation.
+   * @param previousResults The documents that matched the query when it was last synchronized.
    * @param remoteKeys The document keys that matched the query at the last snapshot.
    * @param limboFreeSnapshotVersion The version of the snapshot when the query was last
    *     synchronized.
    */
   private boolean needsRefill(
-      Query.LimitType limitType,
-      ImmutableSortedSet<Document> sortedPreviousResults,
+      Query query,
+      List<Document> previousResults,
       ImmutableSortedSet<DocumentKey> remoteKeys,
       SnapshotVersion limboFreeSnapshotVersion) {
     // The query needs to be refilled if a previously matching document no longer matches.
-    if (remoteKeys.size() != sortedPreviousResults.size()) {
+    if (remoteKeys.size() != previousResults.size()) {
       return true;
     }
 
@@ -150,10 +152,7 @@ public class IndexFreeQueryEngine implements QueryEngine {
     // a document that is not the limit boundary sorts differently, the boundary of the limit itself
     // did not change and documents from cache will continue to be "rejected" by this boundary.
     // Therefore, we can ignore any modifications that don't affect the last document.
-    Document documentAtLimitEdge =
-        limitType == Query.LimitType.LIMIT_TO_FIRST
-            ? sortedPreviousResults.getMaxEntry()
-            : sortedPreviousResults.getMinEntry();
+    Document documentAtLimitEdge = findDocumentAtLimitEdge(query, previousResults);
     if (documentAtLimitEdge == null) {
       // We don't need to refill the query if there were already no documents.
       return false;
@@ -162,6 +161,29 @@ public class IndexFreeQueryEngine implements QueryEngine {
         || documentAtLimitEdge.getVersion().compareTo(limboFreeSnapshotVersion) > 0;
   }
 
+  /**
+   * Returns the last document of a limitToFirst query or the first document of a limitToLast query
+   * according to the query's order, or null if there are no documents. Finding the edge only takes
+   * a single pass and does not require sorting all documents.
+   */
+  @Nullable
+  private Document findDocumentAtLimitEdge(Query query, List<Document> documents) {
+    Comparator<Document> comparator = query.comparator();
+    boolean findLast = query.getLimitType() == Query.LimitType.LIMIT_TO_FIRST;
+    Document edge = null;
+    for (Document document : documents) {
+      if (edge == null) {
+        edge = document;
+      } else {
+        int comparison = comparator.compare(document, edge);
+        if (findLast ? comparison > 0 : comparison < 0) {
+          edge = document;
+        }
+      }
+    }
+    return edge;
+  }
+
   @Override
   public void handleDocumentChange(MaybeDocument oldDocument, MaybeDocument newDocument) {
     // No indexes to update.
@@ -16,89 +16,53 @@ package com.google.firebase.firestore.local;
 
 import static com.google.firebase.firestore.util.Assert.hardAssert;
 
-import androidx.annotation.Nullable;
-import androidx.annotation.VisibleForTesting;
 import com.google.firebase.database.collection.ImmutableSortedMap;
 import com.google.firebase.database.collection.ImmutableSortedSet;
-import com.google.firebase.firestore.core.FieldFilter;
-import com.google.firebase.firestore.core.Filter;
-import com.google.firebase.firestore.core.Filter.Operator;
 import com.google.firebase.firestore.core.IndexRange;
 import com.google.firebase.firestore.core.Query;
 import com.google.firebase.firestore.model.Document;
-import com.google.firebase.firestore.model.DocumentCollections;
 import com.google.firebase.firestore.model.DocumentKey;
-import com.google.firebase.firestore.model.FieldPath;
 import com.google.firebase.firestore.model.MaybeDocument;
 import com.google.firebase.firestore.model.SnapshotVersion;
-import com.google.firebase.firestore.model.Values;
-import com.google.firebase.firestore.util.Assert;
-import com.google.firestore.v1.Value;
-import java.util.Arrays;
+import com.google.firebase.firestore.util.Logger;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
- * An indexed implementation of {@link QueryEngine} which performs fairly efficient queries.
+ * An indexed implementation of {@link QueryEngine} which uses the field index of the SQLite
+ * remote document cache to execute collection queries.
  *
- * <p>{@code IndexedQueryEngine} performs only one index lookup and picks an index to use based on
- * an estimate of a query's filter or orderBy selectivity.
+ * <p>{@code IndexedQueryEngine} translates every filter that can be served from the index into an
+ * index scan and intersects all scans, so that only documents that are contained in each scan are
+ * read. Queries without such filters intersect the scans for their explicit orderBy fields, since
+ * documents that don't contain these fields never match. See {@link FieldIndexQueryPlanner} for
+ * the supported filters.
  *
- * <p>For queries with filters, {@code IndexedQueryEngine} distinguishes between two categories of
- * query filters: High selectivity filters are expected to return a lower number of results from the
- * index, while low selectivity filters only marginally prune the search space.
+ * <p>The engine decides per query whether the index is cheaper than the {@link
+ * IndexFreeQueryEngine}, which only reads the documents that previously matched a query. If the
+ * index lookup yields more candidates than the previous result set, or if the query cannot be
+ * served from the index at all, the query is executed by the {@code IndexFreeQueryEngine}.
  *
- * <p>We determine the best filter to use based on the combination of two static rules, which take
- * into account both the operator and field values type.
- *
- * <p>For operators, this assignment is as follows:
- *
- * <ul>
- *   <li>HIGH_SELECTIVITY: '='
- *   <li>LOW_SELECTIVITY: '<', <=', '>=', '>'
- * </ul>
- *
- * <p>For field value types, this assignment is:
- *
- * <ul>
- *   <li>HIGH_SELECTIVITY: {@code BlobValue}, {@code DoubleValue}, {@code GeoPointValue}, {@code
- *       NumberValue}, {@code ReferenceValue}, {@code StringValue}, {@code TimestampValue}, {@code
- *       NullValue}
- *   <li>LOW_SELECTIVITY: {@code ArrayValue}, {@code MapValue}, {@code BooleanValue}
- * </ul>
- *
- * <p>Note that we consider {@code NullValue} a high selectivity filter as we only support equals
- * comparisons against 'null' and expect most data to be non-null.
- *
- * <p>In the absence of filters, {@code IndexedQueryEngine} performs an index lookup based on the
- * first explicitly specified field in the orderBy clause. Fields in an orderBy only match documents
- * that contains these fields and can hence optimize our lookups by providing some selectivity.
- *
- * <p>A full collection scan is therefore only needed when no filters or orderBy constraints are
- * specified.
+ * <p>Index entries are lossy and only cover remote documents. All candidates are therefore
+ * post-filtered, and documents with local mutations are overlaid by the {@link
+ * LocalDocumentsView}.
  */
 public class IndexedQueryEngine implements QueryEngine {
-
-  private static final double HIGH_SELECTIVITY = 1.0;
-  private static final double LOW_SELECTIVITY = 0.5;
-
-  // ARRAY_VALUE and MAP_VALUE are currently considered low cardinality because we don't index
-  // them uniquely.
-  private static final List<Value.ValueTypeCase> lowCardinalityTypes =
-      Arrays.asList(
-          Value.ValueTypeCase.BOOLEAN_VALUE,
-          Value.ValueTypeCase.ARRAY_VALUE,
-          Value.ValueTypeCase.MAP_VALUE);
+  private static final String LOG_TAG = "IndexedQueryEngine";
 
   private final SQLiteCollectionIndex collectionIndex;
+  private final IndexFreeQueryEngine fallbackEngine;
   private LocalDocumentsView localDocuments;
 
   public IndexedQueryEngine(SQLiteCollectionIndex collectionIndex) {
     this.collectionIndex = collectionIndex;
+    this.fallbackEngine = new IndexFreeQueryEngine();
   }
 
   @Override
   public void setLocalDocumentsView(LocalDocumentsView localDocuments) {
     this.localDocuments = localDocuments;
+    fallbackEngine.setLocalDocumentsView(localDocuments);
   }
 
   @Override
@@ -108,146 +72,72 @@ public class IndexedQueryEngine implements QueryEngine {
       ImmutableSortedSet<DocumentKey> remoteKeys) {
     hardAssert(localDocuments != null, "setLocalDocumentsView() not called");
 
-    return query.isDocumentQuery()
-        ? localDocuments.getDocumentsMatchingQuery(query, SnapshotVersion.NONE)
-        : performCollectionQuery(query);
-  }
-
-  /** Executes the query using both indexes and post-filtering. */
-  private ImmutableSortedMap<DocumentKey, Document> performCollectionQuery(Query query) {
-    hardAssert(!query.isDocumentQuery(), "matchesCollectionQuery() called with document query.");
+    if (query.isDocumentQuery() || query.isCollectionGroupQuery()) {
+      return fallbackEngine.getDocumentsMatchingQuery(
+          query, lastLimboFreeSnapshotVersion, remoteKeys);
+    }
 
-    IndexRange indexRange = extractBestIndexRange(query);
-    ImmutableSortedMap<DocumentKey, Document> filteredResults;
+    List<List<IndexRange>> indexScans = FieldIndexQueryPlanner.planIndexScans(query);
+    if (indexScans.isEmpty()) {
+      return fallbackEngine.getDocumentsMatchingQuery(
+          query, lastLimboFreeSnapshotVersion, remoteKeys);
+    }
 
-    if (indexRange != null) {
-      filteredResults = performQueryUsingIndex(query, indexRange);
-    } else {
-      hardAssert(
-          query.getFilters().isEmpty(),
-          "If there are any filters, we should be able to use an index.");
-      // TODO: Call overlay.getCollectionDocuments(query.getPath()) and filter the
-      // results (there may still be startAt/endAt bounds that apply).
-      filteredResults = localDocuments.getDocumentsMatchingQuery(query, SnapshotVersion.NONE);
+    // The IndexFreeQueryEngine reads the previous results plus the documents that changed since
+    // the last limbo-free snapshot. We approximate its cost by the size of the previous results and
+    // stop reading from the index once it yields more candidates than that.
+    int maxCandidates =
+        lastLimboFreeSnapshotVersion.equals(SnapshotVersion.NONE)
+            ? Integer.MAX_VALUE
+            : remoteKeys.size();
+
+    List<DocumentKey> candidates = getIndexCandidates(query, indexScans, maxCandidates);
+    if (candidates == null) {
+      if (Logger.isDebugEnabled()) {
+        Logger.debug(
+            LOG_TAG,
+            "Index lookup yields more than %d documents, not using the index for query: %s",
+            maxCandidates,
+            query.toString());
+      }
+      return fallbackEngine.getDocumentsMatchingQuery(
+          query, lastLimboFreeSnapshotVersion, remoteKeys);
     }
 
-    return filteredResults;
+    if (Logger.isDebugEnabled()) {
+      Logger.debug(
+          LOG_TAG,
+          "Using %d index scans to read %d documents for query: %s",
+          indexScans.size(),
+          candidates.size(),
+          query.toString());
+    }
+    return localDocuments.getDocumentsMatchingCollectionQuery(query, candidates);
   }
 
   /**
-   * Applies 'filter' to the index cursor, looks up the relevant documents from the local documents
-   * view and returns all matches.
+   * Returns the keys of all documents contained in each of the given index scans, or null if there
+   * are more than {@code maxCandidates} such documents.
    */
-  private ImmutableSortedMap<DocumentKey, Document> performQueryUsingIndex(
-      Query query, IndexRange indexRange) {
-    ImmutableSortedMap<DocumentKey, Document> results = DocumentCollections.emptyDocumentMap();
-    IndexCursor cursor = collectionIndex.getCursor(query.getPath(), indexRange);
+  private List<DocumentKey> getIndexCandidates(
+      Query query, List<List<IndexRange>> indexScans, int maxCandidates) {
+    List<DocumentKey> candidates = new ArrayList<>();
+    IndexCursor cursor = collectionIndex.getCursor(query.getPath(), indexScans);
     try {
       while (cursor.next()) {
-        Document document = (Document) localDocuments.getDocument(cursor.getDocumentKey());
-        if (query.matches(document)) {
-          results = results.insert(cursor.getDocumentKey(), document);
+        if (candidates.size() == maxCandidates) {
+          return null;
         }
+        candidates.add(cursor.getDocumentKey());
       }
     } finally {
       cursor.close();
     }
-
-    return results;
-  }
-
-  /**
-   * Determines a single filter's selectivity by multiplying the implied selectivity of the filter
-   * operator and the type of its operand.
-   *
-   * @return a number from 0.0 to 1.0 (inclusive), where higher numbers indicate higher selectivity
-   */
-  private static double estimateFilterSelectivity(Filter filter) {
-    hardAssert(filter instanceof FieldFilter, "Filter type expected to be FieldFilter");
-    FieldFilter fieldFilter = (FieldFilter) filter;
-    Value filterValue = fieldFilter.getValue();
-    if (Values.isNullValue(filterValue) || Values.isNanValue(filterValue)) {
-      return HIGH_SELECTIVITY;
-    } else {
-      double operatorSelectivity =
-          fieldFilter.getOperator().equals(Operator.EQUAL) ? HIGH_SELECTIVITY : LOW_SELECTIVITY;
-      double typeSelectivity =
-          lowCardinalityTypes.contains(fieldFilter.getValue().getValueTypeCase())
-              ? LOW_SELECTIVITY
-              : HIGH_SELECTIVITY;
-
-      return typeSelectivity * operatorSelectivity;
-    }
-  }
-
-  /**
-   * Returns an optimized {@code IndexRange} for this query. The {@code IndexRange} is computed
-   * based on the estimated selectivity of the query filters and orderBy constraints. If no filters
-   * or orderBy constraints are specified, it returns null.
-   */
-  @Nullable
-  @VisibleForTesting
-  static IndexRange extractBestIndexRange(Query query) {
-    // TODO: consider any startAt/endAt bounds on the query.
-
-    double currentSelectivity = -1;
-
-    if (!query.getFilters().isEmpty()) {
-      Filter selectedFilter = null;
-      for (Filter currentFilter : query.getFilters()) {
-        double estimatedSelectivity = estimateFilterSelectivity(currentFilter);
-        if (estimatedSelectivity > currentSelectivity) {
-          selectedFilter = currentFilter;
-          currentSelectivity = estimatedSelectivity;
-        }
-      }
-      hardAssert(selectedFilter != null, "Filter should be defined");
-      return convertFilterToIndexRange(selectedFilter);
-    } else {
-      // If there are no filters, use the first orderBy constraint when performing the index lookup.
-      // This index lookup will remove results that do not contain the field we use for ordering.
-      FieldPath orderPath = query.getOrderBy().get(0).getField();
-      if (!orderPath.equals(FieldPath.KEY_PATH)) {
-        return IndexRange.builder().setFieldPath(query.getOrderBy().get(0).getField()).build();
-      }
-    }
-
-    return null;
-  }
-
-  /**
-   * Creates an {@code IndexRange} that is guaranteed to capture all values that match the given
-   * filter. The determined {@code IndexRange} is likely overselective and requires post-filtering.
-   */
-  private static IndexRange convertFilterToIndexRange(Filter filter) {
-    IndexRange.Builder indexRange = IndexRange.builder().setFieldPath(filter.getField());
-    if (filter instanceof FieldFilter) {
-      FieldFilter fieldFilter = (FieldFilter) filter;
-      Value filterValue = fieldFilter.getValue();
-      switch (fieldFilter.getOperator()) {
-        case EQUAL:
-          indexRange.setStart(filterValue).setEnd(filterValue);
-          break;
-        case LESS_THAN_OR_EQUAL:
-        case LESS_THAN:
-          indexRange.setEnd(filterValue);
-          break;
-        case GREATER_THAN:
-        case GREATER_THAN_OR_EQUAL:
-          indexRange.setStart(filterValue);
-          break;
-        default:
-          // TODO: Add support for ARRAY_CONTAINS.
-          throw Assert.fail("Unexpected operator in query filter");
-      }
-    }
-    return indexRange.build();
+    return candidates;
   }
 
   @Override
   public void handleDocumentChange(MaybeDocument oldDocument, MaybeDocument newDocument) {
-    // TODO: Determine changed fields and make appropriate addEntry() / removeEntry()
-    // on SQLiteCollectionIndex.
-    throw new RuntimeException("Not yet implemented.");
+    // The field index is updated by the remote document cache.
   }
 }
@@ -0,0 +1,111 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.local;
+
+import static com.google.firebase.firestore.util.Assert.fail;
+
+import androidx.annotation.Nullable;
+import com.google.firebase.firestore.model.Document;
+import com.google.firebase.firestore.model.ObjectValue;
+import com.google.firestore.v1.Value;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import java.io.IOException;
+
+/**
+ * Decodes the fields of a serialized {@code google.firestore.v1.Document} on demand.
+ *
+ * <p>Individual fields are decoded by scanning the serialized map entries and only parsing the
+ * value of the requested field. This allows a query to evaluate its filters without decoding the
+ * remaining fields of documents that don't match.
+ */
+final class LazyDocumentData implements Document.DataDecoder {
+  private static final int MAP_ENTRY_KEY_FIELD_NUMBER = 1;
+  private static final int MAP_ENTRY_VALUE_FIELD_NUMBER = 2;
+
+  private final ByteString serializedDocument;
+
+  LazyDocumentData(ByteString serializedDocument) {
+    this.serializedDocument = serializedDocument;
+  }
+
+  @Nullable
+  @Override
+  public Value decodeField(String fieldName) {
+    ByteString expectedKey = ByteString.copyFromUtf8(fieldName);
+    try {
+      CodedInputStream input = serializedDocument.newCodedInput();
+      input.enableAliasing(true);
+
+      // Like the protobuf parser, the last entry for a key wins, so the whole document is scanned.
+      boolean found = false;
+      ByteString matchingValue = null;
+
+      int tag;
+      while ((tag = input.readTag()) != 0) {
+        if (WireFormat.getTagFieldNumber(tag)
+            != com.google.firestore.v1.Document.FIELDS_FIELD_NUMBER) {
+          input.skipField(tag);
+          continue;
+        }
+
+        int oldLimit = input.pushLimit(input.readRawVarint32());
+        ByteString key = ByteString.EMPTY;
+        ByteString value = null;
+        while (!input.isAtEnd()) {
+          int entryTag = input.readTag();
+          switch (WireFormat.getTagFieldNumber(entryTag)) {
+            case MAP_ENTRY_KEY_FIELD_NUMBER:
+              key = input.readBytes();
+              break;
+            case MAP_ENTRY_VALUE_FIELD_NUMBER:
+              // Only parse the value once we know that the key matches. Repeated occurrences of a
+              // message field are merged, which parsing their concatenation does as well.
+              ByteString bytes = input.readBytes();
+              value = value != null ? value.concat(bytes) : bytes;
+              break;
+            default:
+              input.skipField(entryTag);
+          }
+        }
+        input.popLimit(oldLimit);
+
+        if (key.equals(expectedKey)) {
+          found = true;
+          matchingValue = value;
+        }
+      }
+
+      if (!found) {
+        return null;
+      }
+      return matchingValue != null ? Value.parseFrom(matchingValue) : Value.getDefaultInstance();
+    } catch (IOException e) {
+      throw fail("Failed to decode field '%s' of document: %s", fieldName, e);
+    }
+  }
+
+  @Override
+  public ObjectValue decodeData() {
+    try {
+      return ObjectValue.fromMap(
+          com.google.firestore.v1.Document.parseFrom(serializedDocument).getFieldsMap());
+    } catch (InvalidProtocolBufferException e) {
+      throw fail("Document failed to parse: %s", e);
+    }
+  }
+}
@@ -0,0 +1,134 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.local;
+
+import static com.google.firebase.firestore.util.Assert.hardAssert;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.database.collection.ImmutableSortedMap;
+import com.google.firebase.firestore.auth.User;
+import com.google.firebase.firestore.core.Query;
+import com.google.firebase.firestore.model.Document;
+import com.google.firebase.firestore.model.DocumentKey;
+import com.google.firebase.firestore.model.MaybeDocument;
+import com.google.firebase.firestore.model.SnapshotVersion;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves cache-only reads of documents and queries on its own threads, so that they don't have to
+ * wait for the operations that are queued on the AsyncQueue.
+ *
+ * <p>Reads see the local view of the documents as of the last committed transaction of the
+ * LocalStore. They never observe partially applied changes, but may miss changes that the
+ * LocalStore is applying while they run.
+ */
+public final class LocalCacheReader {
+  private static final int THREAD_COUNT = 2;
+  private static final long KEEP_ALIVE_SECONDS = 10;
+
+  private final SQLitePersistence persistence;
+  private final ThreadPoolExecutor executor;
+
+  /** The view of the current user's documents. Replaced when the user changes. */
+  private volatile LocalDocumentsView localDocuments;
+
+  public LocalCacheReader(SQLitePersistence persistence, User initialUser) {
+    hardAssert(
+        persistence.isConcurrentReadsEnabled(), "Persistence does not support concurrent reads");
+    this.persistence = persistence;
+    this.executor =
+        new ThreadPoolExecutor(
+            THREAD_COUNT,
+            THREAD_COUNT,
+            KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            runnable -> {
+              Thread thread = new Thread(runnable, "FirestoreCacheReader");
+              thread.setDaemon(true);
+              return thread;
+            });
+    this.executor.allowCoreThreadTimeOut(true);
+    handleUserChange(initialUser);
+  }
+
+  /** Switches the reads to the documents of the given user. */
+  public void handleUserChange(User user) {
+    localDocuments =
+        new LocalDocumentsView(
+            persistence.getRemoteDocumentCache(),
+            persistence.getMutationQueue(user),
+            persistence.getDocumentOverlayCache(user),
+            persistence.getIndexManager());
+  }
+
+  /**
+   * Returns the local view of the document identified by {@code key}, or null if there is no
+   * cached state for it. Fails if transactions kept committing while the document was read.
+   */
+  public Task<MaybeDocument> readDocument(DocumentKey key) {
+    LocalDocumentsView view = localDocuments;
+    return submit(() -> persistence.runSnapshotRead("Read document", () -> view.getDocument(key)));
+  }
+
+  /**
+   * Returns the local view of the documents matching {@code query}. Fails if transactions kept
+   * committing while the documents were read.
+   */
+  public Task<ImmutableSortedMap<DocumentKey, Document>> executeQuery(Query query) {
+    LocalDocumentsView view = localDocuments;
+    return submit(
+        () ->
+            persistence.runSnapshotRead(
+                "Execute query",
+                () -> view.getDocumentsMatchingQuery(query, SnapshotVersion.NONE)));
+  }
+
+  /** Runs the read on the reader's threads, or fails it if the reader was shut down. */
+  private <T> Task<T> submit(Callable<T> read) {
+    try {
+      return Tasks.call(executor, read);
+    } catch (RejectedExecutionException e) {
+      return Tasks.forException(e);
+    }
+  }
+
+  /**
+   * Stops the reader's threads. Blocks until all reads that were submitted before completed, so
+   * that the database can be closed afterwards. Reads submitted later fail.
+   */
+  public void shutdown() {
+    executor.shutdown();
+    boolean interrupted = false;
+    while (true) {
+      try {
+        if (executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)) {
+          break;
+        }
+      } catch (InterruptedException e) {
+        // Closing the database under a running read would crash it, so keep waiting.
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
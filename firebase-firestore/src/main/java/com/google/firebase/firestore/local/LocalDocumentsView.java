@@ -28,31 +28,39 @@ import com.google.firebase.firestore.model.MaybeDocument;
 import com.google.firebase.firestore.model.NoDocument;
 import com.google.firebase.firestore.model.ResourcePath;
 import com.google.firebase.firestore.model.SnapshotVersion;
-import com.google.firebase.firestore.model.mutation.Mutation;
 import com.google.firebase.firestore.model.mutation.MutationBatch;
-import com.google.firebase.firestore.model.mutation.PatchMutation;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * A readonly view of the local state of all documents we're tracking (i.e. we have a cached version
  * in remoteDocumentCache or local mutations for the document). The view is computed by applying the
  * mutations in the MutationQueue to the RemoteDocumentCache.
+ *
+ * <p>The local view of documents with pending mutations is precomputed in the
+ * DocumentOverlayCache, so that reads don't need to replay the mutation queue. LocalStore keeps the
+ * overlays up to date by notifying this view whenever the mutation queue or the remote state of a
+ * document with pending mutations changes.
  */
 // TODO: Turn this into the UnifiedDocumentCache / whatever.
 class LocalDocumentsView {
 
   private final RemoteDocumentCache remoteDocumentCache;
   private final MutationQueue mutationQueue;
+  private final DocumentOverlayCache overlayCache;
   private final IndexManager indexManager;
 
   LocalDocumentsView(
       RemoteDocumentCache remoteDocumentCache,
       MutationQueue mutationQueue,
+      DocumentOverlayCache overlayCache,
       IndexManager indexManager) {
     this.remoteDocumentCache = remoteDocumentCache;
     this.mutationQueue = mutationQueue;
+    this.overlayCache = overlayCache;
     this.indexManager = indexManager;
   }
 
@@ -66,46 +74,104 @@ class LocalDocumentsView {
     return mutationQueue;
   }
 
+  @VisibleForTesting
+  DocumentOverlayCache getOverlayCache() {
+    return overlayCache;
+  }
+
   @VisibleForTesting
   IndexManager getIndexManager() {
     return indexManager;
   }
 
   /**
-   * Returns the the local view of the document identified by {@code key}.
-   *
-   * @return Local view of the document or null if we don't have any cached state for it.
+   * Starts the overlay cache and populates it if it doesn't contain the overlays of the pending
+   * mutations yet. This is the case if another user was active since the overlays were last
+   * updated, or if the mutations were written by a version of the SDK that didn't maintain
+   * overlays.
    */
-  @Nullable
-  MaybeDocument getDocument(DocumentKey key) {
-    List<MutationBatch> batches = mutationQueue.getAllMutationBatchesAffectingDocumentKey(key);
-    return getDocument(key, batches);
+  void startOverlays() {
+    overlayCache.start();
+    if (overlayCache.isEmpty() && !mutationQueue.isEmpty()) {
+      Set<DocumentKey> keys = new HashSet<>();
+      for (MutationBatch batch : mutationQueue.getAllMutationBatches()) {
+        keys.addAll(batch.getKeys());
+      }
+      recalculateOverlays(keys);
+    }
   }
 
-  // Internal version of {@code getDocument} that allows reusing batches.
-  @Nullable
-  private MaybeDocument getDocument(DocumentKey key, List<MutationBatch> inBatches) {
-    @Nullable MaybeDocument document = remoteDocumentCache.get(key);
-    for (MutationBatch batch : inBatches) {
-      document = batch.applyToLocalView(key, document);
-    }
+  /**
+   * Updates the overlays of the documents in a batch that was just added to the mutation queue.
+   * Since the new batch is the last one to apply, it is applied on top of the existing overlays.
+   */
+  void addOverlays(MutationBatch batch) {
+    Set<DocumentKey> keys = batch.getKeys();
+    Map<DocumentKey, MaybeDocument> overlays = overlayCache.getOverlays(keys);
 
-    return document;
+    Set<DocumentKey> keysWithoutOverlay = new HashSet<>(keys);
+    keysWithoutOverlay.removeAll(overlays.keySet());
+    Map<DocumentKey, MaybeDocument> remoteDocs = remoteDocumentCache.getAll(keysWithoutOverlay);
+
+    for (DocumentKey key : keys) {
+      MaybeDocument baseDoc = overlays.containsKey(key) ? overlays.get(key) : remoteDocs.get(key);
+      overlayCache.saveOverlay(key, batch.applyToLocalView(key, baseDoc));
+    }
   }
 
-  // Returns the view of the given {@code docs} as they would appear after applying all mutations in
-  // the given {@code batches}.
-  private Map<DocumentKey, MaybeDocument> applyLocalMutationsToDocuments(
-      Map<DocumentKey, MaybeDocument> docs, List<MutationBatch> batches) {
-    for (Map.Entry<DocumentKey, MaybeDocument> base : docs.entrySet()) {
-      MaybeDocument localView = base.getValue();
+  /**
+   * Recalculates the overlays of the given documents from the RemoteDocumentCache and the mutation
+   * queue. Must be called after batches were removed from the queue, or after the remote state of
+   * the documents changed.
+   */
+  void recalculateOverlays(Set<DocumentKey> keys) {
+    if (keys.isEmpty()) {
+      return;
+    }
+
+    List<MutationBatch> batches = mutationQueue.getAllMutationBatchesAffectingDocumentKeys(keys);
+    Map<DocumentKey, MaybeDocument> remoteDocs = remoteDocumentCache.getAll(keys);
+
+    for (DocumentKey key : keys) {
+      boolean hasMutations = false;
+      MaybeDocument localView = remoteDocs.get(key);
       for (MutationBatch batch : batches) {
-        localView = batch.applyToLocalView(base.getKey(), localView);
+        if (batch.getKeys().contains(key)) {
+          hasMutations = true;
+          localView = batch.applyToLocalView(key, localView);
+        }
+      }
+
+      if (hasMutations) {
+        overlayCache.saveOverlay(key, localView);
+      } else {
+        overlayCache.removeOverlay(key);
       }
-      base.setValue(localView);
     }
+  }
 
-    return docs;
+  /**
+   * Recalculates the overlays of the documents whose remote state changed. Documents without
+   * pending mutations don't have an overlay and are skipped.
+   */
+  void handleRemoteDocumentChanges(Set<DocumentKey> keys) {
+    Map<DocumentKey, MaybeDocument> overlays = overlayCache.getOverlays(keys);
+    recalculateOverlays(overlays.keySet());
+  }
+
+  /**
+   * Returns the the local view of the document identified by {@code key}.
+   *
+   * @return Local view of the document or null if we don't have any cached state for it.
+   */
+  @Nullable
+  MaybeDocument getDocument(DocumentKey key) {
+    Map<DocumentKey, MaybeDocument> overlays =
+        overlayCache.getOverlays(Collections.singletonList(key));
+    if (overlays.containsKey(key)) {
+      return overlays.get(key);
+    }
+    return remoteDocumentCache.get(key);
   }
 
   /**
@@ -121,18 +187,17 @@ class LocalDocumentsView {
 
   /**
    * Similar to {@code #getDocuments}, but creates the local view from the given {@code baseDocs}
-   * without retrieving documents from the local store.
+   * without retrieving documents from the local store. The overlays of documents with pending
+   * mutations take precedence over {@code baseDocs}.
    */
   ImmutableSortedMap<DocumentKey, MaybeDocument> getLocalViewOfDocuments(
       Map<DocumentKey, MaybeDocument> baseDocs) {
     ImmutableSortedMap<DocumentKey, MaybeDocument> results = emptyMaybeDocumentMap();
 
-    List<MutationBatch> batches =
-        mutationQueue.getAllMutationBatchesAffectingDocumentKeys(baseDocs.keySet());
-    Map<DocumentKey, MaybeDocument> docs = applyLocalMutationsToDocuments(baseDocs, batches);
-    for (Map.Entry<DocumentKey, MaybeDocument> entry : docs.entrySet()) {
+    Map<DocumentKey, MaybeDocument> overlays = overlayCache.getOverlays(baseDocs.keySet());
+    for (Map.Entry<DocumentKey, MaybeDocument> entry : baseDocs.entrySet()) {
       DocumentKey key = entry.getKey();
-      MaybeDocument maybeDoc = entry.getValue();
+      MaybeDocument maybeDoc = overlays.containsKey(key) ? overlays.get(key) : entry.getValue();
       // TODO: Don't conflate missing / deleted.
       if (maybeDoc == null) {
         maybeDoc = new NoDocument(key, SnapshotVersion.NONE, /*hasCommittedMutations=*/ false);
@@ -200,72 +265,58 @@ class LocalDocumentsView {
     return results;
   }
 
-  /** Queries the remote documents and overlays mutations. */
+  /** Queries the remote documents and applies the overlays of the collection. */
   private ImmutableSortedMap<DocumentKey, Document> getDocumentsMatchingCollectionQuery(
       Query query, SnapshotVersion sinceReadTime) {
     ImmutableSortedMap<DocumentKey, Document> results =
         remoteDocumentCache.getAllDocumentsMatchingQuery(query, sinceReadTime);
+    return applyOverlaysToCollectionResults(query, results);
+  }
 
-    List<MutationBatch> matchingBatches = mutationQueue.getAllMutationBatchesAffectingQuery(query);
-
-    results = addMissingBaseDocuments(matchingBatches, results);
-
-    for (MutationBatch batch : matchingBatches) {
-      for (Mutation mutation : batch.getMutations()) {
-        // Only process documents belonging to the collection.
-        if (!query.getPath().isImmediateParentOf(mutation.getKey().getPath())) {
-          continue;
-        }
-
-        DocumentKey key = mutation.getKey();
-        MaybeDocument baseDoc = results.get(key);
-        MaybeDocument mutatedDoc =
-            mutation.applyToLocalView(baseDoc, baseDoc, batch.getLocalWriteTime());
-        if (mutatedDoc instanceof Document) {
-          results = results.insert(key, (Document) mutatedDoc);
-        } else {
-          results = results.remove(key);
-        }
-      }
-    }
-
-    // Finally, filter out any documents that don't actually match the query.
-    for (Map.Entry<DocumentKey, Document> docEntry : results) {
-      if (!query.matches(docEntry.getValue())) {
-        results = results.remove(docEntry.getKey());
+  /**
+   * Performs a collection query against the local view of the given candidate documents. The
+   * candidates must include all remote documents that match the query (e.g. as determined by an
+   * index lookup). Documents with local mutations are included even if they are not candidates.
+   */
+  ImmutableSortedMap<DocumentKey, Document> getDocumentsMatchingCollectionQuery(
+      Query query, Iterable<DocumentKey> candidateKeys) {
+    hardAssert(
+        !query.isDocumentQuery() && !query.isCollectionGroupQuery(),
+        "Candidate documents can only be used for collection queries");
+    ImmutableSortedMap<DocumentKey, Document> results = emptyDocumentMap();
+    Map<DocumentKey, MaybeDocument> candidates = remoteDocumentCache.getAll(candidateKeys);
+    for (Map.Entry<DocumentKey, MaybeDocument> entry : candidates.entrySet()) {
+      if (entry.getValue() instanceof Document) {
+        results = results.insert(entry.getKey(), (Document) entry.getValue());
       }
     }
-
-    return results;
+    return applyOverlaysToCollectionResults(query, results);
   }
 
   /**
-   * It is possible that a {@code PatchMutation} can make a document match a query, even if the
-   * version in the {@code RemoteDocumentCache} is not a match yet (waiting for server to ack). To
-   * handle this, we find all document keys affected by the {@code PatchMutation}s that are not in
-   * {@code existingDocs} yet, and back fill them via {@code remoteDocumentCache.getAll}, otherwise
-   * those {@code PatchMutation}s will be ignored because no base document can be found, and lead to
-   * missing results for the query.
+   * Applies the overlays of the documents in the queried collection to the matching remote
+   * documents in {@code results} and removes all documents that no longer match.
    */
-  private ImmutableSortedMap<DocumentKey, Document> addMissingBaseDocuments(
-      List<MutationBatch> matchingBatches, ImmutableSortedMap<DocumentKey, Document> existingDocs) {
-    HashSet<DocumentKey> missingDocKeys = new HashSet<>();
-    for (MutationBatch batch : matchingBatches) {
-      for (Mutation mutation : batch.getMutations()) {
-        if (mutation instanceof PatchMutation && !existingDocs.containsKey(mutation.getKey())) {
-          missingDocKeys.add(mutation.getKey());
-        }
+  private ImmutableSortedMap<DocumentKey, Document> applyOverlaysToCollectionResults(
+      Query query, ImmutableSortedMap<DocumentKey, Document> results) {
+    // The overlays include documents whose remote version doesn't match the query (or isn't
+    // included in the results), but whose local view might.
+    Map<DocumentKey, MaybeDocument> overlays = overlayCache.getOverlays(query.getPath());
+    for (Map.Entry<DocumentKey, MaybeDocument> entry : overlays.entrySet()) {
+      if (entry.getValue() instanceof Document) {
+        results = results.insert(entry.getKey(), (Document) entry.getValue());
+      } else {
+        results = results.remove(entry.getKey());
       }
     }
 
-    ImmutableSortedMap<DocumentKey, Document> mergedDocs = existingDocs;
-    Map<DocumentKey, MaybeDocument> missingDocs = remoteDocumentCache.getAll(missingDocKeys);
-    for (Map.Entry<DocumentKey, MaybeDocument> entry : missingDocs.entrySet()) {
-      if (entry.getValue() != null && (entry.getValue() instanceof Document)) {
-        mergedDocs = mergedDocs.insert(entry.getKey(), (Document) entry.getValue());
+    // Finally, filter out any documents that don't actually match the query.
+    for (Map.Entry<DocumentKey, Document> docEntry : results) {
+      if (!query.matches(docEntry.getValue())) {
+        results = results.remove(docEntry.getKey());
       }
     }
 
-    return mergedDocs;
+    return results;
   }
 }
@@ -30,6 +30,10 @@ import com.google.firebase.firestore.model.mutation.Mutation;
 import com.google.firebase.firestore.model.mutation.MutationBatch;
 import com.google.firebase.firestore.remote.RemoteSerializer;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.WireFormat;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -82,6 +86,84 @@ public final class LocalSerializer {
     }
   }
 
+  /**
+   * Decodes a serialized MaybeDocument proto to the equivalent model. Unlike {@link
+   * #decodeMaybeDocument}, the data of a Document is not decoded until its fields are accessed (see
+   * {@link LazyDocumentData}). Documents that are only inspected by a query filter therefore only
+   * decode the fields that the filter needs.
+   */
+  MaybeDocument decodeMaybeDocumentLazily(byte[] bytes) throws IOException {
+    // Avoids copying the serialized document out of the row's buffer.
+    CodedInputStream input = newAliasingInput(bytes);
+
+    ByteString serializedDocument = null;
+    boolean hasCommittedMutations = false;
+    int tag;
+    while ((tag = input.readTag()) != 0) {
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case com.google.firebase.firestore.proto.MaybeDocument.DOCUMENT_FIELD_NUMBER:
+          serializedDocument = input.readBytes();
+          break;
+        case com.google.firebase.firestore.proto.MaybeDocument.HAS_COMMITTED_MUTATIONS_FIELD_NUMBER:
+          hasCommittedMutations = input.readBool();
+          break;
+        default:
+          input.skipField(tag);
+      }
+    }
+
+    if (serializedDocument == null) {
+      // Deleted and unknown documents don't contain any data that is worth decoding lazily.
+      return decodeMaybeDocument(
+          com.google.firebase.firestore.proto.MaybeDocument.parseFrom(newAliasingInput(bytes)));
+    }
+
+    return decodeLazyDocument(serializedDocument, hasCommittedMutations);
+  }
+
+  /**
+   * Returns a stream that parses a proto from the contents of a database row. The bytes fields of
+   * the parsed proto share the given array instead of copying it, so the array must not be modified
+   * afterwards. This holds for the arrays returned by Cursor.getBlob(), which are not reused.
+   */
+  static CodedInputStream newAliasingInput(byte[] rowBytes) {
+    CodedInputStream input = CodedInputStream.newInstance(rowBytes);
+    input.enableAliasing(true);
+    return input;
+  }
+
+  /** Decodes the key and version of a serialized Document, but not its data. */
+  private Document decodeLazyDocument(ByteString serializedDocument, boolean hasCommittedMutations)
+      throws IOException {
+    String name = "";
+    com.google.protobuf.Timestamp updateTime = com.google.protobuf.Timestamp.getDefaultInstance();
+    CodedInputStream input = serializedDocument.newCodedInput();
+    int tag;
+    while ((tag = input.readTag()) != 0) {
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case com.google.firestore.v1.Document.NAME_FIELD_NUMBER:
+          name = input.readStringRequireUtf8();
+          break;
+        case com.google.firestore.v1.Document.UPDATE_TIME_FIELD_NUMBER:
+          updateTime =
+              input.readMessage(
+                  com.google.protobuf.Timestamp.parser(), ExtensionRegistryLite.getEmptyRegistry());
+          break;
+        default:
+          // The fields are decoded on demand by LazyDocumentData.
+          input.skipField(tag);
+      }
+    }
+
+    return new Document(
+        rpcSerializer.decodeKey(name),
+        rpcSerializer.decodeVersion(updateTime),
+        hasCommittedMutations
+            ? Document.DocumentState.COMMITTED_MUTATIONS
+            : Document.DocumentState.SYNCED,
+        new LazyDocumentData(serializedDocument));
+  }
+
   /**
    * Encodes a Document for local storage. This differs from the v1 RPC serializer for Documents in
    * that it preserves the updateTime, which is considered an output only value by the server.
@@ -198,7 +280,7 @@ public final class LocalSerializer {
         .setResumeToken(targetData.getResumeToken());
 
     Target target = targetData.getTarget();
-    if (target.isDocumentQuery()) {
+    if (target.isDocumentsTarget()) {
       result.setDocuments(rpcSerializer.encodeDocumentsTarget(target));
     } else {
       result.setQuery(rpcSerializer.encodeQueryTarget(target));
@@ -238,4 +320,21 @@ public final class LocalSerializer {
         lastLimboFreeSnapshotVersion,
         resumeToken);
   }
+
+  com.google.firebase.firestore.proto.TargetResults encodeTargetResults(TargetResults results) {
+    com.google.firebase.firestore.proto.TargetResults.Builder result =
+        com.google.firebase.firestore.proto.TargetResults.newBuilder();
+    for (DocumentKey key : results.getOrderedKeys()) {
+      result.addDocumentPaths(key.getPath().canonicalString());
+    }
+    return result.build();
+  }
+
+  TargetResults decodeTargetResults(com.google.firebase.firestore.proto.TargetResults proto) {
+    List<DocumentKey> orderedKeys = new ArrayList<>(proto.getDocumentPathsCount());
+    for (String path : proto.getDocumentPathsList()) {
+      orderedKeys.add(DocumentKey.fromPathString(path));
+    }
+    return new TargetResults(orderedKeys);
+  }
 }
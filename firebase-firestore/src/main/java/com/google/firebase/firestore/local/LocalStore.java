@@ -29,6 +29,7 @@ import com.google.firebase.firestore.core.Target;
 import com.google.firebase.firestore.core.TargetIdGenerator;
 import com.google.firebase.firestore.model.Document;
 import com.google.firebase.firestore.model.DocumentKey;
+import com.google.firebase.firestore.model.DocumentSet;
 import com.google.firebase.firestore.model.MaybeDocument;
 import com.google.firebase.firestore.model.NoDocument;
 import com.google.firebase.firestore.model.ObjectValue;
@@ -43,6 +44,7 @@ import com.google.firebase.firestore.remote.TargetChange;
 import com.google.firebase.firestore.util.Logger;
 import com.google.protobuf.ByteString;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -130,7 +132,27 @@ public final class LocalStore {
   /** Used to generate targetIds for queries tracked locally. */
   private final TargetIdGenerator targetIdGenerator;
 
+  /** Whether writes are combined with the last batch in the queue if it hasn't been sent yet. */
+  private final boolean pendingWriteCompactionEnabled;
+
+  /**
+   * The highest batch ID returned by getNextMutationBatch(). Batches up to this ID may have been
+   * sent to the backend and must not be modified.
+   */
+  private int highestBatchIdForWrite = MutationBatch.UNKNOWN;
+
+  /** Whether the current user's mutation queue has been started. */
+  private boolean mutationQueueStarted;
+
   public LocalStore(Persistence persistence, QueryEngine queryEngine, User initialUser) {
+    this(persistence, queryEngine, initialUser, /* pendingWriteCompactionEnabled= */ false);
+  }
+
+  public LocalStore(
+      Persistence persistence,
+      QueryEngine queryEngine,
+      User initialUser,
+      boolean pendingWriteCompactionEnabled) {
     hardAssert(
         persistence.isStarted(), "LocalStore was passed an unstarted persistence implementation");
     this.persistence = persistence;
@@ -139,7 +161,11 @@ public final class LocalStore {
     mutationQueue = persistence.getMutationQueue(initialUser);
     remoteDocuments = persistence.getRemoteDocumentCache();
     localDocuments =
-        new LocalDocumentsView(remoteDocuments, mutationQueue, persistence.getIndexManager());
+        new LocalDocumentsView(
+            remoteDocuments,
+            mutationQueue,
+            persistence.getDocumentOverlayCache(initialUser),
+            persistence.getIndexManager());
 
     this.queryEngine = queryEngine;
     queryEngine.setLocalDocumentsView(localDocuments);
@@ -149,10 +175,26 @@ public final class LocalStore {
 
     queryDataByTarget = new SparseArray<>();
     targetIdByTarget = new HashMap<>();
+    this.pendingWriteCompactionEnabled = pendingWriteCompactionEnabled;
   }
 
   public void start() {
-    startMutationQueue();
+    start(/* deferMutationQueueStart= */ false);
+  }
+
+  /**
+   * Starts the LocalStore.
+   *
+   * @param deferMutationQueueStart Whether to start the mutation queue only once it is needed to
+   *     add, acknowledge or send mutation batches, or when {@link #ensureMutationQueueStarted} is
+   *     called. Starting the mutation queue reads the state of the mutation queues of all users.
+   */
+  public void start(boolean deferMutationQueueStart) {
+    if (deferMutationQueueStart) {
+      persistence.runTransaction("Start overlays", () -> localDocuments.startOverlays());
+    } else {
+      startMutationQueue();
+    }
   }
 
   private void startMutationQueue() {
@@ -160,7 +202,23 @@ public final class LocalStore {
         "Start MutationQueue",
         () -> {
           mutationQueue.start();
+          localDocuments.startOverlays();
         });
+    mutationQueueStarted = true;
+  }
+
+  /**
+   * Starts the mutation queue if its start was deferred.
+   *
+   * @return Whether the mutation queue was started by this call.
+   */
+  public boolean ensureMutationQueueStarted() {
+    if (mutationQueueStarted) {
+      return false;
+    }
+    persistence.runTransaction("Start deferred MutationQueue", () -> mutationQueue.start());
+    mutationQueueStarted = true;
+    return true;
   }
 
   // PORTING NOTE: no shutdown for LocalStore or persistence components on Android.
@@ -170,15 +228,20 @@ public final class LocalStore {
     List<MutationBatch> oldBatches = mutationQueue.getAllMutationBatches();
 
     mutationQueue = persistence.getMutationQueue(user);
-    startMutationQueue();
-
-    List<MutationBatch> newBatches = mutationQueue.getAllMutationBatches();
 
     // Recreate our LocalDocumentsView using the new MutationQueue.
     localDocuments =
-        new LocalDocumentsView(remoteDocuments, mutationQueue, persistence.getIndexManager());
+        new LocalDocumentsView(
+            remoteDocuments,
+            mutationQueue,
+            persistence.getDocumentOverlayCache(user),
+            persistence.getIndexManager());
     queryEngine.setLocalDocumentsView(localDocuments);
 
+    startMutationQueue();
+
+    List<MutationBatch> newBatches = mutationQueue.getAllMutationBatches();
+
     // Union the old/new changed keys.
     ImmutableSortedSet<DocumentKey> changedKeys = DocumentKey.emptyKeySet();
     for (List<MutationBatch> batches : asList(oldBatches, newBatches)) {
@@ -195,6 +258,7 @@ public final class LocalStore {
 
   /** Accepts locally generated Mutations and commits them to storage. */
   public LocalWriteResult writeLocally(List<Mutation> mutations) {
+    ensureMutationQueueStarted();
     Timestamp localWriteTime = Timestamp.now();
 
     // TODO: Call queryEngine.handleDocumentChange() appropriately.
@@ -212,6 +276,22 @@ public final class LocalStore {
           ImmutableSortedMap<DocumentKey, MaybeDocument> existingDocuments =
               localDocuments.getDocuments(keys);
 
+          MutationBatch squashedBatch = squashIntoLastBatch(mutations);
+          if (squashedBatch != null) {
+            // Applies only the new mutations, since the existing documents already include the
+            // mutations of the last batch.
+            MutationBatch newMutations =
+                new MutationBatch(
+                    squashedBatch.getBatchId(),
+                    localWriteTime,
+                    Collections.emptyList(),
+                    mutations);
+            localDocuments.addOverlays(newMutations);
+            ImmutableSortedMap<DocumentKey, MaybeDocument> changedDocuments =
+                newMutations.applyToLocalDocumentSet(existingDocuments);
+            return new LocalWriteResult(squashedBatch.getBatchId(), changedDocuments);
+          }
+
           // For non-idempotent mutations (such as `FieldValue.increment()`), we record the base
           // state in a separate patch mutation. This is later used to guarantee consistent values
           // and prevents flicker even if the backend sends us an update that already includes our
@@ -234,12 +314,47 @@ public final class LocalStore {
 
           MutationBatch batch =
               mutationQueue.addMutationBatch(localWriteTime, baseMutations, mutations);
+          localDocuments.addOverlays(batch);
           ImmutableSortedMap<DocumentKey, MaybeDocument> changedDocuments =
               batch.applyToLocalDocumentSet(existingDocuments);
           return new LocalWriteResult(batch.getBatchId(), changedDocuments);
         });
   }
 
+  /**
+   * Combines the given mutations with the last batch in the mutation queue if compaction is
+   * enabled, the batch hasn't been handed to the RemoteStore yet and the mutations can be squashed
+   * into it.
+   *
+   * @return The updated batch, or null if the mutations need to be added in a new batch.
+   */
+  @Nullable
+  private MutationBatch squashIntoLastBatch(List<Mutation> mutations) {
+    if (!pendingWriteCompactionEnabled) {
+      return null;
+    }
+
+    int lastBatchId = mutationQueue.getHighestUnacknowledgedBatchId();
+    if (lastBatchId == MutationBatch.UNKNOWN || lastBatchId <= highestBatchIdForWrite) {
+      return null;
+    }
+
+    MutationBatch lastBatch = mutationQueue.lookupMutationBatch(lastBatchId);
+    List<Mutation> squashedMutations = lastBatch.squash(mutations);
+    if (squashedMutations == null) {
+      return null;
+    }
+
+    MutationBatch squashedBatch =
+        new MutationBatch(
+            lastBatchId,
+            lastBatch.getLocalWriteTime(),
+            lastBatch.getBaseMutations(),
+            squashedMutations);
+    mutationQueue.replaceLastMutationBatch(squashedBatch);
+    return squashedBatch;
+  }
+
   /**
    * Acknowledges the given batch.
    *
@@ -257,12 +372,14 @@ public final class LocalStore {
    */
   public ImmutableSortedMap<DocumentKey, MaybeDocument> acknowledgeBatch(
       MutationBatchResult batchResult) {
+    ensureMutationQueueStarted();
     return persistence.runTransaction(
         "Acknowledge batch",
         () -> {
           MutationBatch batch = batchResult.getBatch();
           mutationQueue.acknowledgeBatch(batch, batchResult.getStreamToken());
           applyWriteToRemoteDocuments(batchResult);
+          localDocuments.recalculateOverlays(batch.getKeys());
           mutationQueue.performConsistencyCheck();
           return localDocuments.getDocuments(batch.getKeys());
         });
@@ -275,6 +392,7 @@ public final class LocalStore {
    * @return The resulting (modified) documents.
    */
   public ImmutableSortedMap<DocumentKey, MaybeDocument> rejectBatch(int batchId) {
+    ensureMutationQueueStarted();
     // TODO: Call queryEngine.handleDocumentChange() appropriately.
 
     return persistence.runTransaction(
@@ -284,6 +402,7 @@ public final class LocalStore {
           hardAssert(toReject != null, "Attempt to reject nonexistent batch!");
 
           mutationQueue.removeMutationBatch(toReject);
+          localDocuments.recalculateOverlays(toReject.getKeys());
           mutationQueue.performConsistencyCheck();
           return localDocuments.getDocuments(toReject.getKeys());
         });
@@ -299,6 +418,7 @@ public final class LocalStore {
 
   /** Returns the last recorded stream token for the current user. */
   public ByteString getLastStreamToken() {
+    ensureMutationQueueStarted();
     return mutationQueue.getLastStreamToken();
   }
 
@@ -311,6 +431,7 @@ public final class LocalStore {
    *     clear the current value.
    */
   public void setLastStreamToken(ByteString streamToken) {
+    ensureMutationQueueStarted();
     persistence.runTransaction(
         "Set stream token", () -> mutationQueue.setLastStreamToken(streamToken));
   }
@@ -430,6 +551,7 @@ public final class LocalStore {
             targetCache.setLastRemoteSnapshotVersion(remoteVersion);
           }
 
+          localDocuments.handleRemoteDocumentChanges(changedDocs.keySet());
           return localDocuments.getLocalViewOfDocuments(changedDocs);
         });
   }
@@ -500,6 +622,17 @@ public final class LocalStore {
               TargetData updatedTargetData =
                   targetData.withLastLimboFreeSnapshotVersion(lastLimboFreeSnapshotVersion);
               queryDataByTarget.put(targetId, updatedTargetData);
+
+              // Store the order of the view's documents, which speeds up sorting the results when
+              // the query is executed again (even after a restart).
+              DocumentSet syncedDocuments = viewChange.getSyncedDocuments();
+              if (syncedDocuments != null) {
+                List<DocumentKey> orderedKeys = new ArrayList<>(syncedDocuments.size());
+                for (Document document : syncedDocuments) {
+                  orderedKeys.add(document.getKey());
+                }
+                targetCache.setTargetResults(targetId, new TargetResults(orderedKeys));
+              }
             }
           }
         });
@@ -512,7 +645,11 @@ public final class LocalStore {
    * @return The next mutation or null if there wasn't one.
    */
   public @Nullable MutationBatch getNextMutationBatch(int afterBatchId) {
-    return mutationQueue.getNextMutationBatchAfterBatchId(afterBatchId);
+    MutationBatch batch = mutationQueue.getNextMutationBatchAfterBatchId(afterBatchId);
+    if (batch != null) {
+      highestBatchIdForWrite = Math.max(highestBatchIdForWrite, batch.getBatchId());
+    }
+    return batch;
   }
 
   /** Returns the current value of a document with a given key, or null if not found. */
@@ -621,10 +758,14 @@ public final class LocalStore {
     TargetData targetData = getTargetData(query.toTarget());
     SnapshotVersion lastLimboFreeSnapshotVersion = SnapshotVersion.NONE;
     ImmutableSortedSet<DocumentKey> remoteKeys = DocumentKey.emptyKeySet();
+    TargetResults targetResults = null;
 
     if (targetData != null) {
       lastLimboFreeSnapshotVersion = targetData.getLastLimboFreeSnapshotVersion();
       remoteKeys = this.targetCache.getMatchingKeysForTargetId(targetData.getTargetId());
+      if (usePreviousResults) {
+        targetResults = this.targetCache.getTargetResults(targetData.getTargetId());
+      }
     }
 
     ImmutableSortedMap<DocumentKey, Document> documents =
@@ -632,7 +773,8 @@ public final class LocalStore {
             query,
             usePreviousResults ? lastLimboFreeSnapshotVersion : SnapshotVersion.NONE,
             usePreviousResults ? remoteKeys : DocumentKey.emptyKeySet());
-    return new QueryResult(documents, remoteKeys);
+    return new QueryResult(
+        documents, remoteKeys, targetResults != null ? targetResults.getOrderedKeys() : null);
   }
 
   /**
@@ -673,4 +815,22 @@ public final class LocalStore {
     return persistence.runTransaction(
         "Collect garbage", () -> garbageCollector.collect(queryDataByTarget));
   }
+
+  /**
+   * Returns the approximate sizes of the cached documents and targets. Persistence that doesn't use
+   * LRU garbage collection doesn't track sizes and returns empty sizes.
+   */
+  public CacheSizes getCacheSizes() {
+    ReferenceDelegate referenceDelegate = persistence.getReferenceDelegate();
+    if (!(referenceDelegate instanceof LruDelegate)) {
+      return CacheSizes.Empty();
+    }
+    return persistence.runTransaction(
+        "Get cache sizes", () -> ((LruDelegate) referenceDelegate).getCacheSizes());
+  }
+
+  public LruGarbageCollector.Results collectGarbageSlice(LruGarbageCollector garbageCollector) {
+    return persistence.runTransaction(
+        "Collect garbage slice", () -> garbageCollector.collectSlice(queryDataByTarget));
+  }
 }
@@ -14,10 +14,12 @@
 
 package com.google.firebase.firestore.local;
 
+import androidx.annotation.Nullable;
 import com.google.firebase.database.collection.ImmutableSortedSet;
 import com.google.firebase.firestore.core.DocumentViewChange;
 import com.google.firebase.firestore.core.ViewSnapshot;
 import com.google.firebase.firestore.model.DocumentKey;
+import com.google.firebase.firestore.model.DocumentSet;
 import java.util.ArrayList;
 
 /**
@@ -49,7 +51,43 @@ public final class LocalViewChanges {
       }
     }
 
-    return new LocalViewChanges(targetId, snapshot.isFromCache(), addedKeys, removedKeys);
+    // The results only need to be stored again if the order or membership of the view's documents
+    // changed since they were last stored. Views that just became synced might not have any
+    // changes, but their results were not stored while they were still from cache.
+    DocumentSet syncedDocuments =
+        !snapshot.isFromCache() && (snapshot.didSyncStateChange() || orderChanged(snapshot))
+            ? snapshot.getDocuments()
+            : null;
+
+    return new LocalViewChanges(
+        targetId, snapshot.isFromCache(), addedKeys, removedKeys, syncedDocuments);
+  }
+
+  /**
+   * Returns whether documents were added to or removed from the view, or whether a modified
+   * document moved to a different position.
+   */
+  private static boolean orderChanged(ViewSnapshot snapshot) {
+    for (DocumentViewChange docChange : snapshot.getChanges()) {
+      switch (docChange.getType()) {
+        case ADDED:
+        case REMOVED:
+          return true;
+
+        case MODIFIED:
+          // Without additions and removals, a document that keeps its index keeps its neighbors.
+          DocumentKey key = docChange.getDocument().getKey();
+          if (snapshot.getOldDocuments().indexOf(key) != snapshot.getDocuments().indexOf(key)) {
+            return true;
+          }
+          break;
+
+        default:
+          // Metadata changes don't affect the order.
+          break;
+      }
+    }
+    return false;
   }
 
   private final int targetId;
@@ -58,15 +96,27 @@ public final class LocalViewChanges {
   private final ImmutableSortedSet<DocumentKey> added;
   private final ImmutableSortedSet<DocumentKey> removed;
 
+  @Nullable private final DocumentSet syncedDocuments;
+
   public LocalViewChanges(
       int targetId,
       boolean fromCache,
       ImmutableSortedSet<DocumentKey> added,
       ImmutableSortedSet<DocumentKey> removed) {
+    this(targetId, fromCache, added, removed, null);
+  }
+
+  public LocalViewChanges(
+      int targetId,
+      boolean fromCache,
+      ImmutableSortedSet<DocumentKey> added,
+      ImmutableSortedSet<DocumentKey> removed,
+      @Nullable DocumentSet syncedDocuments) {
     this.targetId = targetId;
     this.fromCache = fromCache;
     this.added = added;
     this.removed = removed;
+    this.syncedDocuments = syncedDocuments;
   }
 
   public int getTargetId() {
@@ -84,4 +134,13 @@ public final class LocalViewChanges {
   public ImmutableSortedSet<DocumentKey> getRemoved() {
     return removed;
   }
+
+  /**
+   * Returns the documents of a synced view in the order of its query, if their order or membership
+   * changed since the view's results were last stored. Returns null otherwise.
+   */
+  @Nullable
+  public DocumentSet getSyncedDocuments() {
+    return syncedDocuments;
+  }
 }
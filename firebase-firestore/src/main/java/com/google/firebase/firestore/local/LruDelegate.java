@@ -40,16 +40,22 @@ public interface LruDelegate {
   int removeTargets(long upperBound, SparseArray<?> activeTargetIds);
 
   /**
-   * Removes all unreferenced documents from the cache that have a sequence number less than or
-   * equal to the given sequence number.
+   * Removes unreferenced documents from the cache that have a sequence number less than or equal to
+   * the given sequence number, examining at most `limit` documents. Documents that are kept because
+   * they are pinned are not examined again by later calls with the same upper bound.
    *
-   * @return the number of documents removed.
+   * @param removedDocumentSizes receives the approximate size in bytes of each removed document.
+   * @return the number of documents examined. A result lower than `limit` means that there are no
+   *     documents left to examine.
    */
-  int removeOrphanedDocuments(long upperBound);
+  int removeOrphanedDocuments(long upperBound, int limit, Consumer<Long> removedDocumentSizes);
 
   /** Access to the underlying LRU Garbage collector instance. */
   LruGarbageCollector getGarbageCollector();
 
   /** Return the size of the cache in bytes. */
   long getByteSize();
+
+  /** Returns the size of the cached documents of each collection and the size of the targets. */
+  CacheSizes getCacheSizes();
 }
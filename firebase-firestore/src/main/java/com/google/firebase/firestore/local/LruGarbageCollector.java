@@ -19,18 +19,36 @@ import androidx.annotation.Nullable;
 import com.google.firebase.firestore.FirebaseFirestoreSettings;
 import com.google.firebase.firestore.core.ListenSequence;
 import com.google.firebase.firestore.util.AsyncQueue;
+import com.google.firebase.firestore.util.Consumer;
 import com.google.firebase.firestore.util.Logger;
 import java.util.Comparator;
 import java.util.Locale;
 import java.util.PriorityQueue;
 import java.util.concurrent.TimeUnit;
 
-/** Implements the steps for LRU garbage collection. */
+/**
+ * Implements the steps for LRU garbage collection.
+ *
+ * <p>A collection can either run as a single pass ({@link #collect}) or incrementally in slices
+ * ({@link #collectSlice}). The first slice of an incremental collection determines the upper bound
+ * and removes targets, and each following slice removes a bounded number of orphaned documents, so
+ * that other operations on the AsyncQueue can run in between.
+ */
 public class LruGarbageCollector {
   /** How long we wait to try running LRU GC after SDK initialization. */
   private static final long INITIAL_GC_DELAY_MS = TimeUnit.MINUTES.toMillis(1);
   /** Minimum amount of time between GC checks, after the first one. */
   private static final long REGULAR_GC_DELAY_MS = TimeUnit.MINUTES.toMillis(5);
+  /** Amount of time between the slices of an incremental collection. */
+  private static final long SLICE_GC_DELAY_MS = 100;
+
+  /**
+   * The batch size for orphaned document GC in `removeOrphanedDocuments()`.
+   *
+   * <p>This addresses https://github.com/firebase/firebase-android-sdk/issues/706, where a customer
+   * reported that LRU GC hit a CursorWindow size limit during orphaned document removal.
+   */
+  static final int REMOVE_ORPHANED_DOCUMENTS_BATCH_SIZE = 100;
 
   public static class Params {
     private static final long COLLECTION_DISABLED = FirebaseFirestoreSettings.CACHE_SIZE_UNLIMITED;
@@ -46,29 +64,45 @@ public class LruGarbageCollector {
 
     private static final int DEFAULT_MAX_SEQUENCE_NUMBERS_TO_COLLECT = 1000;
 
+    /**
+     * The number of orphaned documents examined by each slice of an incremental collection. A
+     * slice of this size takes a few milliseconds, even on slower devices.
+     */
+    private static final int DEFAULT_DOCUMENTS_PER_SLICE = 100;
+
+    /** Value for `documentsPerSlice` that makes the scheduler run each collection in one pass. */
+    static final int INCREMENTAL_COLLECTION_DISABLED = 0;
+
     public static Params Default() {
       return new Params(
           DEFAULT_CACHE_SIZE_BYTES,
           DEFAULT_COLLECTION_PERCENTILE,
-          DEFAULT_MAX_SEQUENCE_NUMBERS_TO_COLLECT);
+          DEFAULT_MAX_SEQUENCE_NUMBERS_TO_COLLECT,
+          DEFAULT_DOCUMENTS_PER_SLICE);
     }
 
     public static Params Disabled() {
-      return new Params(COLLECTION_DISABLED, 0, 0);
+      return new Params(COLLECTION_DISABLED, 0, 0, INCREMENTAL_COLLECTION_DISABLED);
     }
 
     public static Params WithCacheSizeBytes(long cacheSizeBytes) {
-      return new Params(cacheSizeBytes, 10, 1000);
+      return new Params(cacheSizeBytes, 10, 1000, DEFAULT_DOCUMENTS_PER_SLICE);
     }
 
     final long minBytesThreshold;
     final int percentileToCollect;
     final int maximumSequenceNumbersToCollect;
+    final int documentsPerSlice;
 
-    Params(long minBytesThreshold, int percentileToCollect, int maximumSequenceNumbersToCollect) {
+    Params(
+        long minBytesThreshold,
+        int percentileToCollect,
+        int maximumSequenceNumbersToCollect,
+        int documentsPerSlice) {
       this.minBytesThreshold = minBytesThreshold;
       this.percentileToCollect = percentileToCollect;
       this.maximumSequenceNumbersToCollect = maximumSequenceNumbersToCollect;
+      this.documentsPerSlice = documentsPerSlice;
     }
   }
 
@@ -77,17 +111,26 @@ public class LruGarbageCollector {
     private final int sequenceNumbersCollected;
     private final int targetsRemoved;
     private final int documentsRemoved;
+    private final long bytesReclaimed;
+    private final long durationMs;
 
     static Results DidNotRun() {
-      return new Results(/* hasRun= */ false, 0, 0, 0);
+      return new Results(/* hasRun= */ false, 0, 0, 0, 0, 0);
     }
 
     Results(
-        boolean hasRun, int sequenceNumbersCollected, int targetsRemoved, int documentsRemoved) {
+        boolean hasRun,
+        int sequenceNumbersCollected,
+        int targetsRemoved,
+        int documentsRemoved,
+        long bytesReclaimed,
+        long durationMs) {
       this.hasRun = hasRun;
       this.sequenceNumbersCollected = sequenceNumbersCollected;
       this.targetsRemoved = targetsRemoved;
       this.documentsRemoved = documentsRemoved;
+      this.bytesReclaimed = bytesReclaimed;
+      this.durationMs = durationMs;
     }
 
     public boolean hasRun() {
@@ -105,6 +148,16 @@ public class LruGarbageCollector {
     public int getDocumentsRemoved() {
       return documentsRemoved;
     }
+
+    /** Returns the approximate size in bytes of the removed documents. */
+    public long getBytesReclaimed() {
+      return bytesReclaimed;
+    }
+
+    /** Returns how long the collection, or the slice of an incremental collection, took. */
+    public long getDurationMs() {
+      return durationMs;
+    }
   }
 
   /**
@@ -137,13 +190,22 @@ public class LruGarbageCollector {
     }
 
     private void scheduleGC() {
-      long delay = hasRun ? REGULAR_GC_DELAY_MS : INITIAL_GC_DELAY_MS;
+      long delay;
+      if (hasPendingSlices()) {
+        delay = SLICE_GC_DELAY_MS;
+      } else {
+        delay = hasRun ? REGULAR_GC_DELAY_MS : INITIAL_GC_DELAY_MS;
+      }
       gcTask =
           asyncQueue.enqueueAfterDelay(
               AsyncQueue.TimerId.GARBAGE_COLLECTION,
               delay,
               () -> {
-                localStore.collectGarbage(LruGarbageCollector.this);
+                if (params.documentsPerSlice == Params.INCREMENTAL_COLLECTION_DISABLED) {
+                  localStore.collectGarbage(LruGarbageCollector.this);
+                } else {
+                  localStore.collectGarbageSlice(LruGarbageCollector.this);
+                }
                 hasRun = true;
                 scheduleGC();
               });
@@ -153,6 +215,12 @@ public class LruGarbageCollector {
   private final LruDelegate delegate;
   private final Params params;
 
+  /**
+   * The upper bound of the incremental collection that is in progress, or INVALID if the next
+   * slice starts a new collection.
+   */
+  private long pendingUpperBound = ListenSequence.INVALID;
+
   LruGarbageCollector(LruDelegate delegate, Params params) {
     this.delegate = delegate;
     this.params = params;
@@ -225,13 +293,102 @@ public class LruGarbageCollector {
    * otherwise pinned.
    */
   int removeOrphanedDocuments(long upperBound) {
-    return delegate.removeOrphanedDocuments(upperBound);
+    return removeOrphanedDocuments(upperBound, size -> {});
+  }
+
+  private int removeOrphanedDocuments(long upperBound, Consumer<Long> removedDocumentSizes) {
+    int[] count = new int[1];
+    int documentsExamined;
+    do {
+      documentsExamined =
+          delegate.removeOrphanedDocuments(
+              upperBound,
+              REMOVE_ORPHANED_DOCUMENTS_BATCH_SIZE,
+              size -> {
+                count[0]++;
+                removedDocumentSizes.accept(size);
+              });
+    } while (documentsExamined == REMOVE_ORPHANED_DOCUMENTS_BATCH_SIZE);
+    return count[0];
   }
 
   Results collect(SparseArray<?> activeTargetIds) {
+    if (!shouldCollect()) {
+      return Results.DidNotRun();
+    } else {
+      return runGarbageCollection(activeTargetIds);
+    }
+  }
+
+  /**
+   * Runs the next slice of an incremental collection.
+   *
+   * <p>The first slice checks the cache size, determines the upper bound of the collection and
+   * removes targets. Each following slice examines at most `documentsPerSlice` orphaned documents.
+   * The collection ends early once the cache size drops below the threshold. Slices should be run
+   * until {@link #hasPendingSlices} returns false.
+   */
+  Results collectSlice(SparseArray<?> activeTargetIds) {
+    long startTs = System.currentTimeMillis();
+
+    if (pendingUpperBound == ListenSequence.INVALID) {
+      if (!shouldCollect()) {
+        return Results.DidNotRun();
+      }
+
+      int sequenceNumbers = getSequenceNumbersToCollect();
+      long upperBound = getNthSequenceNumber(sequenceNumbers);
+      int numTargetsRemoved = removeTargets(upperBound, activeTargetIds);
+      pendingUpperBound = upperBound;
+
+      long durationMs = System.currentTimeMillis() - startTs;
+      Logger.debug(
+          "LruGarbageCollector",
+          "Started incremental collection of %d sequence numbers; removed %d targets in %dms",
+          sequenceNumbers,
+          numTargetsRemoved,
+          durationMs);
+      return new Results(/* hasRun= */ true, sequenceNumbers, numTargetsRemoved, 0, 0, durationMs);
+    }
+
+    long[] bytesReclaimed = new long[1];
+    int[] numDocumentsRemoved = new int[1];
+    int documentsExamined =
+        delegate.removeOrphanedDocuments(
+            pendingUpperBound,
+            params.documentsPerSlice,
+            size -> {
+              numDocumentsRemoved[0]++;
+              bytesReclaimed[0] += size;
+            });
+    if (documentsExamined < params.documentsPerSlice) {
+      pendingUpperBound = ListenSequence.INVALID;
+    } else if (getByteSize() < params.minBytesThreshold) {
+      // There is no need to remove more documents once the cache fits its target size again.
+      Logger.debug("LruGarbageCollector", "Incremental collection reached the target size");
+      pendingUpperBound = ListenSequence.INVALID;
+    }
+
+    long durationMs = System.currentTimeMillis() - startTs;
+    Logger.debug(
+        "LruGarbageCollector",
+        "Removed %d documents (%d bytes) in %dms",
+        numDocumentsRemoved[0],
+        bytesReclaimed[0],
+        durationMs);
+    return new Results(
+        /* hasRun= */ true, 0, 0, numDocumentsRemoved[0], bytesReclaimed[0], durationMs);
+  }
+
+  /** Returns whether the incremental collection that is in progress has slices left to run. */
+  boolean hasPendingSlices() {
+    return pendingUpperBound != ListenSequence.INVALID;
+  }
+
+  private boolean shouldCollect() {
     if (params.minBytesThreshold == Params.COLLECTION_DISABLED) {
       Logger.debug("LruGarbageCollector", "Garbage collection skipped; disabled");
-      return Results.DidNotRun();
+      return false;
     }
 
     long cacheSize = getByteSize();
@@ -242,14 +399,13 @@ public class LruGarbageCollector {
               + cacheSize
               + " is lower than threshold "
               + params.minBytesThreshold);
-      return Results.DidNotRun();
-    } else {
-      return runGarbageCollection(activeTargetIds);
+      return false;
     }
+
+    return true;
   }
 
-  private Results runGarbageCollection(SparseArray<?> liveTargetIds) {
-    long startTs = System.currentTimeMillis();
+  private int getSequenceNumbersToCollect() {
     int sequenceNumbers = calculateQueryCount(params.percentileToCollect);
     // Cap at the configured max
     if (sequenceNumbers > params.maximumSequenceNumbersToCollect) {
@@ -261,6 +417,12 @@ public class LruGarbageCollector {
               + sequenceNumbers);
       sequenceNumbers = params.maximumSequenceNumbersToCollect;
     }
+    return sequenceNumbers;
+  }
+
+  private Results runGarbageCollection(SparseArray<?> liveTargetIds) {
+    long startTs = System.currentTimeMillis();
+    int sequenceNumbers = getSequenceNumbersToCollect();
     long countedTargetsTs = System.currentTimeMillis();
 
     long upperBound = getNthSequenceNumber(sequenceNumbers);
@@ -269,7 +431,9 @@ public class LruGarbageCollector {
     int numTargetsRemoved = removeTargets(upperBound, liveTargetIds);
     long removedTargetsTs = System.currentTimeMillis();
 
-    int numDocumentsRemoved = removeOrphanedDocuments(upperBound);
+    long[] bytesReclaimed = new long[1];
+    int numDocumentsRemoved =
+        removeOrphanedDocuments(upperBound, size -> bytesReclaimed[0] += size);
     long removedDocumentsTs = System.currentTimeMillis();
 
     if (Logger.isDebugEnabled()) {
@@ -290,13 +454,20 @@ public class LruGarbageCollector {
       desc +=
           String.format(
               Locale.ROOT,
-              "\tRemoved %d documents in %dms\n",
+              "\tRemoved %d documents (%d bytes) in %dms\n",
               numDocumentsRemoved,
+              bytesReclaimed[0],
               (removedDocumentsTs - removedTargetsTs));
       desc += String.format(Locale.ROOT, "Total Duration: %dms", (removedDocumentsTs - startTs));
       Logger.debug("LruGarbageCollector", desc);
     }
-    return new Results(/* hasRun= */ true, sequenceNumbers, numTargetsRemoved, numDocumentsRemoved);
+    return new Results(
+        /* hasRun= */ true,
+        sequenceNumbers,
+        numTargetsRemoved,
+        numDocumentsRemoved,
+        bytesReclaimed[0],
+        removedDocumentsTs - startTs);
   }
 
   long getByteSize() {
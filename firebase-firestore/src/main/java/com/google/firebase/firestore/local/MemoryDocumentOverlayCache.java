@@ -0,0 +1,77 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.local;
+
+import androidx.annotation.Nullable;
+import com.google.firebase.firestore.model.DocumentKey;
+import com.google.firebase.firestore.model.MaybeDocument;
+import com.google.firebase.firestore.model.ResourcePath;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * In-memory document overlays of a single user. A new instance is created whenever a user becomes
+ * active, so there are no overlays of other users to remove.
+ */
+final class MemoryDocumentOverlayCache implements DocumentOverlayCache {
+  /** The overlays, sorted by key to allow prefix scans of a collection. */
+  private final TreeMap<DocumentKey, MaybeDocument> overlays = new TreeMap<>();
+
+  @Override
+  public void start() {}
+
+  @Override
+  public boolean isEmpty() {
+    return overlays.isEmpty();
+  }
+
+  @Override
+  public Map<DocumentKey, MaybeDocument> getOverlays(Iterable<DocumentKey> documentKeys) {
+    Map<DocumentKey, MaybeDocument> result = new HashMap<>();
+    for (DocumentKey key : documentKeys) {
+      if (overlays.containsKey(key)) {
+        result.put(key, overlays.get(key));
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public Map<DocumentKey, MaybeDocument> getOverlays(ResourcePath collectionPath) {
+    Map<DocumentKey, MaybeDocument> result = new HashMap<>();
+    DocumentKey prefix = DocumentKey.fromPath(collectionPath.append(""));
+    for (Map.Entry<DocumentKey, MaybeDocument> entry : overlays.tailMap(prefix).entrySet()) {
+      ResourcePath path = entry.getKey().getPath();
+      if (!collectionPath.isPrefixOf(path)) {
+        break;
+      }
+      if (path.length() == collectionPath.length() + 1) {
+        result.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public void saveOverlay(DocumentKey documentKey, @Nullable MaybeDocument localView) {
+    overlays.put(documentKey, localView);
+  }
+
+  @Override
+  public void removeOverlay(DocumentKey documentKey) {
+    overlays.remove(documentKey);
+  }
+}
@@ -20,6 +20,7 @@ import android.util.SparseArray;
 import com.google.firebase.firestore.core.ListenSequence;
 import com.google.firebase.firestore.model.DocumentKey;
 import com.google.firebase.firestore.model.MaybeDocument;
+import com.google.firebase.firestore.model.ResourcePath;
 import com.google.firebase.firestore.util.Consumer;
 import java.util.HashMap;
 import java.util.Map;
@@ -114,12 +115,19 @@ class MemoryLruReferenceDelegate implements ReferenceDelegate, LruDelegate {
   }
 
   @Override
-  public int removeOrphanedDocuments(long upperBound) {
+  public int removeOrphanedDocuments(
+      long upperBound, int limit, Consumer<Long> removedDocumentSizes) {
+    // Pinned documents are skipped without being counted, since they are never removed by later
+    // calls with the same upper bound.
     int count = 0;
     MemoryRemoteDocumentCache cache = persistence.getRemoteDocumentCache();
     for (MaybeDocument doc : cache.getDocuments()) {
+      if (count == limit) {
+        break;
+      }
       DocumentKey key = doc.getKey();
       if (!isPinned(key, upperBound)) {
+        removedDocumentSizes.accept((long) serializer.encodeMaybeDocument(doc).getSerializedSize());
         cache.remove(key);
         orphanedSequenceNumbers.remove(key);
         count++;
@@ -197,4 +205,18 @@ class MemoryLruReferenceDelegate implements ReferenceDelegate, LruDelegate {
     }
     return count;
   }
+
+  @Override
+  public CacheSizes getCacheSizes() {
+    Map<ResourcePath, Long> collectionByteSizes = new HashMap<>();
+    for (MaybeDocument doc : persistence.getRemoteDocumentCache().getDocuments()) {
+      ResourcePath collectionPath = doc.getKey().getPath().popLast();
+      long byteSize = serializer.encodeMaybeDocument(doc).getSerializedSize();
+      Long collectionByteSize = collectionByteSizes.get(collectionPath);
+      collectionByteSizes.put(
+          collectionPath, collectionByteSize != null ? collectionByteSize + byteSize : byteSize);
+    }
+    return new CacheSizes(
+        collectionByteSizes, persistence.getTargetCache().getByteSize(serializer));
+  }
 }
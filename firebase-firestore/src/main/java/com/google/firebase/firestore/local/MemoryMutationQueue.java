@@ -157,6 +157,20 @@ final class MemoryMutationQueue implements MutationQueue {
     return batch;
   }
 
+  @Override
+  public void replaceLastMutationBatch(MutationBatch batch) {
+    int lastIndex = queue.size() - 1;
+    hardAssert(
+        lastIndex >= 0 && queue.get(lastIndex).getBatchId() == batch.getBatchId(),
+        "Can only replace the last entry of the mutation queue");
+    hardAssert(
+        queue.get(lastIndex).getKeys().equals(batch.getKeys()),
+        "Replaced mutation batch must modify the same documents");
+
+    // The references by document key don't change since the batch modifies the same documents.
+    queue.set(lastIndex, batch);
+  }
+
   @Nullable
   @Override
   public MutationBatch lookupMutationBatch(int batchId) {
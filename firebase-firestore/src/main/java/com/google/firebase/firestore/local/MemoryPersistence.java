@@ -99,6 +99,11 @@ public final class MemoryPersistence extends Persistence {
     return queue;
   }
 
+  @Override
+  DocumentOverlayCache getDocumentOverlayCache(User user) {
+    return new MemoryDocumentOverlayCache();
+  }
+
   Iterable<MemoryMutationQueue> getMutationQueues() {
     return mutationQueues.values();
   }
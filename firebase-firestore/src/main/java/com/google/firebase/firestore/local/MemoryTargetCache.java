@@ -37,6 +37,9 @@ final class MemoryTargetCache implements TargetCache {
   /** A ordered bidirectional mapping between documents and the remote target IDs. */
   private final ReferenceSet references = new ReferenceSet();
 
+  /** Maps a target ID to the ordered results that were last stored for the target. */
+  private final SparseArray<TargetResults> targetResults = new SparseArray<>();
+
   /** The highest numbered target ID encountered. */
   private int highestTargetId;
 
@@ -107,6 +110,7 @@ final class MemoryTargetCache implements TargetCache {
   public void removeTargetData(TargetData targetData) {
     targets.remove(targetData.getTarget());
     references.removeReferencesForId(targetData.getTargetId());
+    targetResults.remove(targetData.getTargetId());
   }
 
   /**
@@ -125,6 +129,7 @@ final class MemoryTargetCache implements TargetCache {
       if (sequenceNumber <= upperBound && activeTargetIds.get(targetId) == null) {
         it.remove();
         removeMatchingKeysForTargetId(targetId);
+        targetResults.remove(targetId);
         removed++;
       }
     }
@@ -166,6 +171,17 @@ final class MemoryTargetCache implements TargetCache {
     return references.referencesForId(targetId);
   }
 
+  @Override
+  public void setTargetResults(int targetId, TargetResults results) {
+    targetResults.put(targetId, results);
+  }
+
+  @Nullable
+  @Override
+  public TargetResults getTargetResults(int targetId) {
+    return targetResults.get(targetId);
+  }
+
   @Override
   public boolean containsKey(DocumentKey key) {
     return references.containsKey(key);
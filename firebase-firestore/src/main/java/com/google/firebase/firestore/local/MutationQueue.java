@@ -55,6 +55,13 @@ interface MutationQueue {
   MutationBatch addMutationBatch(
       Timestamp localWriteTime, List<Mutation> baseMutations, List<Mutation> mutations);
 
+  /**
+   * Replaces the last mutation batch in this queue with the given batch, which must have the same
+   * batch ID and modify the same documents. Used to combine writes into a batch that hasn't been
+   * sent to the backend yet.
+   */
+  void replaceLastMutationBatch(MutationBatch batch);
+
   /** Loads the mutation batch with the given batchId. */
   @Nullable
   MutationBatch lookupMutationBatch(int batchId);
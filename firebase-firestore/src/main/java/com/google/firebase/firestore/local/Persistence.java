@@ -80,6 +80,12 @@ public abstract class Persistence {
    */
   abstract MutationQueue getMutationQueue(User user);
 
+  /**
+   * Returns a DocumentOverlayCache representing the persisted local view of the documents with
+   * pending mutations of the given user.
+   */
+  abstract DocumentOverlayCache getDocumentOverlayCache(User user);
+
   /** Creates a TargetCache representing the persisted cache of queries. */
   abstract TargetCache getTargetCache();
 
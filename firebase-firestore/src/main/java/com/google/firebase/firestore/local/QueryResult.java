@@ -14,21 +14,32 @@
 
 package com.google.firebase.firestore.local;
 
+import androidx.annotation.Nullable;
 import com.google.firebase.database.collection.ImmutableSortedMap;
 import com.google.firebase.database.collection.ImmutableSortedSet;
 import com.google.firebase.firestore.model.Document;
 import com.google.firebase.firestore.model.DocumentKey;
+import java.util.List;
 
 /** The result of executing a query against the local store. */
 public class QueryResult {
   private final ImmutableSortedMap<DocumentKey, Document> documents;
   private final ImmutableSortedSet<DocumentKey> remoteKeys;
+  @Nullable private final List<DocumentKey> previousOrder;
 
   public QueryResult(
       ImmutableSortedMap<DocumentKey, Document> documents,
       ImmutableSortedSet<DocumentKey> remoteKeys) {
+    this(documents, remoteKeys, null);
+  }
+
+  public QueryResult(
+      ImmutableSortedMap<DocumentKey, Document> documents,
+      ImmutableSortedSet<DocumentKey> remoteKeys,
+      @Nullable List<DocumentKey> previousOrder) {
     this.documents = documents;
     this.remoteKeys = remoteKeys;
+    this.previousOrder = previousOrder;
   }
 
   public ImmutableSortedMap<DocumentKey, Document> getDocuments() {
@@ -38,4 +49,14 @@ public class QueryResult {
   public ImmutableSortedSet<DocumentKey> getRemoteKeys() {
     return remoteKeys;
   }
+
+  /**
+   * Returns the keys of the documents that matched the query when it was last synced, in the order
+   * of the query, or null if they are not known. The order is only a hint, since documents may have
+   * changed since.
+   */
+  @Nullable
+  public List<DocumentKey> getPreviousOrder() {
+    return previousOrder;
+  }
 }
@@ -14,45 +14,61 @@
 
 package com.google.firebase.firestore.local;
 
-import com.google.firebase.firestore.auth.User;
+import static com.google.firebase.firestore.util.Assert.hardAssert;
+
 import com.google.firebase.firestore.core.IndexRange;
-import com.google.firebase.firestore.model.DocumentKey;
-import com.google.firebase.firestore.model.FieldPath;
 import com.google.firebase.firestore.model.ResourcePath;
-import com.google.firestore.v1.Value;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
- * A persisted "collection index" of all documents in the local cache (with mutations overlaid on
- * top of remote documents).
+ * Provides cursors over the "collection index" of all documents in the remote document cache.
+ *
+ * <p>The index itself is the {@code field_index} table, which is kept up to date by the remote
+ * document cache (see {@link SQLiteFieldIndex}). Mutations are not indexed, since the local view
+ * of mutated documents is computed by {@link LocalDocumentsView}.
  *
  * <p>NOTE: There is no in-memory implementation at this time.
  */
 public class SQLiteCollectionIndex {
 
   private final SQLitePersistence db;
-  private final String uid;
 
-  SQLiteCollectionIndex(SQLitePersistence persistence, User user) {
+  public SQLiteCollectionIndex(SQLitePersistence persistence) {
     this.db = persistence;
-    this.uid = user.isAuthenticated() ? user.getUid() : "";
   }
 
-  /** Adds the specified entry to the index. */
-  public void addEntry(FieldPath fieldPath, Value fieldValue, DocumentKey documentKey) {
-    throw new RuntimeException("Not yet implemented.");
-  }
-
-  /** Adds the specified entry to the index. */
-  public void removeEntry(FieldPath fieldPath, Value fieldValue, DocumentKey documentKey) {
-    throw new RuntimeException("Not yet implemented.");
+  /**
+   * Gets a cursor for the specified range of the index. Since index entries are lossy, some cursor
+   * results may not match the specified range, so the consumer must always post-filter the results.
+   */
+  public IndexCursor getCursor(ResourcePath collectionPath, IndexRange indexRange) {
+    return getCursor(
+        collectionPath, Collections.singletonList(Collections.singletonList(indexRange)));
   }
 
   /**
-   * Gets a forward or reverse cursor for the specified range of the index. Since index entries are
-   * lossy, some cursor results may not match the specified range, so the consumer must always
-   * post-filter the results.
+   * Gets a cursor over all documents in {@code collectionPath} that are contained in each of the
+   * given index scans, where every scan is a union of index ranges. Documents are returned in key
+   * order and each document is returned at most once. As with {@link #getCursor(ResourcePath,
+   * IndexRange)}, the consumer must post-filter the results.
    */
-  public IndexCursor getCursor(ResourcePath collectionPath, IndexRange indexRange) {
-    throw new RuntimeException("Not yet implemented.");
+  public IndexCursor getCursor(ResourcePath collectionPath, List<List<IndexRange>> indexScans) {
+    hardAssert(!indexScans.isEmpty(), "At least one index scan must be specified");
+
+    StringBuilder sql = new StringBuilder("SELECT DISTINCT document_path FROM (");
+    List<Object> args = new ArrayList<>();
+    for (int i = 0; i < indexScans.size(); ++i) {
+      if (i > 0) {
+        // Intersecting the scans only reads index entries, which is much cheaper than decoding
+        // and post-filtering the documents that would be excluded by the additional scans.
+        sql.append(" INTERSECT ");
+      }
+      SQLiteFieldIndex.appendDocumentPathSubquery(sql, args, collectionPath, indexScans.get(i));
+    }
+    sql.append(") ORDER BY document_path");
+
+    return new IndexCursor(db.query(sql.toString()).binding(args.toArray()).startQuery());
   }
 }
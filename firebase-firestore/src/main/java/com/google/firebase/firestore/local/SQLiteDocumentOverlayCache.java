@@ -0,0 +1,181 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.local;
+
+import static com.google.firebase.firestore.util.Assert.fail;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+import androidx.annotation.Nullable;
+import com.google.firebase.firestore.auth.User;
+import com.google.firebase.firestore.model.Document;
+import com.google.firebase.firestore.model.DocumentKey;
+import com.google.firebase.firestore.model.MaybeDocument;
+import com.google.firebase.firestore.model.ResourcePath;
+import com.google.firebase.firestore.util.Consumer;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** The document overlays of a specific user, backed by SQLite. */
+final class SQLiteDocumentOverlayCache implements DocumentOverlayCache {
+
+  static final String INSERT_OVERLAY =
+      "INSERT OR REPLACE INTO document_overlays "
+          + "(uid, path, collection_path, has_local_mutations, contents) "
+          + "VALUES (?, ?, ?, ?, ?)";
+
+  private final SQLitePersistence db;
+  private final LocalSerializer serializer;
+
+  /** The normalized uid (e.g. null => "") used in the uid column. */
+  private final String uid;
+
+  SQLiteDocumentOverlayCache(SQLitePersistence persistence, LocalSerializer serializer, User user) {
+    this.db = persistence;
+    this.serializer = serializer;
+    this.uid = user.isAuthenticated() ? user.getUid() : "";
+  }
+
+  @Override
+  public void start() {
+    db.execute("DELETE FROM document_overlays WHERE uid != ?", uid);
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return db.query("SELECT path FROM document_overlays WHERE uid = ? LIMIT 1")
+        .binding(uid)
+        .isEmpty();
+  }
+
+  @Override
+  public Map<DocumentKey, MaybeDocument> getOverlays(Iterable<DocumentKey> documentKeys) {
+    List<Object> args = new ArrayList<>();
+    for (DocumentKey key : documentKeys) {
+      args.add(EncodedPath.encode(key.getPath()));
+    }
+
+    Map<DocumentKey, MaybeDocument> results = new HashMap<>();
+    Consumer<Cursor> rowProcessor = row -> processOverlayRow(row, results);
+
+    if (db.useLookupTable(args.size())) {
+      db.withLookupKeys(
+          args,
+          () ->
+              db.query(
+                      "SELECT path, has_local_mutations, contents FROM document_overlays "
+                          + "WHERE uid = ? AND path IN ("
+                          + SQLitePersistence.LOOKUP_KEYS_SUBQUERY
+                          + ")")
+                  .binding(uid)
+                  .forEach(rowProcessor));
+      return results;
+    }
+
+    SQLitePersistence.LongQuery longQuery =
+        new SQLitePersistence.LongQuery(
+            db,
+            "SELECT path, has_local_mutations, contents FROM document_overlays "
+                + "WHERE uid = ? AND path IN (",
+            Collections.singletonList(uid),
+            args,
+            ")");
+
+    while (longQuery.hasMoreSubqueries()) {
+      longQuery.performNextSubquery().forEach(rowProcessor);
+    }
+
+    return results;
+  }
+
+  @Override
+  public Map<DocumentKey, MaybeDocument> getOverlays(ResourcePath collectionPath) {
+    Map<DocumentKey, MaybeDocument> results = new HashMap<>();
+    db.query(
+            "SELECT path, has_local_mutations, contents FROM document_overlays "
+                + "WHERE uid = ? AND collection_path = ?")
+        .binding(uid, EncodedPath.encode(collectionPath))
+        .forEach(row -> processOverlayRow(row, results));
+    return results;
+  }
+
+  @Override
+  public void saveOverlay(DocumentKey documentKey, @Nullable MaybeDocument localView) {
+    writeOverlay(db.prepare(INSERT_OVERLAY), serializer, uid, documentKey, localView);
+  }
+
+  /**
+   * Writes the overlay of a document using the given {@link #INSERT_OVERLAY} statement. Also used
+   * by SQLiteSchema to rebuild the overlays of existing mutations.
+   */
+  static void writeOverlay(
+      SQLiteStatement inserter,
+      LocalSerializer serializer,
+      String uid,
+      DocumentKey documentKey,
+      @Nullable MaybeDocument localView) {
+    boolean hasLocalMutations =
+        localView instanceof Document && ((Document) localView).hasLocalMutations();
+    SQLitePersistence.bind(
+        inserter,
+        new Object[] {
+          uid,
+          EncodedPath.encode(documentKey.getPath()),
+          EncodedPath.encode(documentKey.getPath().popLast()),
+          hasLocalMutations ? 1 : 0,
+          localView != null ? serializer.encodeMaybeDocument(localView).toByteArray() : null
+        });
+    inserter.executeInsert();
+    inserter.clearBindings();
+  }
+
+  @Override
+  public void removeOverlay(DocumentKey documentKey) {
+    db.execute(
+        "DELETE FROM document_overlays WHERE uid = ? AND path = ?",
+        uid,
+        EncodedPath.encode(documentKey.getPath()));
+  }
+
+  private void processOverlayRow(Cursor row, Map<DocumentKey, MaybeDocument> results) {
+    DocumentKey key = DocumentKey.fromPath(EncodedPath.decodeResourcePath(row.getString(0)));
+    MaybeDocument localView = row.isNull(2) ? null : decodeOverlay(row.getBlob(2));
+    if (row.getInt(1) != 0) {
+      // The local mutations state is not part of the serialized document.
+      Document document = (Document) localView;
+      localView =
+          new Document(
+              document.getKey(),
+              document.getVersion(),
+              document.getData(),
+              Document.DocumentState.LOCAL_MUTATIONS);
+    }
+    results.put(key, localView);
+  }
+
+  private MaybeDocument decodeOverlay(byte[] bytes) {
+    try {
+      return serializer.decodeMaybeDocument(
+          com.google.firebase.firestore.proto.MaybeDocument.parseFrom(
+              LocalSerializer.newAliasingInput(bytes)));
+    } catch (IOException e) {
+      throw fail("MaybeDocument failed to parse: %s", e);
+    }
+  }
+}
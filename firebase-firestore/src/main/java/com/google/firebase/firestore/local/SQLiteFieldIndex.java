@@ -0,0 +1,236 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.local;
+
+import android.database.sqlite.SQLiteStatement;
+import androidx.annotation.Nullable;
+import com.google.firebase.firestore.core.IndexRange;
+import com.google.firebase.firestore.model.Document;
+import com.google.firebase.firestore.model.DocumentKey;
+import com.google.firebase.firestore.model.FieldPath;
+import com.google.firebase.firestore.model.MaybeDocument;
+import com.google.firebase.firestore.model.ResourcePath;
+import com.google.firebase.firestore.model.Values;
+import com.google.firestore.v1.Value;
+import com.google.protobuf.Timestamp;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persisted index of the field values of all documents in the remote document cache. The index
+ * is used to serve filtered collection queries without decoding every document in the collection.
+ *
+ * <p>Each row in the {@code field_index} table maps a collection, a field path and a field value
+ * to a document that contains this value. Arrays are indexed both as a whole and per element (the
+ * latter is used for array-contains lookups), and nested maps are indexed for each nested field.
+ *
+ * <p>Index entries are lossy. Values are encoded so that SQLite's ordering never excludes a
+ * document that matches an index range, but a lookup may return documents that don't match the
+ * range. Consumers must always post-filter the results.
+ */
+final class SQLiteFieldIndex {
+
+  static final String INSERT_ENTRY =
+      "INSERT OR IGNORE INTO field_index "
+          + "(collection_path, field_path, array_element, type_order, value, document_path) "
+          + "VALUES (?, ?, ?, ?, ?, ?)";
+
+  private final SQLitePersistence db;
+
+  SQLiteFieldIndex(SQLitePersistence persistence) {
+    this.db = persistence;
+  }
+
+  /**
+   * Replaces the index entries of the given document with entries for its current contents. Deleted
+   * and unknown documents are removed from the index.
+   */
+  void addDocument(MaybeDocument maybeDocument) {
+    removeDocument(maybeDocument.getKey());
+
+    if (maybeDocument instanceof Document) {
+      writeEntries(db.prepare(INSERT_ENTRY), (Document) maybeDocument);
+    }
+  }
+
+  /** Removes all index entries for the given document. */
+  void removeDocument(DocumentKey documentKey) {
+    db.execute(
+        "DELETE FROM field_index WHERE document_path = ?",
+        EncodedPath.encode(documentKey.getPath()));
+  }
+
+  /**
+   * Writes index entries for all fields of {@code document} using the given {@link #INSERT_ENTRY}
+   * statement. Also used by SQLiteSchema to populate the index for existing documents.
+   */
+  static void writeEntries(SQLiteStatement inserter, Document document) {
+    ResourcePath path = document.getKey().getPath();
+    String collectionPath = EncodedPath.encode(path.popLast());
+    String documentPath = EncodedPath.encode(path);
+
+    for (Map.Entry<String, Value> field : document.getData().getFieldsMap().entrySet()) {
+      writeFieldEntries(
+          inserter,
+          collectionPath,
+          documentPath,
+          FieldPath.fromSingleSegment(field.getKey()),
+          field.getValue());
+    }
+  }
+
+  private static void writeFieldEntries(
+      SQLiteStatement inserter,
+      String collectionPath,
+      String documentPath,
+      FieldPath fieldPath,
+      Value value) {
+    writeEntry(inserter, collectionPath, documentPath, fieldPath, /* arrayElement= */ false, value);
+
+    if (Values.isArray(value)) {
+      for (Value element : value.getArrayValue().getValuesList()) {
+        writeEntry(
+            inserter, collectionPath, documentPath, fieldPath, /* arrayElement= */ true, element);
+      }
+    } else if (Values.typeOrder(value) == Values.TYPE_ORDER_MAP) {
+      for (Map.Entry<String, Value> field : value.getMapValue().getFieldsMap().entrySet()) {
+        writeFieldEntries(
+            inserter,
+            collectionPath,
+            documentPath,
+            fieldPath.append(field.getKey()),
+            field.getValue());
+      }
+    }
+  }
+
+  private static void writeEntry(
+      SQLiteStatement inserter,
+      String collectionPath,
+      String documentPath,
+      FieldPath fieldPath,
+      boolean arrayElement,
+      Value value) {
+    SQLitePersistence.bind(
+        inserter,
+        new Object[] {
+          collectionPath,
+          fieldPath.canonicalString(),
+          arrayElement ? 1 : 0,
+          Values.typeOrder(value),
+          encodeValue(value),
+          documentPath
+        });
+    inserter.executeInsert();
+    inserter.clearBindings();
+  }
+
+  /**
+   * Appends a subquery to {@code sql} that selects the encoded paths of all documents in the given
+   * collection that have an index entry within any of the given ranges.
+   */
+  static void appendDocumentPathSubquery(
+      StringBuilder sql, List<Object> args, ResourcePath collectionPath, List<IndexRange> ranges) {
+    sql.append("SELECT document_path FROM field_index WHERE collection_path = ? AND (");
+    args.add(EncodedPath.encode(collectionPath));
+
+    for (int i = 0; i < ranges.size(); ++i) {
+      if (i > 0) {
+        sql.append(" OR ");
+      }
+      appendRangeCondition(sql, args, ranges.get(i));
+    }
+
+    sql.append(")");
+  }
+
+  private static void appendRangeCondition(StringBuilder sql, List<Object> args, IndexRange range) {
+    sql.append("(field_path = ? AND array_element = ?");
+    args.add(range.getFieldPath().canonicalString());
+    args.add(range.isArrayElement() ? 1 : 0);
+
+    Value start = range.getStart();
+    Value end = range.getEnd();
+    Value typeBound = start != null ? start : end;
+    if (typeBound != null) {
+      sql.append(" AND type_order = ?");
+      args.add(Values.typeOrder(typeBound));
+    }
+
+    Object encodedStart = start != null ? encodeBound(start) : null;
+    if (encodedStart != null) {
+      sql.append(" AND value >= ?");
+      args.add(encodedStart);
+    }
+
+    Object encodedEnd = end != null ? encodeBound(end) : null;
+    if (encodedEnd != null) {
+      sql.append(" AND value <= ?");
+      args.add(encodedEnd);
+    }
+
+    sql.append(")");
+  }
+
+  /**
+   * Encodes a range bound, or returns null if SQLite's ordering of the encoded value might differ
+   * from the ordering of the original value. In that case the lookup falls back to matching all
+   * values of the same type.
+   */
+  @Nullable
+  private static Object encodeBound(Value value) {
+    if (value.getValueTypeCase() == Value.ValueTypeCase.STRING_VALUE) {
+      // SQLite compares UTF-8 bytes while Java compares UTF-16 code units. The two orderings agree
+      // unless the bound contains a surrogate or a character in the range U+E000 to U+FFFF.
+      String string = value.getStringValue();
+      for (int i = 0; i < string.length(); ++i) {
+        if (string.charAt(i) >= '\uD800') {
+          return null;
+        }
+      }
+    }
+    return encodeValue(value);
+  }
+
+  /**
+   * Encodes a value into an order-preserving SQLite value. The encoding is monotonic within each
+   * type order but not necessarily injective (e.g. large integers lose precision), which is why
+   * index lookups need to be post-filtered. Returns null for types that are only indexed by their
+   * type order.
+   */
+  @Nullable
+  private static Object encodeValue(Value value) {
+    switch (value.getValueTypeCase()) {
+      case BOOLEAN_VALUE:
+        return value.getBooleanValue() ? 1 : 0;
+      case INTEGER_VALUE:
+        return (double) value.getIntegerValue();
+      case DOUBLE_VALUE:
+        // NaN sorts before all other numbers. SQLite stores NaN as NULL, so we store it as the
+        // smallest number instead.
+        double doubleValue = value.getDoubleValue();
+        return Double.isNaN(doubleValue) ? Double.NEGATIVE_INFINITY : doubleValue;
+      case TIMESTAMP_VALUE:
+        Timestamp timestamp = value.getTimestampValue();
+        return timestamp.getSeconds() + timestamp.getNanos() / 1e9;
+      case STRING_VALUE:
+        return value.getStringValue();
+      case BYTES_VALUE:
+        return value.getBytesValue().toByteArray();
+      default:
+        return null;
+    }
+  }
+}
@@ -22,16 +22,16 @@ import com.google.firebase.firestore.model.DocumentKey;
 import com.google.firebase.firestore.model.ResourcePath;
 import com.google.firebase.firestore.util.Consumer;
 
-/** Provides LRU functionality for SQLite persistence. */
+/**
+ * Provides LRU functionality for SQLite persistence.
+ *
+ * <p>Documents are associated with the sentinel target (target ID 0) in the target_documents table
+ * whenever one of their references changes, which records the sequence number of their last use.
+ * The orphaned_documents table indexes the documents that have a sentinel row but don't belong to
+ * any other target. It is maintained alongside the sentinel rows, so that garbage collection can
+ * find collectable documents without grouping all rows of target_documents.
+ */
 class SQLiteLruReferenceDelegate implements ReferenceDelegate, LruDelegate {
-  /**
-   * The batch size for orphaned document GC in `removeOrphanedDocuments()`.
-   *
-   * <p>This addresses https://github.com/firebase/firebase-android-sdk/issues/706, where a customer
-   * reported that LRU GC hit a CursorWindow size limit during orphaned document removal.
-   */
-  static final int REMOVE_ORPHANED_DOCUMENTS_BATCH_SIZE = 100;
-
   private final SQLitePersistence persistence;
   private ListenSequence listenSequence;
   private long currentSequenceNumber;
@@ -82,8 +82,7 @@ class SQLiteLruReferenceDelegate implements ReferenceDelegate, LruDelegate {
     long targetCount = persistence.getTargetCache().getTargetCount();
     long orphanedDocumentCount =
         persistence
-            .query(
-                "SELECT COUNT(*) FROM (SELECT sequence_number FROM target_documents GROUP BY path HAVING COUNT(*) = 1 AND target_id = 0)")
+            .query("SELECT COUNT(*) FROM orphaned_documents")
             .firstValue(row -> row.getLong(0));
     return targetCount + orphanedDocumentCount;
   }
@@ -96,8 +95,7 @@ class SQLiteLruReferenceDelegate implements ReferenceDelegate, LruDelegate {
   @Override
   public void forEachOrphanedDocumentSequenceNumber(Consumer<Long> consumer) {
     persistence
-        .query(
-            "select sequence_number from target_documents group by path having COUNT(*) = 1 AND target_id = 0")
+        .query("SELECT sequence_number FROM orphaned_documents")
         .forEach(row -> consumer.accept(row.getLong(0)));
   }
 
@@ -108,12 +106,15 @@ class SQLiteLruReferenceDelegate implements ReferenceDelegate, LruDelegate {
 
   @Override
   public void addReference(DocumentKey key) {
+    // References are only added for documents that were just added to a target.
     writeSentinel(key);
+    removeOrphan(key);
   }
 
   @Override
   public void removeReference(DocumentKey key) {
     writeSentinel(key);
+    updateOrphan(key);
   }
 
   @Override
@@ -124,6 +125,7 @@ class SQLiteLruReferenceDelegate implements ReferenceDelegate, LruDelegate {
   @Override
   public void removeMutationReference(DocumentKey key) {
     writeSentinel(key);
+    updateOrphan(key);
   }
 
   /** Returns true if any mutation queue contains the given document. */
@@ -151,35 +153,34 @@ class SQLiteLruReferenceDelegate implements ReferenceDelegate, LruDelegate {
     persistence.execute(
         "DELETE FROM target_documents WHERE path = ? AND target_id = 0",
         EncodedPath.encode(key.getPath()));
+    removeOrphan(key);
   }
 
   @Override
-  public int removeOrphanedDocuments(long upperBound) {
-    int[] count = new int[1];
-
-    boolean resultsRemaining = true;
-
-    while (resultsRemaining) {
-      int rowsProccessed =
-          persistence
-              .query(
-                  "select path from target_documents group by path having COUNT(*) = 1 AND target_id = 0 AND sequence_number <= ? LIMIT ?")
-              .binding(upperBound, REMOVE_ORPHANED_DOCUMENTS_BATCH_SIZE)
-              .forEach(
-                  row -> {
-                    ResourcePath path = EncodedPath.decodeResourcePath(row.getString(0));
-                    DocumentKey key = DocumentKey.fromPath(path);
-                    if (!isPinned(key)) {
-                      count[0]++;
-                      persistence.getRemoteDocumentCache().remove(key);
-                      removeSentinel(key);
-                    }
-                  });
-
-      resultsRemaining = (rowsProccessed == REMOVE_ORPHANED_DOCUMENTS_BATCH_SIZE);
-    }
-
-    return count[0];
+  public int removeOrphanedDocuments(
+      long upperBound, int limit, Consumer<Long> removedDocumentSizes) {
+    // The limit also bounds the size of the cursor window (see
+    // LruGarbageCollector.REMOVE_ORPHANED_DOCUMENTS_BATCH_SIZE).
+    return persistence
+        .query(
+            "SELECT O.path, length(R.contents) FROM orphaned_documents AS O "
+                + "LEFT JOIN remote_documents AS R ON R.path = O.path "
+                + "WHERE O.sequence_number <= ? LIMIT ?")
+        .binding(upperBound, limit)
+        .forEach(
+            row -> {
+              ResourcePath path = EncodedPath.decodeResourcePath(row.getString(0));
+              DocumentKey key = DocumentKey.fromPath(path);
+              if (isPinned(key)) {
+                // Releasing the pin rewrites the sentinel, which adds the document back to the
+                // index with a new sequence number.
+                removeOrphan(key);
+              } else {
+                removedDocumentSizes.accept(row.getLong(1));
+                persistence.getRemoteDocumentCache().remove(key);
+                removeSentinel(key);
+              }
+            });
   }
 
   @Override
@@ -191,6 +192,7 @@ class SQLiteLruReferenceDelegate implements ReferenceDelegate, LruDelegate {
   @Override
   public void updateLimboDocument(DocumentKey key) {
     writeSentinel(key);
+    updateOrphan(key);
   }
 
   private void writeSentinel(DocumentKey key) {
@@ -201,8 +203,38 @@ class SQLiteLruReferenceDelegate implements ReferenceDelegate, LruDelegate {
         getCurrentSequenceNumber());
   }
 
+  /**
+   * Adds the document to the orphaned_documents index with the current sequence number if it
+   * doesn't belong to any target. Must be called after the document's sentinel was written.
+   */
+  private void updateOrphan(DocumentKey key) {
+    String path = EncodedPath.encode(key.getPath());
+    persistence.execute(
+        "INSERT OR REPLACE INTO orphaned_documents (path, sequence_number) "
+            + "SELECT ?, ? WHERE NOT EXISTS "
+            + "(SELECT 1 FROM target_documents WHERE path = ? AND target_id != 0)",
+        path,
+        getCurrentSequenceNumber(),
+        path);
+  }
+
+  private void removeOrphan(DocumentKey key) {
+    persistence.execute(
+        "DELETE FROM orphaned_documents WHERE path = ?", EncodedPath.encode(key.getPath()));
+  }
+
   @Override
   public long getByteSize() {
-    return persistence.getByteSize();
+    // The running counters only include data that can be garbage collected. Unlike the size of the
+    // database file, they shrink as soon as documents are removed.
+    return persistence.getRemoteDocumentCache().getByteSize()
+        + persistence.getTargetCache().getByteSize();
+  }
+
+  @Override
+  public CacheSizes getCacheSizes() {
+    return new CacheSizes(
+        persistence.getRemoteDocumentCache().getCollectionByteSizes(),
+        persistence.getTargetCache().getByteSize());
   }
 }
@@ -32,8 +32,9 @@ import com.google.firebase.firestore.remote.WriteStream;
 import com.google.firebase.firestore.util.Consumer;
 import com.google.firebase.firestore.util.Util;
 import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.MessageLite;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -54,7 +55,7 @@ final class SQLiteMutationQueue implements MutationQueue {
    * conservative, but allows all combinations of document paths and batch ids without needing to
    * figure out if the row has gotten too large.
    */
-  private static final int BLOB_MAX_INLINE_LENGTH = 1000000;
+  static final int BLOB_MAX_INLINE_LENGTH = 1000000;
 
   private final SQLitePersistence db;
   private final LocalSerializer serializer;
@@ -215,6 +216,19 @@ final class SQLiteMutationQueue implements MutationQueue {
     return batch;
   }
 
+  @Override
+  public void replaceLastMutationBatch(MutationBatch batch) {
+    // The document_mutations index doesn't change since the batch modifies the same documents.
+    MessageLite proto = serializer.encodeMutationBatch(batch);
+    int updated =
+        db.execute(
+            db.prepare("UPDATE mutations SET mutations = ? WHERE uid = ? AND batch_id = ?"),
+            proto.toByteArray(),
+            uid,
+            batch.getBatchId());
+    hardAssert(updated != 0, "Mutation batch (%s, %d) did not exist", uid, batch.getBatchId());
+  }
+
   @Nullable
   @Override
   public MutationBatch lookupMutationBatch(int batchId) {
@@ -282,6 +296,37 @@ final class SQLiteMutationQueue implements MutationQueue {
       args.add(EncodedPath.encode(key.getPath()));
     }
 
+    List<MutationBatch> result = new ArrayList<>();
+    Set<Integer> uniqueBatchIds = new HashSet<>();
+    Consumer<Cursor> rowProcessor =
+        row -> {
+          int batchId = row.getInt(0);
+          if (!uniqueBatchIds.contains(batchId)) {
+            uniqueBatchIds.add(batchId);
+            result.add(decodeInlineMutationBatch(batchId, row.getBlob(1)));
+          }
+        };
+
+    if (db.useLookupTable(args.size())) {
+      // A single statement returns the batches in order, so no additional sort is required.
+      db.withLookupKeys(
+          args,
+          () ->
+              db.query(
+                      "SELECT DISTINCT dm.batch_id, SUBSTR(m.mutations, 1, ?) "
+                          + "FROM document_mutations dm, mutations m "
+                          + "WHERE dm.uid = ? "
+                          + "AND dm.path IN ("
+                          + SQLitePersistence.LOOKUP_KEYS_SUBQUERY
+                          + ") "
+                          + "AND dm.uid = m.uid "
+                          + "AND dm.batch_id = m.batch_id "
+                          + "ORDER BY dm.batch_id")
+                  .binding(BLOB_MAX_INLINE_LENGTH, uid)
+                  .forEach(rowProcessor));
+      return result;
+    }
+
     SQLitePersistence.LongQuery longQuery =
         new SQLitePersistence.LongQuery(
             db,
@@ -296,19 +341,8 @@ final class SQLiteMutationQueue implements MutationQueue {
                 + "AND dm.batch_id = m.batch_id "
                 + "ORDER BY dm.batch_id");
 
-    List<MutationBatch> result = new ArrayList<>();
-    Set<Integer> uniqueBatchIds = new HashSet<>();
     while (longQuery.hasMoreSubqueries()) {
-      longQuery
-          .performNextSubquery()
-          .forEach(
-              row -> {
-                int batchId = row.getInt(0);
-                if (!uniqueBatchIds.contains(batchId)) {
-                  uniqueBatchIds.add(batchId);
-                  result.add(decodeInlineMutationBatch(batchId, row.getBlob(1)));
-                }
-              });
+      longQuery.performNextSubquery().forEach(rowProcessor);
     }
 
     // If more than one query was issued, batches might be in an unsorted order (batches are ordered
@@ -444,66 +478,79 @@ final class SQLiteMutationQueue implements MutationQueue {
     try {
       if (bytes.length < BLOB_MAX_INLINE_LENGTH) {
         return serializer.decodeMutationBatch(
-            com.google.firebase.firestore.proto.WriteBatch.parseFrom(bytes));
+            com.google.firebase.firestore.proto.WriteBatch.parseFrom(
+                LocalSerializer.newAliasingInput(bytes)));
       }
 
-      BlobAccumulator accumulator = new BlobAccumulator(bytes);
-      while (accumulator.more) {
-        // As we read in chunks the start of the next chunk should be the total accumulated length
-        // plus 1 (since SUBSTR() counts from 1). The second argument is not adjusted because it's
-        // the length of the chunk, not the end index.
-        int start = accumulator.numChunks() * BLOB_MAX_INLINE_LENGTH + 1;
-
-        db.query("SELECT SUBSTR(mutations, ?, ?) FROM mutations WHERE uid = ? AND batch_id = ?")
-            .binding(start, BLOB_MAX_INLINE_LENGTH, uid, batchId)
-            .first(accumulator);
-      }
-
-      ByteString blob = accumulator.result();
+      // Parse the blob while its chunks are read, so that only a single chunk needs to be held in
+      // memory instead of the entire blob.
       return serializer.decodeMutationBatch(
-          com.google.firebase.firestore.proto.WriteBatch.parseFrom(blob));
-    } catch (InvalidProtocolBufferException e) {
+          com.google.firebase.firestore.proto.WriteBatch.parseFrom(
+              new BlobInputStream(batchId, bytes)));
+    } catch (IOException e) {
       throw fail("MutationBatch failed to parse: %s", e);
     }
   }
 
   /**
-   * Explicit consumer of blob chunks, accumulating the chunks and wrapping them in a single
-   * ByteString. Accepts a Cursor whose results include the blob in column 0.
-   *
-   * <p>(This is a named class here to allow decodeInlineMutationBlock to access the result of the
-   * accumulation.)
+   * An InputStream over a mutation batch blob that is too large to be read in a single query. The
+   * stream starts with the first chunk of the blob and reads each following chunk with a separate
+   * query once the previous chunk has been consumed.
    */
-  private static class BlobAccumulator implements Consumer<Cursor> {
-    private final ArrayList<ByteString> chunks = new ArrayList<>();
-    private boolean more = true;
-
-    BlobAccumulator(byte[] firstChunk) {
-      addChunk(firstChunk);
+  private class BlobInputStream extends InputStream {
+    private final int batchId;
+    private byte[] chunk;
+    private int position;
+    private int numChunks = 1;
+
+    BlobInputStream(int batchId, byte[] firstChunk) {
+      this.batchId = batchId;
+      this.chunk = firstChunk;
     }
 
-    int numChunks() {
-      return chunks.size();
-    }
-
-    ByteString result() {
-      // Not actually a copy; this creates a balanced rope-like structure that reuses the given
-      // ByteStrings as a part of its representation.
-      return ByteString.copyFrom(chunks);
+    @Override
+    public int read() {
+      if (!ensureAvailable()) {
+        return -1;
+      }
+      return chunk[position++] & 0xFF;
     }
 
     @Override
-    public void accept(Cursor row) {
-      byte[] bytes = row.getBlob(0);
-      addChunk(bytes);
-      if (bytes.length < BLOB_MAX_INLINE_LENGTH) {
-        more = false;
+    public int read(byte[] buffer, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (!ensureAvailable()) {
+        return -1;
       }
+      int count = Math.min(length, chunk.length - position);
+      System.arraycopy(chunk, position, buffer, offset, count);
+      position += count;
+      return count;
     }
 
-    private void addChunk(byte[] bytes) {
-      ByteString wrapped = ByteString.copyFrom(bytes);
-      chunks.add(wrapped);
+    /** Reads the next chunk if the current one is consumed. Returns false at the end of the blob. */
+    private boolean ensureAvailable() {
+      while (position == chunk.length) {
+        if (chunk.length < BLOB_MAX_INLINE_LENGTH) {
+          return false;
+        }
+
+        // As we read in chunks the start of the next chunk should be the total accumulated length
+        // plus 1 (since SUBSTR() counts from 1). The second argument is not adjusted because it's
+        // the length of the chunk, not the end index.
+        int start = numChunks * BLOB_MAX_INLINE_LENGTH + 1;
+        byte[] nextChunk =
+            db.query(
+                    "SELECT SUBSTR(mutations, ?, ?) FROM mutations WHERE uid = ? AND batch_id = ?")
+                .binding(start, BLOB_MAX_INLINE_LENGTH, uid, batchId)
+                .firstValue(row -> row.getBlob(0));
+        chunk = nextChunk != null ? nextChunk : new byte[0];
+        position = 0;
+        ++numChunks;
+      }
+      return true;
     }
   }
 }
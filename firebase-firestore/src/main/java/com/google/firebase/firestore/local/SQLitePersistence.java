@@ -27,6 +27,7 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteProgram;
 import android.database.sqlite.SQLiteStatement;
 import android.database.sqlite.SQLiteTransactionListener;
+import android.os.Build;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 import com.google.firebase.firestore.FirebaseFirestoreException;
@@ -40,12 +41,20 @@ import com.google.firebase.firestore.util.Logger;
 import com.google.firebase.firestore.util.Supplier;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A SQLite-backed instance of Persistence.
@@ -77,6 +86,29 @@ public final class SQLitePersistence extends Persistence {
     }
   }
 
+  /**
+   * The number of compiled statements that are kept by {@link #prepare}. The local store issues 35
+   * distinct non-query statements, all of which use constant SQL, so the cache holds every one of
+   * them with room for new statements. Statements are only evicted if the working set ever grows
+   * past this size.
+   */
+  private static final int STATEMENT_CACHE_SIZE = 64;
+
+  /** A subquery that selects the keys staged by {@link #withLookupKeys}. */
+  static final String LOOKUP_KEYS_SUBQUERY = "SELECT key FROM temp.lookup_keys";
+
+  /** The number of times {@link #runSnapshotRead} runs an operation before it gives up. */
+  private static final int MAX_SNAPSHOT_READ_ATTEMPTS = 3;
+
+  private static final String MULTIPLE_PROCESSES_ERROR =
+      "Failed to gain exclusive lock to the Cloud Firestore client's offline persistence. This"
+          + " generally means you are using Cloud Firestore from multiple processes in your"
+          + " app. Keep in mind that multi-process Android apps execute the code in your"
+          + " Application class in all processes, so you may need to avoid initializing"
+          + " Cloud Firestore in your Application class. If you are intentionally using Cloud"
+          + " Firestore from multiple processes, you can only enable offline persistence (that"
+          + " is, call setPersistenceEnabled(true)) in one of them.";
+
   private final SQLiteOpenHelper opener;
   private final LocalSerializer serializer;
   private final SQLiteTargetCache targetCache;
@@ -99,6 +131,25 @@ public final class SQLitePersistence extends Persistence {
         public void onRollback() {}
       };
 
+  private final StatementCache statementCache = new StatementCache(STATEMENT_CACHE_SIZE);
+
+  /**
+   * Incremented right before and right after each transaction ends, so that it is odd while a
+   * transaction commits. Used by {@link #runSnapshotRead} to detect commits.
+   */
+  private final AtomicLong commitSequence = new AtomicLong();
+
+  /** Whether the current thread is running an operation of {@link #runSnapshotRead}. */
+  private final ThreadLocal<Boolean> inSnapshotRead = new ThreadLocal<>();
+
+  /**
+   * A file that is locked while the database is open if concurrent reads are enabled, or null
+   * otherwise. Concurrent reads require SQLite's normal locking mode, so this lock takes over the
+   * role of the exclusive locking mode in detecting use of the database by multiple processes.
+   */
+  private final @Nullable File lockFile;
+
+  private @Nullable FileChannel lockChannel;
   private SQLiteDatabase db;
   private boolean started;
 
@@ -108,15 +159,56 @@ public final class SQLitePersistence extends Persistence {
       DatabaseId databaseId,
       LocalSerializer serializer,
       LruGarbageCollector.Params params) {
+    this(
+        context,
+        persistenceKey,
+        databaseId,
+        serializer,
+        params,
+        /* concurrentReadsEnabled= */ false);
+  }
+
+  /**
+   * Creates a SQLite-backed persistence.
+   *
+   * @param concurrentReadsEnabled Whether to open the database with write-ahead logging, which
+   *     allows {@link #runSnapshotRead} to read from the database while a transaction is running.
+   *     Only supported on API 16 and above.
+   */
+  public SQLitePersistence(
+      Context context,
+      String persistenceKey,
+      DatabaseId databaseId,
+      LocalSerializer serializer,
+      LruGarbageCollector.Params params,
+      boolean concurrentReadsEnabled) {
     this(
         serializer,
         params,
-        new OpenHelper(context, serializer, databaseName(persistenceKey, databaseId)));
+        new OpenHelper(
+            context,
+            serializer,
+            databaseName(persistenceKey, databaseId),
+            concurrentReadsEnabled && isWriteAheadLoggingSupported()),
+        concurrentReadsEnabled && isWriteAheadLoggingSupported()
+            ? new File(
+                context.getDatabasePath(databaseName(persistenceKey, databaseId)).getPath()
+                    + "-lock")
+            : null);
   }
 
   public SQLitePersistence(
       LocalSerializer serializer, LruGarbageCollector.Params params, SQLiteOpenHelper openHelper) {
+    this(serializer, params, openHelper, /* lockFile= */ null);
+  }
+
+  private SQLitePersistence(
+      LocalSerializer serializer,
+      LruGarbageCollector.Params params,
+      SQLiteOpenHelper openHelper,
+      @Nullable File lockFile) {
     this.opener = openHelper;
+    this.lockFile = lockFile;
     this.serializer = serializer;
     this.targetCache = new SQLiteTargetCache(this, this.serializer);
     this.indexManager = new SQLiteIndexManager(this);
@@ -128,30 +220,85 @@ public final class SQLitePersistence extends Persistence {
   public void start() {
     hardAssert(!started, "SQLitePersistence double-started!");
     started = true;
+    if (lockFile != null) {
+      lockProcess();
+    }
     try {
       db = opener.getWritableDatabase();
+      // Queries are compiled through SQLite's per-connection statement cache, which only holds 25
+      // statements by default. This is fewer than the number of distinct queries and statements
+      // issued by the local store.
+      db.setMaxSqlCacheSize(SQLiteDatabase.MAX_SQL_CACHE_SIZE);
     } catch (SQLiteDatabaseLockedException e) {
+      unlockProcess();
       // TODO: Use a better exception type
-      throw new RuntimeException(
-          "Failed to gain exclusive lock to the Cloud Firestore client's offline persistence. This"
-              + " generally means you are using Cloud Firestore from multiple processes in your"
-              + " app. Keep in mind that multi-process Android apps execute the code in your"
-              + " Application class in all processes, so you may need to avoid initializing"
-              + " Cloud Firestore in your Application class. If you are intentionally using Cloud"
-              + " Firestore from multiple processes, you can only enable offline persistence (that"
-              + " is, call setPersistenceEnabled(true)) in one of them.",
-          e);
+      throw new RuntimeException(MULTIPLE_PROCESSES_ERROR, e);
+    } catch (RuntimeException e) {
+      // Don't keep other instances from opening the database after a failed start.
+      unlockProcess();
+      throw e;
     }
     targetCache.start();
     referenceDelegate.start(targetCache.getHighestListenSequenceNumber());
   }
 
+  /** Locks the lock file, which fails if another process has the database open. */
+  private void lockProcess() {
+    try {
+      // The database directory doesn't exist until the first database is created.
+      File directory = lockFile.getParentFile();
+      if (directory != null && !directory.exists() && !directory.mkdirs()) {
+        throw new IOException("Failed to create " + directory);
+      }
+      FileChannel channel = new RandomAccessFile(lockFile, "rw").getChannel();
+      FileLock lock;
+      try {
+        lock = channel.tryLock();
+      } catch (OverlappingFileLockException e) {
+        // Another instance in this process has the database open.
+        lock = null;
+      }
+      if (lock == null) {
+        channel.close();
+        throw new RuntimeException(MULTIPLE_PROCESSES_ERROR);
+      }
+      lockChannel = channel;
+    } catch (IOException e) {
+      throw new RuntimeException(
+          "Failed to lock the Cloud Firestore client's offline persistence", e);
+    }
+  }
+
   @Override
   public void shutdown() {
     hardAssert(started, "SQLitePersistence shutdown without start!");
     started = false;
+    statementCache.clear();
     db.close();
     db = null;
+    unlockProcess();
+  }
+
+  /** Releases the lock file, if it was locked by {@link #lockProcess}. */
+  private void unlockProcess() {
+    if (lockChannel != null) {
+      try {
+        // Closing the channel releases the lock.
+        lockChannel.close();
+      } catch (IOException e) {
+        Logger.warn(TAG, "Failed to release the lock of the offline persistence: %s", e);
+      }
+      lockChannel = null;
+    }
+  }
+
+  /** Returns whether {@link #runSnapshotRead} can run concurrently with transactions. */
+  public boolean isConcurrentReadsEnabled() {
+    return lockFile != null;
+  }
+
+  private static boolean isWriteAheadLoggingSupported() {
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
   }
 
   @Override
@@ -169,6 +316,11 @@ public final class SQLitePersistence extends Persistence {
     return new SQLiteMutationQueue(this, serializer, user);
   }
 
+  @Override
+  DocumentOverlayCache getDocumentOverlayCache(User user) {
+    return new SQLiteDocumentOverlayCache(this, serializer, user);
+  }
+
   @Override
   SQLiteTargetCache getTargetCache() {
     return targetCache;
@@ -180,7 +332,7 @@ public final class SQLitePersistence extends Persistence {
   }
 
   @Override
-  RemoteDocumentCache getRemoteDocumentCache() {
+  SQLiteRemoteDocumentCache getRemoteDocumentCache() {
     return remoteDocumentCache;
   }
 
@@ -194,7 +346,7 @@ public final class SQLitePersistence extends Persistence {
       // Note that an exception in operation.run() will prevent this code from running.
       db.setTransactionSuccessful();
     } finally {
-      db.endTransaction();
+      endTransaction();
     }
   }
 
@@ -209,54 +361,87 @@ public final class SQLitePersistence extends Persistence {
       // Note that an exception in operation.run() will prevent this code from running.
       db.setTransactionSuccessful();
     } finally {
-      db.endTransaction();
+      endTransaction();
     }
     return value;
   }
 
+  private void endTransaction() {
+    commitSequence.incrementAndGet();
+    try {
+      db.endTransaction();
+    } finally {
+      commitSequence.incrementAndGet();
+    }
+
+    // Statements from prepare() are only used until the current operation completes, so evicted
+    // statements can be closed once the outermost transaction has ended.
+    if (!db.inTransaction()) {
+      statementCache.closeEvictedStatements();
+    }
+  }
+
+  /**
+   * Runs a read-only operation on the calling thread, which must not be the thread that runs
+   * transactions. With write-ahead logging, each statement of the operation reads the most recently
+   * committed state of the database without waiting for a running transaction. To ensure that all
+   * statements read the same state, the operation is run again if a transaction commits while it
+   * runs.
+   *
+   * <p>The operation must not use {@link #prepare} or {@link #withLookupKeys}, which are reserved
+   * for the thread that runs transactions. Lookups of many keys bind them as host parameters
+   * instead, see {@link #useLookupTable}.
+   *
+   * @throws ConcurrentModificationException if transactions committed during every attempt.
+   */
+  <T> T runSnapshotRead(String action, Supplier<T> operation) {
+    hardAssert(isConcurrentReadsEnabled(), "Snapshot reads require write-ahead logging");
+    hardAssert(!db.inTransaction(), "Snapshot read started in a transaction: %s", action);
+    Logger.debug(TAG, "Starting snapshot read: %s", action);
+    inSnapshotRead.set(true);
+    try {
+      for (int attempt = 0; attempt < MAX_SNAPSHOT_READ_ATTEMPTS; ++attempt) {
+        long sequence = commitSequence.get();
+        if (sequence % 2 == 0) {
+          T value = operation.get();
+          if (commitSequence.get() == sequence) {
+            return value;
+          }
+        }
+      }
+    } finally {
+      inSnapshotRead.remove();
+    }
+    throw new ConcurrentModificationException(
+        "Transactions committed during each attempt of snapshot read: " + action);
+  }
+
   public static void clearPersistence(Context context, DatabaseId databaseId, String persistenceKey)
       throws FirebaseFirestoreException {
     String databaseName = SQLitePersistence.databaseName(persistenceKey, databaseId);
     String sqLitePath = context.getDatabasePath(databaseName).getPath();
     String journalPath = sqLitePath + "-journal";
     String walPath = sqLitePath + "-wal";
+    String sharedMemoryPath = sqLitePath + "-shm";
+    String lockPath = sqLitePath + "-lock";
 
     File sqLiteFile = new File(sqLitePath);
     File journalFile = new File(journalPath);
     File walFile = new File(walPath);
+    File sharedMemoryFile = new File(sharedMemoryPath);
+    File lockFile = new File(lockPath);
 
     try {
       FileUtil.delete(sqLiteFile);
       FileUtil.delete(journalFile);
       FileUtil.delete(walFile);
+      FileUtil.delete(sharedMemoryFile);
+      FileUtil.delete(lockFile);
     } catch (IOException e) {
       throw new FirebaseFirestoreException("Failed to clear persistence." + e, Code.UNKNOWN);
     }
   }
 
-  long getByteSize() {
-    return getPageCount() * getPageSize();
-  }
-
-  /**
-   * Gets the page size of the database. Typically 4096.
-   *
-   * @see "https://www.sqlite.org/pragma.html#pragma_page_size"
-   */
-  private long getPageSize() {
-    return query("PRAGMA page_size").firstValue(row -> row.getLong(/*column=*/ 0));
-  }
-
-  /**
-   * Gets the number of pages in the database file. Multiplying this with the page size yields the
-   * approximate size of the database on disk (including the WAL, if relevant).
-   *
-   * @see "https://www.sqlite.org/pragma.html#pragma_page_count."
-   */
-  private long getPageCount() {
-    return query("PRAGMA page_count").firstValue(row -> row.getLong(/*column=*/ 0));
-  }
-
   /**
    * A SQLiteOpenHelper that configures database connections just the way we like them, delegating
    * to SQLiteSchema to actually do the work of migration.
@@ -278,11 +463,22 @@ public final class SQLitePersistence extends Persistence {
   private static class OpenHelper extends SQLiteOpenHelper {
 
     private final LocalSerializer serializer;
+    private final boolean writeAheadLoggingEnabled;
     private boolean configured;
 
-    OpenHelper(Context context, LocalSerializer serializer, String databaseName) {
+    OpenHelper(
+        Context context,
+        LocalSerializer serializer,
+        String databaseName,
+        boolean writeAheadLoggingEnabled) {
       super(context, databaseName, null, SQLiteSchema.VERSION);
       this.serializer = serializer;
+      this.writeAheadLoggingEnabled = writeAheadLoggingEnabled;
+      if (writeAheadLoggingEnabled
+          && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+        // Lets SQLiteDatabase run queries from other threads on separate connections.
+        setWriteAheadLoggingEnabled(true);
+      }
     }
 
     @Override
@@ -290,6 +486,11 @@ public final class SQLitePersistence extends Persistence {
       // Note that this is only called automatically by the SQLiteOpenHelper base class on Jelly
       // Bean and above.
       configured = true;
+      if (writeAheadLoggingEnabled) {
+        // Connections in exclusive locking mode don't share the write-ahead log with other
+        // connections, so SQLitePersistence locks a separate file instead.
+        return;
+      }
       Cursor cursor = db.rawQuery("PRAGMA locking_mode = EXCLUSIVE", new String[0]);
       cursor.close();
     }
@@ -344,14 +545,31 @@ public final class SQLitePersistence extends Persistence {
    * Execute the given non-query SQL statement. Equivalent to {@code execute(prepare(sql), args)}.
    */
   void execute(String sql, Object... args) {
-    // Note that unlike db.query and friends, execSQL already takes Object[] bindArgs so there's no
-    // need to go through the bind dance below.
-    db.execSQL(sql, args);
+    execute(prepare(sql), args);
   }
 
-  /** Prepare the given non-query SQL statement. */
+  /**
+   * Prepare the given non-query SQL statement. The compiled statement is cached and shared with
+   * other callers that prepare the same SQL, so it must not be closed and should only be used until
+   * the current operation completes.
+   */
   SQLiteStatement prepare(String sql) {
-    return db.compileStatement(sql);
+    assertNotInSnapshotRead("prepare()");
+    return statementCache.get(db, sql);
+  }
+
+  /**
+   * Fails if the current thread runs a snapshot read. The statement cache and the temporary lookup
+   * table are not thread-safe and must only be used by the thread that runs transactions.
+   */
+  private void assertNotInSnapshotRead(String method) {
+    hardAssert(inSnapshotRead.get() == null, "%s must not be called in a snapshot read", method);
+  }
+
+  /** Returns the cache of compiled statements used by {@link #prepare}. */
+  @VisibleForTesting
+  StatementCache getStatementCache() {
+    return statementCache;
   }
 
   /**
@@ -365,6 +583,45 @@ public final class SQLitePersistence extends Persistence {
     return statement.executeUpdateDelete();
   }
 
+  /**
+   * Returns whether a lookup of {@code keyCount} keys should stage its keys in the lookup table via
+   * {@link #withLookupKeys} instead of binding them as host parameters of a {@link LongQuery}.
+   * Lookups that fit into a single subquery are cheaper to bind directly, and snapshot reads can't
+   * use the lookup table.
+   */
+  boolean useLookupTable(int keyCount) {
+    return keyCount > LongQuery.LIMIT && inSnapshotRead.get() == null;
+  }
+
+  /**
+   * Inserts the given keys into the temporary {@code lookup_keys} table, runs {@code operation} and
+   * clears the table again. Statements issued by {@code operation} can join against {@link
+   * #LOOKUP_KEYS_SUBQUERY}, which lets them resolve any number of keys with a single compiled
+   * statement instead of one statement per {@link LongQuery} subquery.
+   *
+   * <p>Temporary tables are private to the connection that created them, so the keys are staged
+   * and consumed within a single (possibly nested) transaction.
+   */
+  void withLookupKeys(List<Object> keys, Runnable operation) {
+    assertNotInSnapshotRead("withLookupKeys()");
+    db.beginTransaction();
+    try {
+      db.execSQL("CREATE TEMP TABLE IF NOT EXISTS lookup_keys (key PRIMARY KEY)");
+
+      SQLiteStatement inserter = prepare("INSERT OR IGNORE INTO lookup_keys (key) VALUES (?)");
+      for (Object key : keys) {
+        execute(inserter, key);
+      }
+
+      operation.run();
+
+      db.execSQL("DELETE FROM lookup_keys");
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
   /**
    * Creates a new {@link Query} for the given SQL query. Supply binding arguments and execute by
    * chaining further methods off the query.
@@ -527,8 +784,11 @@ public final class SQLitePersistence extends Persistence {
       }
     }
 
-    /** Starts the query against the database, supplying binding arguments if they exist. */
-    private Cursor startQuery() {
+    /**
+     * Starts the query against the database, supplying binding arguments if they exist. The caller
+     * is responsible for closing the returned cursor.
+     */
+    Cursor startQuery() {
       if (cursorFactory != null) {
         return db.rawQueryWithFactory(cursorFactory, sql, null, null);
       } else {
@@ -671,6 +931,83 @@ public final class SQLitePersistence extends Persistence {
     }
   }
 
+  /**
+   * A bounded cache of compiled {@link SQLiteStatement}s, keyed by their SQL. Once the cache is
+   * full, the least recently used statement is evicted. Since callers of {@link #prepare} may still
+   * hold an evicted statement, it is only closed by {@link #closeEvictedStatements}, which must not
+   * be called while an operation is in progress.
+   *
+   * <p>The cache is not thread-safe. Like all other database access, it must only be used from the
+   * thread that runs the persistence's transactions.
+   */
+  static class StatementCache {
+    private final LinkedHashMap<String, SQLiteStatement> statements;
+    private final List<SQLiteStatement> evictedStatements = new ArrayList<>();
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    StatementCache(int maxSize) {
+      // An access-ordered map iterates from the least recently used entry to the most recent one.
+      statements =
+          new LinkedHashMap<String, SQLiteStatement>(maxSize, 0.75f, /* accessOrder= */ true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+              if (size() > maxSize) {
+                evictedStatements.add(eldest.getValue());
+                return true;
+              }
+              return false;
+            }
+          };
+    }
+
+    /** Returns the cached statement for {@code sql}, compiling it on {@code db} if necessary. */
+    SQLiteStatement get(SQLiteDatabase db, String sql) {
+      SQLiteStatement statement = statements.get(sql);
+      if (statement != null) {
+        ++hitCount;
+        return statement;
+      }
+
+      ++missCount;
+      statement = db.compileStatement(sql);
+      statements.put(sql, statement);
+      return statement;
+    }
+
+    /** Closes the statements that were evicted since this method was last called. */
+    void closeEvictedStatements() {
+      for (SQLiteStatement statement : evictedStatements) {
+        statement.close();
+      }
+      evictedStatements.clear();
+    }
+
+    /** Closes and removes all cached statements. */
+    void clear() {
+      closeEvictedStatements();
+      for (SQLiteStatement statement : statements.values()) {
+        statement.close();
+      }
+      statements.clear();
+    }
+
+    /** Returns the number of cached statements. */
+    int size() {
+      return statements.size();
+    }
+
+    /** Returns the number of times a statement was served from the cache. */
+    long getHitCount() {
+      return hitCount;
+    }
+
+    /** Returns the number of times a statement had to be compiled. */
+    long getMissCount() {
+      return missCount;
+    }
+  }
+
   /**
    * Binds the given arguments to the given SQLite statement or query.
    *
@@ -682,7 +1019,7 @@ public final class SQLitePersistence extends Persistence {
    * This method bridges the gap by examining the types of the bindArgs and calling to the
    * appropriate bind method on the program.
    */
-  private static void bind(SQLiteProgram program, Object[] bindArgs) {
+  static void bind(SQLiteProgram program, Object[] bindArgs) {
     for (int i = 0; i < bindArgs.length; i++) {
       Object arg = bindArgs[i];
       if (arg == null) {
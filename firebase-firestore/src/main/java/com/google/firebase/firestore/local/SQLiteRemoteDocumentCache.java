@@ -17,9 +17,11 @@ package com.google.firebase.firestore.local;
 import static com.google.firebase.firestore.util.Assert.fail;
 import static com.google.firebase.firestore.util.Assert.hardAssert;
 
+import android.database.Cursor;
 import androidx.annotation.Nullable;
 import com.google.firebase.Timestamp;
 import com.google.firebase.database.collection.ImmutableSortedMap;
+import com.google.firebase.firestore.core.IndexRange;
 import com.google.firebase.firestore.core.Query;
 import com.google.firebase.firestore.model.Document;
 import com.google.firebase.firestore.model.DocumentCollections;
@@ -28,9 +30,10 @@ import com.google.firebase.firestore.model.MaybeDocument;
 import com.google.firebase.firestore.model.ResourcePath;
 import com.google.firebase.firestore.model.SnapshotVersion;
 import com.google.firebase.firestore.util.BackgroundQueue;
+import com.google.firebase.firestore.util.Consumer;
 import com.google.firebase.firestore.util.Executors;
-import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.MessageLite;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -39,12 +42,27 @@ import java.util.concurrent.Executor;
 
 final class SQLiteRemoteDocumentCache implements RemoteDocumentCache {
 
+  /**
+   * The number of rows that are decoded by a single background task during a collection scan.
+   * Batching amortizes the cost of scheduling a task over many documents.
+   */
+  private static final int DECODE_BATCH_SIZE = 128;
+
+  /**
+   * The SQL expression for the size of a remote_documents row that is counted in the
+   * collection_sizes table. Also used by SQLiteSchema to populate the table.
+   */
+  static final String DOCUMENT_BYTE_SIZE =
+      EncodedPath.PATH_BYTE_LENGTH + " + IFNULL(length(contents), 0)";
+
   private final SQLitePersistence db;
   private final LocalSerializer serializer;
+  private final SQLiteFieldIndex fieldIndex;
 
   SQLiteRemoteDocumentCache(SQLitePersistence persistence, LocalSerializer serializer) {
     this.db = persistence;
     this.serializer = serializer;
+    this.fieldIndex = new SQLiteFieldIndex(persistence);
   }
 
   @Override
@@ -56,24 +74,81 @@ final class SQLiteRemoteDocumentCache implements RemoteDocumentCache {
     String path = pathForKey(maybeDocument.getKey());
     Timestamp timestamp = readTime.getTimestamp();
     MessageLite message = serializer.encodeMaybeDocument(maybeDocument);
+    byte[] contents = message.toByteArray();
+
+    updateCollectionSize(
+        maybeDocument.getKey(),
+        path,
+        /* documentCount= */ 1,
+        EncodedPath.byteLength(path) + contents.length);
 
     db.execute(
         "INSERT OR REPLACE INTO remote_documents "
-            + "(path, read_time_seconds, read_time_nanos, contents) "
-            + "VALUES (?, ?, ?, ?)",
+            + "(path, path_length, read_time_seconds, read_time_nanos, contents) "
+            + "VALUES (?, ?, ?, ?, ?)",
         path,
+        maybeDocument.getKey().getPath().length(),
         timestamp.getSeconds(),
         timestamp.getNanoseconds(),
-        message.toByteArray());
+        contents);
 
     db.getIndexManager().addToCollectionParentIndex(maybeDocument.getKey().getPath().popLast());
+    fieldIndex.addDocument(maybeDocument);
   }
 
   @Override
   public void remove(DocumentKey documentKey) {
     String path = pathForKey(documentKey);
 
+    updateCollectionSize(documentKey, path, /* documentCount= */ 0, /* byteSize= */ 0);
+
     db.execute("DELETE FROM remote_documents WHERE path = ?", path);
+    fieldIndex.removeDocument(documentKey);
+  }
+
+  /**
+   * Updates the counters of the document's collection in the collection_sizes table for a new row
+   * of the given size that replaces the document's current row, if any. Removals pass a count and
+   * size of zero. Must be called before the row is written or deleted.
+   */
+  private void updateCollectionSize(
+      DocumentKey documentKey, String path, int documentCount, long byteSize) {
+    String collectionPath = EncodedPath.encode(documentKey.getPath().popLast());
+    db.execute(
+        "INSERT OR IGNORE INTO collection_sizes (collection_path, document_count, byte_size) "
+            + "VALUES (?, 0, 0)",
+        collectionPath);
+    db.execute(
+        "UPDATE collection_sizes SET "
+            + "document_count = document_count + ? "
+            + "- (SELECT COUNT(*) FROM remote_documents WHERE path = ?), "
+            + "byte_size = byte_size + ? - IFNULL((SELECT "
+            + DOCUMENT_BYTE_SIZE
+            + " FROM remote_documents WHERE path = ?), 0) "
+            + "WHERE collection_path = ?",
+        documentCount,
+        path,
+        byteSize,
+        path,
+        collectionPath);
+  }
+
+  /**
+   * Returns the approximate size in bytes of the documents in each collection, keyed by the path
+   * of the collection.
+   */
+  Map<ResourcePath, Long> getCollectionByteSizes() {
+    Map<ResourcePath, Long> results = new HashMap<>();
+    db.query("SELECT collection_path, byte_size FROM collection_sizes WHERE document_count > 0")
+        .forEach(
+            row -> results.put(EncodedPath.decodeResourcePath(row.getString(0)), row.getLong(1)));
+    return results;
+  }
+
+  /** Returns the approximate size in bytes of all documents in the cache. */
+  long getByteSize() {
+    return db.query("SELECT IFNULL(SUM(byte_size), 0) FROM collection_sizes")
+        .firstValue(row -> row.getLong(0));
   }
 
   @Nullable
@@ -100,6 +175,24 @@ final class SQLiteRemoteDocumentCache implements RemoteDocumentCache {
       results.put(key, null);
     }
 
+    Consumer<Cursor> rowProcessor =
+        row -> {
+          MaybeDocument decoded = decodeMaybeDocument(row.getBlob(0));
+          results.put(decoded.getKey(), decoded);
+        };
+
+    if (db.useLookupTable(args.size())) {
+      db.withLookupKeys(
+          args,
+          () ->
+              db.query(
+                      "SELECT contents FROM remote_documents WHERE path IN ("
+                          + SQLitePersistence.LOOKUP_KEYS_SUBQUERY
+                          + ")")
+                  .forEach(rowProcessor));
+      return results;
+    }
+
     SQLitePersistence.LongQuery longQuery =
         new SQLitePersistence.LongQuery(
             db,
@@ -108,13 +201,7 @@ final class SQLiteRemoteDocumentCache implements RemoteDocumentCache {
             ") ORDER BY path");
 
     while (longQuery.hasMoreSubqueries()) {
-      longQuery
-          .performNextSubquery()
-          .forEach(
-              row -> {
-                MaybeDocument decoded = decodeMaybeDocument(row.getBlob(0));
-                results.put(decoded.getKey(), decoded);
-              });
+      longQuery.performNextSubquery().forEach(rowProcessor);
     }
 
     return results;
@@ -127,7 +214,8 @@ final class SQLiteRemoteDocumentCache implements RemoteDocumentCache {
         !query.isCollectionGroupQuery(),
         "CollectionGroup queries should be handled in LocalDocumentsView");
 
-    // Use the query path as a prefix for testing if a document matches the query.
+    // Use the query path as a prefix for testing if a document matches the query. The path length
+    // excludes documents in subcollections.
     ResourcePath prefix = query.getPath();
     int immediateChildrenPathLength = prefix.length() + 1;
 
@@ -135,71 +223,121 @@ final class SQLiteRemoteDocumentCache implements RemoteDocumentCache {
     String prefixSuccessorPath = EncodedPath.prefixSuccessor(prefixPath);
     Timestamp readTime = sinceReadTime.getTimestamp();
 
-    BackgroundQueue backgroundQueue = new BackgroundQueue();
-
-    ImmutableSortedMap<DocumentKey, Document>[] matchingDocuments =
-        (ImmutableSortedMap<DocumentKey, Document>[])
-            new ImmutableSortedMap[] {DocumentCollections.emptyDocumentMap()};
+    StringBuilder sql =
+        new StringBuilder(
+            "SELECT contents FROM remote_documents "
+                + "WHERE path_length = ? AND path >= ? AND path < ?");
+    List<Object> args = new ArrayList<>();
+    args.add(immediateChildrenPathLength);
+    args.add(prefixPath);
+    args.add(prefixSuccessorPath);
 
-    SQLitePersistence.Query sqlQuery;
-    if (sinceReadTime.equals(SnapshotVersion.NONE)) {
-      sqlQuery =
-          db.query("SELECT path, contents FROM remote_documents WHERE path >= ? AND path < ?")
-              .binding(prefixPath, prefixSuccessorPath);
-    } else {
+    if (!sinceReadTime.equals(SnapshotVersion.NONE)) {
       // Execute an index-free query and filter by read time. This is safe since all document
       // changes to queries that have a lastLimboFreeSnapshotVersion (`sinceReadTime`) have a read
       // time set.
-      sqlQuery =
-          db.query(
-                  "SELECT path, contents FROM remote_documents WHERE path >= ? AND path < ?"
-                      + "AND (read_time_seconds > ? OR (read_time_seconds = ? AND read_time_nanos > ?))")
-              .binding(
-                  prefixPath,
-                  prefixSuccessorPath,
-                  readTime.getSeconds(),
-                  readTime.getSeconds(),
-                  readTime.getNanoseconds());
+      sql.append(
+          " AND (read_time_seconds > ? OR (read_time_seconds = ? AND read_time_nanos > ?))");
+      args.add(readTime.getSeconds());
+      args.add(readTime.getSeconds());
+      args.add(readTime.getNanoseconds());
     }
-    sqlQuery.forEach(
-        row -> {
-          // TODO: Actually implement a single-collection query
-          //
-          // The query is actually returning any path that starts with the query path prefix
-          // which may include documents in subcollections. For example, a query on 'rooms'
-          // will return rooms/abc/messages/xyx but we shouldn't match it. Fix this by
-          // discarding rows with document keys more than one segment longer than the query
-          // path.
-          ResourcePath path = EncodedPath.decodeResourcePath(row.getString(0));
-          if (path.length() != immediateChildrenPathLength) {
-            return;
-          }
-
-          byte[] rawDocument = row.getBlob(1);
-
-          // Since scheduling background tasks incurs overhead, we only dispatch to a
-          // background thread if there are still some documents remaining.
-          Executor executor = row.isLast() ? Executors.DIRECT_EXECUTOR : backgroundQueue;
-          executor.execute(
-              () -> {
-                MaybeDocument maybeDoc = decodeMaybeDocument(rawDocument);
-
-                if (maybeDoc instanceof Document && query.matches((Document) maybeDoc)) {
-                  synchronized (SQLiteRemoteDocumentCache.this) {
-                    matchingDocuments[0] =
-                        matchingDocuments[0].insert(maybeDoc.getKey(), (Document) maybeDoc);
-                  }
-                }
-              });
-        });
 
-    try {
-      backgroundQueue.drain();
-    } catch (InterruptedException e) {
-      fail("Interrupted while deserializing documents", e);
+    // Only read the documents that have a matching entry in the field index, if the query has a
+    // filter or orderBy that can be served from the index.
+    List<IndexRange> indexRanges = FieldIndexQueryPlanner.planIndexScan(query);
+    if (indexRanges != null) {
+      sql.append(" AND path IN (");
+      SQLiteFieldIndex.appendDocumentPathSubquery(sql, args, prefix, indexRanges);
+      sql.append(")");
+    }
+
+    DecodePipeline pipeline = new DecodePipeline(query);
+    db.query(sql.toString())
+        .binding(args.toArray())
+        .forEach(row -> pipeline.add(row.getBlob(0), row.isLast()));
+    return pipeline.finish();
+  }
+
+  /**
+   * Decodes the rows of a collection scan and filters them by a query.
+   *
+   * <p>Rows are read on the calling thread and decoded in batches. Each batch is decoded on a
+   * background thread into its own list, so that the workers never contend on a shared result.
+   * The number of batches that are decoded at the same time is bounded by the number of cores, and
+   * batches that exceed this limit are decoded on the calling thread. The result map is built once
+   * all batches have been decoded.
+   */
+  private class DecodePipeline {
+    private final Query query;
+    private final BackgroundQueue backgroundQueue =
+        new BackgroundQueue(Executors.BACKGROUND_PARALLELISM);
+    private final List<List<Document>> decodedBatches = new ArrayList<>();
+    private List<byte[]> pendingRows = new ArrayList<>(DECODE_BATCH_SIZE);
+
+    DecodePipeline(Query query) {
+      this.query = query;
     }
 
-    return matchingDocuments[0];
+    void add(byte[] rawDocument, boolean isLast) {
+      pendingRows.add(rawDocument);
+
+      if (isLast || pendingRows.size() == DECODE_BATCH_SIZE) {
+        List<byte[]> rows = pendingRows;
+        List<Document> matches = new ArrayList<>();
+        decodedBatches.add(matches);
+        pendingRows = new ArrayList<>(DECODE_BATCH_SIZE);
+
+        // Since scheduling background tasks incurs overhead, the last batch is decoded on the
+        // calling thread, which would otherwise just be waiting for the background tasks.
+        Executor executor = isLast ? Executors.DIRECT_EXECUTOR : backgroundQueue;
+        executor.execute(() -> decodeBatch(rows, matches));
+      }
+    }
+
+    private void decodeBatch(List<byte[]> rows, List<Document> matches) {
+      for (byte[] rawDocument : rows) {
+        // Documents are decoded lazily, so that documents that don't match the query only decode
+        // the fields that are needed to evaluate its filters and orderBys.
+        MaybeDocument maybeDoc = decodeMaybeDocumentLazily(rawDocument);
+        if (maybeDoc instanceof Document && query.matches((Document) maybeDoc)) {
+          matches.add((Document) maybeDoc);
+        }
+      }
+    }
+
+    ImmutableSortedMap<DocumentKey, Document> finish() {
+      try {
+        backgroundQueue.drain();
+      } catch (InterruptedException e) {
+        fail("Interrupted while deserializing documents", e);
+      }
+
+      int matchCount = 0;
+      for (List<Document> matches : decodedBatches) {
+        matchCount += matches.size();
+      }
+
+      if (matchCount == 0) {
+        return DocumentCollections.emptyDocumentMap();
+      }
+
+      Map<DocumentKey, Document> matchingDocuments = new HashMap<>(matchCount * 2);
+      for (List<Document> matches : decodedBatches) {
+        for (Document document : matches) {
+          matchingDocuments.put(document.getKey(), document);
+        }
+      }
+      return ImmutableSortedMap.Builder.fromMap(matchingDocuments, DocumentKey.comparator());
+    }
+  }
+
+  private MaybeDocument decodeMaybeDocumentLazily(byte[] bytes) {
+    try {
+      return serializer.decodeMaybeDocumentLazily(bytes);
+    } catch (IOException e) {
+      throw fail("MaybeDocument failed to parse: %s", e);
+    }
   }
 
   private String pathForKey(DocumentKey key) {
@@ -209,8 +347,9 @@ final class SQLiteRemoteDocumentCache implements RemoteDocumentCache {
   private MaybeDocument decodeMaybeDocument(byte[] bytes) {
     try {
       return serializer.decodeMaybeDocument(
-          com.google.firebase.firestore.proto.MaybeDocument.parseFrom(bytes));
-    } catch (InvalidProtocolBufferException e) {
+          com.google.firebase.firestore.proto.MaybeDocument.parseFrom(
+              LocalSerializer.newAliasingInput(bytes)));
+    } catch (IOException e) {
       throw fail("MaybeDocument failed to parse: %s", e);
     }
   }
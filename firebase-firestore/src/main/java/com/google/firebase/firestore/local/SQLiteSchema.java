@@ -24,14 +24,22 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteStatement;
 import android.text.TextUtils;
 import android.util.Log;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
+import com.google.firebase.firestore.model.Document;
+import com.google.firebase.firestore.model.DocumentKey;
+import com.google.firebase.firestore.model.MaybeDocument;
 import com.google.firebase.firestore.model.ResourcePath;
+import com.google.firebase.firestore.model.mutation.MutationBatch;
 import com.google.firebase.firestore.proto.Target;
 import com.google.firebase.firestore.util.Consumer;
 import com.google.firebase.firestore.util.Preconditions;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Migrates schemas from version 0 (empty) to whatever the current version is.
@@ -49,19 +57,20 @@ class SQLiteSchema {
    * The version of the schema. Increase this by one for each migration added to runMigrations
    * below.
    */
-  static final int VERSION = 11;
+  static final int VERSION = 17;
 
   // Remove this constant and increment VERSION to enable indexing support
   static final int INDEXING_SUPPORT_VERSION = VERSION + 1;
 
   /**
-   * The batch size for the sequence number migration in `ensureSequenceNumbers()`.
+   * The batch size for data migrations that touch every document in the remote document cache, such
+   * as `ensureSequenceNumbers()` and `ensurePathLength()`.
    *
    * <p>This addresses https://github.com/firebase/firebase-android-sdk/issues/370, where a customer
    * reported that schema migrations failed for clients with thousands of documents. The number has
    * been chosen based on manual experiments.
    */
-  private static final int SEQUENCE_NUMBER_BATCH_SIZE = 100;
+  private static final int MIGRATION_BATCH_SIZE = 100;
 
   private final SQLiteDatabase db;
 
@@ -158,6 +167,47 @@ class SQLiteSchema {
       rewriteCanonicalIds();
     }
 
+    if (fromVersion < 12 && toVersion >= 12) {
+      createV12FieldIndex();
+      // Older versions of the SDK don't maintain the field index. Rebuild it from scratch, even if
+      // the table already existed.
+      populateFieldIndex();
+    }
+
+    if (fromVersion < 13 && toVersion >= 13) {
+      addPathLength();
+      // Older versions of the SDK don't populate the path length. Fill it in for all documents that
+      // were written without it.
+      ensurePathLength();
+    }
+
+    if (fromVersion < 14 && toVersion >= 14) {
+      // Older versions of the SDK don't maintain the target results. This is safe, since the
+      // results are only used as a hint for sorting query results.
+      createV14TargetResults();
+    }
+
+    if (fromVersion < 15 && toVersion >= 15) {
+      createV15DocumentOverlays();
+      // Older versions of the SDK don't maintain the overlays. Rebuild them from the mutation
+      // queues, even if the table already existed.
+      populateDocumentOverlays();
+    }
+
+    if (fromVersion < 16 && toVersion >= 16) {
+      createV16OrphanedDocuments();
+      // Older versions of the SDK don't maintain the orphaned documents. Rebuild them from scratch,
+      // even if the table already existed.
+      populateOrphanedDocuments();
+    }
+
+    if (fromVersion < 17 && toVersion >= 17) {
+      createV17CacheSizes();
+      // Older versions of the SDK don't maintain the byte counters. Recalculate them from scratch,
+      // even if the tables already existed.
+      populateCacheSizes();
+    }
+
     /*
      * Adding a new migration? READ THIS FIRST!
      *
@@ -353,6 +403,283 @@ class SQLiteSchema {
         });
   }
 
+  private void createV12FieldIndex() {
+    ifTablesDontExist(
+        new String[] {"field_index"},
+        () -> {
+          // An index of all field values of the documents in the remote document cache. See
+          // SQLiteFieldIndex for the encoding of the values.
+          db.execSQL(
+              "CREATE TABLE field_index ("
+                  + "collection_path TEXT, "
+                  + "field_path TEXT, "
+                  + "array_element INTEGER, " // 1 for entries of array elements, 0 otherwise.
+                  + "type_order INTEGER, "
+                  + "value, "
+                  + "document_path TEXT, "
+                  + "PRIMARY KEY (collection_path, field_path, array_element, type_order, value, "
+                  + "document_path))");
+
+          // The reverse mapping, used to remove all index entries of a document.
+          db.execSQL("CREATE INDEX field_index_documents ON field_index (document_path)");
+        });
+  }
+
+  private void populateFieldIndex() {
+    db.execSQL("DELETE FROM field_index");
+
+    SQLiteStatement inserter = db.compileStatement(SQLiteFieldIndex.INSERT_ENTRY);
+    new SQLitePersistence.Query(db, "SELECT contents FROM remote_documents")
+        .forEach(
+            row -> {
+              try {
+                MaybeDocument maybeDocument =
+                    serializer.decodeMaybeDocument(
+                        com.google.firebase.firestore.proto.MaybeDocument.parseFrom(
+                            row.getBlob(0)));
+                if (maybeDocument instanceof Document) {
+                  SQLiteFieldIndex.writeEntries(inserter, (Document) maybeDocument);
+                }
+              } catch (InvalidProtocolBufferException e) {
+                throw fail("MaybeDocument failed to parse: %s", e);
+              }
+            });
+  }
+
+  private void addPathLength() {
+    if (!tableContainsColumn("remote_documents", "path_length")) {
+      db.execSQL("ALTER TABLE remote_documents ADD COLUMN path_length INTEGER");
+    }
+
+    // Allows collection scans to only read the immediate children of a collection instead of all
+    // documents in its subcollections.
+    db.execSQL(
+        "CREATE INDEX IF NOT EXISTS remote_documents_path_length "
+            + "ON remote_documents (path_length, path)");
+  }
+
+  /** Populates the path_length column for all remote documents that don't have one. */
+  private void ensurePathLength() {
+    SQLiteStatement setPathLength =
+        db.compileStatement("UPDATE remote_documents SET path_length = ? WHERE path = ?");
+
+    SQLitePersistence.Query documentsWithoutPathLengthQuery =
+        new SQLitePersistence.Query(
+                db, "SELECT path FROM remote_documents WHERE path_length IS NULL LIMIT ?")
+            .binding(MIGRATION_BATCH_SIZE);
+
+    boolean[] resultsRemaining = new boolean[1];
+
+    do {
+      resultsRemaining[0] = false;
+
+      documentsWithoutPathLengthQuery.forEach(
+          row -> {
+            resultsRemaining[0] = true;
+            String encodedPath = row.getString(0);
+            setPathLength.clearBindings();
+            setPathLength.bindLong(1, EncodedPath.decodeResourcePath(encodedPath).length());
+            setPathLength.bindString(2, encodedPath);
+            hardAssert(
+                setPathLength.executeUpdateDelete() == 1, "Failed to set a document's path length");
+          });
+    } while (resultsRemaining[0]);
+  }
+
+  private void createV14TargetResults() {
+    ifTablesDontExist(
+        new String[] {"target_results"},
+        () -> {
+          // The ordered results of each target, as last seen by a view without limbo documents.
+          db.execSQL(
+              "CREATE TABLE target_results (target_id INTEGER PRIMARY KEY, results_proto BLOB)");
+        });
+  }
+
+  private void createV15DocumentOverlays() {
+    ifTablesDontExist(
+        new String[] {"document_overlays"},
+        () -> {
+          // The local view of each document with pending mutations. A null contents value means
+          // that the document doesn't exist in the local view.
+          db.execSQL(
+              "CREATE TABLE document_overlays ("
+                  + "uid TEXT, "
+                  + "path TEXT, "
+                  + "collection_path TEXT, "
+                  + "has_local_mutations INTEGER, "
+                  + "contents BLOB, "
+                  + "PRIMARY KEY (uid, path))");
+
+          db.execSQL(
+              "CREATE INDEX document_overlays_collection_path_index "
+                  + "ON document_overlays (uid, collection_path)");
+        });
+  }
+
+  private void populateDocumentOverlays() {
+    db.execSQL("DELETE FROM document_overlays");
+
+    // The batches of each user, in the order in which they are applied.
+    Map<String, List<MutationBatch>> batchesByUser = new HashMap<>();
+    new SQLitePersistence.Query(db, "SELECT uid, batch_id FROM mutations ORDER BY batch_id")
+        .forEach(
+            row -> {
+              String uid = row.getString(0);
+              List<MutationBatch> batches = batchesByUser.get(uid);
+              if (batches == null) {
+                batches = new ArrayList<>();
+                batchesByUser.put(uid, batches);
+              }
+              batches.add(readMutationBatch(uid, row.getInt(1)));
+            });
+
+    SQLiteStatement inserter = db.compileStatement(SQLiteDocumentOverlayCache.INSERT_OVERLAY);
+    for (Map.Entry<String, List<MutationBatch>> entry : batchesByUser.entrySet()) {
+      // Start from the remote state of each document and apply all batches on top of it.
+      Map<DocumentKey, MaybeDocument> localViews = new HashMap<>();
+      for (MutationBatch batch : entry.getValue()) {
+        for (DocumentKey key : batch.getKeys()) {
+          if (!localViews.containsKey(key)) {
+            localViews.put(key, readRemoteDocument(key));
+          }
+          localViews.put(key, batch.applyToLocalView(key, localViews.get(key)));
+        }
+      }
+
+      for (Map.Entry<DocumentKey, MaybeDocument> localView : localViews.entrySet()) {
+        SQLiteDocumentOverlayCache.writeOverlay(
+            inserter, serializer, entry.getKey(), localView.getKey(), localView.getValue());
+      }
+    }
+  }
+
+  /**
+   * Reads a mutation batch in chunks of {@link SQLiteMutationQueue#BLOB_MAX_INLINE_LENGTH} bytes,
+   * since large blobs don't fit into a single cursor window.
+   */
+  private MutationBatch readMutationBatch(String uid, int batchId) {
+    ByteString.Output bytes = ByteString.newOutput();
+    int chunkLength;
+    do {
+      byte[] chunk =
+          new SQLitePersistence.Query(
+                  db,
+                  "SELECT SUBSTR(mutations, ?, ?) FROM mutations WHERE uid = ? AND batch_id = ?")
+              .binding(bytes.size() + 1, SQLiteMutationQueue.BLOB_MAX_INLINE_LENGTH, uid, batchId)
+              .firstValue(row -> row.getBlob(0));
+      bytes.write(chunk, 0, chunk.length);
+      chunkLength = chunk.length;
+    } while (chunkLength == SQLiteMutationQueue.BLOB_MAX_INLINE_LENGTH);
+
+    try {
+      return serializer.decodeMutationBatch(
+          com.google.firebase.firestore.proto.WriteBatch.parseFrom(bytes.toByteString()));
+    } catch (InvalidProtocolBufferException e) {
+      throw fail("MutationBatch failed to parse: %s", e);
+    }
+  }
+
+  @Nullable
+  private MaybeDocument readRemoteDocument(DocumentKey key) {
+    return new SQLitePersistence.Query(db, "SELECT contents FROM remote_documents WHERE path = ?")
+        .binding(EncodedPath.encode(key.getPath()))
+        .firstValue(
+            row -> {
+              try {
+                return serializer.decodeMaybeDocument(
+                    com.google.firebase.firestore.proto.MaybeDocument.parseFrom(row.getBlob(0)));
+              } catch (InvalidProtocolBufferException e) {
+                throw fail("MaybeDocument failed to parse: %s", e);
+              }
+            });
+  }
+
+  private void createV16OrphanedDocuments() {
+    ifTablesDontExist(
+        new String[] {"orphaned_documents"},
+        () -> {
+          // The documents that are only referenced by their sentinel row in target_documents, keyed
+          // by the sentinel's sequence number. Used by LRU garbage collection to find collectable
+          // documents without grouping all of target_documents.
+          db.execSQL(
+              "CREATE TABLE orphaned_documents ("
+                  + "path TEXT PRIMARY KEY, "
+                  + "sequence_number INTEGER)");
+
+          db.execSQL(
+              "CREATE INDEX orphaned_documents_sequence_number_index "
+                  + "ON orphaned_documents (sequence_number)");
+        });
+  }
+
+  private void populateOrphanedDocuments() {
+    db.execSQL("DELETE FROM orphaned_documents");
+    db.execSQL(
+        "INSERT INTO orphaned_documents (path, sequence_number) "
+            + "SELECT path, sequence_number FROM target_documents "
+            + "GROUP BY path HAVING COUNT(*) = 1 AND target_id = 0");
+  }
+
+  private void createV17CacheSizes() {
+    ifTablesDontExist(
+        new String[] {"collection_sizes", "target_sizes"},
+        () -> {
+          // Running counters of the number of documents and their size in bytes for each
+          // collection in the remote document cache.
+          db.execSQL(
+              "CREATE TABLE collection_sizes ("
+                  + "collection_path TEXT PRIMARY KEY, "
+                  + "document_count INTEGER, "
+                  + "byte_size INTEGER)");
+
+          // Running counters of the size in bytes of each target and its document associations.
+          db.execSQL(
+              "CREATE TABLE target_sizes (target_id INTEGER PRIMARY KEY, byte_size INTEGER)");
+        });
+  }
+
+  private void populateCacheSizes() {
+    db.execSQL("DELETE FROM collection_sizes");
+
+    // Each entry holds the document count and byte size of a collection.
+    Map<String, long[]> collectionSizes = new HashMap<>();
+    String sql =
+        "SELECT path, " + SQLiteRemoteDocumentCache.DOCUMENT_BYTE_SIZE + " FROM remote_documents";
+    new SQLitePersistence.Query(db, sql)
+        .forEach(
+            row -> {
+              ResourcePath path = EncodedPath.decodeResourcePath(row.getString(0));
+              String collectionPath = EncodedPath.encode(path.popLast());
+              long[] sizes = collectionSizes.get(collectionPath);
+              if (sizes == null) {
+                sizes = new long[2];
+                collectionSizes.put(collectionPath, sizes);
+              }
+              sizes[0]++;
+              sizes[1] += row.getLong(1);
+            });
+
+    for (Map.Entry<String, long[]> entry : collectionSizes.entrySet()) {
+      db.execSQL(
+          "INSERT INTO collection_sizes (collection_path, document_count, byte_size) "
+              + "VALUES (?, ?, ?)",
+          new Object[] {entry.getKey(), entry.getValue()[0], entry.getValue()[1]});
+    }
+
+    db.execSQL("DELETE FROM target_sizes");
+    db.execSQL(
+        "INSERT INTO target_sizes (target_id, byte_size) "
+            + "SELECT target_id, length(target_proto) "
+            + "+ IFNULL((SELECT SUM("
+            + EncodedPath.PATH_BYTE_LENGTH
+            + ") FROM target_documents AS D "
+            + "WHERE D.target_id = T.target_id), 0) "
+            + "+ IFNULL((SELECT length(results_proto) FROM target_results AS R "
+            + "WHERE R.target_id = T.target_id), 0) "
+            + "FROM targets AS T");
+  }
+
   // Note that this runs before we add the target count column, so we don't populate it yet.
   private void ensureTargetGlobal() {
     boolean targetGlobalExists = DatabaseUtils.queryNumEntries(db, "target_globals") == 1;
@@ -442,7 +769,7 @@ class SQLiteSchema {
                     + "SELECT TD.path FROM target_documents AS TD "
                     + "WHERE RD.path = TD.path AND TD.target_id = 0"
                     + ") LIMIT ?")
-            .binding(SEQUENCE_NUMBER_BATCH_SIZE);
+            .binding(MIGRATION_BATCH_SIZE);
 
     boolean[] resultsRemaining = new boolean[1];
 
@@ -27,6 +27,7 @@ import com.google.firebase.firestore.model.DocumentKey;
 import com.google.firebase.firestore.model.SnapshotVersion;
 import com.google.firebase.firestore.util.Consumer;
 import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.IOException;
 
 /** Cached Queries backed by SQLite. */
 final class SQLiteTargetCache implements TargetCache {
@@ -101,6 +102,16 @@ final class SQLiteTargetCache implements TargetCache {
 
     com.google.firebase.firestore.proto.Target targetProto =
         localSerializer.encodeTargetData(targetData);
+    byte[] targetBytes = targetProto.toByteArray();
+
+    db.execute("INSERT OR IGNORE INTO target_sizes (target_id, byte_size) VALUES (?, 0)", targetId);
+    db.execute(
+        "UPDATE target_sizes SET byte_size = byte_size + ? "
+            + "- IFNULL((SELECT length(target_proto) FROM targets WHERE target_id = ?), 0) "
+            + "WHERE target_id = ?",
+        targetBytes.length,
+        targetId,
+        targetId);
 
     db.execute(
         "INSERT OR REPLACE INTO targets ("
@@ -118,7 +129,30 @@ final class SQLiteTargetCache implements TargetCache {
         version.getNanoseconds(),
         targetData.getResumeToken().toByteArray(),
         targetData.getSequenceNumber(),
-        targetProto.toByteArray());
+        targetBytes);
+  }
+
+  /**
+   * Adds the given number of bytes to the counter of the target in the target_sizes table. Each
+   * target counts the size of its target proto, its last results and the paths of its matching
+   * documents.
+   */
+  private void updateTargetSize(int targetId, long byteSizeDelta) {
+    if (byteSizeDelta != 0) {
+      db.execute(
+          "UPDATE target_sizes SET byte_size = byte_size + ? WHERE target_id = ?",
+          byteSizeDelta,
+          targetId);
+    }
+  }
+
+  /**
+   * Returns the approximate size in bytes of all targets, including their matching documents'
+   * paths but not the documents themselves.
+   */
+  long getByteSize() {
+    return db.query("SELECT IFNULL(SUM(byte_size), 0) FROM target_sizes")
+        .firstValue(row -> row.getLong(0));
   }
 
   private boolean updateMetadata(TargetData targetData) {
@@ -170,7 +204,9 @@ final class SQLiteTargetCache implements TargetCache {
 
   private void removeTarget(int targetId) {
     removeMatchingKeysForTargetId(targetId);
+    db.execute("DELETE FROM target_results WHERE target_id = ?", targetId);
     db.execute("DELETE FROM targets WHERE target_id = ?", targetId);
+    db.execute("DELETE FROM target_sizes WHERE target_id = ?", targetId);
     targetCount--;
   }
 
@@ -236,8 +272,9 @@ final class SQLiteTargetCache implements TargetCache {
   private TargetData decodeTargetData(byte[] bytes) {
     try {
       return localSerializer.decodeTargetData(
-          com.google.firebase.firestore.proto.Target.parseFrom(bytes));
-    } catch (InvalidProtocolBufferException e) {
+          com.google.firebase.firestore.proto.Target.parseFrom(
+              LocalSerializer.newAliasingInput(bytes)));
+    } catch (IOException e) {
       throw fail("TargetData failed to parse: %s", e);
     }
   }
@@ -257,11 +294,15 @@ final class SQLiteTargetCache implements TargetCache {
         db.prepare("INSERT OR IGNORE INTO target_documents (target_id, path) VALUES (?, ?)");
 
     ReferenceDelegate delegate = db.getReferenceDelegate();
+    long addedBytes = 0;
     for (DocumentKey key : keys) {
       String path = EncodedPath.encode(key.getPath());
-      db.execute(inserter, targetId, path);
+      if (db.execute(inserter, targetId, path) > 0) {
+        addedBytes += EncodedPath.byteLength(path);
+      }
       delegate.addReference(key);
     }
+    updateTargetSize(targetId, addedBytes);
   }
 
   @Override
@@ -271,14 +312,28 @@ final class SQLiteTargetCache implements TargetCache {
         db.prepare("DELETE FROM target_documents WHERE target_id = ? AND path = ?");
 
     ReferenceDelegate delegate = db.getReferenceDelegate();
+    long removedBytes = 0;
     for (DocumentKey key : keys) {
       String path = EncodedPath.encode(key.getPath());
-      db.execute(deleter, targetId, path);
+      if (db.execute(deleter, targetId, path) > 0) {
+        removedBytes += EncodedPath.byteLength(path);
+      }
       delegate.removeReference(key);
     }
+    updateTargetSize(targetId, -removedBytes);
   }
 
   private void removeMatchingKeysForTargetId(int targetId) {
+    // Documents that don't belong to any other target become orphaned. Their sentinel rows keep the
+    // sequence number of their last use (see SQLiteLruReferenceDelegate).
+    db.execute(
+        "INSERT OR REPLACE INTO orphaned_documents (path, sequence_number) "
+            + "SELECT S.path, S.sequence_number FROM target_documents AS T "
+            + "JOIN target_documents AS S ON S.target_id = 0 AND S.path = T.path "
+            + "WHERE T.target_id = ? AND NOT EXISTS (SELECT 1 FROM target_documents AS O "
+            + "WHERE O.path = T.path AND O.target_id != 0 AND O.target_id != ?)",
+        targetId,
+        targetId);
     db.execute("DELETE FROM target_documents WHERE target_id = ?", targetId);
   }
 
@@ -301,6 +356,39 @@ final class SQLiteTargetCache implements TargetCache {
     ImmutableSortedSet<DocumentKey> keys = DocumentKey.emptyKeySet();
   }
 
+  @Override
+  public void setTargetResults(int targetId, TargetResults results) {
+    byte[] resultsBytes = localSerializer.encodeTargetResults(results).toByteArray();
+    db.execute(
+        "UPDATE target_sizes SET byte_size = byte_size + ? "
+            + "- IFNULL((SELECT length(results_proto) FROM target_results WHERE target_id = ?), 0) "
+            + "WHERE target_id = ?",
+        resultsBytes.length,
+        targetId,
+        targetId);
+    db.execute(
+        "INSERT OR REPLACE INTO target_results (target_id, results_proto) VALUES (?, ?)",
+        targetId,
+        resultsBytes);
+  }
+
+  @Nullable
+  @Override
+  public TargetResults getTargetResults(int targetId) {
+    return db.query("SELECT results_proto FROM target_results WHERE target_id = ?")
+        .binding(targetId)
+        .firstValue(row -> decodeTargetResults(row.getBlob(0)));
+  }
+
+  private TargetResults decodeTargetResults(byte[] bytes) {
+    try {
+      return localSerializer.decodeTargetResults(
+          com.google.firebase.firestore.proto.TargetResults.parseFrom(bytes));
+    } catch (InvalidProtocolBufferException e) {
+      throw fail("TargetResults failed to parse: %s", e);
+    }
+  }
+
   @Override
   public boolean containsKey(DocumentKey key) {
     String path = EncodedPath.encode(key.getPath());
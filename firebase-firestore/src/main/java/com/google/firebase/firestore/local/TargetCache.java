@@ -110,6 +110,16 @@ interface TargetCache {
 
   ImmutableSortedSet<DocumentKey> getMatchingKeysForTargetId(int targetId);
 
+  /**
+   * Stores the ordered results of the given target ID, replacing any results that were previously
+   * stored for it. The results are removed together with the target.
+   */
+  void setTargetResults(int targetId, TargetResults results);
+
+  /** Returns the results last stored for the given target ID, or null if there are none. */
+  @Nullable
+  TargetResults getTargetResults(int targetId);
+
   /** @return True if the document is part of any target */
   boolean containsKey(DocumentKey key);
 }
@@ -0,0 +1,61 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.local;
+
+import com.google.firebase.firestore.model.DocumentKey;
+import java.util.List;
+
+/**
+ * The keys of the documents that matched a target when its query view was last free of limbo
+ * documents, in the order of the view's query.
+ *
+ * <p>The order is only a hint for sorting the results when the query is executed again. Documents
+ * that were modified after the keys were stored may no longer sort in this order.
+ */
+final class TargetResults {
+  private final List<DocumentKey> orderedKeys;
+
+  TargetResults(List<DocumentKey> orderedKeys) {
+    this.orderedKeys = orderedKeys;
+  }
+
+  /** Returns the keys of the matching documents, sorted by the target's query. */
+  List<DocumentKey> getOrderedKeys() {
+    return orderedKeys;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+
+    TargetResults that = (TargetResults) o;
+    return orderedKeys.equals(that.orderedKeys);
+  }
+
+  @Override
+  public int hashCode() {
+    return orderedKeys.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "TargetResults{orderedKeys=" + orderedKeys + '}';
+  }
+}
@@ -18,6 +18,8 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import com.google.firestore.v1.Value;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Represents a document in Firestore with a key, version, data and whether the data has local
@@ -35,6 +37,19 @@ public final class Document extends MaybeDocument {
     SYNCED
   }
 
+  /**
+   * Decodes the data of a document on demand. Used for documents that are read from storage but
+   * may only be inspected by a query filter.
+   */
+  public interface DataDecoder {
+    /** Decodes the value of the given top-level field, or returns null if the field is not set. */
+    @Nullable
+    Value decodeField(String fieldName);
+
+    /** Decodes all fields of the document. */
+    ObjectValue decodeData();
+  }
+
   private static final Comparator<Document> KEY_COMPARATOR =
       (left, right) -> left.getKey().compareTo(right.getKey());
 
@@ -44,7 +59,12 @@ public final class Document extends MaybeDocument {
   }
 
   private final DocumentState documentState;
-  private ObjectValue objectValue;
+
+  // Either objectValue is set, or the data is decoded on demand by dataDecoder. Top-level fields
+  // that are accessed before the full data is decoded are cached in decodedFields.
+  private volatile @Nullable ObjectValue objectValue;
+  private @Nullable DataDecoder dataDecoder;
+  private @Nullable Map<String, Value> decodedFields;
 
   public Document(
       DocumentKey key,
@@ -56,13 +76,66 @@ public final class Document extends MaybeDocument {
     this.objectValue = objectValue;
   }
 
+  /**
+   * Creates a document whose data is decoded by {@code dataDecoder}. Fields are decoded
+   * individually as they are accessed via {@link #getField}, and all data is decoded on the first
+   * call to {@link #getData}.
+   */
+  public Document(
+      DocumentKey key,
+      SnapshotVersion version,
+      DocumentState documentState,
+      DataDecoder dataDecoder) {
+    super(key, version);
+    this.documentState = documentState;
+    this.dataDecoder = dataDecoder;
+  }
+
   @NonNull
   public ObjectValue getData() {
-    return objectValue;
+    ObjectValue data = objectValue;
+    if (data == null) {
+      synchronized (this) {
+        if (objectValue == null) {
+          objectValue = dataDecoder.decodeData();
+          dataDecoder = null;
+          decodedFields = null;
+        }
+        data = objectValue;
+      }
+    }
+    return data;
   }
 
   public @Nullable Value getField(FieldPath path) {
-    return objectValue.get(path);
+    ObjectValue data = objectValue;
+    if (data != null) {
+      return data.get(path);
+    } else if (path.isEmpty()) {
+      return getData().get(path);
+    }
+
+    Value value = getDecodedField(path.getFirstSegment());
+    for (int i = 1; i < path.length(); ++i) {
+      if (!Values.isMapValue(value)) {
+        return null;
+      }
+      value = value.getMapValue().getFieldsOrDefault(path.getSegment(i), null);
+    }
+    return value;
+  }
+
+  private synchronized @Nullable Value getDecodedField(String fieldName) {
+    if (objectValue != null) {
+      return objectValue.getFieldsMap().get(fieldName);
+    }
+    if (decodedFields == null) {
+      decodedFields = new HashMap<>();
+    }
+    if (!decodedFields.containsKey(fieldName)) {
+      decodedFields.put(fieldName, dataDecoder.decodeField(fieldName));
+    }
+    return decodedFields.get(fieldName);
   }
 
   public boolean hasLocalMutations() {
@@ -92,7 +165,7 @@ public final class Document extends MaybeDocument {
     return getVersion().equals(document.getVersion())
         && getKey().equals(document.getKey())
         && documentState.equals(document.documentState)
-        && objectValue.equals(document.objectValue);
+        && getData().equals(document.getData());
   }
 
   @Override
@@ -100,7 +173,7 @@ public final class Document extends MaybeDocument {
     int result = getKey().hashCode();
     result = 31 * result + getVersion().hashCode();
     result = 31 * result + documentState.hashCode();
-    result = 31 * result + objectValue.hashCode();
+    result = 31 * result + getData().hashCode();
     return result;
   }
 
@@ -23,8 +23,10 @@ import com.google.firebase.database.collection.ImmutableSortedSet;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * An immutable set of documents (unique by key) ordered by the given comparator or ordered by key
@@ -47,7 +49,9 @@ public final class DocumentSet implements Iterable<Document> {
         };
 
     return new DocumentSet(
-        emptyDocumentMap(), new ImmutableSortedSet<>(Collections.emptyList(), adjustedComparator));
+        emptyDocumentMap(),
+        new ImmutableSortedSet<>(Collections.emptyList(), adjustedComparator),
+        adjustedComparator);
   }
 
   /**
@@ -64,10 +68,16 @@ public final class DocumentSet implements Iterable<Document> {
    */
   private final ImmutableSortedSet<Document> sortedSet;
 
+  /** The comparator of {@link #sortedSet}, which is needed to build new sets in bulk. */
+  private final Comparator<Document> comparator;
+
   private DocumentSet(
-      ImmutableSortedMap<DocumentKey, Document> keyIndex, ImmutableSortedSet<Document> sortedSet) {
+      ImmutableSortedMap<DocumentKey, Document> keyIndex,
+      ImmutableSortedSet<Document> sortedSet,
+      Comparator<Document> comparator) {
     this.keyIndex = keyIndex;
     this.sortedSet = sortedSet;
+    this.comparator = comparator;
   }
 
   public int size() {
@@ -148,7 +158,38 @@ public final class DocumentSet implements Iterable<Document> {
     ImmutableSortedMap<DocumentKey, Document> newKeyIndex =
         removed.keyIndex.insert(document.getKey(), document);
     ImmutableSortedSet<Document> newSortedSet = removed.sortedSet.insert(document);
-    return new DocumentSet(newKeyIndex, newSortedSet);
+    return new DocumentSet(newKeyIndex, newSortedSet, comparator);
+  }
+
+  /**
+   * Returns a new DocumentSet that contains the documents of this set and the given documents. The
+   * given documents must have unique keys that are not contained in this set.
+   *
+   * <p>The new set is built in bulk, which is faster than adding the documents one at a time.
+   * Sorting the documents is fastest if they are mostly in the order of this set already.
+   */
+  public DocumentSet addAll(List<Document> documents) {
+    if (documents.isEmpty()) {
+      return this;
+    }
+
+    List<Document> allDocuments = new ArrayList<>(size() + documents.size());
+    Map<DocumentKey, Document> documentsByKey = new HashMap<>();
+    for (Document document : this) {
+      allDocuments.add(document);
+      documentsByKey.put(document.getKey(), document);
+    }
+    for (Document document : documents) {
+      if (documentsByKey.put(document.getKey(), document) != null) {
+        throw new IllegalArgumentException("Key already contained in DocumentSet: " + document);
+      }
+      allDocuments.add(document);
+    }
+
+    ImmutableSortedMap<DocumentKey, Document> newKeyIndex =
+        ImmutableSortedMap.Builder.fromMap(documentsByKey, DocumentKey.comparator());
+    ImmutableSortedSet<Document> newSortedSet = new ImmutableSortedSet<>(allDocuments, comparator);
+    return new DocumentSet(newKeyIndex, newSortedSet, comparator);
   }
 
   /** Returns a new DocumentSet with the document for the provided key removed. */
@@ -160,7 +201,7 @@ public final class DocumentSet implements Iterable<Document> {
 
     ImmutableSortedMap<DocumentKey, Document> newKeyIndex = keyIndex.remove(key);
     ImmutableSortedSet<Document> newSortedSet = sortedSet.remove(document);
-    return new DocumentSet(newKeyIndex, newSortedSet);
+    return new DocumentSet(newKeyIndex, newSortedSet, comparator);
   }
 
   /**
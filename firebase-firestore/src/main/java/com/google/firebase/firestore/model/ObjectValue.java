@@ -25,9 +25,19 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
-/** A structured object value stored in Firestore. */
+/**
+ * A structured object value stored in Firestore.
+ *
+ * <p>ObjectValues created by a {@link Builder} record the modified fields on top of the object the
+ * builder was based on, and only build the resulting protobuf when it is first needed. This way,
+ * applying a series of mutations to a large document doesn't copy the document for every mutation.
+ */
 public class ObjectValue {
-  private Value internalValue;
+  // Either internalValue is set, or the value is the result of applying pendingOverlay to
+  // baseObject and is built on first access. See Builder.overlayMap for the overlay format.
+  private volatile @Nullable Value internalValue;
+  private @Nullable ObjectValue baseObject;
+  private @Nullable Map<String, Object> pendingOverlay;
 
   private static final ObjectValue EMPTY_INSTANCE =
       new ObjectValue(Value.newBuilder().setMapValue(MapValue.getDefaultInstance()).build());
@@ -47,6 +57,11 @@ public class ObjectValue {
     this.internalValue = value;
   }
 
+  private ObjectValue(ObjectValue baseObject, Map<String, Object> pendingOverlay) {
+    this.baseObject = baseObject;
+    this.pendingOverlay = pendingOverlay;
+  }
+
   public static ObjectValue emptyObject() {
     return EMPTY_INSTANCE;
   }
@@ -57,12 +72,12 @@ public class ObjectValue {
   }
 
   public Map<String, Value> getFieldsMap() {
-    return internalValue.getMapValue().getFieldsMap();
+    return getProto().getMapValue().getFieldsMap();
   }
 
   /** Recursively extracts the FieldPaths that are set in this ObjectValue. */
   public FieldMask getFieldMask() {
-    return extractFieldMask(internalValue.getMapValue());
+    return extractFieldMask(getProto().getMapValue());
   }
 
   private FieldMask extractFieldMask(MapValue value) {
@@ -95,23 +110,69 @@ public class ObjectValue {
    * @return The value at the path or null if it doesn't exist.
    */
   public @Nullable Value get(FieldPath fieldPath) {
-    if (fieldPath.isEmpty()) {
-      return internalValue;
-    } else {
-      Value value = internalValue;
-      for (int i = 0; i < fieldPath.length() - 1; ++i) {
-        value = value.getMapValue().getFieldsOrDefault(fieldPath.getSegment(i), null);
-        if (!Values.isMapValue(value)) {
-          return null;
+    if (internalValue == null) {
+      synchronized (this) {
+        if (internalValue == null) {
+          return getFromOverlay(fieldPath);
         }
       }
-      return value.getMapValue().getFieldsOrDefault(fieldPath.getLastSegment(), null);
     }
+    return extractValue(getProto(), fieldPath);
+  }
+
+  /**
+   * Returns the value at the given path without building the protobuf, unless the path points to a
+   * map that has modified fields.
+   */
+  private @Nullable Value getFromOverlay(FieldPath fieldPath) {
+    Map<String, Object> currentLevel = pendingOverlay;
+    for (int i = 0; i < fieldPath.length(); ++i) {
+      String segment = fieldPath.getSegment(i);
+      if (!currentLevel.containsKey(segment)) {
+        return baseObject.get(fieldPath);
+      }
+
+      Object value = currentLevel.get(segment);
+      if (value instanceof Value) {
+        return extractValue((Value) value, fieldPath.popFirst(i + 1));
+      } else if (value == null) {
+        return null;
+      } else if (i < fieldPath.length() - 1) {
+        currentLevel = (Map<String, Object>) value;
+      }
+    }
+    return extractValue(getProto(), fieldPath);
+  }
+
+  private static @Nullable Value extractValue(Value value, FieldPath fieldPath) {
+    for (int i = 0; i < fieldPath.length(); ++i) {
+      if (!Values.isMapValue(value)) {
+        return null;
+      }
+      value = value.getMapValue().getFieldsOrDefault(fieldPath.getSegment(i), null);
+    }
+    return value;
   }
 
   /** Returns the Protobuf that backs this ObjectValue. */
   public Value getProto() {
-    return internalValue;
+    Value value = internalValue;
+    if (value == null) {
+      synchronized (this) {
+        if (internalValue == null) {
+          MapValue mergedResult =
+              Builder.applyOverlay(baseObject, FieldPath.EMPTY_PATH, pendingOverlay);
+          internalValue =
+              mergedResult != null
+                  ? Value.newBuilder().setMapValue(mergedResult).build()
+                  : baseObject.getProto();
+          baseObject = null;
+          pendingOverlay = null;
+        }
+        value = internalValue;
+      }
+    }
+    return value;
   }
 
   @Override
@@ -119,19 +180,37 @@ public class ObjectValue {
     if (this == o) {
       return true;
     } else if (o instanceof ObjectValue) {
-      return Values.equals(internalValue, ((ObjectValue) o).internalValue);
+      return Values.equals(getProto(), ((ObjectValue) o).getProto());
     }
     return false;
   }
 
   @Override
   public int hashCode() {
-    return internalValue.hashCode();
+    return getProto().hashCode();
   }
 
   /** Creates a ObjectValue.Builder instance that is based on the current value. */
   public ObjectValue.Builder toBuilder() {
-    return new ObjectValue.Builder(this);
+    if (internalValue == null) {
+      synchronized (this) {
+        if (internalValue == null) {
+          // Continue with the modifications of this object instead of building it first.
+          return new ObjectValue.Builder(baseObject, deepCopy(pendingOverlay));
+        }
+      }
+    }
+    return new ObjectValue.Builder(this, new HashMap<>());
+  }
+
+  private static Map<String, Object> deepCopy(Map<String, Object> overlay) {
+    Map<String, Object> copy = new HashMap<>(overlay);
+    for (Map.Entry<String, Object> entry : copy.entrySet()) {
+      if (entry.getValue() instanceof Map) {
+        entry.setValue(deepCopy((Map<String, Object>) entry.getValue()));
+      }
+    }
+    return copy;
   }
 
   /**
@@ -140,19 +219,22 @@ public class ObjectValue {
    */
   public static class Builder {
 
-    /** The existing data to mutate. */
+    /** The existing data to mutate. Never has pending modifications itself. */
     private ObjectValue baseObject;
 
     /**
      * A nested map that contains the accumulated changes in this builder. Values can either be
-     * `Value` protos, `Map<String, Object>` values (to represent additional nesting) or `null` (to
-     * represent field deletes).
+     * `Value` protos (which replace the existing field), `Map<String, Object>` values (to represent
+     * changes to the fields of a nested map) or `null` (to represent field deletes).
      */
     private Map<String, Object> overlayMap;
 
-    Builder(ObjectValue baseObject) {
+    /** Whether overlayMap is referenced by a built ObjectValue and needs to be copied on write. */
+    private boolean overlayShared;
+
+    Builder(ObjectValue baseObject, Map<String, Object> overlayMap) {
       this.baseObject = baseObject;
-      this.overlayMap = new HashMap<>();
+      this.overlayMap = overlayMap;
     }
 
     /**
@@ -183,6 +265,11 @@ public class ObjectValue {
 
     /** Adds `value` to the overlay map at `path`. Creates nested map entries if needed. */
     private void setOverlay(FieldPath path, @Nullable Value value) {
+      if (overlayShared) {
+        overlayMap = deepCopy(overlayMap);
+        overlayShared = false;
+      }
+
       Map<String, Object> currentLevel = overlayMap;
 
       for (int i = 0; i < path.length() - 1; ++i) {
@@ -192,13 +279,12 @@ public class ObjectValue {
         if (currentValue instanceof Map) {
           // Re-use a previously created map
           currentLevel = (Map<String, Object>) currentValue;
-        } else if (currentValue instanceof Value
-            && ((Value) currentValue).getValueTypeCase() == Value.ValueTypeCase.MAP_VALUE) {
-          // Convert the existing Protobuf MapValue into a Java map
-          Map<String, Object> nextLevel =
-              new HashMap<>(((Value) currentValue).getMapValue().getFieldsMap());
-          currentLevel.put(currentSegment, nextLevel);
-          currentLevel = nextLevel;
+        } else if (currentValue instanceof Value || currentLevel.containsKey(currentSegment)) {
+          // The field was replaced or deleted by this builder, so the change needs to be applied
+          // to its new value instead of the existing data.
+          currentLevel.put(
+              currentSegment, setNestedValue((Value) currentValue, path.popFirst(i + 1), value));
+          return;
         } else {
           // Create an empty hash map to represent the current nesting level
           Map<String, Object> nextLevel = new HashMap<>();
@@ -210,28 +296,62 @@ public class ObjectValue {
       currentLevel.put(path.getLastSegment(), value);
     }
 
-    /** Returns an ObjectValue with all mutations applied. */
-    public ObjectValue build() {
-      MapValue mergedResult = applyOverlay(FieldPath.EMPTY_PATH, overlayMap);
-      if (mergedResult != null) {
-        return new ObjectValue(Value.newBuilder().setMapValue(mergedResult).build());
+    /**
+     * Returns `parent` with the field at `path` set to `value` (or deleted if `value` is null). A
+     * `parent` that isn't a map is replaced with a map if a field is set, and returned unchanged if
+     * a field is deleted.
+     */
+    private static @Nullable Value setNestedValue(
+        @Nullable Value parent, FieldPath path, @Nullable Value value) {
+      if (!Values.isMapValue(parent)) {
+        if (value == null) {
+          return parent;
+        }
+        parent = EMPTY_INSTANCE.getProto();
+      }
+
+      MapValue.Builder mapValue = parent.getMapValue().toBuilder();
+      String segment = path.getFirstSegment();
+      if (path.length() > 1) {
+        Value child = mapValue.getFieldsOrDefault(segment, null);
+        Value newChild = setNestedValue(child, path.popFirst(), value);
+        if (newChild == child) {
+          return parent;
+        }
+        mapValue.putFields(segment, newChild);
+      } else if (value != null) {
+        mapValue.putFields(segment, value);
       } else {
-        return this.baseObject;
+        mapValue.removeFields(segment);
+      }
+      return Value.newBuilder().setMapValue(mapValue).build();
+    }
+
+    /**
+     * Returns an ObjectValue with all mutations applied. The protobuf of the returned value is only
+     * built when it is first accessed.
+     */
+    public ObjectValue build() {
+      if (overlayMap.isEmpty()) {
+        return baseObject;
       }
+      overlayShared = true;
+      return new ObjectValue(baseObject, overlayMap);
     }
 
     /**
      * Applies any overlays from `currentOverlays` that exist at `currentPath` and returns the
      * merged data at `currentPath` (or null if there were no changes).
      *
+     * @param baseObject The existing data to apply the overlays to.
      * @param currentPath The path at the current nesting level. Can be set toFieldValue.EMPTY_PATH
      *     to represent the root.
      * @param currentOverlays The overlays at the current nesting level in the same format as
      *     `overlayMap`.
      * @return The merged data at `currentPath` or null if no modifications were applied.
      */
-    private @Nullable MapValue applyOverlay(
-        FieldPath currentPath, Map<String, Object> currentOverlays) {
+    private static @Nullable MapValue applyOverlay(
+        ObjectValue baseObject, FieldPath currentPath, Map<String, Object> currentOverlays) {
       boolean modified = false;
 
       @Nullable Value existingValue = baseObject.get(currentPath);
@@ -249,7 +369,8 @@ public class ObjectValue {
         if (value instanceof Map) {
           @Nullable
           MapValue nested =
-              applyOverlay(currentPath.append(pathSegment), (Map<String, Object>) value);
+              applyOverlay(
+                  baseObject, currentPath.append(pathSegment), (Map<String, Object>) value);
           if (nested != null) {
             resultAtPath.putFields(pathSegment, Value.newBuilder().setMapValue(nested).build());
             modified = true;
@@ -28,10 +28,10 @@ import com.google.firestore.v1.Value;
 import com.google.protobuf.NullValue;
 import com.google.protobuf.Timestamp;
 import com.google.type.LatLng;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -40,6 +40,28 @@ public class Values {
   public static final Value NULL_VALUE =
       Value.newBuilder().setNullValue(NullValue.NULL_VALUE).build();
 
+  /** The number of unsorted maps whose sorted entries are memoized, see sortedEntries. */
+  private static final int SORTED_ENTRIES_CACHE_SIZE = 256;
+
+  /**
+   * The sorted entries of recently compared or canonicalized unsorted maps, indexed by the identity
+   * hash code of the map. Slots are read and replaced without a lock: SortedEntries is immutable,
+   * so a racing thread sees either a complete entry or a stale one, which it ignores.
+   */
+  private static final SortedEntries[] sortedEntriesCache =
+      new SortedEntries[SORTED_ENTRIES_CACHE_SIZE];
+
+  /** The entries of an unsorted map in ascending order of their keys. */
+  private static final class SortedEntries {
+    private final WeakReference<MapValue> mapValue;
+    private final Collection<Map.Entry<String, Value>> entries;
+
+    SortedEntries(MapValue mapValue) {
+      this.mapValue = new WeakReference<>(mapValue);
+      this.entries = new ArrayList<>(new TreeMap<>(mapValue.getFieldsMap()).entrySet());
+    }
+  }
+
   /**
    * The order of types in Firestore. This order is based on the backend's ordering, but modified to
    * support server timestamps.
@@ -273,10 +295,8 @@ public class Values {
   }
 
   private static int compareMaps(MapValue left, MapValue right) {
-    Iterator<Map.Entry<String, Value>> iterator1 =
-        new TreeMap<>(left.getFieldsMap()).entrySet().iterator();
-    Iterator<Map.Entry<String, Value>> iterator2 =
-        new TreeMap<>(right.getFieldsMap()).entrySet().iterator();
+    Iterator<Map.Entry<String, Value>> iterator1 = sortedEntries(left).iterator();
+    Iterator<Map.Entry<String, Value>> iterator2 = sortedEntries(right).iterator();
     while (iterator1.hasNext() && iterator2.hasNext()) {
       Map.Entry<String, Value> entry1 = iterator1.next();
       Map.Entry<String, Value> entry2 = iterator2.next();
@@ -358,19 +378,16 @@ public class Values {
     // Even though MapValue are likely sorted correctly based on their insertion order (e.g. when
     // received from the backend), local modifications can bring elements out of order. We need to
     // re-sort the elements to ensure that canonical IDs are independent of insertion order.
-    List<String> keys = new ArrayList<>(mapValue.getFieldsMap().keySet());
-    Collections.sort(keys);
-
     builder.append("{");
     boolean first = true;
-    for (String key : keys) {
+    for (Map.Entry<String, Value> entry : sortedEntries(mapValue)) {
       if (!first) {
         builder.append(",");
       } else {
         first = false;
       }
-      builder.append(key).append(":");
-      canonifyValue(builder, mapValue.getFieldsOrThrow(key));
+      builder.append(entry.getKey()).append(":");
+      canonifyValue(builder, entry.getValue());
     }
     builder.append("}");
   }
@@ -386,6 +403,38 @@ public class Values {
     builder.append("]");
   }
 
+  /** Returns whether the fields of the given map are iterated in ascending order of their keys. */
+  static boolean hasSortedFields(MapValue mapValue) {
+    String previousKey = null;
+    for (String key : mapValue.getFieldsMap().keySet()) {
+      if (previousKey != null && previousKey.compareTo(key) > 0) {
+        return false;
+      }
+      previousKey = key;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the entries of the given map in ascending order of their keys. Maps that are not
+   * already sorted (e.g. because of local modifications) are sorted and the result is memoized
+   * until another unsorted map takes its slot in the cache.
+   */
+  static Collection<Map.Entry<String, Value>> sortedEntries(MapValue mapValue) {
+    if (hasSortedFields(mapValue)) {
+      return mapValue.getFieldsMap().entrySet();
+    }
+    // MapValues are immutable, so the same instance always has the same entries. Equal instances
+    // are not shared, which avoids the deep hash code and equality checks of the protos.
+    int slot = System.identityHashCode(mapValue) & (SORTED_ENTRIES_CACHE_SIZE - 1);
+    SortedEntries sortedEntries = sortedEntriesCache[slot];
+    if (sortedEntries == null || sortedEntries.mapValue.get() != mapValue) {
+      sortedEntries = new SortedEntries(mapValue);
+      sortedEntriesCache[slot] = sortedEntries;
+    }
+    return sortedEntries.entries;
+  }
+
   /** Returns true if `value` is either a INTEGER_VALUE. */
   public static boolean isInteger(@Nullable Value value) {
     return value != null && value.getValueTypeCase() == Value.ValueTypeCase.INTEGER_VALUE;
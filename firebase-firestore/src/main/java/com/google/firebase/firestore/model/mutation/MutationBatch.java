@@ -20,9 +20,14 @@ import androidx.annotation.Nullable;
 import com.google.firebase.Timestamp;
 import com.google.firebase.database.collection.ImmutableSortedMap;
 import com.google.firebase.firestore.model.DocumentKey;
+import com.google.firebase.firestore.model.FieldPath;
 import com.google.firebase.firestore.model.MaybeDocument;
+import com.google.firebase.firestore.model.ObjectValue;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -195,6 +200,115 @@ public final class MutationBatch {
         + ')';
   }
 
+  /**
+   * Returns the mutations of a batch that has the same effect as this batch followed by a batch
+   * with the given mutations, or null if the two batches can't be combined.
+   *
+   * <p>Batches can only be combined if they modify the same documents with one set or patch
+   * mutation per document. A patch can follow a set of the same document or a patch with the same
+   * precondition, since it would succeed or fail just like the combined mutation does. A set can
+   * only follow a set, since it would succeed even if a preceding patch failed.
+   */
+  @Nullable
+  public List<Mutation> squash(List<Mutation> laterMutations) {
+    if (!baseMutations.isEmpty()) {
+      return null;
+    }
+
+    Map<DocumentKey, Mutation> mutationsByKey = mutationsByKey(mutations);
+    Map<DocumentKey, Mutation> laterMutationsByKey = mutationsByKey(laterMutations);
+    if (mutationsByKey == null
+        || laterMutationsByKey == null
+        || !mutationsByKey.keySet().equals(laterMutationsByKey.keySet())) {
+      return null;
+    }
+
+    List<Mutation> squashedMutations = new ArrayList<>(mutations.size());
+    for (Mutation mutation : mutations) {
+      Mutation laterMutation = laterMutationsByKey.get(mutation.getKey());
+      Mutation squashedMutation =
+          laterMutation != null ? squashMutations(mutation, laterMutation) : null;
+      if (squashedMutation == null) {
+        return null;
+      }
+      squashedMutations.add(squashedMutation);
+    }
+    return squashedMutations;
+  }
+
+  /** Returns the given mutations by key, or null if a document has more than one mutation. */
+  @Nullable
+  private static Map<DocumentKey, Mutation> mutationsByKey(List<Mutation> mutations) {
+    Map<DocumentKey, Mutation> result = new HashMap<>();
+    for (Mutation mutation : mutations) {
+      if (result.put(mutation.getKey(), mutation) != null) {
+        return null;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns a mutation that has the same effect as the two given mutations of a document, or null
+   * if there is no such mutation.
+   */
+  @Nullable
+  private static Mutation squashMutations(Mutation earlier, Mutation later) {
+    if (!isSquashablePrecondition(earlier.getPrecondition())
+        || !isSquashablePrecondition(later.getPrecondition())) {
+      return null;
+    }
+
+    if (earlier instanceof SetMutation && earlier.getPrecondition().isNone()) {
+      if (later instanceof SetMutation && later.getPrecondition().isNone()) {
+        return later;
+      } else if (later instanceof PatchMutation) {
+        // The document exists once the set is applied, so the patch's precondition always holds.
+        ObjectValue value = ((PatchMutation) later).patchObject(((SetMutation) earlier).getValue());
+        return new SetMutation(earlier.getKey(), value, Precondition.NONE);
+      }
+    } else if (earlier instanceof PatchMutation
+        && later instanceof PatchMutation
+        && earlier.getPrecondition().equals(later.getPrecondition())) {
+      PatchMutation earlierPatch = (PatchMutation) earlier;
+      PatchMutation laterPatch = (PatchMutation) later;
+      Set<FieldPath> fields = new HashSet<>(earlierPatch.getMask().getMask());
+      fields.addAll(laterPatch.getMask().getMask());
+      return new PatchMutation(
+          earlier.getKey(),
+          laterPatch.patchObject(earlierPatch.getValue()),
+          FieldMask.fromSet(withoutNestedFields(fields)),
+          earlier.getPrecondition());
+    }
+
+    return null;
+  }
+
+  /**
+   * Returns the given fields without the ones that are nested in another of the fields, which the
+   * patch already writes as a whole.
+   */
+  private static Set<FieldPath> withoutNestedFields(Set<FieldPath> fields) {
+    Set<FieldPath> result = new HashSet<>();
+    for (FieldPath field : fields) {
+      boolean nested = false;
+      for (FieldPath other : fields) {
+        if (!other.equals(field) && other.isPrefixOf(field)) {
+          nested = true;
+          break;
+        }
+      }
+      if (!nested) {
+        result.add(field);
+      }
+    }
+    return result;
+  }
+
+  private static boolean isSquashablePrecondition(Precondition precondition) {
+    return precondition.isNone() || Boolean.TRUE.equals(precondition.getExists());
+  }
+
   /** Returns the set of unique keys referenced by all mutations in the batch. */
   public Set<DocumentKey> getKeys() {
     HashSet<DocumentKey> set = new HashSet<>();
@@ -150,7 +150,8 @@ public final class PatchMutation extends Mutation {
     return patchObject(data);
   }
 
-  private ObjectValue patchObject(ObjectValue obj) {
+  /** Returns the given object with the fields in this patch's mask set or deleted. */
+  ObjectValue patchObject(ObjectValue obj) {
     ObjectValue.Builder builder = obj.toBuilder();
     for (FieldPath path : mask.getMask()) {
       if (!path.isEmpty()) {
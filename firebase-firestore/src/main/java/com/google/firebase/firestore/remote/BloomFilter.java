@@ -0,0 +1,133 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.remote;
+
+import androidx.annotation.Nullable;
+import com.google.protobuf.ByteString;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A bloom filter of document names sent by the backend as part of an existence filter. See the
+ * `BloomFilter` message in bloom_filter.proto for a description of the encoding and the hash
+ * functions.
+ *
+ * <p>A bloom filter never reports false negatives: {@link #mightContain} returns true for every
+ * value that was added to the filter, but may also return true for values that weren't.
+ */
+public final class BloomFilter {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final int bitCount;
+  private final ByteString bitmap;
+  private final int hashCount;
+
+  /** Created on first use, since most filters are never queried. Not thread-safe. */
+  @Nullable private MessageDigest md5;
+
+  /**
+   * Creates a bloom filter from its wire representation.
+   *
+   * @throws IllegalArgumentException if the arguments don't describe a valid bloom filter.
+   */
+  public BloomFilter(ByteString bitmap, int padding, int hashCount) {
+    if (padding < 0 || padding >= 8) {
+      throw new IllegalArgumentException("Invalid padding: " + padding);
+    }
+    if (hashCount < 0) {
+      throw new IllegalArgumentException("Invalid hash count: " + hashCount);
+    }
+    if (bitmap.size() > 0 && hashCount == 0) {
+      throw new IllegalArgumentException("Invalid hash count: " + hashCount);
+    }
+    if (bitmap.size() == 0 && padding != 0) {
+      throw new IllegalArgumentException("Expected padding of 0 when bitmap length is 0");
+    }
+
+    this.bitmap = bitmap;
+    this.hashCount = hashCount;
+    this.bitCount = bitmap.size() * 8 - padding;
+  }
+
+  /** Returns the number of bits in the filter. An empty filter doesn't contain any values. */
+  public int getBitCount() {
+    return bitCount;
+  }
+
+  /**
+   * Returns whether the given value might have been added to the filter. Returns false if the
+   * value was definitely not added.
+   */
+  public boolean mightContain(String value) {
+    if (bitCount == 0) {
+      return false;
+    }
+
+    byte[] hash = getMd5Digest().digest(value.getBytes(UTF_8));
+    long hash1 = getLongLittleEndian(hash, 0);
+    long hash2 = getLongLittleEndian(hash, 8);
+
+    for (int i = 0; i < hashCount; ++i) {
+      // The hash values are unsigned 64-bit integers, so the combined hash may overflow and wrap
+      // around just like it does on the backend.
+      long combinedHash = hash1 + i * hash2;
+      int bitIndex = (int) unsignedRemainder(combinedHash, bitCount);
+      if (!isBitSet(bitIndex)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean isBitSet(int index) {
+    byte byteAtIndex = bitmap.byteAt(index / 8);
+    return (byteAtIndex & (0x01 << (index % 8))) != 0;
+  }
+
+  private MessageDigest getMd5Digest() {
+    if (md5 == null) {
+      try {
+        md5 = MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+        throw new RuntimeException("Missing MD5 MessageDigest provider", e);
+      }
+    }
+    return md5;
+  }
+
+  private static long getLongLittleEndian(byte[] bytes, int offset) {
+    long result = 0;
+    for (int i = 0; i < 8; ++i) {
+      result |= (bytes[offset + i] & 0xFFL) << (i * 8);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the remainder of dividing the unsigned 64-bit value {@code dividend} by {@code
+   * divisor}. Equivalent to Long.remainderUnsigned(), which is not available on all API levels.
+   */
+  private static long unsignedRemainder(long dividend, int divisor) {
+    long quotient = ((dividend >>> 1) / divisor) << 1;
+    long remainder = dividend - quotient * divisor;
+    return remainder >= divisor ? remainder - divisor : remainder;
+  }
+
+  @Override
+  public String toString() {
+    return "BloomFilter{bitCount=" + bitCount + ", hashCount=" + hashCount + '}';
+  }
+}
@@ -89,19 +89,58 @@ public class Datastore {
       CredentialsProvider credentialsProvider,
       Context context,
       @Nullable GrpcMetadataProvider metadataProvider) {
+    this(
+        databaseInfo,
+        workerQueue,
+        credentialsProvider,
+        context,
+        metadataProvider,
+        /* deferChannelCreation= */ false);
+  }
+
+  /**
+   * Creates a Datastore.
+   *
+   * @param deferChannelCreation Whether to create the gRPC channel only once the first request is
+   *     sent or {@link #prewarmChannel} is called, instead of right away.
+   */
+  public Datastore(
+      DatabaseInfo databaseInfo,
+      AsyncQueue workerQueue,
+      CredentialsProvider credentialsProvider,
+      Context context,
+      @Nullable GrpcMetadataProvider metadataProvider,
+      boolean deferChannelCreation) {
     this.databaseInfo = databaseInfo;
     this.workerQueue = workerQueue;
     this.serializer = new RemoteSerializer(databaseInfo.getDatabaseId());
 
     channel =
         new FirestoreChannel(
-            workerQueue, context, credentialsProvider, databaseInfo, metadataProvider);
+            workerQueue,
+            context,
+            credentialsProvider,
+            databaseInfo,
+            metadataProvider,
+            deferChannelCreation);
   }
 
   void shutdown() {
     channel.shutdown();
   }
 
+  /**
+   * Starts creating the gRPC channel if its creation was deferred. Must be called on the worker
+   * queue.
+   *
+   * @return A task that completes once the channel was created, or null if the channel was already
+   *     being created.
+   */
+  @Nullable
+  public Task<Void> prewarmChannel() {
+    return channel.prewarmChannel();
+  }
+
   AsyncQueue getWorkerQueue() {
     return workerQueue;
   }
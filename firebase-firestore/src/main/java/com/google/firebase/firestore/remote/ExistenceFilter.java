@@ -14,20 +14,40 @@
 
 package com.google.firebase.firestore.remote;
 
-/** Simplest form of existence filter */
+import androidx.annotation.Nullable;
+
+/**
+ * An existence filter sent by the backend to verify the client's view of a target. Contains the
+ * number of documents that match the target and, optionally, a bloom filter of their names.
+ */
 public final class ExistenceFilter {
   private final int count;
+  @Nullable private final BloomFilter unchangedNames;
 
   public ExistenceFilter(int count) {
+    this(count, null);
+  }
+
+  public ExistenceFilter(int count, @Nullable BloomFilter unchangedNames) {
     this.count = count;
+    this.unchangedNames = unchangedNames;
   }
 
   public int getCount() {
     return count;
   }
 
+  /**
+   * Returns a bloom filter that contains the names of all documents that match the target, or null
+   * if the backend didn't send one.
+   */
+  @Nullable
+  public BloomFilter getUnchangedNames() {
+    return unchangedNames;
+  }
+
   @Override
   public String toString() {
-    return "ExistenceFilter{count=" + count + '}';
+    return "ExistenceFilter{count=" + count + ", unchangedNames=" + unchangedNames + '}';
   }
 }
@@ -17,6 +17,7 @@ package com.google.firebase.firestore.remote;
 import static com.google.firebase.firestore.util.Assert.hardAssert;
 
 import android.content.Context;
+import androidx.annotation.Nullable;
 import com.google.android.gms.tasks.Task;
 import com.google.android.gms.tasks.TaskCompletionSource;
 import com.google.firebase.firestore.BuildConfig;
@@ -72,13 +73,16 @@ public class FirestoreChannel {
       Context context,
       CredentialsProvider credentialsProvider,
       DatabaseInfo databaseInfo,
-      GrpcMetadataProvider metadataProvider) {
+      GrpcMetadataProvider metadataProvider,
+      boolean deferChannelCreation) {
     this.asyncQueue = asyncQueue;
     this.metadataProvider = metadataProvider;
     this.credentialsProvider = credentialsProvider;
 
     FirestoreCallCredentials firestoreHeaders = new FirestoreCallCredentials(credentialsProvider);
-    this.callProvider = new GrpcCallProvider(asyncQueue, context, databaseInfo, firestoreHeaders);
+    this.callProvider =
+        new GrpcCallProvider(
+            asyncQueue, context, databaseInfo, firestoreHeaders, deferChannelCreation);
 
     DatabaseId databaseId = databaseInfo.getDatabaseId();
     this.resourcePrefixValue =
@@ -93,6 +97,12 @@ public class FirestoreChannel {
     callProvider.shutdown();
   }
 
+  /** See {@link GrpcCallProvider#prewarmChannel}. */
+  @Nullable
+  Task<Void> prewarmChannel() {
+    return callProvider.prewarmChannel();
+  }
+
   /**
    * Creates and starts a new bi-directional streaming RPC. The stream cannot accept message before
    * the observer's `onOpen()` callback is invoked.
@@ -15,6 +15,7 @@
 package com.google.firebase.firestore.remote;
 
 import android.content.Context;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 import com.google.android.gms.common.GooglePlayServicesNotAvailableException;
 import com.google.android.gms.common.GooglePlayServicesRepairableException;
@@ -48,7 +49,12 @@ public class GrpcCallProvider {
 
   private static Supplier<ManagedChannelBuilder<?>> overrideChannelBuilderSupplier;
 
-  private Task<ManagedChannel> channelTask;
+  /**
+   * The task that creates the channel, or null if creating the channel was deferred. Calls can be
+   * created off the AsyncQueue (e.g. by transactions), so it is only assigned while holding the
+   * lock of this object.
+   */
+  @Nullable private volatile Task<ManagedChannel> channelTask;
   private final AsyncQueue asyncQueue;
 
   private CallOptions callOptions;
@@ -77,17 +83,55 @@ public class GrpcCallProvider {
     overrideChannelBuilderSupplier = channelBuilderSupplier;
   }
 
+  /**
+   * Creates a GrpcCallProvider.
+   *
+   * @param deferChannelCreation Whether to create the channel only once the first call is created
+   *     or {@link #prewarmChannel} is called, instead of right away.
+   */
   GrpcCallProvider(
       AsyncQueue asyncQueue,
       Context context,
       DatabaseInfo databaseInfo,
-      CallCredentials firestoreHeaders) {
+      CallCredentials firestoreHeaders,
+      boolean deferChannelCreation) {
     this.asyncQueue = asyncQueue;
     this.context = context;
     this.databaseInfo = databaseInfo;
     this.firestoreHeaders = firestoreHeaders;
 
+    if (!deferChannelCreation) {
+      initChannelTask();
+    }
+  }
+
+  /**
+   * Starts creating the channel if its creation was deferred. Must be called on the AsyncQueue.
+   *
+   * @return A task that completes once the channel was created, or null if the channel was already
+   *     being created.
+   */
+  @Nullable
+  synchronized Task<Void> prewarmChannel() {
+    if (channelTask != null) {
+      return null;
+    }
     initChannelTask();
+    return channelTask.continueWith(Executors.DIRECT_EXECUTOR, task -> null);
+  }
+
+  /** Returns the task that creates the channel, and starts creating it if it was deferred. */
+  private Task<ManagedChannel> getChannelTask() {
+    Task<ManagedChannel> task = channelTask;
+    if (task == null) {
+      synchronized (this) {
+        if (channelTask == null) {
+          initChannelTask();
+        }
+        task = channelTask;
+      }
+    }
+    return task;
   }
 
   /** Sets up the SSL provider and configures the gRPC channel. */
@@ -133,18 +177,24 @@ public class GrpcCallProvider {
   /** Creates a new ClientCall. */
   <ReqT, RespT> Task<ClientCall<ReqT, RespT>> createClientCall(
       MethodDescriptor<ReqT, RespT> methodDescriptor) {
-    return channelTask.continueWithTask(
-        asyncQueue.getExecutor(),
-        task -> Tasks.forResult(task.getResult().newCall(methodDescriptor, callOptions)));
+    return getChannelTask()
+        .continueWithTask(
+            asyncQueue.getExecutor(),
+            task -> Tasks.forResult(task.getResult().newCall(methodDescriptor, callOptions)));
   }
 
   /** Shuts down the gRPC channel and the internal worker queue. */
   void shutdown() {
     // Handling shutdown synchronously to avoid re-enqueuing on the AsyncQueue after shutdown has
     // started.
+    Task<ManagedChannel> task = channelTask;
+    if (task == null) {
+      // The channel was never created.
+      return;
+    }
     ManagedChannel channel = null;
     try {
-      channel = Tasks.await(channelTask);
+      channel = Tasks.await(task);
     } catch (ExecutionException e) {
       Logger.warn(
           FirestoreChannel.class.getSimpleName(),
@@ -242,10 +292,13 @@ public class GrpcCallProvider {
     asyncQueue.enqueueAndForget(
         () -> {
           channel.shutdownNow();
-          initChannelTask();
+          synchronized (this) {
+            initChannelTask();
+          }
         });
   }
 
+  /** Must be called while holding the lock of this object, or from the constructor. */
   private void initChannelTask() {
     // We execute network initialization on a separate thread to not block operations that depend on
     // the AsyncQueue.
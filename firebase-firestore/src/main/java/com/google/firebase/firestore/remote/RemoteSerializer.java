@@ -56,6 +56,7 @@ import com.google.firebase.firestore.remote.WatchChange.ExistenceFilterWatchChan
 import com.google.firebase.firestore.remote.WatchChange.WatchTargetChange;
 import com.google.firebase.firestore.remote.WatchChange.WatchTargetChangeType;
 import com.google.firebase.firestore.util.Assert;
+import com.google.firebase.firestore.util.Logger;
 import com.google.firestore.v1.ArrayValue;
 import com.google.firestore.v1.BatchGetDocumentsResponse;
 import com.google.firestore.v1.BatchGetDocumentsResponse.ResultCase;
@@ -491,7 +492,7 @@ public final class RemoteSerializer {
     Target.Builder builder = Target.newBuilder();
     com.google.firebase.firestore.core.Target target = targetData.getTarget();
 
-    if (target.isDocumentQuery()) {
+    if (target.isDocumentsTarget()) {
       builder.setDocuments(encodeDocumentsTarget(target));
     } else {
       builder.setQuery(encodeQueryTarget(target));
@@ -505,16 +506,21 @@ public final class RemoteSerializer {
 
   public DocumentsTarget encodeDocumentsTarget(com.google.firebase.firestore.core.Target target) {
     DocumentsTarget.Builder builder = DocumentsTarget.newBuilder();
-    builder.addDocuments(encodeQueryPath(target.getPath()));
+    for (DocumentKey key : target.getDocumentKeys()) {
+      builder.addDocuments(encodeQueryPath(key.getPath()));
+    }
     return builder.build();
   }
 
   public com.google.firebase.firestore.core.Target decodeDocumentsTarget(DocumentsTarget target) {
     int count = target.getDocumentsCount();
-    hardAssert(count == 1, "DocumentsTarget contained other than 1 document %d", count);
+    hardAssert(count > 0, "DocumentsTarget contained no documents");
 
-    String name = target.getDocuments(0);
-    return Query.atPath(decodeQueryPath(name)).toTarget();
+    List<DocumentKey> keys = new ArrayList<>(count);
+    for (String name : target.getDocumentsList()) {
+      keys.add(DocumentKey.fromPath(decodeQueryPath(name)));
+    }
+    return com.google.firebase.firestore.core.Target.forDocuments(keys);
   }
 
   public QueryTarget encodeQueryTarget(com.google.firebase.firestore.core.Target target) {
@@ -900,8 +906,12 @@ public final class RemoteSerializer {
         break;
       case FILTER:
         com.google.firestore.v1.ExistenceFilter protoFilter = protoChange.getFilter();
-        // TODO: implement existence filter parsing (see b/33076578)
-        ExistenceFilter filter = new ExistenceFilter(protoFilter.getCount());
+        ExistenceFilter filter =
+            new ExistenceFilter(
+                protoFilter.getCount(),
+                protoFilter.hasUnchangedNames()
+                    ? decodeBloomFilter(protoFilter.getUnchangedNames())
+                    : null);
         int targetId = protoFilter.getTargetId();
         watchChange = new ExistenceFilterWatchChange(targetId, filter);
         break;
@@ -913,6 +923,23 @@ public final class RemoteSerializer {
     return watchChange;
   }
 
+  /**
+   * Decodes the bloom filter of an existence filter. Returns null if the bloom filter is malformed,
+   * in which case the client falls back to re-running the target.
+   */
+  @Nullable
+  private BloomFilter decodeBloomFilter(com.google.firestore.v1.BloomFilter protoBloomFilter) {
+    try {
+      return new BloomFilter(
+          protoBloomFilter.getBits().getBitmap(),
+          protoBloomFilter.getBits().getPadding(),
+          protoBloomFilter.getHashCount());
+    } catch (IllegalArgumentException e) {
+      Logger.warn("RemoteSerializer", "Ignoring invalid bloom filter: %s", e.getMessage());
+      return null;
+    }
+  }
+
   public SnapshotVersion decodeVersionFromListenResponse(ListenResponse watchChange) {
     // We have only reached a consistent snapshot for the entire stream if there is a read_time set
     // and it applies to all targets (i.e. the list of targets is empty). The backend is guaranteed
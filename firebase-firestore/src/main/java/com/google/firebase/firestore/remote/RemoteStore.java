@@ -24,8 +24,10 @@ import com.google.firebase.firestore.core.Transaction;
 import com.google.firebase.firestore.local.LocalStore;
 import com.google.firebase.firestore.local.QueryPurpose;
 import com.google.firebase.firestore.local.TargetData;
+import com.google.firebase.firestore.model.DatabaseId;
 import com.google.firebase.firestore.model.DocumentKey;
 import com.google.firebase.firestore.model.SnapshotVersion;
+import com.google.firebase.firestore.model.mutation.Mutation;
 import com.google.firebase.firestore.model.mutation.MutationBatch;
 import com.google.firebase.firestore.model.mutation.MutationBatchResult;
 import com.google.firebase.firestore.model.mutation.MutationResult;
@@ -40,11 +42,16 @@ import com.google.firebase.firestore.util.Util;
 import com.google.protobuf.ByteString;
 import io.grpc.Status;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 /**
  * RemoteStore handles all interaction with the backend through a simple, clean interface. This
@@ -52,8 +59,14 @@ import java.util.Map.Entry;
  */
 public final class RemoteStore implements WatchChangeAggregator.TargetMetadataProvider {
 
-  /** The maximum number of pending writes to allow. TODO: Negotiate this value with the backend. */
-  private static final int MAX_PENDING_WRITES = 10;
+  /**
+   * The number of pending writes that are always allowed, regardless of the round-trip times of
+   * the write stream.
+   */
+  private static final int MIN_PENDING_WRITES = 10;
+
+  /** The maximum number of writes that the backend accepts in a single request. */
+  private static final int MAX_WRITES_PER_REQUEST = 500;
 
   /** The log tag to use for this class. */
   private static final String LOG_TAG = "RemoteStore";
@@ -130,8 +143,8 @@ public final class RemoteStore implements WatchChangeAggregator.TargetMetadataPr
   @Nullable private WatchChangeAggregator watchChangeAggregator;
 
   /**
-   * A list of up to MAX_PENDING_WRITES writes that we have fetched from the LocalStore via
-   * fillWritePipeline() and have or will send to the write stream.
+   * A list of up to writePipelineWindow.getSize() writes that we have fetched from the LocalStore
+   * via fillWritePipeline() and have or will send to the write stream.
    *
    * <p>Whenever writePipeline.length > 0 the RemoteStore will attempt to start or restart the write
    * stream. When the stream is established the writes in the pipeline will be sent in order.
@@ -141,23 +154,63 @@ public final class RemoteStore implements WatchChangeAggregator.TargetMetadataPr
    *
    * <p>Write responses from the backend are linked to their originating request purely based on
    * order, and so we can just poll() writes from the front of the writePipeline as we receive
-   * responses.
+   * responses. A single request may contain several batches if write coalescing is enabled (see
+   * sentWriteRequests).
    */
   private final Deque<MutationBatch> writePipeline;
 
+  /**
+   * The requests that were sent on the current write stream and are not acknowledged yet, in the
+   * order in which they were sent. Each request covers the next {@link SentWriteRequest#batchCount}
+   * batches at the front of the writePipeline.
+   */
+  private final Deque<SentWriteRequest> sentWriteRequests;
+
+  /** The number of batches at the front of the writePipeline that are covered by a request. */
+  private int sentBatchCount;
+
+  /** Determines the number of batches that are fetched into the writePipeline. */
+  private final WritePipelineWindow writePipelineWindow;
+
+  /** Whether adjacent batches are sent to the backend in a single request. */
+  private final boolean writeCoalescingEnabled;
+
+  /**
+   * Batches up to this batch ID are sent in requests of their own, even if write coalescing is
+   * enabled. Used to find the batch that caused a coalesced request to be rejected.
+   */
+  private int uncoalescedThroughBatchId = MutationBatch.UNKNOWN;
+
+  /** A request on the write stream that is waiting for its response. */
+  private static class SentWriteRequest {
+    final int batchCount;
+    final long sentTimeMs;
+
+    SentWriteRequest(int batchCount, long sentTimeMs) {
+      this.batchCount = batchCount;
+      this.sentTimeMs = sentTimeMs;
+    }
+  }
+
   public RemoteStore(
       RemoteStoreCallback remoteStoreCallback,
       LocalStore localStore,
       Datastore datastore,
       AsyncQueue workerQueue,
-      ConnectivityMonitor connectivityMonitor) {
+      ConnectivityMonitor connectivityMonitor,
+      int maxPendingWrites,
+      boolean writeCoalescingEnabled) {
     this.remoteStoreCallback = remoteStoreCallback;
     this.localStore = localStore;
     this.datastore = datastore;
     this.connectivityMonitor = connectivityMonitor;
+    this.writeCoalescingEnabled = writeCoalescingEnabled;
 
     listenTargets = new HashMap<>();
     writePipeline = new ArrayDeque<>();
+    sentWriteRequests = new ArrayDeque<>();
+    writePipelineWindow =
+        new WritePipelineWindow(Math.min(MIN_PENDING_WRITES, maxPendingWrites), maxPendingWrites);
 
     onlineStateTracker =
         new OnlineStateTracker(workerQueue, remoteStoreCallback::handleOnlineStateChange);
@@ -271,6 +324,7 @@ public final class RemoteStore implements WatchChangeAggregator.TargetMetadataPr
     if (!writePipeline.isEmpty()) {
       Logger.debug(LOG_TAG, "Stopping write stream with %d pending writes", writePipeline.size());
       writePipeline.clear();
+      clearSentWriteRequests();
     }
 
     cleanUpWatchStreamState();
@@ -589,6 +643,10 @@ public final class RemoteStore implements WatchChangeAggregator.TargetMetadataPr
       lastBatchIdRetrieved = batch.getBatchId();
     }
 
+    if (writeStream.isOpen() && writeStream.isHandshakeComplete()) {
+      sendPendingWrites();
+    }
+
     if (shouldStartWriteStream()) {
       startWriteStream();
     }
@@ -599,21 +657,71 @@ public final class RemoteStore implements WatchChangeAggregator.TargetMetadataPr
    * enabled).
    */
   private boolean canAddToWritePipeline() {
-    return canUseNetwork() && writePipeline.size() < MAX_PENDING_WRITES;
+    return canUseNetwork() && writePipeline.size() < writePipelineWindow.getSize();
   }
 
   /**
-   * Queues additional writes to be sent to the write stream, sending them immediately if the write
-   * stream is established.
+   * Queues additional writes to be sent to the write stream. The caller sends them with
+   * sendPendingWrites() once the write stream is established.
    */
   private void addToWritePipeline(MutationBatch mutationBatch) {
     hardAssert(canAddToWritePipeline(), "addToWritePipeline called when pipeline is full");
 
     writePipeline.add(mutationBatch);
+  }
 
-    if (writeStream.isOpen() && writeStream.isHandshakeComplete()) {
-      writeStream.writeMutations(mutationBatch.getMutations());
+  /**
+   * Sends all batches in the writePipeline that haven't been sent on the current write stream. If
+   * write coalescing is enabled, adjacent batches are combined into a single request as long as
+   * they write to different documents.
+   */
+  private void sendPendingWrites() {
+    hardAssert(
+        writeStream.isOpen() && writeStream.isHandshakeComplete(),
+        "sendPendingWrites() called before the write stream is established");
+
+    Iterator<MutationBatch> unsentBatches = writePipeline.iterator();
+    for (int i = 0; i < sentBatchCount; ++i) {
+      unsentBatches.next();
     }
+
+    @Nullable MutationBatch nextBatch = unsentBatches.hasNext() ? unsentBatches.next() : null;
+    while (nextBatch != null) {
+      List<Mutation> mutations = new ArrayList<>(nextBatch.getMutations());
+      Set<DocumentKey> keys = new HashSet<>(nextBatch.getKeys());
+      int batchCount = 1;
+      boolean canCoalesce = canCoalesce(nextBatch);
+
+      nextBatch = unsentBatches.hasNext() ? unsentBatches.next() : null;
+      while (canCoalesce
+          && nextBatch != null
+          && canCoalesce(nextBatch)
+          && mutations.size() + nextBatch.getMutations().size() <= MAX_WRITES_PER_REQUEST
+          && Collections.disjoint(keys, nextBatch.getKeys())) {
+        mutations.addAll(nextBatch.getMutations());
+        keys.addAll(nextBatch.getKeys());
+        ++batchCount;
+        nextBatch = unsentBatches.hasNext() ? unsentBatches.next() : null;
+      }
+
+      writeStream.writeMutations(mutations);
+      sentWriteRequests.add(new SentWriteRequest(batchCount, System.currentTimeMillis()));
+      sentBatchCount += batchCount;
+    }
+  }
+
+  /** Returns whether the given batch may be sent in the same request as other batches. */
+  private boolean canCoalesce(MutationBatch batch) {
+    return writeCoalescingEnabled && batch.getBatchId() > uncoalescedThroughBatchId;
+  }
+
+  /**
+   * Forgets about the requests sent on the current write stream. Their batches remain in the
+   * writePipeline and are sent again once a new write stream is established.
+   */
+  private void clearSentWriteRequests() {
+    sentWriteRequests.clear();
+    sentBatchCount = 0;
   }
 
   private void startWriteStream() {
@@ -632,9 +740,8 @@ public final class RemoteStore implements WatchChangeAggregator.TargetMetadataPr
     localStore.setLastStreamToken(writeStream.getLastStreamToken());
 
     // Send the write pipeline now that stream is established.
-    for (MutationBatch batch : writePipeline) {
-      writeStream.writeMutations(batch.getMutations());
-    }
+    clearSentWriteRequests();
+    sendPendingWrites();
   }
 
   /**
@@ -643,12 +750,37 @@ public final class RemoteStore implements WatchChangeAggregator.TargetMetadataPr
   private void handleWriteStreamMutationResults(
       SnapshotVersion commitVersion, List<MutationResult> results) {
     // This is a response to a write containing mutations and should be correlated to the first
-    // write in our write pipeline.
-    MutationBatch batch = writePipeline.poll();
-
-    MutationBatchResult mutationBatchResult =
-        MutationBatchResult.create(batch, commitVersion, results, writeStream.getLastStreamToken());
-    remoteStoreCallback.handleSuccessfulWrite(mutationBatchResult);
+    // request we sent, which covers the first writes in our write pipeline.
+    SentWriteRequest request = sentWriteRequests.poll();
+    hardAssert(request != null, "Received a write response without a pending request");
+    sentBatchCount -= request.batchCount;
+    writePipelineWindow.onWriteAcknowledged(System.currentTimeMillis() - request.sentTimeMs);
+
+    // The results of a coalesced request are split up again so that each batch is acknowledged
+    // on its own.
+    int resultIndex = 0;
+    for (int i = 0; i < request.batchCount; ++i) {
+      MutationBatch batch = writePipeline.poll();
+      int mutationCount = batch.getMutations().size();
+      hardAssert(
+          resultIndex + mutationCount <= results.size(),
+          "Received %s mutation results for a request with more mutations",
+          results.size());
+
+      MutationBatchResult mutationBatchResult =
+          MutationBatchResult.create(
+              batch,
+              commitVersion,
+              results.subList(resultIndex, resultIndex + mutationCount),
+              writeStream.getLastStreamToken());
+      remoteStoreCallback.handleSuccessfulWrite(mutationBatchResult);
+      resultIndex += mutationCount;
+    }
+    hardAssert(
+        resultIndex == results.size(),
+        "Received %s mutation results for a request with %s mutations",
+        results.size(),
+        resultIndex);
 
     // It's possible that with the completion of this mutation another slot has freed up.
     fillWritePipeline();
@@ -675,6 +807,9 @@ public final class RemoteStore implements WatchChangeAggregator.TargetMetadataPr
       }
     }
 
+    // All batches that are still in the write pipeline are sent again on the next stream.
+    clearSentWriteRequests();
+
     // The write stream may have already been restarted by refilling the write pipeline for failed
     // writes. In that case, we don't want to start the write stream again.
     if (shouldStartWriteStream()) {
@@ -701,8 +836,27 @@ public final class RemoteStore implements WatchChangeAggregator.TargetMetadataPr
 
   private void handleWriteError(Status status) {
     hardAssert(!status.isOk(), "Handling write error with status OK.");
+    writePipelineWindow.onWriteFailed();
+
     // Only handle permanent errors here. If it's transient, just let the retry logic kick in.
     if (Datastore.isPermanentWriteError(status)) {
+      SentWriteRequest request = sentWriteRequests.peek();
+      if (request != null && request.batchCount > 1) {
+        // The rejected request contained several batches, and we don't know which of them caused
+        // the error. Send these batches one at a time on the next stream to find out.
+        Iterator<MutationBatch> batches = writePipeline.iterator();
+        for (int i = 0; i < request.batchCount; ++i) {
+          uncoalescedThroughBatchId = batches.next().getBatchId();
+        }
+        Logger.debug(
+            LOG_TAG,
+            "Coalesced write of %d batches failed, retrying them individually: %s",
+            request.batchCount,
+            status);
+        writeStream.inhibitBackoff();
+        return;
+      }
+
       // If this was a permanent error, the request itself was the problem so it's not going
       // to succeed if we resend it.
       MutationBatch batch = writePipeline.poll();
@@ -732,4 +886,9 @@ public final class RemoteStore implements WatchChangeAggregator.TargetMetadataPr
   public TargetData getTargetDataForTarget(int targetId) {
     return this.listenTargets.get(targetId);
   }
+
+  @Override
+  public DatabaseId getDatabaseId() {
+    return this.datastore.getDatabaseInfo().getDatabaseId();
+  }
 }
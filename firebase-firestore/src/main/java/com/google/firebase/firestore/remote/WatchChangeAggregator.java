@@ -23,6 +23,7 @@ import com.google.firebase.firestore.core.DocumentViewChange;
 import com.google.firebase.firestore.core.Target;
 import com.google.firebase.firestore.local.QueryPurpose;
 import com.google.firebase.firestore.local.TargetData;
+import com.google.firebase.firestore.model.DatabaseId;
 import com.google.firebase.firestore.model.Document;
 import com.google.firebase.firestore.model.DocumentKey;
 import com.google.firebase.firestore.model.MaybeDocument;
@@ -58,6 +59,9 @@ public class WatchChangeAggregator {
      */
     @Nullable
     TargetData getTargetDataForTarget(int targetId);
+
+    /** Returns the ID of the database, which is used to encode document names. */
+    DatabaseId getDatabaseId();
   }
 
   private final TargetMetadataProvider targetMetadataProvider;
@@ -201,7 +205,8 @@ public class WatchChangeAggregator {
         }
       } else {
         long currentSize = getCurrentDocumentCountForTarget(targetId);
-        if (currentSize != expectedCount) {
+        if (currentSize != expectedCount
+            && !applyBloomFilter(targetId, watchChange.getExistenceFilter())) {
           // Existence filter mismatch: We reset the mapping and raise a new snapshot with
           // `isFromCache:true`.
           resetTarget(targetId);
@@ -211,6 +216,40 @@ public class WatchChangeAggregator {
     }
   }
 
+  /**
+   * Uses the bloom filter of an existence filter to remove the documents that no longer match the
+   * target, which avoids re-running the target after an existence filter mismatch.
+   *
+   * <p>Returns true if the document count of the target matches the existence filter after the
+   * removals. Otherwise (e.g. if the backend didn't send a bloom filter, or if a false positive
+   * kept a deleted document in the target), the target needs to be reset.
+   */
+  private boolean applyBloomFilter(int targetId, ExistenceFilter existenceFilter) {
+    BloomFilter bloomFilter = existenceFilter.getUnchangedNames();
+    if (bloomFilter == null || bloomFilter.getBitCount() == 0) {
+      return false;
+    }
+
+    for (DocumentKey key : targetMetadataProvider.getRemoteKeysForTarget(targetId)) {
+      if (!bloomFilter.mightContain(encodeDocumentName(key))) {
+        removeDocumentFromTarget(targetId, key, /*updatedDocument=*/ null);
+      }
+    }
+
+    return getCurrentDocumentCountForTarget(targetId) == existenceFilter.getCount();
+  }
+
+  /** Returns the fully qualified resource name of the document, as hashed by the backend. */
+  private String encodeDocumentName(DocumentKey key) {
+    DatabaseId databaseId = targetMetadataProvider.getDatabaseId();
+    return "projects/"
+        + databaseId.getProjectId()
+        + "/databases/"
+        + databaseId.getDatabaseId()
+        + "/documents/"
+        + key.getPath().canonicalString();
+  }
+
   /**
    * Converts the currently accumulated state into a remote event at the provided snapshot version.
    * Resets the accumulated changes before returning.
@@ -224,17 +263,18 @@ public class WatchChangeAggregator {
 
       TargetData targetData = queryDataForActiveTarget(targetId);
       if (targetData != null) {
-        if (targetState.isCurrent() && targetData.getTarget().isDocumentQuery()) {
+        if (targetState.isCurrent() && targetData.getTarget().isDocumentsTarget()) {
           // Document queries for document that don't exist can produce an empty result set. To
           // update our local cache, we synthesize a document delete if we have not previously
           // received the document. This resolves the limbo state of the document, removing it from
           // limboDocumentRefs.
-          DocumentKey key = DocumentKey.fromPath(targetData.getTarget().getPath());
-          if (pendingDocumentUpdates.get(key) == null && !targetContainsDocument(targetId, key)) {
-            removeDocumentFromTarget(
-                targetId,
-                key,
-                new NoDocument(key, snapshotVersion, /*hasCommittedMutations=*/ false));
+          for (DocumentKey key : targetData.getTarget().getDocumentKeys()) {
+            if (pendingDocumentUpdates.get(key) == null && !targetContainsDocument(targetId, key)) {
+              removeDocumentFromTarget(
+                  targetId,
+                  key,
+                  new NoDocument(key, snapshotVersion, /*hasCommittedMutations=*/ false));
+            }
           }
         }
 
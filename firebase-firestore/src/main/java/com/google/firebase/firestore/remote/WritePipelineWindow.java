@@ -0,0 +1,100 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.remote;
+
+import static com.google.firebase.firestore.util.Assert.hardAssert;
+
+/**
+ * Determines how many mutation batches the RemoteStore keeps in flight on the write stream.
+ *
+ * <p>The window starts at its minimum size and doubles after every round of acknowledgements for
+ * which the smoothed round-trip time stayed close to the lowest round-trip time observed so far.
+ * Once round-trip times grow, the writes are queueing up somewhere between the client and the
+ * backend and additional writes in flight only add latency, so the window is halved. The window is
+ * also halved if the write stream fails.
+ *
+ * <p>This class is not thread safe and should only be used from the worker AsyncQueue.
+ */
+final class WritePipelineWindow {
+  /**
+   * The factor by which the smoothed round-trip time may exceed the lowest round-trip time before
+   * the window shrinks.
+   */
+  private static final int MAX_RTT_INFLATION = 2;
+
+  /** The weight of a new sample in the smoothed round-trip time, as in TCP's SRTT. */
+  private static final double RTT_SMOOTHING_FACTOR = 0.125;
+
+  private final int minSize;
+  private final int maxSize;
+
+  private int size;
+  private int acknowledgementsInRound;
+  private double smoothedRttMs = -1;
+  private long minRttMs = Long.MAX_VALUE;
+
+  WritePipelineWindow(int minSize, int maxSize) {
+    hardAssert(
+        minSize >= 1 && minSize <= maxSize, "Invalid window bounds [%s, %s]", minSize, maxSize);
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.size = minSize;
+  }
+
+  /** Returns the number of mutation batches that may currently be in flight. */
+  int getSize() {
+    return size;
+  }
+
+  /** Returns the smoothed round-trip time of write requests, or -1 if none completed yet. */
+  long getSmoothedRttMs() {
+    return (long) smoothedRttMs;
+  }
+
+  /**
+   * Records the acknowledgement of a write request.
+   *
+   * @param rttMs The time between sending the request and receiving its response.
+   */
+  void onWriteAcknowledged(long rttMs) {
+    rttMs = Math.max(0, rttMs);
+    minRttMs = Math.min(minRttMs, rttMs);
+    smoothedRttMs =
+        smoothedRttMs < 0
+            ? rttMs
+            : (1 - RTT_SMOOTHING_FACTOR) * smoothedRttMs + RTT_SMOOTHING_FACTOR * rttMs;
+
+    // Only adjust the window once per round trip, since a single full window is needed to observe
+    // the effect of the previous adjustment.
+    if (++acknowledgementsInRound < size) {
+      return;
+    }
+    acknowledgementsInRound = 0;
+
+    // Round-trip times below one millisecond are not meaningful enough to detect queueing.
+    long rttLimitMs = Math.max(1, minRttMs) * MAX_RTT_INFLATION;
+    if (smoothedRttMs <= rttLimitMs) {
+      size = Math.min(maxSize, size * 2);
+    } else {
+      size = Math.max(minSize, size / 2);
+    }
+  }
+
+  /** Records a failure of the write stream. */
+  void onWriteFailed() {
+    acknowledgementsInRound = 0;
+    size = Math.max(minSize, size / 2);
+  }
+}
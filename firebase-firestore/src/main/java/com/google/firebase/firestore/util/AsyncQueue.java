@@ -20,13 +20,16 @@ import static com.google.firebase.firestore.util.Assert.hardAssert;
 import android.os.Handler;
 import android.os.Looper;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 import com.google.android.gms.tasks.Continuation;
 import com.google.android.gms.tasks.Task;
 import com.google.android.gms.tasks.TaskCompletionSource;
 import com.google.firebase.firestore.BuildConfig;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
@@ -42,44 +45,123 @@ import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.CheckReturnValue;
 
-/** A helper class that allows to schedule/queue Runnables on a single threaded background queue. */
+/**
+ * A helper class that allows to schedule/queue Runnables on a single threaded background queue.
+ *
+ * <p>Tasks are queued in one of several lanes by {@link Priority}. Whenever a task completes, the
+ * oldest task of the highest priority lane runs next, unless a task in a lower priority lane has
+ * waited for longer than {@link #STARVATION_THRESHOLD_MS}. The queue then runs all tasks in the
+ * order in which they were queued until no task is starving anymore. Tasks in the same lane always
+ * run in the order in which they were queued.
+ */
 public class AsyncQueue {
 
+  /**
+   * The time after which a task in a lower priority lane runs before tasks of higher priority lanes
+   * that were queued after it.
+   */
+  static final long STARVATION_THRESHOLD_MS = 500;
+
+  /** The lanes of the AsyncQueue, in order of decreasing priority. */
+  public enum Priority {
+    /**
+     * Operations requested through the public API, such as listens and writes. These run before
+     * other tasks so that the latency of user operations is not affected by background work.
+     *
+     * <p>Operations that must be ordered with respect to each other, such as a credential change
+     * and the writes that follow it, have to use the same lane.
+     */
+    INTERACTIVE,
+    /** Operations triggered by the network or timers, such as applying remote events. */
+    NORMAL,
+    /** Maintenance work that is not time sensitive, such as garbage collection. */
+    BACKGROUND
+  }
+
   /**
    * Well-known "timer" IDs used when scheduling delayed tasks on the AsyncQueue. These IDs can then
    * be used from tests to check for the presence of tasks or to run them early.
    */
   public enum TimerId {
     /** ALL can be used with runDelayedTasksUntil() to run all timers. */
-    ALL,
+    ALL(Priority.NORMAL),
 
     /**
      * The following 4 timers are used with the listen and write streams. The IDLE timer is used to
      * close the stream due to inactivity. The CONNECTION_BACKOFF timer is used to restart a stream
      * once the appropriate backoff delay has elapsed.
      */
-    LISTEN_STREAM_IDLE,
-    LISTEN_STREAM_CONNECTION_BACKOFF,
-    WRITE_STREAM_IDLE,
-    WRITE_STREAM_CONNECTION_BACKOFF,
+    LISTEN_STREAM_IDLE(Priority.NORMAL),
+    LISTEN_STREAM_CONNECTION_BACKOFF(Priority.NORMAL),
+    WRITE_STREAM_IDLE(Priority.NORMAL),
+    WRITE_STREAM_CONNECTION_BACKOFF(Priority.NORMAL),
 
     /**
      * A timer used in OnlineStateTracker to transition from OnlineState UNKNOWN to OFFLINE after a
      * set timeout, rather than waiting indefinitely for success or failure.
      */
-    ONLINE_STATE_TIMEOUT,
+    ONLINE_STATE_TIMEOUT(Priority.NORMAL),
     /** A timer used to periodically attempt LRU Garbage collection */
-    GARBAGE_COLLECTION,
+    GARBAGE_COLLECTION(Priority.BACKGROUND),
     /**
      * A timer used to retry transactions. Since there can be multiple concurrent transactions,
      * multiple of these may be in the queue at a given time.
      */
-    RETRY_TRANSACTION,
+    RETRY_TRANSACTION(Priority.NORMAL),
     /**
      * A timer used to monitor when a connection attempt in gRPC is unsuccessful and retry
      * accordingly.
      */
-    CONNECTIVITY_ATTEMPT_TIMER
+    CONNECTIVITY_ATTEMPT_TIMER(Priority.NORMAL),
+    /**
+     * A timer used by snapshot listeners with a coalescing window to deliver the snapshots that
+     * were raised while the window was open.
+     */
+    SNAPSHOT_COALESCING(Priority.INTERACTIVE);
+
+    private final Priority priority;
+
+    TimerId(Priority priority) {
+      this.priority = priority;
+    }
+
+    /** Returns the lane in which the timer's task is queued once its delay elapsed. */
+    public Priority getPriority() {
+      return priority;
+    }
+  }
+
+  /** The source of the time that tasks wait in the lanes. Replaced in tests. */
+  @VisibleForTesting
+  interface Clock {
+    /** Returns the current value of a monotonic clock in nanoseconds, like System#nanoTime(). */
+    long nanoTime();
+  }
+
+  /** A task that waits in one of the lanes of the AsyncQueue. */
+  private static final class QueuedTask {
+    private final Priority priority;
+    @Nullable private final TimerId timerId;
+    private final Runnable command;
+    private final long sequenceNumber;
+    private final long queuedAtNanos;
+
+    QueuedTask(
+        Priority priority,
+        @Nullable TimerId timerId,
+        Runnable command,
+        long sequenceNumber,
+        long queuedAtNanos) {
+      this.priority = priority;
+      this.timerId = timerId;
+      this.command = command;
+      this.sequenceNumber = sequenceNumber;
+      this.queuedAtNanos = queuedAtNanos;
+    }
+
+    long getWaitMs(long nowNanos) {
+      return TimeUnit.NANOSECONDS.toMillis(nowNanos - queuedAtNanos);
+    }
   }
 
   /**
@@ -108,7 +190,13 @@ public class AsyncQueue {
      * createAndScheduleDelayedTask().
      */
     private void start(long delayMs) {
-      scheduledFuture = executor.schedule(this::handleDelayElapsed, delayMs, TimeUnit.MILLISECONDS);
+      scheduledFuture =
+          executor.schedule(
+              () ->
+                  executor.enqueueInLane(
+                      timerId.getPriority(), timerId, this::handleDelayElapsed),
+              delayMs,
+              TimeUnit.MILLISECONDS);
     }
 
     /** Runs the operation immediately (if it hasn't already been run or canceled). */
@@ -195,6 +283,8 @@ public class AsyncQueue {
    *       can be executed once the shutdown process initiated.
    *   <li>Single threaded execution service, no concurrent execution among the `Runnable`s
    *       scheduled in this Executor.
+   *   <li>Prioritized execution: `Runnable`s are queued in the lane of their {@link Priority} and
+   *       the internal executor only runs tasks that pick the next `Runnable` from the lanes.
    * </ol>
    */
   private class SynchronizedShutdownAwareExecutor implements Executor {
@@ -207,6 +297,12 @@ public class AsyncQueue {
     /** Whether the shutdown process has initiated, once it is started, it is not revertable. */
     private boolean isShuttingDown;
 
+    /** The queued tasks of each lane, indexed by the ordinal of their priority. */
+    private final ArrayList<ArrayDeque<QueuedTask>> lanes = new ArrayList<>();
+
+    /** The sequence number of the next queued task, which orders tasks across lanes. */
+    private long nextSequenceNumber;
+
     /**
      * The single thread that will be used by the executor. This is created early and managed
      * directly so that it's possible later to make assertions about executing on the correct
@@ -276,6 +372,10 @@ public class AsyncQueue {
       // core threads
       internalExecutor.setKeepAliveTime(3, TimeUnit.SECONDS);
 
+      for (int i = 0; i < Priority.values().length; ++i) {
+        lanes.add(new ArrayDeque<>());
+      }
+
       isShuttingDown = false;
     }
 
@@ -289,16 +389,24 @@ public class AsyncQueue {
      * executed.
      */
     @Override
-    public synchronized void execute(Runnable command) {
+    public void execute(Runnable command) {
+      execute(Priority.NORMAL, command);
+    }
+
+    /** Like {@link #execute(Runnable)}, but queues the command in the given priority's lane. */
+    private synchronized void execute(Priority priority, Runnable command) {
       if (!isShuttingDown) {
-        internalExecutor.execute(command);
+        enqueueInLane(priority, /* timerId= */ null, command);
       }
     }
 
-    /** Execute the command, regardless if shutdown has been initiated. */
+    /**
+     * Execute the command, regardless if shutdown has been initiated. The command is queued in the
+     * lowest priority lane, so that it runs after all tasks that were queued before shutdown.
+     */
     public void executeEvenAfterShutdown(Runnable command) {
       try {
-        internalExecutor.execute(command);
+        enqueueInLane(Priority.BACKGROUND, /* timerId= */ null, command);
       } catch (RejectedExecutionException e) {
         // The only way we can get here is if the AsyncQueue has panicked and we're now racing with
         // the post to the main looper that will crash the app.
@@ -313,10 +421,11 @@ public class AsyncQueue {
      * @return A {@link Task} resolves when the requested `Callable` completes, or reports error
      *     when the `Callable` runs into exceptions.
      */
-    private <T> Task<T> executeAndReportResult(Callable<T> task) {
+    private <T> Task<T> executeAndReportResult(Priority priority, Callable<T> task) {
       final TaskCompletionSource<T> completionSource = new TaskCompletionSource<>();
       try {
         this.execute(
+            priority,
             () -> {
               try {
                 completionSource.setResult(task.call());
@@ -344,9 +453,11 @@ public class AsyncQueue {
         return source.getTask();
       }
 
-      // Not shutting down yet, execute and return a Task.
+      // Not shutting down yet, execute and return a Task. The task is queued in the lowest priority
+      // lane, so that it runs after all tasks that were queued before it.
       Task<Void> t =
           executeAndReportResult(
+              Priority.BACKGROUND,
               () -> {
                 task.run();
                 return null;
@@ -369,6 +480,68 @@ public class AsyncQueue {
       return null;
     }
 
+    /**
+     * Queues the command in the lane of the given priority and schedules a run of the next task on
+     * the internal executor. Does not check whether shutdown has been initiated.
+     *
+     * @param timerId The timer that scheduled the command, if any, for the queue wait metrics.
+     */
+    private void enqueueInLane(Priority priority, @Nullable TimerId timerId, Runnable command) {
+      synchronized (lanes) {
+        lanes
+            .get(priority.ordinal())
+            .add(
+                new QueuedTask(
+                    priority, timerId, command, nextSequenceNumber++, clock.nanoTime()));
+      }
+      internalExecutor.execute(this::runNextTask);
+    }
+
+    /**
+     * Runs the next queued task. Each queued task schedules one call to this method, so every task
+     * runs once, but not necessarily in the order in which the calls were scheduled.
+     */
+    private void runNextTask() {
+      QueuedTask task;
+      long nowNanos = clock.nanoTime();
+      synchronized (lanes) {
+        task = pollNextTask(nowNanos);
+      }
+      long waitMs = task.getWaitMs(nowNanos);
+      laneWaitStats.get(task.priority).record(waitMs);
+      if (task.timerId != null) {
+        timerWaitStats.get(task.timerId).record(waitMs);
+      }
+      task.command.run();
+    }
+
+    /**
+     * Removes and returns the oldest task of the highest priority lane, or the oldest task of all
+     * lanes if a task in a lower priority lane is starving. Must be called while holding the lock
+     * on the lanes.
+     */
+    private QueuedTask pollNextTask(long nowNanos) {
+      ArrayDeque<QueuedTask> highestLane = null;
+      ArrayDeque<QueuedTask> oldestLane = null;
+      boolean starving = false;
+      for (ArrayDeque<QueuedTask> lane : lanes) {
+        QueuedTask head = lane.peek();
+        if (head == null) {
+          continue;
+        }
+        if (highestLane == null) {
+          highestLane = lane;
+        } else if (head.getWaitMs(nowNanos) >= STARVATION_THRESHOLD_MS) {
+          starving = true;
+        }
+        if (oldestLane == null || head.sequenceNumber < oldestLane.peek().sequenceNumber) {
+          oldestLane = lane;
+        }
+      }
+      hardAssert(highestLane != null, "Ran out of queued tasks");
+      return starving ? oldestLane.poll() : highestLane.poll();
+    }
+
     /** Wraps around {@link ScheduledThreadPoolExecutor#shutdownNow()}. */
     private void shutdownNow() {
       internalExecutor.shutdownNow();
@@ -380,6 +553,8 @@ public class AsyncQueue {
     }
   }
 
+  private final Clock clock;
+
   /** The executor backing this AsyncQueue. */
   private final SynchronizedShutdownAwareExecutor executor;
   // Tasks scheduled to be queued in the future. Tasks are automatically removed after they are run
@@ -391,7 +566,23 @@ public class AsyncQueue {
   // List of TimerIds to fast-forward delays for.
   private final ArrayList<TimerId> timerIdsToSkip = new ArrayList<>();
 
+  // How long tasks waited in each lane, and how long delayed tasks waited once their delay elapsed.
+  private final EnumMap<Priority, QueueWaitStats> laneWaitStats = new EnumMap<>(Priority.class);
+  private final EnumMap<TimerId, QueueWaitStats> timerWaitStats = new EnumMap<>(TimerId.class);
+
   public AsyncQueue() {
+    this(System::nanoTime);
+  }
+
+  @VisibleForTesting
+  AsyncQueue(Clock clock) {
+    this.clock = clock;
+    for (Priority priority : Priority.values()) {
+      laneWaitStats.put(priority, new QueueWaitStats());
+    }
+    for (TimerId timerId : TimerId.values()) {
+      timerWaitStats.put(timerId, new QueueWaitStats());
+    }
     delayedTasks = new ArrayList<>();
     executor = new SynchronizedShutdownAwareExecutor();
   }
@@ -400,6 +591,24 @@ public class AsyncQueue {
     return executor;
   }
 
+  /** Returns an executor that queues its commands in the lane of the given priority. */
+  public Executor getExecutor(Priority priority) {
+    return command -> executor.execute(priority, command);
+  }
+
+  /** Returns how long the tasks that ran so far waited in the lane of the given priority. */
+  public QueueWaitStats getQueueWaitStats(Priority priority) {
+    return laneWaitStats.get(priority);
+  }
+
+  /**
+   * Returns how long the tasks of the given timer that ran so far waited after their delay elapsed.
+   * Tasks that were run early via {@link #runDelayedTasksUntil} are not included.
+   */
+  public QueueWaitStats getQueueWaitStats(TimerId timerId) {
+    return timerWaitStats.get(timerId);
+  }
+
   /** Verifies that the current thread is the managed AsyncQueue thread. */
   public void verifyIsCurrentThread() {
     Thread current = Thread.currentThread();
@@ -420,7 +629,21 @@ public class AsyncQueue {
    */
   @CheckReturnValue
   public <T> Task<T> enqueue(Callable<T> task) {
-    return executor.executeAndReportResult(task);
+    return enqueue(Priority.NORMAL, task);
+  }
+
+  /**
+   * Queue this Callable task in the lane of the given priority. It runs after every other already
+   * queued task of the same priority.
+   *
+   * @param priority The lane to queue the task in.
+   * @param task The task to run.
+   * @return A Task object that is resolved after the enqueued operation has completed, with the
+   *     return value of the operation.
+   */
+  @CheckReturnValue
+  public <T> Task<T> enqueue(Priority priority, Callable<T> task) {
+    return executor.executeAndReportResult(priority, task);
   }
 
   /**
@@ -431,7 +654,21 @@ public class AsyncQueue {
    */
   @CheckReturnValue
   public Task<Void> enqueue(Runnable task) {
+    return enqueue(Priority.NORMAL, task);
+  }
+
+  /**
+   * Queue this Runnable task in the lane of the given priority. It runs after every other already
+   * queued task of the same priority.
+   *
+   * @param priority The lane to queue the task in.
+   * @param task The task to run.
+   * @return A Task object that is resolved after the enqueued operation has completed.
+   */
+  @CheckReturnValue
+  public Task<Void> enqueue(Priority priority, Runnable task) {
     return enqueue(
+        priority,
         () -> {
           task.run();
           return null;
@@ -472,6 +709,17 @@ public class AsyncQueue {
     enqueue(task);
   }
 
+  /**
+   * Queue this Runnable task in the lane of the given priority without returning a Task.
+   *
+   * @param priority The lane to queue the task in.
+   * @param task The task to run.
+   */
+  @SuppressWarnings({"CheckReturnValue", "ResultOfMethodCallIgnored"})
+  public void enqueueAndForget(Priority priority, Runnable task) {
+    enqueue(priority, task);
+  }
+
   /**
    * Schedule a task after the specified delay.
    *
@@ -21,18 +21,37 @@ import java.util.concurrent.Semaphore;
  * A simple queue that executes tasks in parallel on the Android's AsyncTask.THREAD_POOL_EXECUTOR
  * and supports blocking on their completion.
  *
+ * <p>The number of tasks that run in the background at the same time can be bounded. Tasks that
+ * are scheduled past this limit run directly on the calling thread, which keeps the caller from
+ * scheduling more work than the background threads can keep up with.
+ *
  * <p>This class is not thread-safe. In particular, `execute()` and `drain()` should not be called
  * from parallel threads.
  */
 public class BackgroundQueue implements Executor {
+  private final Executor executor;
   private Semaphore completedTasks = new Semaphore(0);
   private int pendingTaskCount = 0;
 
+  /** Creates a queue that is only bounded by the limits of Executors.BACKGROUND_EXECUTOR. */
+  public BackgroundQueue() {
+    this.executor = Executors.BACKGROUND_EXECUTOR;
+  }
+
+  /**
+   * Creates a queue that runs at most {@code maximumConcurrency} tasks in the background at the
+   * same time.
+   */
+  public BackgroundQueue(int maximumConcurrency) {
+    this.executor =
+        new ThrottledForwardingExecutor(maximumConcurrency, Executors.BACKGROUND_EXECUTOR);
+  }
+
   /** Enqueue a task on Android's THREAD_POOL_EXECUTOR. */
   @Override
   public void execute(Runnable task) {
     ++pendingTaskCount;
-    Executors.BACKGROUND_EXECUTOR.execute(
+    executor.execute(
         () -> {
           task.run();
           completedTasks.release();
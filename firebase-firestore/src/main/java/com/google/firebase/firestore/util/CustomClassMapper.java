@@ -17,14 +17,19 @@ package com.google.firebase.firestore.util;
 import static com.google.firebase.firestore.util.ApiUtil.invoke;
 import static com.google.firebase.firestore.util.ApiUtil.newInstance;
 
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import com.google.firebase.Timestamp;
 import com.google.firebase.firestore.Blob;
+import com.google.firebase.firestore.ClassMapper;
 import com.google.firebase.firestore.DocumentId;
 import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.Exclude;
 import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.GenerateMapper;
 import com.google.firebase.firestore.GeoPoint;
 import com.google.firebase.firestore.IgnoreExtraProperties;
+import com.google.firebase.firestore.MappingContext;
 import com.google.firebase.firestore.PropertyName;
 import com.google.firebase.firestore.ServerTimestamp;
 import com.google.firebase.firestore.ThrowOnExtraProperties;
@@ -57,6 +62,15 @@ public class CustomClassMapper {
 
   private static final ConcurrentMap<Class<?>, BeanMapper<?>> mappers = new ConcurrentHashMap<>();
 
+  /**
+   * The mappers generated for classes annotated with {@link GenerateMapper}, or {@link
+   * #NO_GENERATED_MAPPER} for classes without a generated mapper.
+   */
+  private static final ConcurrentMap<Class<?>, Object> generatedMappers =
+      new ConcurrentHashMap<>();
+
+  private static final Object NO_GENERATED_MAPPER = new Object();
+
   private static void hardAssert(boolean assertion) {
     hardAssert(assertion, "Internal inconsistency");
   }
@@ -97,7 +111,28 @@ public class CustomClassMapper {
    */
   public static <T> T convertToCustomClass(
       Object object, Class<T> clazz, DocumentReference docRef) {
-    return deserializeToClass(object, clazz, new DeserializeContext(ErrorPath.EMPTY, docRef));
+    return convertToCustomClass(object, clazz, docRef, value -> value);
+  }
+
+  /**
+   * Converts a representation of JSON data whose maps and lists may be read-only views to an
+   * object of the provided class.
+   *
+   * @param object The representation of the JSON data
+   * @param clazz The class of the object to convert to
+   * @param docRef The value to set to {@link DocumentId} annotated fields in the custom class.
+   * @param plainValueConverter Converts a view to the standard library Java representation. It is
+   *     applied to values that are assigned to properties of type {@link Object} as-is, so that
+   *     views are never exposed to the custom class.
+   * @return The POJO object.
+   */
+  public static <T> T convertToCustomClass(
+      Object object,
+      Class<T> clazz,
+      DocumentReference docRef,
+      Function<Object, Object> plainValueConverter) {
+    return deserializeToClass(
+        object, clazz, new DeserializeContext(ErrorPath.EMPTY, docRef, plainValueConverter));
   }
 
   private static <T> Object serialize(T o) {
@@ -174,6 +209,10 @@ public class CustomClassMapper {
       return o;
     } else {
       Class<T> clazz = (Class<T>) o.getClass();
+      ClassMapper<T> generatedMapper = loadGeneratedMapperForClass(clazz);
+      if (generatedMapper != null) {
+        return generatedMapper.serialize(o, new GeneratedMapperContext(path, null, value -> value));
+      }
       BeanMapper<T> mapper = loadOrCreateBeanMapperForClass(clazz);
       return mapper.serialize(o, path);
     }
@@ -246,7 +285,7 @@ public class CustomClassMapper {
               + clazz.getName()
               + " has generic type parameters, please use GenericTypeIndicator instead");
     } else if (clazz.equals(Object.class)) {
-      return (T) o;
+      return (T) context.plainValueConverter.apply(o);
     } else if (clazz.isEnum()) {
       return deserializeToEnum(o, clazz, context);
     } else {
@@ -273,7 +312,8 @@ public class CustomClassMapper {
         }
         return (T) result;
       } else {
-        throw deserializeError(context.errorPath, "Expected a List, but got a " + o.getClass());
+        throw deserializeError(
+            context.errorPath, "Expected a List, but got a " + context.valueClass(o));
       }
     } else if (Map.class.isAssignableFrom(rawType)) {
       Type keyType = type.getActualTypeArguments()[0];
@@ -366,7 +406,7 @@ public class CustomClassMapper {
           "Expected a String while deserializing to enum "
               + clazz
               + " but got a "
-              + object.getClass());
+              + context.valueClass(object));
     }
   }
 
@@ -382,6 +422,64 @@ public class CustomClassMapper {
     return mapper;
   }
 
+  /** Returns whether a reflection-based mapper was created for the given class. */
+  @VisibleForTesting
+  static boolean hasBeanMapper(Class<?> clazz) {
+    return mappers.containsKey(clazz);
+  }
+
+  /**
+   * Returns the mapper that was generated for the given class, or null if the class is not
+   * annotated with {@link GenerateMapper} or the annotation processor did not run for it.
+   */
+  @Nullable
+  @SuppressWarnings("unchecked")
+  private static <T> ClassMapper<T> loadGeneratedMapperForClass(Class<T> clazz) {
+    Object mapper = generatedMappers.get(clazz);
+    if (mapper == null) {
+      mapper = createGeneratedMapper(clazz);
+      if (mapper == null) {
+        mapper = NO_GENERATED_MAPPER;
+      }
+      // As above, it's okay if multiple threads create a mapper for the same class.
+      generatedMappers.put(clazz, mapper);
+    }
+    return mapper == NO_GENERATED_MAPPER ? null : (ClassMapper<T>) mapper;
+  }
+
+  @Nullable
+  @SuppressWarnings("unchecked")
+  private static <T> ClassMapper<T> createGeneratedMapper(Class<T> clazz) {
+    if (!clazz.isAnnotationPresent(GenerateMapper.class)) {
+      return null;
+    }
+
+    // The annotation processor names the mapper of `com.example.Outer$Inner` as
+    // `com.example.AutoOuterInnerFirestoreMapper`.
+    String className = clazz.getName();
+    int packageEnd = className.lastIndexOf('.') + 1;
+    String mapperName =
+        className.substring(0, packageEnd)
+            + "Auto"
+            + className.substring(packageEnd).replace("$", "")
+            + "FirestoreMapper";
+    try {
+      Class<?> mapperClass = Class.forName(mapperName, true, clazz.getClassLoader());
+      return (ClassMapper<T>) newInstance(mapperClass.getConstructor());
+    } catch (ClassNotFoundException e) {
+      Logger.warn(
+          CustomClassMapper.class.getSimpleName(),
+          "Class %s is annotated with @GenerateMapper, but its mapper %s was not found. Make sure "
+              + "that the firebase-firestore-processor annotation processor is configured and "
+              + "that ProGuard keeps the generated mappers.",
+          clazz.getName(),
+          mapperName);
+      return null;
+    } catch (NoSuchMethodException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   @SuppressWarnings("unchecked")
   private static Map<String, Object> expectMap(Object object, DeserializeContext context) {
     if (object instanceof Map) {
@@ -389,7 +487,8 @@ public class CustomClassMapper {
       return (Map<String, Object>) object;
     } else {
       throw deserializeError(
-          context.errorPath, "Expected a Map while deserializing, but got a " + object.getClass());
+          context.errorPath,
+          "Expected a Map while deserializing, but got a " + context.valueClass(object));
     }
   }
 
@@ -410,7 +509,7 @@ public class CustomClassMapper {
     } else {
       throw deserializeError(
           context.errorPath,
-          "Failed to convert a value of type " + o.getClass().getName() + " to int");
+          "Failed to convert a value of type " + context.valueClass(o).getName() + " to int");
     }
   }
 
@@ -433,7 +532,7 @@ public class CustomClassMapper {
     } else {
       throw deserializeError(
           context.errorPath,
-          "Failed to convert a value of type " + o.getClass().getName() + " to long");
+          "Failed to convert a value of type " + context.valueClass(o).getName() + " to long");
     }
   }
 
@@ -458,7 +557,7 @@ public class CustomClassMapper {
     } else {
       throw deserializeError(
           context.errorPath,
-          "Failed to convert a value of type " + o.getClass().getName() + " to double");
+          "Failed to convert a value of type " + context.valueClass(o).getName() + " to double");
     }
   }
 
@@ -468,7 +567,7 @@ public class CustomClassMapper {
     } else {
       throw deserializeError(
           context.errorPath,
-          "Failed to convert value of type " + o.getClass().getName() + " to boolean");
+          "Failed to convert value of type " + context.valueClass(o).getName() + " to boolean");
     }
   }
 
@@ -478,7 +577,7 @@ public class CustomClassMapper {
     } else {
       throw deserializeError(
           context.errorPath,
-          "Failed to convert value of type " + o.getClass().getName() + " to String");
+          "Failed to convert value of type " + context.valueClass(o).getName() + " to String");
     }
   }
 
@@ -490,7 +589,7 @@ public class CustomClassMapper {
     } else {
       throw deserializeError(
           context.errorPath,
-          "Failed to convert value of type " + o.getClass().getName() + " to Date");
+          "Failed to convert value of type " + context.valueClass(o).getName() + " to Date");
     }
   }
 
@@ -502,7 +601,7 @@ public class CustomClassMapper {
     } else {
       throw deserializeError(
           context.errorPath,
-          "Failed to convert value of type " + o.getClass().getName() + " to Timestamp");
+          "Failed to convert value of type " + context.valueClass(o).getName() + " to Timestamp");
     }
   }
 
@@ -512,7 +611,7 @@ public class CustomClassMapper {
     } else {
       throw deserializeError(
           context.errorPath,
-          "Failed to convert value of type " + o.getClass().getName() + " to Blob");
+          "Failed to convert value of type " + context.valueClass(o).getName() + " to Blob");
     }
   }
 
@@ -522,7 +621,7 @@ public class CustomClassMapper {
     } else {
       throw deserializeError(
           context.errorPath,
-          "Failed to convert value of type " + o.getClass().getName() + " to GeoPoint");
+          "Failed to convert value of type " + context.valueClass(o).getName() + " to GeoPoint");
     }
   }
 
@@ -532,18 +631,30 @@ public class CustomClassMapper {
     } else {
       throw deserializeError(
           context.errorPath,
-          "Failed to convert value of type " + o.getClass().getName() + " to DocumentReference");
+          "Failed to convert value of type "
+              + context.valueClass(o).getName()
+              + " to DocumentReference");
     }
   }
 
   private static <T> T convertBean(Object o, Class<T> clazz, DeserializeContext context) {
+    ClassMapper<T> generatedMapper = loadGeneratedMapperForClass(clazz);
+    if (generatedMapper != null && o instanceof Map) {
+      return generatedMapper.deserialize(
+          expectMap(o, context),
+          new GeneratedMapperContext(
+              context.errorPath, context.documentRef, context.plainValueConverter));
+    }
     BeanMapper<T> mapper = loadOrCreateBeanMapperForClass(clazz);
     if (o instanceof Map) {
       return mapper.deserialize(expectMap(o, context), context);
     } else {
       throw deserializeError(
           context.errorPath,
-          "Can't convert object of type " + o.getClass().getName() + " to type " + clazz.getName());
+          "Can't convert object of type "
+              + context.valueClass(o).getName()
+              + " to type "
+              + clazz.getName());
     }
   }
 
@@ -1166,13 +1277,65 @@ public class CustomClassMapper {
     /** Value used to set to {@link DocumentId} annotated fields during deserialization, if any. */
     final DocumentReference documentRef;
 
-    DeserializeContext(ErrorPath path, DocumentReference docRef) {
+    /** Converts views of maps and lists to the values that are handed to the user as-is. */
+    final Function<Object, Object> plainValueConverter;
+
+    DeserializeContext(
+        ErrorPath path, DocumentReference docRef, Function<Object, Object> plainValueConverter) {
       errorPath = path;
       documentRef = docRef;
+      this.plainValueConverter = plainValueConverter;
     }
 
     DeserializeContext newInstanceWithErrorPath(ErrorPath newPath) {
-      return new DeserializeContext(newPath, documentRef);
+      return new DeserializeContext(newPath, documentRef, plainValueConverter);
+    }
+
+    /** Returns the class of the value as it would be handed to the user, for error messages. */
+    Class<?> valueClass(Object value) {
+      return plainValueConverter.apply(value).getClass();
+    }
+  }
+
+  /** Converts the property values of the objects that generated mappers convert. */
+  private static class GeneratedMapperContext extends MappingContext {
+    /** Path to the object being converted, used for better error messages. */
+    private final ErrorPath errorPath;
+
+    @Nullable private final DocumentReference documentRef;
+
+    private final Function<Object, Object> plainValueConverter;
+
+    GeneratedMapperContext(
+        ErrorPath errorPath,
+        @Nullable DocumentReference documentRef,
+        Function<Object, Object> plainValueConverter) {
+      this.errorPath = errorPath;
+      this.documentRef = documentRef;
+      this.plainValueConverter = plainValueConverter;
+    }
+
+    @Nullable
+    @Override
+    public Object serialize(@Nullable Object value, String propertyName) {
+      return CustomClassMapper.serialize(value, errorPath.child(propertyName));
+    }
+
+    @Nullable
+    @Override
+    public Object deserialize(@Nullable Object value, Type type, String propertyName) {
+      ErrorPath childPath = errorPath.child(propertyName);
+      if (value == null && type instanceof Class && ((Class<?>) type).isPrimitive()) {
+        throw deserializeError(childPath, "Can't set null to a property of type " + type);
+      }
+      return CustomClassMapper.deserializeToType(
+          value, type, new DeserializeContext(childPath, documentRef, plainValueConverter));
+    }
+
+    @Nullable
+    @Override
+    public DocumentReference getDocumentReference() {
+      return documentRef;
     }
   }
 }
@@ -29,6 +29,17 @@ public final class Executors {
    */
   private static final int ASYNC_THREAD_POOL_MAXIMUM_CONCURRENCY = 4;
 
+  /**
+   * The number of tasks that CPU-bound work (such as decoding query results) should be split into.
+   * Running more tasks than there are cores only adds scheduling overhead, and running more tasks
+   * than BACKGROUND_EXECUTOR allows results in tasks being run on the calling thread.
+   */
+  public static final int BACKGROUND_PARALLELISM =
+      Math.max(
+          1,
+          Math.min(
+              ASYNC_THREAD_POOL_MAXIMUM_CONCURRENCY, Runtime.getRuntime().availableProcessors()));
+
   /**
    * The default executor for user visible callbacks. It is an executor scheduling callbacks on
    * Android's main thread.
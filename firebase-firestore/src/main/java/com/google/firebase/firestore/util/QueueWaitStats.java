@@ -0,0 +1,94 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.util;
+
+import static com.google.firebase.firestore.util.Assert.hardAssert;
+
+import java.util.Locale;
+
+/**
+ * Records how long tasks waited in an AsyncQueue before they started to run.
+ *
+ * <p>Wait times are counted in buckets of exponentially growing size (0ms, 1ms, 2-3ms, 4-7ms and so
+ * on), which allows to estimate percentiles of the wait times with constant memory. Percentiles are
+ * reported as the largest wait time of the bucket that contains them.
+ */
+public final class QueueWaitStats {
+  /** The last bucket counts all wait times of at least 2^(BUCKET_COUNT - 2) ms. */
+  private static final int BUCKET_COUNT = 18;
+
+  private final long[] buckets = new long[BUCKET_COUNT];
+  private long count;
+  private long totalWaitMs;
+  private long maxWaitMs;
+
+  /** Records a task that waited for {@code waitMs} milliseconds. */
+  synchronized void record(long waitMs) {
+    waitMs = Math.max(0, waitMs);
+    ++buckets[bucketOf(waitMs)];
+    ++count;
+    totalWaitMs += waitMs;
+    maxWaitMs = Math.max(maxWaitMs, waitMs);
+  }
+
+  /** Returns the number of tasks that were recorded. */
+  public synchronized long getCount() {
+    return count;
+  }
+
+  /** Returns the longest wait time in milliseconds, or 0 if no task was recorded. */
+  public synchronized long getMaxWaitMs() {
+    return maxWaitMs;
+  }
+
+  /** Returns the average wait time in milliseconds, or 0 if no task was recorded. */
+  public synchronized long getAverageWaitMs() {
+    return count == 0 ? 0 : totalWaitMs / count;
+  }
+
+  /**
+   * Returns an upper bound for the wait time that the given fraction of the tasks didn't exceed,
+   * e.g. 0.99 for the 99th percentile, or 0 if no task was recorded.
+   */
+  public synchronized long getPercentileWaitMs(double fraction) {
+    hardAssert(fraction > 0 && fraction <= 1, "Invalid fraction: %s", fraction);
+    long remaining = (long) Math.ceil(fraction * count);
+    for (int i = 0; i < BUCKET_COUNT - 1 && remaining > 0; ++i) {
+      remaining -= buckets[i];
+      if (remaining <= 0) {
+        return Math.min((1L << i) - 1, maxWaitMs);
+      }
+    }
+    return maxWaitMs;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(
+        Locale.US,
+        "count=%d, avg=%dms, p50=%dms, p99=%dms, max=%dms",
+        count,
+        getAverageWaitMs(),
+        getPercentileWaitMs(0.5),
+        getPercentileWaitMs(0.99),
+        maxWaitMs);
+  }
+
+  private static int bucketOf(long waitMs) {
+    // Bucket i holds the wait times in [2^(i-1), 2^i), and bucket 0 holds a wait time of 0ms.
+    int bucket = 64 - Long.numberOfLeadingZeros(waitMs);
+    return Math.min(bucket, BUCKET_COUNT - 1);
+  }
+}
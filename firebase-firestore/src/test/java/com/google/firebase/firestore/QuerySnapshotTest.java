@@ -24,8 +24,11 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.when;
 
+import com.google.android.gms.tasks.Task;
 import com.google.firebase.Timestamp;
 import com.google.firebase.firestore.DocumentSnapshot.ServerTimestampBehavior;
 import com.google.firebase.firestore.core.DocumentViewChange;
@@ -34,9 +37,15 @@ import com.google.firebase.firestore.model.Document;
 import com.google.firebase.firestore.model.DocumentSet;
 import com.google.firebase.firestore.model.ObjectValue;
 import com.google.firebase.firestore.model.ServerTimestamps;
+import com.google.firebase.firestore.util.Executors;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
@@ -50,6 +59,49 @@ public class QuerySnapshotTest {
     public Date timestamp;
   }
 
+  public static class Item {
+    public String name;
+    public long index;
+    public List<String> tags;
+    public Map<String, Object> attributes;
+    public Object payload;
+  }
+
+  /** Returns a snapshot of {@code count} documents in the order of their index. */
+  private static QuerySnapshot itemSnapshot(int count) {
+    Map<String, ObjectValue> docs = new HashMap<>();
+    for (int i = 0; i < count; ++i) {
+      docs.put(
+          String.format("item%04d", i),
+          wrapObject(
+              "name",
+              "item" + i,
+              "index",
+              i,
+              "tags",
+              Arrays.asList("a", "b"),
+              "attributes",
+              map("nested", map("value", i)),
+              "payload",
+              Arrays.asList(map("value", i)),
+              "unknown",
+              map("ignored", true)));
+    }
+    return TestUtil.querySnapshot("items", map(), docs, false, false);
+  }
+
+  private static void assertItems(int count, List<Item> items) {
+    assertEquals(count, items.size());
+    for (int i = 0; i < count; ++i) {
+      Item item = items.get(i);
+      assertEquals("item" + i, item.name);
+      assertEquals(i, item.index);
+      assertEquals(Arrays.asList("a", "b"), item.tags);
+      assertEquals(map("nested", map("value", (long) i)), item.attributes);
+      assertEquals(Arrays.asList(map("value", (long) i)), item.payload);
+    }
+  }
+
   @Test
   public void testEquals() {
     ObjectValue firstValue = wrapObject("a", 1);
@@ -98,6 +150,63 @@ public class QuerySnapshotTest {
     assertNotNull(docs.get(0).timestamp);
   }
 
+  @Test
+  public void testToObjectsConvertsLargeSnapshotsInOrder() {
+    assertItems(1000, itemSnapshot(1000).toObjects(Item.class));
+  }
+
+  @Test
+  public void testToObjectsExposesPlainCollectionsForObjectProperties() {
+    Item item = itemSnapshot(1).toObjects(Item.class).get(0);
+    assertTrue(item.attributes.get("nested") instanceof HashMap);
+    assertTrue(item.payload instanceof ArrayList);
+    assertTrue(((List<?>) item.payload).get(0) instanceof HashMap);
+  }
+
+  @Test
+  public void testToObjectsRethrowsConversionErrors() {
+    Map<String, ObjectValue> docs = new HashMap<>();
+    for (int i = 0; i < 1000; ++i) {
+      docs.put(String.format("item%04d", i), wrapObject("index", i == 999 ? "last" : i));
+    }
+    QuerySnapshot snapshot = TestUtil.querySnapshot("items", map(), docs, false, false);
+    try {
+      snapshot.toObjects(Item.class);
+      fail("Expected exception");
+    } catch (RuntimeException e) {
+      assertEquals(
+          "Could not deserialize object. Failed to convert a value of type java.lang.String to "
+              + "long (found in field 'index')",
+          e.getMessage());
+    }
+  }
+
+  @Test
+  public void testToObjectsAsync() throws InterruptedException {
+    Task<List<Item>> task = itemSnapshot(500).toObjectsAsync(Item.class);
+    CountDownLatch completed = new CountDownLatch(1);
+    task.addOnCompleteListener(Executors.DIRECT_EXECUTOR, t -> completed.countDown());
+    assertTrue(completed.await(10, TimeUnit.SECONDS));
+    assertItems(500, task.getResult());
+  }
+
+  @Test
+  public void testToObjectsAsyncCompletesConcurrentCalls() throws InterruptedException {
+    // More calls than background threads, none of which may wait for the others' chunks.
+    int callCount = 4 * Executors.BACKGROUND_PARALLELISM;
+    List<Task<List<Item>>> tasks = new ArrayList<>();
+    CountDownLatch completed = new CountDownLatch(callCount);
+    for (int i = 0; i < callCount; ++i) {
+      Task<List<Item>> task = itemSnapshot(500).toObjectsAsync(Item.class);
+      task.addOnCompleteListener(Executors.DIRECT_EXECUTOR, t -> completed.countDown());
+      tasks.add(task);
+    }
+    assertTrue(completed.await(10, TimeUnit.SECONDS));
+    for (Task<List<Item>> task : tasks) {
+      assertItems(500, task.getResult());
+    }
+  }
+
   @Test
   public void testIncludeMetadataChanges() {
     Document doc1Old =
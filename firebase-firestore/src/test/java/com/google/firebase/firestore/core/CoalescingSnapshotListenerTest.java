@@ -0,0 +1,172 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.core;
+
+import static com.google.firebase.firestore.testutil.TestUtil.deletedDoc;
+import static com.google.firebase.firestore.testutil.TestUtil.doc;
+import static com.google.firebase.firestore.testutil.TestUtil.docUpdates;
+import static com.google.firebase.firestore.testutil.TestUtil.map;
+import static com.google.firebase.firestore.testutil.TestUtil.path;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.firebase.firestore.FirebaseFirestoreException;
+import com.google.firebase.firestore.core.DocumentViewChange.Type;
+import com.google.firebase.firestore.model.Document;
+import com.google.firebase.firestore.model.DocumentKey;
+import com.google.firebase.firestore.model.MaybeDocument;
+import com.google.firebase.firestore.util.AsyncQueue;
+import com.google.firebase.firestore.util.AsyncQueue.TimerId;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class CoalescingSnapshotListenerTest {
+  private static final long WINDOW_MS = 16;
+
+  private AsyncQueue queue;
+  private List<ViewSnapshot> snapshots;
+  private List<FirebaseFirestoreException> errors;
+  private CoalescingSnapshotListener listener;
+
+  @Before
+  public void setUp() {
+    queue = new AsyncQueue();
+    snapshots = new ArrayList<>();
+    errors = new ArrayList<>();
+    listener =
+        new CoalescingSnapshotListener(
+            queue,
+            WINDOW_MS,
+            /* includeQueryMetadataChanges= */ false,
+            (value, error) -> {
+              if (error != null) {
+                errors.add(error);
+              } else {
+                snapshots.add(value);
+              }
+            });
+  }
+
+  private static ViewSnapshot applyChanges(View view, MaybeDocument... docs) {
+    return view.applyChanges(view.computeDocChanges(docUpdates(docs))).getSnapshot();
+  }
+
+  private void raise(ViewSnapshot snapshot) throws InterruptedException {
+    queue.runSync(() -> listener.onEvent(snapshot, null));
+  }
+
+  @Test
+  public void testDeliversFirstSnapshotImmediately() throws InterruptedException {
+    View view = new View(Query.atPath(path("rooms")), DocumentKey.emptyKeySet());
+    ViewSnapshot snap1 = applyChanges(view, doc("rooms/eros", 1, map("name", "eros")));
+
+    raise(snap1);
+
+    assertEquals(asList(snap1), snapshots);
+    assertTrue(queue.containsDelayedTask(TimerId.SNAPSHOT_COALESCING));
+  }
+
+  @Test
+  public void testMergesSnapshotsWithinWindow() throws InterruptedException {
+    Query query = Query.atPath(path("rooms"));
+    Document doc1 = doc("rooms/eros", 1, map("name", "eros"));
+    Document doc1prime = doc("rooms/eros", 2, map("name", "eros", "owner", "Jonny"));
+    Document doc2 = doc("rooms/hades", 1, map("name", "hades"));
+    Document doc3 = doc("rooms/other", 1, map("name", "other"));
+
+    View view = new View(query, DocumentKey.emptyKeySet());
+    ViewSnapshot snap1 = applyChanges(view, doc1);
+    ViewSnapshot snap2 = applyChanges(view, doc1prime, doc2);
+    ViewSnapshot snap3 = applyChanges(view, doc2, doc3);
+
+    raise(snap1);
+    raise(snap2);
+    raise(snap3);
+    assertEquals(asList(snap1), snapshots);
+
+    queue.runDelayedTasksUntil(TimerId.SNAPSHOT_COALESCING);
+
+    assertEquals(2, snapshots.size());
+    ViewSnapshot merged = snapshots.get(1);
+    assertEquals(snap3.getDocuments(), merged.getDocuments());
+    assertEquals(snap1.getDocuments(), merged.getOldDocuments());
+    assertEquals(
+        asList(
+            DocumentViewChange.create(Type.ADDED, doc2),
+            DocumentViewChange.create(Type.ADDED, doc3),
+            DocumentViewChange.create(Type.MODIFIED, doc1prime)),
+        merged.getChanges());
+    assertFalse(merged.didSyncStateChange());
+  }
+
+  @Test
+  public void testDeliversImmediatelyAfterQuietWindow() throws InterruptedException {
+    View view = new View(Query.atPath(path("rooms")), DocumentKey.emptyKeySet());
+    ViewSnapshot snap1 = applyChanges(view, doc("rooms/eros", 1, map("name", "eros")));
+    ViewSnapshot snap2 = applyChanges(view, doc("rooms/hades", 1, map("name", "hades")));
+
+    raise(snap1);
+    // No snapshot was raised within the window, so the window closes without an event.
+    queue.runDelayedTasksUntil(TimerId.SNAPSHOT_COALESCING);
+    assertFalse(queue.containsDelayedTask(TimerId.SNAPSHOT_COALESCING));
+
+    raise(snap2);
+    assertEquals(asList(snap1, snap2), snapshots);
+  }
+
+  @Test
+  public void testSkipsMergedSnapshotsWithoutChanges() throws InterruptedException {
+    Document doc1 = doc("rooms/eros", 1, map("name", "eros"));
+    Document doc2 = doc("rooms/hades", 1, map("name", "hades"));
+
+    View view = new View(Query.atPath(path("rooms")), DocumentKey.emptyKeySet());
+    ViewSnapshot snap1 = applyChanges(view, doc1);
+    ViewSnapshot snap2 = applyChanges(view, doc2);
+    ViewSnapshot snap3 = applyChanges(view, deletedDoc("rooms/hades", 2));
+
+    raise(snap1);
+    raise(snap2);
+    raise(snap3);
+    queue.runDelayedTasksUntil(TimerId.SNAPSHOT_COALESCING);
+
+    assertEquals(asList(snap1), snapshots);
+  }
+
+  @Test
+  public void testDeliversErrorsImmediately() throws InterruptedException {
+    View view = new View(Query.atPath(path("rooms")), DocumentKey.emptyKeySet());
+    ViewSnapshot snap1 = applyChanges(view, doc("rooms/eros", 1, map("name", "eros")));
+    ViewSnapshot snap2 = applyChanges(view, doc("rooms/hades", 1, map("name", "hades")));
+    FirebaseFirestoreException error =
+        new FirebaseFirestoreException("test error", FirebaseFirestoreException.Code.INTERNAL);
+
+    raise(snap1);
+    raise(snap2);
+    queue.runSync(() -> listener.onEvent(null, error));
+
+    assertEquals(asList(snap1), snapshots);
+    assertEquals(asList(error), errors);
+    assertFalse(queue.containsDelayedTask(TimerId.SNAPSHOT_COALESCING));
+  }
+}
@@ -19,6 +19,7 @@ import static com.google.firebase.firestore.testutil.TestUtil.deletedDoc;
 import static com.google.firebase.firestore.testutil.TestUtil.doc;
 import static com.google.firebase.firestore.testutil.TestUtil.docUpdates;
 import static com.google.firebase.firestore.testutil.TestUtil.filter;
+import static com.google.firebase.firestore.testutil.TestUtil.key;
 import static com.google.firebase.firestore.testutil.TestUtil.keySet;
 import static com.google.firebase.firestore.testutil.TestUtil.map;
 import static com.google.firebase.firestore.testutil.TestUtil.orderBy;
@@ -33,6 +34,7 @@ import static org.junit.Assert.assertTrue;
 
 import com.google.firebase.database.collection.ImmutableSortedMap;
 import com.google.firebase.firestore.core.DocumentViewChange.Type;
+import com.google.firebase.firestore.local.LocalViewChanges;
 import com.google.firebase.firestore.model.Document;
 import com.google.firebase.firestore.model.DocumentKey;
 import com.google.firebase.firestore.model.MaybeDocument;
@@ -40,6 +42,7 @@ import com.google.firebase.firestore.model.ResourcePath;
 import com.google.firebase.firestore.remote.TargetChange;
 import com.google.protobuf.ByteString;
 import java.util.Collections;
+import java.util.List;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
@@ -162,6 +165,92 @@ public class ViewTest {
     assertTrue(snapshot.didSyncStateChange());
   }
 
+  @Test
+  public void testComputesInitialChangesRegardlessOfPreviousOrder() {
+    Query query = messageQuery().filter(filter("sort", "<=", 2)).orderBy(orderBy("sort", "desc"));
+
+    Document doc1 = doc("rooms/eros/messages/1", 0, map("sort", 1));
+    Document doc2 = doc("rooms/eros/messages/2", 0, map("sort", 2));
+    Document doc3 = doc("rooms/eros/messages/3", 0, map("sort", 3)); // no match
+    Document doc4 = doc("rooms/eros/messages/4", 0, map("sort", 0));
+    ImmutableSortedMap<DocumentKey, Document> documents = docUpdates(doc1, doc2, doc3, doc4);
+
+    // The previous order is stale: doc1 changed its position, doc3 no longer matches, doc4 is new
+    // and doc5 was deleted.
+    List<List<DocumentKey>> previousOrders =
+        asList(
+            null,
+            asList(doc2.getKey(), doc1.getKey()),
+            asList(doc1.getKey(), doc3.getKey(), doc2.getKey(), key("rooms/eros/messages/5")));
+
+    for (List<DocumentKey> previousOrder : previousOrders) {
+      View view = new View(query, DocumentKey.emptyKeySet());
+      View.DocumentChanges docViewChanges = view.computeInitialDocChanges(documents, previousOrder);
+      ViewSnapshot snapshot = view.applyChanges(docViewChanges).getSnapshot();
+
+      assertEquals(asList(doc2, doc1, doc4), snapshot.getDocuments().toList());
+      assertEquals(
+          asList(
+              DocumentViewChange.create(Type.ADDED, doc2),
+              DocumentViewChange.create(Type.ADDED, doc1),
+              DocumentViewChange.create(Type.ADDED, doc4)),
+          snapshot.getChanges());
+    }
+  }
+
+  @Test
+  public void testComputesInitialChangesWithLimit() {
+    Query query = messageQuery().orderBy(orderBy("sort")).limitToFirst(2);
+    View view = new View(query, DocumentKey.emptyKeySet());
+
+    Document doc1 = doc("rooms/eros/messages/1", 0, map("sort", 3));
+    Document doc2 = doc("rooms/eros/messages/2", 0, map("sort", 2));
+    Document doc3 = doc("rooms/eros/messages/3", 0, map("sort", 1));
+
+    View.DocumentChanges docViewChanges =
+        view.computeInitialDocChanges(
+            docUpdates(doc1, doc2, doc3), asList(doc3.getKey(), doc2.getKey()));
+    assertFalse(docViewChanges.needsRefill());
+
+    ViewSnapshot snapshot = view.applyChanges(docViewChanges).getSnapshot();
+    assertEquals(asList(doc3, doc2), snapshot.getDocuments().toList());
+    assertEquals(
+        asList(
+            DocumentViewChange.create(Type.ADDED, doc3),
+            DocumentViewChange.create(Type.ADDED, doc2)),
+        snapshot.getChanges());
+  }
+
+  @Test
+  public void testStoresSyncedResultsOnlyWhenOrderChanges() {
+    Query query = messageQuery().orderBy(orderBy("sort"));
+    View view = new View(query, DocumentKey.emptyKeySet());
+
+    Document doc1 = doc("rooms/eros/messages/1", 0, map("sort", 1));
+    Document doc2 = doc("rooms/eros/messages/2", 0, map("sort", 2));
+    Document doc3 = doc("rooms/eros/messages/3", 0, map("sort", 3));
+    ViewSnapshot snapshot =
+        view.applyChanges(
+                view.computeDocChanges(docUpdates(doc1, doc2, doc3)), ackTarget(doc1, doc2, doc3))
+            .getSnapshot();
+    assertNotNull(LocalViewChanges.fromViewSnapshot(1, snapshot).getSyncedDocuments());
+
+    // doc1 is modified, but keeps its position.
+    Document newDoc1 = doc("rooms/eros/messages/1", 1, map("sort", 1.5));
+    snapshot =
+        view.applyChanges(view.computeDocChanges(docUpdates(newDoc1)), ackTarget()).getSnapshot();
+    assertEquals(asList(DocumentViewChange.create(Type.MODIFIED, newDoc1)), snapshot.getChanges());
+    assertNull(LocalViewChanges.fromViewSnapshot(1, snapshot).getSyncedDocuments());
+
+    // doc1 moves behind doc3.
+    newDoc1 = doc("rooms/eros/messages/1", 2, map("sort", 4));
+    snapshot =
+        view.applyChanges(view.computeDocChanges(docUpdates(newDoc1)), ackTarget()).getSnapshot();
+    assertEquals(
+        asList(doc2, doc3, newDoc1),
+        LocalViewChanges.fromViewSnapshot(1, snapshot).getSyncedDocuments().toList());
+  }
+
   @Test
   public void testUpdatesDocumentsBasedOnQueryWithFilters() {
     Query query = messageQuery().filter(filter("sort", "<=", 2));
@@ -378,8 +467,8 @@ public class ViewTest {
     Document doc3 = doc("rooms/eros/messages/2", 0, map("order", 3));
     View view = new View(query, DocumentKey.emptyKeySet());
 
-    // Start with a full view.
-    View.DocumentChanges changes = view.computeDocChanges(docUpdates(doc1, doc2, doc3));
+    // Start with a full view that doesn't know about doc3.
+    View.DocumentChanges changes = view.computeDocChanges(docUpdates(doc1, doc2));
     assertEquals(2, changes.documentSet.size());
     assertFalse(changes.needsRefill());
     assertEquals(2, changes.changeSet.getChanges().size());
@@ -399,6 +488,76 @@ public class ViewTest {
     view.applyChanges(changes);
   }
 
+  @Test
+  public void testRefillsFromLimitBufferOnReorderInLimitQuery() {
+    Query query = messageQuery().orderBy(orderBy("order")).limitToFirst(2);
+    Document doc1 = doc("rooms/eros/messages/0", 0, map("order", 1));
+    Document doc2 = doc("rooms/eros/messages/1", 0, map("order", 2));
+    Document doc3 = doc("rooms/eros/messages/2", 0, map("order", 3));
+    Document doc4 = doc("rooms/eros/messages/3", 0, map("order", 4));
+    View view = new View(query, DocumentKey.emptyKeySet());
+
+    // Start with a full view that buffers doc3 and doc4.
+    View.DocumentChanges changes = view.computeDocChanges(docUpdates(doc1, doc2, doc3, doc4));
+    assertEquals(asList(doc1, doc2), changes.documentSet.toList());
+    view.applyChanges(changes);
+
+    // Move one of the docs between the buffered docs.
+    doc2 = doc("rooms/eros/messages/1", 1, map("order", 3.5));
+    changes = view.computeDocChanges(docUpdates(doc2));
+    assertFalse(changes.needsRefill());
+    assertEquals(asList(doc3), changes.getDocumentsFromLimitBuffer());
+    ViewSnapshot snapshot = view.applyChanges(changes).getSnapshot();
+    assertEquals(asList(doc1, doc3), snapshot.getDocuments().toList());
+    assertEquals(
+        asList(
+            DocumentViewChange.create(Type.REMOVED, doc2),
+            DocumentViewChange.create(Type.ADDED, doc3)),
+        snapshot.getChanges());
+
+    // Delete a doc, which moves doc2 back into the limit.
+    changes = view.computeDocChanges(docUpdates(deletedDoc("rooms/eros/messages/0", 1)));
+    assertFalse(changes.needsRefill());
+    assertEquals(asList(doc2), changes.getDocumentsFromLimitBuffer());
+    snapshot = view.applyChanges(changes).getSnapshot();
+    assertEquals(asList(doc3, doc2), snapshot.getDocuments().toList());
+
+    // Delete another doc. doc4 is the last buffered doc, so the docs that sort after it are unknown.
+    changes = view.computeDocChanges(docUpdates(deletedDoc("rooms/eros/messages/2", 1)));
+    assertFalse(changes.needsRefill());
+    assertEquals(asList(doc2, doc4), changes.documentSet.toList());
+    view.applyChanges(changes);
+
+    changes = view.computeDocChanges(docUpdates(deletedDoc("rooms/eros/messages/3", 1)));
+    assertTrue(changes.needsRefill());
+  }
+
+  @Test
+  public void testDoesNotIncludeDocsAddedPastTheLimitBuffer() {
+    Query query = messageQuery().orderBy(orderBy("order")).limitToFirst(1);
+    Document doc1 = doc("rooms/eros/messages/0", 0, map("order", 1));
+    Document doc2 = doc("rooms/eros/messages/1", 0, map("order", 2));
+    Document doc3 = doc("rooms/eros/messages/2", 0, map("order", 3));
+    View view = new View(query, DocumentKey.emptyKeySet());
+
+    // Start with a full view that buffers doc2.
+    view.applyChanges(view.computeDocChanges(docUpdates(doc1, doc2)));
+
+    // doc3 sorts past the buffered doc2, and there might be other docs in between.
+    View.DocumentChanges changes = view.computeDocChanges(docUpdates(doc3));
+    assertFalse(changes.needsRefill());
+    view.applyChanges(changes);
+
+    // Removing doc1 and doc2 at the same time exhausts the buffer.
+    changes =
+        view.computeDocChanges(
+            docUpdates(
+                deletedDoc("rooms/eros/messages/0", 1), deletedDoc("rooms/eros/messages/1", 1)));
+    assertTrue(changes.needsRefill());
+    changes = view.computeDocChanges(docUpdates(doc3), changes);
+    assertEquals(asList(doc3), changes.documentSet.toList());
+  }
+
   @Test
   public void testDoesNotNeedRefillOnReorderWithinLimit() {
     Query query = messageQuery().orderBy(orderBy("order")).limitToFirst(3);
@@ -22,6 +22,7 @@ import com.google.firebase.firestore.core.Query;
 import com.google.firebase.firestore.model.Document;
 import com.google.firebase.firestore.model.DocumentKey;
 import com.google.firebase.firestore.model.MaybeDocument;
+import com.google.firebase.firestore.model.ResourcePath;
 import com.google.firebase.firestore.model.SnapshotVersion;
 import com.google.firebase.firestore.model.mutation.Mutation;
 import com.google.firebase.firestore.model.mutation.MutationBatch;
@@ -30,8 +31,8 @@ import java.util.List;
 import java.util.Map;
 
 /**
- * A test-only QueryEngine that forwards all API calls and exposes the number of documents and
- * mutations read.
+ * A test-only QueryEngine that forwards all API calls and exposes the number of documents,
+ * mutations and overlays read.
  */
 class CountingQueryEngine implements QueryEngine {
   private final QueryEngine queryEngine;
@@ -40,6 +41,8 @@ class CountingQueryEngine implements QueryEngine {
   private final int[] mutationsReadByKey = new int[] {0};
   private final int[] documentsReadByQuery = new int[] {0};
   private final int[] documentsReadByKey = new int[] {0};
+  private final int[] overlaysReadByQuery = new int[] {0};
+  private final int[] overlaysReadByKey = new int[] {0};
 
   CountingQueryEngine(QueryEngine queryEngine) {
     this.queryEngine = queryEngine;
@@ -50,6 +53,8 @@ class CountingQueryEngine implements QueryEngine {
     mutationsReadByKey[0] = 0;
     documentsReadByQuery[0] = 0;
     documentsReadByKey[0] = 0;
+    overlaysReadByQuery[0] = 0;
+    overlaysReadByKey[0] = 0;
   }
 
   @Override
@@ -58,6 +63,7 @@ class CountingQueryEngine implements QueryEngine {
         new LocalDocumentsView(
             wrapRemoteDocumentCache(localDocuments.getRemoteDocumentCache()),
             wrapMutationQueue(localDocuments.getMutationQueue()),
+            wrapOverlayCache(localDocuments.getOverlayCache()),
             localDocuments.getIndexManager());
     queryEngine.setLocalDocumentsView(view);
   }
@@ -113,6 +119,22 @@ class CountingQueryEngine implements QueryEngine {
     return mutationsReadByKey[0];
   }
 
+  /**
+   * Returns the number of overlays returned by the DocumentOverlayCache's `getOverlays()` API for
+   * collections (since the last call to `resetCounts()`)
+   */
+  int getOverlaysReadByQuery() {
+    return overlaysReadByQuery[0];
+  }
+
+  /**
+   * Returns the number of overlays returned by the DocumentOverlayCache's `getOverlays()` API for
+   * document keys (since the last call to `resetCounts()`)
+   */
+  int getOverlaysReadByKey() {
+    return overlaysReadByKey[0];
+  }
+
   private RemoteDocumentCache wrapRemoteDocumentCache(RemoteDocumentCache subject) {
     return new RemoteDocumentCache() {
       @Override
@@ -243,4 +265,42 @@ class CountingQueryEngine implements QueryEngine {
       }
     };
   }
+
+  private DocumentOverlayCache wrapOverlayCache(DocumentOverlayCache subject) {
+    return new DocumentOverlayCache() {
+      @Override
+      public void start() {
+        subject.start();
+      }
+
+      @Override
+      public boolean isEmpty() {
+        return subject.isEmpty();
+      }
+
+      @Override
+      public Map<DocumentKey, MaybeDocument> getOverlays(Iterable<DocumentKey> documentKeys) {
+        Map<DocumentKey, MaybeDocument> result = subject.getOverlays(documentKeys);
+        overlaysReadByKey[0] += result.size();
+        return result;
+      }
+
+      @Override
+      public Map<DocumentKey, MaybeDocument> getOverlays(ResourcePath collectionPath) {
+        Map<DocumentKey, MaybeDocument> result = subject.getOverlays(collectionPath);
+        overlaysReadByQuery[0] += result.size();
+        return result;
+      }
+
+      @Override
+      public void saveOverlay(DocumentKey documentKey, @Nullable MaybeDocument localView) {
+        subject.saveOverlay(documentKey, localView);
+      }
+
+      @Override
+      public void removeOverlay(DocumentKey documentKey) {
+        subject.removeOverlay(documentKey);
+      }
+    };
+  }
 }
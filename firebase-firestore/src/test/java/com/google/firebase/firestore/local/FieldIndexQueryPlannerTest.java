@@ -0,0 +1,108 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.local;
+
+import static com.google.firebase.firestore.local.FieldIndexQueryPlanner.planIndexScan;
+import static com.google.firebase.firestore.testutil.TestUtil.field;
+import static com.google.firebase.firestore.testutil.TestUtil.filter;
+import static com.google.firebase.firestore.testutil.TestUtil.orderBy;
+import static com.google.firebase.firestore.testutil.TestUtil.query;
+import static com.google.firebase.firestore.testutil.TestUtil.wrap;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.firebase.firestore.core.IndexRange;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class FieldIndexQueryPlannerTest {
+
+  @Test
+  public void usesCollectionScanWithoutFiltersOrOrderBy() {
+    assertNull(planIndexScan(query("coll")));
+    assertNull(planIndexScan(query("coll").orderBy(orderBy("__name__"))));
+  }
+
+  @Test
+  public void usesCollectionScanForUnsupportedFilters() {
+    assertNull(planIndexScan(query("coll").filter(filter("a", "!=", 1))));
+    assertNull(planIndexScan(query("coll").filter(filter("a", "not-in", asList(1, 2)))));
+  }
+
+  @Test
+  public void plansEqualityFilter() {
+    List<IndexRange> ranges = planIndexScan(query("coll").filter(filter("a", "==", "foo")));
+    assertEquals(1, ranges.size());
+    assertEquals(field("a"), ranges.get(0).getFieldPath());
+    assertEquals(wrap("foo"), ranges.get(0).getStart());
+    assertEquals(wrap("foo"), ranges.get(0).getEnd());
+    assertFalse(ranges.get(0).isArrayElement());
+  }
+
+  @Test
+  public void plansRangeFilter() {
+    List<IndexRange> ranges = planIndexScan(query("coll").filter(filter("a", ">", 1)));
+    assertEquals(1, ranges.size());
+    assertEquals(wrap(1), ranges.get(0).getStart());
+    assertNull(ranges.get(0).getEnd());
+  }
+
+  @Test
+  public void plansInFilterAsUnionOfRanges() {
+    List<IndexRange> ranges = planIndexScan(query("coll").filter(filter("a", "in", asList(1, 2))));
+    assertEquals(2, ranges.size());
+    assertEquals(wrap(1), ranges.get(0).getStart());
+    assertEquals(wrap(2), ranges.get(1).getStart());
+  }
+
+  @Test
+  public void plansArrayContainsOnArrayElements() {
+    List<IndexRange> ranges =
+        planIndexScan(query("coll").filter(filter("a", "array-contains", "foo")));
+    assertEquals(1, ranges.size());
+    assertTrue(ranges.get(0).isArrayElement());
+
+    ranges =
+        planIndexScan(query("coll").filter(filter("a", "array-contains-any", asList(1, "foo"))));
+    assertEquals(2, ranges.size());
+    assertTrue(ranges.get(0).isArrayElement());
+    assertTrue(ranges.get(1).isArrayElement());
+  }
+
+  @Test
+  public void prefersEqualityOverRange() {
+    List<IndexRange> ranges =
+        planIndexScan(
+            query("coll").filter(filter("low", ">", 1)).filter(filter("high", "==", "foo")));
+    assertEquals(field("high"), ranges.get(0).getFieldPath());
+  }
+
+  @Test
+  public void usesOrderByWithoutFilters() {
+    List<IndexRange> ranges = planIndexScan(query("coll").orderBy(orderBy("a")));
+    assertEquals(1, ranges.size());
+    assertEquals(field("a"), ranges.get(0).getFieldPath());
+    assertNull(ranges.get(0).getStart());
+    assertNull(ranges.get(0).getEnd());
+  }
+}
@@ -88,6 +88,7 @@ public class IndexFreeQueryEngineTest {
         new LocalDocumentsView(
             remoteDocumentCache,
             persistence.getMutationQueue(User.UNAUTHENTICATED),
+            persistence.getDocumentOverlayCache(User.UNAUTHENTICATED),
             new MemoryIndexManager()) {
           @Override
           public ImmutableSortedMap<DocumentKey, Document> getDocumentsMatchingQuery(
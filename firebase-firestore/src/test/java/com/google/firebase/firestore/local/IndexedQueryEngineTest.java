@@ -15,14 +15,17 @@
 package com.google.firebase.firestore.local;
 
 import static com.google.common.truth.Truth.assertThat;
-import static com.google.firebase.firestore.local.IndexedQueryEngine.extractBestIndexRange;
 import static com.google.firebase.firestore.testutil.TestUtil.deletedDoc;
 import static com.google.firebase.firestore.testutil.TestUtil.doc;
 import static com.google.firebase.firestore.testutil.TestUtil.field;
 import static com.google.firebase.firestore.testutil.TestUtil.filter;
 import static com.google.firebase.firestore.testutil.TestUtil.map;
 import static com.google.firebase.firestore.testutil.TestUtil.query;
+import static com.google.firebase.firestore.testutil.TestUtil.setMutation;
+import static com.google.firebase.firestore.testutil.TestUtil.version;
 
+import androidx.annotation.Nullable;
+import com.google.firebase.Timestamp;
 import com.google.firebase.database.collection.ImmutableSortedMap;
 import com.google.firebase.firestore.Blob;
 import com.google.firebase.firestore.GeoPoint;
@@ -32,13 +35,14 @@ import com.google.firebase.firestore.core.IndexRange;
 import com.google.firebase.firestore.core.Query;
 import com.google.firebase.firestore.model.Document;
 import com.google.firebase.firestore.model.DocumentKey;
+import com.google.firebase.firestore.model.SnapshotVersion;
+import com.google.firebase.firestore.model.mutation.MutationBatch;
 import com.google.firebase.firestore.testutil.TestUtil;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import org.junit.Before;
-import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
@@ -47,8 +51,11 @@ import org.robolectric.annotation.Config;
 @RunWith(RobolectricTestRunner.class)
 @Config(manifest = Config.NONE)
 public class IndexedQueryEngineTest {
+  private SQLitePersistence persistence;
   private IndexedQueryEngine queryEngine;
   private RemoteDocumentCache remoteDocuments;
+  private MutationQueue mutationQueue;
+  private LocalDocumentsView localDocuments;
 
   // Version numbers used for document updates.
   private static final int ORIGINAL_VERSION = 0;
@@ -63,30 +70,53 @@ public class IndexedQueryEngineTest {
   public void setUp() {
     Persistence.INDEXING_SUPPORT_ENABLED = true;
 
-    SQLitePersistence persistence = PersistenceTestHelpers.createSQLitePersistence();
-    SQLiteCollectionIndex index = new SQLiteCollectionIndex(persistence, User.UNAUTHENTICATED);
+    persistence = PersistenceTestHelpers.createSQLitePersistence();
+    SQLiteCollectionIndex index = new SQLiteCollectionIndex(persistence);
     remoteDocuments = persistence.getRemoteDocumentCache();
+    mutationQueue = persistence.getMutationQueue(User.UNAUTHENTICATED);
+    mutationQueue.start();
     queryEngine = new IndexedQueryEngine(index);
+    localDocuments =
+        new LocalDocumentsView(
+            remoteDocuments,
+            mutationQueue,
+            persistence.getDocumentOverlayCache(User.UNAUTHENTICATED),
+            persistence.getIndexManager());
+    queryEngine.setLocalDocumentsView(localDocuments);
   }
 
   private void addDocument(Document newDoc) {
     // Use document version as read time as the IndexedQueryEngine does not rely on read time.
-    remoteDocuments.add(newDoc, newDoc.getVersion());
+    persistence.runTransaction(
+        "addDocument", () -> remoteDocuments.add(newDoc, newDoc.getVersion()));
     queryEngine.handleDocumentChange(
         deletedDoc(newDoc.getKey().toString(), ORIGINAL_VERSION), newDoc);
   }
 
   private void removeDocument(Document oldDoc) {
-    remoteDocuments.remove(oldDoc.getKey());
+    persistence.runTransaction("removeDocument", () -> remoteDocuments.remove(oldDoc.getKey()));
     queryEngine.handleDocumentChange(
         oldDoc, deletedDoc(oldDoc.getKey().toString(), UPDATED_VERSION));
   }
 
   private void updateDocument(Document oldDoc, Document newDoc) {
-    remoteDocuments.add(newDoc, newDoc.getVersion());
+    persistence.runTransaction(
+        "updateDocument", () -> remoteDocuments.add(newDoc, newDoc.getVersion()));
     queryEngine.handleDocumentChange(oldDoc, newDoc);
   }
 
+  /** Returns the first index range of the most selective index scan for the given query. */
+  @Nullable
+  private static IndexRange extractBestIndexRange(Query query) {
+    List<IndexRange> indexScan = FieldIndexQueryPlanner.planIndexScan(query);
+    return indexScan != null ? indexScan.get(0) : null;
+  }
+
+  private ImmutableSortedMap<DocumentKey, Document> runQuery(Query query) {
+    return queryEngine.getDocumentsMatchingQuery(
+        query, SnapshotVersion.NONE, DocumentKey.emptyKeySet());
+  }
+
   @Test
   public void valueSelectivity() {
     List<Filter> highSelectivity =
@@ -204,54 +234,44 @@ public class IndexedQueryEngineTest {
   }
 
   @Test
-  @Ignore("Pending cr/164068667")
   public void addDocumentQuery() {
     addDocument(IGNORED_DOC);
     addDocument(MATCHING_DOC);
     Query query = query("coll").filter(filter("a", "==", "a"));
 
-    ImmutableSortedMap<DocumentKey, Document> results =
-        queryEngine.getDocumentsMatchingQuery(
-            query, /* lastLimboFreeSnapshotVersion= */ null, DocumentKey.emptyKeySet());
+    ImmutableSortedMap<DocumentKey, Document> results = runQuery(query);
 
-    assertThat(results).doesNotContain(IGNORED_DOC.getKey());
-    assertThat(results).contains(MATCHING_DOC.getKey());
+    assertThat(results.containsKey(IGNORED_DOC.getKey())).isFalse();
+    assertThat(results.containsKey(MATCHING_DOC.getKey())).isTrue();
   }
 
   @Test
-  @Ignore("Pending cr/164068667")
   public void updateDocumentQuery() {
     addDocument(IGNORED_DOC);
     addDocument(NON_MATCHING_DOC);
     updateDocument(NON_MATCHING_DOC, MATCHING_DOC);
     Query query = query("coll").filter(filter("a", "==", "a"));
 
-    ImmutableSortedMap<DocumentKey, Document> results =
-        queryEngine.getDocumentsMatchingQuery(
-            query, /* lastLimboFreeSnapshotVersion= */ null, DocumentKey.emptyKeySet());
+    ImmutableSortedMap<DocumentKey, Document> results = runQuery(query);
 
-    assertThat(results).doesNotContain(IGNORED_DOC.getKey());
-    assertThat(results).contains(MATCHING_DOC.getKey());
+    assertThat(results.containsKey(IGNORED_DOC.getKey())).isFalse();
+    assertThat(results.containsKey(MATCHING_DOC.getKey())).isTrue();
   }
 
   @Test
-  @Ignore("Pending cr/164068667")
   public void removeDocumentQuery() {
     addDocument(IGNORED_DOC);
     addDocument(MATCHING_DOC);
     removeDocument(MATCHING_DOC);
     Query query = query("coll").filter(filter("a", "==", "a"));
 
-    ImmutableSortedMap<DocumentKey, Document> results =
-        queryEngine.getDocumentsMatchingQuery(
-            query, /* lastLimboFreeSnapshotVersion= */ null, DocumentKey.emptyKeySet());
+    ImmutableSortedMap<DocumentKey, Document> results = runQuery(query);
 
-    assertThat(results).doesNotContain(IGNORED_DOC.getKey());
-    assertThat(results).doesNotContain(MATCHING_DOC.getKey());
+    assertThat(results.containsKey(IGNORED_DOC.getKey())).isFalse();
+    assertThat(results.containsKey(MATCHING_DOC.getKey())).isFalse();
   }
 
   @Test
-  @Ignore("Pending cr/164068667")
   public void nestedQuery() {
     Document nonMatchingDoc = doc("coll/a", ORIGINAL_VERSION, map("a", map("a", "b")));
     Document matchingDoc = doc("coll/a", UPDATED_VERSION, map("a", map("a", "a")));
@@ -261,26 +281,106 @@ public class IndexedQueryEngineTest {
     updateDocument(nonMatchingDoc, matchingDoc);
     Query query = query("coll").filter(filter("a.a", "==", "a"));
 
-    ImmutableSortedMap<DocumentKey, Document> results =
-        queryEngine.getDocumentsMatchingQuery(
-            query, /* lastLimboFreeSnapshotVersion= */ null, DocumentKey.emptyKeySet());
+    ImmutableSortedMap<DocumentKey, Document> results = runQuery(query);
 
-    assertThat(results).doesNotContain(ignoredDoc.getKey());
-    assertThat(results).contains(matchingDoc.getKey());
+    assertThat(results.containsKey(ignoredDoc.getKey())).isFalse();
+    assertThat(results.containsKey(matchingDoc.getKey())).isTrue();
   }
 
   @Test
-  @Ignore("Pending cr/164068667")
   public void orderByQuery() {
     addDocument(IGNORED_DOC);
     addDocument(MATCHING_DOC);
     Query query = query("coll").orderBy(TestUtil.orderBy("a"));
 
+    ImmutableSortedMap<DocumentKey, Document> results = runQuery(query);
+
+    assertThat(results.containsKey(IGNORED_DOC.getKey())).isFalse();
+    assertThat(results.containsKey(MATCHING_DOC.getKey())).isTrue();
+  }
+
+  @Test
+  public void compositeFilterQuery() {
+    Document matchingDoc = doc("coll/a", ORIGINAL_VERSION, map("a", "a", "b", 1));
+    Document partiallyMatchingDoc = doc("coll/b", ORIGINAL_VERSION, map("a", "a", "b", 2));
+    Document otherDoc = doc("coll/c", ORIGINAL_VERSION, map("a", "b", "b", 1));
+    addDocument(matchingDoc);
+    addDocument(partiallyMatchingDoc);
+    addDocument(otherDoc);
+    Query query = query("coll").filter(filter("a", "==", "a")).filter(filter("b", "<", 2));
+
+    ImmutableSortedMap<DocumentKey, Document> results = runQuery(query);
+
+    assertThat(results.size()).isEqualTo(1);
+    assertThat(results.containsKey(matchingDoc.getKey())).isTrue();
+  }
+
+  @Test
+  public void multipleOrderByQuery() {
+    Document matchingDoc = doc("coll/a", ORIGINAL_VERSION, map("a", 1, "b", 1));
+    Document missingFieldDoc = doc("coll/b", ORIGINAL_VERSION, map("a", 1));
+    addDocument(matchingDoc);
+    addDocument(missingFieldDoc);
+    Query query = query("coll").orderBy(TestUtil.orderBy("a")).orderBy(TestUtil.orderBy("b"));
+
+    ImmutableSortedMap<DocumentKey, Document> results = runQuery(query);
+
+    assertThat(results.size()).isEqualTo(1);
+    assertThat(results.containsKey(matchingDoc.getKey())).isTrue();
+  }
+
+  @Test
+  public void arrayContainsQuery() {
+    Document matchingDoc = doc("coll/a", ORIGINAL_VERSION, map("a", Arrays.asList(1, 2)));
+    Document nonMatchingDoc = doc("coll/b", ORIGINAL_VERSION, map("a", Arrays.asList(3)));
+    addDocument(matchingDoc);
+    addDocument(nonMatchingDoc);
+    Query query = query("coll").filter(filter("a", "array-contains", 2));
+
+    ImmutableSortedMap<DocumentKey, Document> results = runQuery(query);
+
+    assertThat(results.size()).isEqualTo(1);
+    assertThat(results.containsKey(matchingDoc.getKey())).isTrue();
+  }
+
+  @Test
+  public void usesPreviousResultsIfIndexIsNotSelective() {
+    Document matchingDoc = doc("coll/a", ORIGINAL_VERSION, map("a", 1));
+    Document otherMatchingDoc = doc("coll/b", ORIGINAL_VERSION, map("a", 2));
+    addDocument(matchingDoc);
+    addDocument(otherMatchingDoc);
+    Query query = query("coll").filter(filter("a", ">", 0));
+
+    // The index yields two candidates while the previous results only contain one document, so the
+    // query only reads the previous results and the documents that changed since UPDATED_VERSION.
     ImmutableSortedMap<DocumentKey, Document> results =
         queryEngine.getDocumentsMatchingQuery(
-            query, /* lastLimboFreeSnapshotVersion= */ null, DocumentKey.emptyKeySet());
+            query,
+            version(UPDATED_VERSION),
+            DocumentKey.emptyKeySet().insert(matchingDoc.getKey()));
+
+    assertThat(results.size()).isEqualTo(1);
+    assertThat(results.containsKey(matchingDoc.getKey())).isTrue();
+  }
+
+  @Test
+  public void includesDocumentsWithLocalMutations() {
+    addDocument(NON_MATCHING_DOC);
+    persistence.runTransaction(
+        "addMutationBatch",
+        () -> {
+          MutationBatch batch =
+              mutationQueue.addMutationBatch(
+                  Timestamp.now(),
+                  Collections.emptyList(),
+                  Collections.singletonList(setMutation("coll/a", map("a", "a"))));
+          localDocuments.addOverlays(batch);
+        });
+    Query query = query("coll").filter(filter("a", "==", "a"));
+
+    ImmutableSortedMap<DocumentKey, Document> results = runQuery(query);
 
-    assertThat(results).doesNotContain(IGNORED_DOC.getKey());
-    assertThat(results).contains(MATCHING_DOC.getKey());
+    assertThat(results.size()).isEqualTo(1);
+    assertThat(results.containsKey(MATCHING_DOC.getKey())).isTrue();
   }
 }
@@ -0,0 +1,100 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.local;
+
+import static com.google.firebase.firestore.testutil.Assert.assertThrows;
+import static com.google.firebase.firestore.testutil.TestUtil.doc;
+import static com.google.firebase.firestore.testutil.TestUtil.key;
+import static com.google.firebase.firestore.testutil.TestUtil.map;
+import static com.google.firebase.firestore.testutil.TestUtil.version;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.firestore.auth.User;
+import com.google.firebase.firestore.model.DocumentKey;
+import com.google.firebase.firestore.model.MaybeDocument;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class LocalCacheReaderTest {
+
+  private SQLitePersistence persistence;
+
+  @Before
+  public void setUp() {
+    persistence =
+        PersistenceTestHelpers.createSQLitePersistenceWithConcurrentReads(
+            PersistenceTestHelpers.nextSQLiteDatabaseName());
+  }
+
+  @After
+  public void tearDown() {
+    persistence.shutdown();
+  }
+
+  @Test
+  public void testShutdownWaitsForSubmittedReads() {
+    LocalCacheReader reader = new LocalCacheReader(persistence, User.UNAUTHENTICATED);
+    Task<MaybeDocument> read = reader.readDocument(key("coll/doc"));
+
+    reader.shutdown();
+    assertTrue(read.isSuccessful());
+
+    Task<MaybeDocument> rejectedRead = reader.readDocument(key("coll/doc"));
+    assertTrue(rejectedRead.isComplete());
+    assertTrue(rejectedRead.getException() instanceof RejectedExecutionException);
+  }
+
+  @Test
+  public void testSnapshotReadBindsManyKeysWithoutLookupTable() {
+    // More keys than fit into a single subquery, which outside of snapshot reads would be staged
+    // in the lookup table.
+    List<DocumentKey> keys = new ArrayList<>();
+    RemoteDocumentCache remoteDocuments = persistence.getRemoteDocumentCache();
+    persistence.runTransaction(
+        "Add documents",
+        () -> {
+          for (int i = 0; i < 1000; ++i) {
+            DocumentKey key = key("coll/doc" + i);
+            keys.add(key);
+            remoteDocuments.add(doc(key, 1, map("i", i)), version(1));
+          }
+        });
+
+    Map<DocumentKey, MaybeDocument> documents =
+        persistence.runSnapshotRead("Read documents", () -> remoteDocuments.getAll(keys));
+    assertEquals(1000, documents.size());
+  }
+
+  @Test
+  public void testSnapshotReadCannotPrepareStatements() {
+    assertThrows(
+        AssertionError.class,
+        () ->
+            persistence.runSnapshotRead(
+                "Prepare statement", () -> persistence.prepare("DELETE FROM lookup_keys")));
+  }
+}
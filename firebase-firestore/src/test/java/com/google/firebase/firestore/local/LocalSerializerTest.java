@@ -23,8 +23,10 @@ import static com.google.firebase.firestore.testutil.TestUtil.key;
 import static com.google.firebase.firestore.testutil.TestUtil.map;
 import static com.google.firebase.firestore.testutil.TestUtil.setMutation;
 import static com.google.firebase.firestore.testutil.TestUtil.unknownDoc;
+import static com.google.firebase.firestore.testutil.TestUtil.wrap;
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import com.google.firebase.Timestamp;
 import com.google.firebase.firestore.core.Query;
@@ -45,6 +47,7 @@ import com.google.firestore.v1.Precondition;
 import com.google.firestore.v1.Value;
 import com.google.firestore.v1.Write;
 import com.google.protobuf.ByteString;
+import java.io.IOException;
 import java.util.Collections;
 import org.junit.Before;
 import org.junit.Test;
@@ -161,6 +164,54 @@ public final class LocalSerializerTest {
     assertEquals(document, decoded);
   }
 
+  @Test
+  public void testDecodesDocumentLazily() throws IOException {
+    Document document =
+        doc("some/path", 42, map("foo", "bar", "nested", map("a", 1), "array", asList(1, 2)));
+    byte[] bytes = serializer.encodeMaybeDocument(document).toByteArray();
+
+    Document decoded = (Document) serializer.decodeMaybeDocumentLazily(bytes);
+    assertEquals(document.getKey(), decoded.getKey());
+    assertEquals(document.getVersion(), decoded.getVersion());
+    assertEquals(wrap("bar"), decoded.getField(field("foo")));
+    assertEquals(wrap(1), decoded.getField(field("nested.a")));
+    assertNull(decoded.getField(field("nested.b")));
+    assertNull(decoded.getField(field("foo.bar")));
+    assertNull(decoded.getField(field("missing")));
+    assertEquals(document, decoded);
+    assertEquals(wrap(asList(1, 2)), decoded.getField(field("array")));
+  }
+
+  @Test
+  public void testDecodesLastOccurrenceOfRepeatedFieldLazily() {
+    // Parsing concatenated messages merges them, so the map of the result has two entries for the
+    // same key, of which the last one wins.
+    ByteString first =
+        com.google.firestore.v1.Document.newBuilder()
+            .putFields("foo", wrap("first"))
+            .putFields("bar", wrap(1))
+            .build()
+            .toByteString();
+    ByteString second =
+        com.google.firestore.v1.Document.newBuilder()
+            .putFields("foo", wrap("second"))
+            .build()
+            .toByteString();
+
+    LazyDocumentData data = new LazyDocumentData(first.concat(second));
+    assertEquals(wrap("second"), data.decodeField("foo"));
+    assertEquals(wrap(1), data.decodeField("bar"));
+    assertNull(data.decodeField("missing"));
+    assertEquals(data.decodeData().get(field("foo")), data.decodeField("foo"));
+  }
+
+  @Test
+  public void testDecodesDeletedDocumentLazily() throws IOException {
+    NoDocument deletedDoc = deletedDoc("some/path", 42);
+    byte[] bytes = serializer.encodeMaybeDocument(deletedDoc).toByteArray();
+    assertEquals(deletedDoc, serializer.decodeMaybeDocumentLazily(bytes));
+  }
+
   @Test
   public void testEncodesDeletedDocumentAsMaybeDocument() {
     NoDocument deletedDoc = deletedDoc("some/path", 42);
@@ -23,6 +23,7 @@ import static com.google.firebase.firestore.testutil.TestUtil.filter;
 import static com.google.firebase.firestore.testutil.TestUtil.key;
 import static com.google.firebase.firestore.testutil.TestUtil.map;
 import static com.google.firebase.firestore.testutil.TestUtil.noChangeEvent;
+import static com.google.firebase.firestore.testutil.TestUtil.orderBy;
 import static com.google.firebase.firestore.testutil.TestUtil.patchMutation;
 import static com.google.firebase.firestore.testutil.TestUtil.query;
 import static com.google.firebase.firestore.testutil.TestUtil.resumeToken;
@@ -37,6 +38,7 @@ import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
 import static java.util.Collections.singletonList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -54,6 +56,7 @@ import com.google.firebase.firestore.core.Query;
 import com.google.firebase.firestore.core.Target;
 import com.google.firebase.firestore.model.Document;
 import com.google.firebase.firestore.model.DocumentKey;
+import com.google.firebase.firestore.model.DocumentSet;
 import com.google.firebase.firestore.model.MaybeDocument;
 import com.google.firebase.firestore.model.NoDocument;
 import com.google.firebase.firestore.model.ResourcePath;
@@ -248,6 +251,15 @@ public abstract class LocalStoreTestCase {
     assertEquals("Mutations read (by key)", byKey, queryEngine.getMutationsReadByKey());
   }
 
+  /**
+   * Asserts the expected numbers of overlays read by the DocumentOverlayCache since the last call
+   * to `resetPersistenceStats()`.
+   */
+  private void assertOverlaysRead(int byKey, int byQuery) {
+    assertEquals("Overlays read (by query)", byQuery, queryEngine.getOverlaysReadByQuery());
+    assertEquals("Overlays read (by key)", byKey, queryEngine.getOverlaysReadByKey());
+  }
+
   /**
    * Asserts the expected numbers of documents read by the RemoteDocumentCache since the last call
    * to `resetPersistenceStats()`.
@@ -258,7 +270,10 @@ public abstract class LocalStoreTestCase {
     assertEquals("Remote documents read (by key)", byKey, queryEngine.getDocumentsReadByKey());
   }
 
-  /** Resets the count of entities read by MutationQueue and the RemoteDocumentCache. */
+  /**
+   * Resets the count of entities read by MutationQueue, the DocumentOverlayCache and the
+   * RemoteDocumentCache.
+   */
   private void resetPersistenceStats() {
     queryEngine.resetCounts();
   }
@@ -412,6 +427,41 @@ public abstract class LocalStoreTestCase {
     assertContains(doc("foo/bar", 0, map("foo", "bar"), Document.DocumentState.LOCAL_MUTATIONS));
   }
 
+  @Test
+  public void testRecalculatesLocalViewOfMutatedDocumentsAfterUserChange() {
+    Query query = query("foo");
+    int targetId = allocateQuery(query);
+    applyRemoteEvent(
+        updateRemoteEvent(doc("foo/bar", 1, map("foo", "old")), asList(targetId), emptyList()));
+    writeMutation(patchMutation("foo/bar", map("bar", "local")));
+    assertChanged(
+        doc(
+            "foo/bar",
+            1,
+            map("foo", "old", "bar", "local"),
+            Document.DocumentState.LOCAL_MUTATIONS));
+
+    // The remote document changes while the user that wrote the mutation is inactive.
+    localStore.handleUserChange(new User("other"));
+    applyRemoteEvent(
+        updateRemoteEvent(doc("foo/bar", 2, map("foo", "new")), asList(targetId), emptyList()));
+    assertChanged(doc("foo/bar", 2, map("foo", "new")));
+
+    lastChanges = localStore.handleUserChange(User.UNAUTHENTICATED);
+    assertChanged(
+        doc(
+            "foo/bar",
+            2,
+            map("foo", "new", "bar", "local"),
+            Document.DocumentState.LOCAL_MUTATIONS));
+    assertContains(
+        doc(
+            "foo/bar",
+            2,
+            map("foo", "new", "bar", "local"),
+            Document.DocumentState.LOCAL_MUTATIONS));
+  }
+
   @Test
   public void testHandlesDocumentThenSetMutationThenAckThenDocument() {
     Query query = Query.atPath(ResourcePath.fromString("foo"));
@@ -917,7 +967,8 @@ public abstract class LocalStoreTestCase {
     localStore.executeQuery(query, /* usePreviousResults= */ true);
 
     assertRemoteDocumentsRead(/* byKey= */ 0, /* byQuery= */ 2);
-    assertMutationsRead(/* byKey= */ 0, /* byQuery= */ 1);
+    assertOverlaysRead(/* byKey= */ 0, /* byQuery= */ 1);
+    assertMutationsRead(/* byKey= */ 0, /* byQuery= */ 0);
   }
 
   @Test
@@ -1124,6 +1175,32 @@ public abstract class LocalStoreTestCase {
     assertQueryReturned("foo/a", "foo/b");
   }
 
+  @Test
+  public void testQueryResultsIncludeOrderOfLastSyncedView() {
+    Query query = query("foo").orderBy(orderBy("sort", "desc"));
+    int targetId = allocateQuery(query);
+
+    Document docA = doc("foo/a", 10, map("sort", 1));
+    Document docB = doc("foo/b", 10, map("sort", 2));
+    applyRemoteEvent(addedRemoteEvent(asList(docA, docB), asList(targetId), emptyList()));
+    applyRemoteEvent(noChangeEvent(targetId, 10));
+
+    executeQuery(query);
+    assertNull(lastQueryResult.getPreviousOrder());
+
+    DocumentSet viewDocuments = DocumentSet.emptySet(query.comparator()).add(docA).add(docB);
+    notifyLocalViewChanges(
+        new LocalViewChanges(
+            targetId,
+            /* fromCache= */ false,
+            DocumentKey.emptyKeySet().insert(docA.getKey()).insert(docB.getKey()),
+            DocumentKey.emptyKeySet(),
+            viewDocuments));
+
+    executeQuery(query);
+    assertEquals(asList(key("foo/b"), key("foo/a")), lastQueryResult.getPreviousOrder());
+  }
+
   @Test
   public void testQueriesIncludeDocumentsFromOtherQueries() {
     assumeFalse(garbageCollectorIsEager());
@@ -1350,6 +1427,93 @@ public abstract class LocalStoreTestCase {
     assertEquals(MutationBatch.UNKNOWN, localStore.getHighestUnacknowledgedBatchId());
   }
 
+  @Test
+  public void testCompactsPendingWritesToTheSameDocuments() {
+    localStore =
+        new LocalStore(
+            localStorePersistence,
+            queryEngine,
+            User.UNAUTHENTICATED,
+            /* pendingWriteCompactionEnabled= */ true);
+    localStore.start();
+
+    LocalWriteResult result = localStore.writeLocally(asList(setMutation("foo/bar", map("a", 1))));
+    assertEquals(1, result.getBatchId());
+    result = localStore.writeLocally(asList(patchMutation("foo/bar", map("b", 2))));
+    assertEquals(1, result.getBatchId());
+    assertContains(
+        doc("foo/bar", 0, map("a", 1, "b", 2), Document.DocumentState.LOCAL_MUTATIONS));
+
+    // Writes to other documents are not compacted.
+    result = localStore.writeLocally(asList(patchMutation("foo/baz", map("b", 2))));
+    assertEquals(2, result.getBatchId());
+
+    MutationBatch batch = localStore.getNextMutationBatch(MutationBatch.UNKNOWN);
+    assertEquals(1, batch.getBatchId());
+    assertEquals(asList(setMutation("foo/bar", map("a", 1, "b", 2))), batch.getMutations());
+
+    // Batches that were handed to the RemoteStore are not modified.
+    assertEquals(2, localStore.getNextMutationBatch(1).getBatchId());
+    result = localStore.writeLocally(asList(patchMutation("foo/baz", map("c", 3))));
+    assertEquals(3, result.getBatchId());
+  }
+
+  @Test
+  public void testDoesNotCompactWritesToDifferentDocuments() {
+    localStore =
+        new LocalStore(
+            localStorePersistence,
+            queryEngine,
+            User.UNAUTHENTICATED,
+            /* pendingWriteCompactionEnabled= */ true);
+    localStore.start();
+
+    LocalWriteResult result =
+        localStore.writeLocally(
+            asList(setMutation("foo/bar", map("a", 1)), setMutation("foo/bar", map("a", 2))));
+    assertEquals(1, result.getBatchId());
+    // Has as many mutations as the last batch, but also writes foo/baz.
+    result =
+        localStore.writeLocally(
+            asList(setMutation("foo/bar", map("a", 3)), setMutation("foo/baz", map("b", 1))));
+    assertEquals(2, result.getBatchId());
+
+    MutationBatch batch = localStore.getNextMutationBatch(MutationBatch.UNKNOWN);
+    assertEquals(
+        asList(setMutation("foo/bar", map("a", 1)), setMutation("foo/bar", map("a", 2))),
+        batch.getMutations());
+    batch = localStore.getNextMutationBatch(1);
+    assertEquals(
+        asList(setMutation("foo/bar", map("a", 3)), setMutation("foo/baz", map("b", 1))),
+        batch.getMutations());
+  }
+
+  @Test
+  public void testDefersMutationQueueStartUntilFirstWrite() {
+    writeMutation(setMutation("foo/bar", map("foo", "bar")));
+    assertChanged(doc("foo/bar", 0, map("foo", "bar"), Document.DocumentState.LOCAL_MUTATIONS));
+
+    localStore = new LocalStore(localStorePersistence, queryEngine, User.UNAUTHENTICATED);
+    localStore.start(/* deferMutationQueueStart= */ true);
+
+    // Reads see the pending write before the mutation queue is started.
+    assertContains(
+        doc("foo/bar", 0, map("foo", "bar"), Document.DocumentState.LOCAL_MUTATIONS));
+
+    writeMutation(setMutation("foo/baz", map("foo", "baz")));
+    assertFalse(localStore.ensureMutationQueueStarted());
+    assertEquals(2, localStore.getHighestUnacknowledgedBatchId());
+  }
+
+  @Test
+  public void testStartsDeferredMutationQueueOnce() {
+    localStore = new LocalStore(localStorePersistence, queryEngine, User.UNAUTHENTICATED);
+    localStore.start(/* deferMutationQueueStart= */ true);
+
+    assertTrue(localStore.ensureMutationQueueStarted());
+    assertFalse(localStore.ensureMutationQueueStarted());
+  }
+
   @Test
   public void testOnlyPersistsUpdatesForDocumentsWhenVersionChanges() {
     Query query = Query.atPath(ResourcePath.fromString("foo"));
@@ -16,6 +16,8 @@ package com.google.firebase.firestore.local;
 
 import static com.google.firebase.firestore.testutil.TestUtil.doc;
 import static com.google.firebase.firestore.testutil.TestUtil.keySet;
+import static com.google.firebase.firestore.testutil.TestUtil.map;
+import static com.google.firebase.firestore.testutil.TestUtil.path;
 import static com.google.firebase.firestore.testutil.TestUtil.query;
 import static com.google.firebase.firestore.testutil.TestUtil.resumeToken;
 import static com.google.firebase.firestore.testutil.TestUtil.version;
@@ -34,6 +36,7 @@ import com.google.firebase.firestore.core.Query;
 import com.google.firebase.firestore.model.Document;
 import com.google.firebase.firestore.model.DocumentKey;
 import com.google.firebase.firestore.model.ObjectValue;
+import com.google.firebase.firestore.model.ResourcePath;
 import com.google.firebase.firestore.model.SnapshotVersion;
 import com.google.firebase.firestore.model.mutation.Mutation;
 import com.google.firebase.firestore.model.mutation.Precondition;
@@ -410,7 +413,7 @@ public abstract class LruGarbageCollectorTestCase {
   @Test
   public void testRemoveOrphanedDocumentsWithLargeNumberOfDocuments() {
     int orphanedDocumentCount =
-        SQLiteLruReferenceDelegate.REMOVE_ORPHANED_DOCUMENTS_BATCH_SIZE * 2 + 1;
+        LruGarbageCollector.REMOVE_ORPHANED_DOCUMENTS_BATCH_SIZE * 2 + 1;
 
     persistence.runTransaction(
         "add orphaned docs",
@@ -425,6 +428,35 @@ public abstract class LruGarbageCollectorTestCase {
     assertEquals(orphanedDocumentCount, removed);
   }
 
+  @Test
+  public void testRemoveOrphanedDocumentsKeepsLargeNumberOfPinnedDocuments() {
+    int pinnedDocumentCount = LruGarbageCollector.REMOVE_ORPHANED_DOCUMENTS_BATCH_SIZE + 1;
+
+    List<Mutation> mutations = new ArrayList<>();
+    persistence.runTransaction(
+        "add orphaned docs",
+        () -> {
+          for (int i = 0; i < pinnedDocumentCount; i++) {
+            Document doc = cacheADocumentInTransaction();
+            markDocumentEligibleForGcInTransaction(doc.getKey());
+            mutations.add(mutation(doc.getKey()));
+          }
+        });
+    persistence.runTransaction(
+        "pin the docs with mutations",
+        () -> mutationQueue.addMutationBatch(Timestamp.now(), Collections.emptyList(), mutations));
+
+    int removed = garbageCollector.removeOrphanedDocuments(1000);
+    assertEquals(0, removed);
+    persistence.runTransaction(
+        "verify",
+        () -> {
+          for (Mutation mutation : mutations) {
+            assertNotNull(documentCache.get(mutation.getKey()));
+          }
+        });
+  }
+
   @Test
   public void testRemoveTargetsThenGC() {
     // Create 3 targets, add docs to all of them
@@ -638,6 +670,78 @@ public abstract class LruGarbageCollectorTestCase {
     assertTrue(finalSize > initialSize);
   }
 
+  @Test
+  public void testGetsCacheSizesByCollection() {
+    Document doc1 = doc("coll1/a", 1, map("foo", "bar"));
+    Document doc2 = doc("coll1/b", 1, map("foo", "bar"));
+    Document doc3 = doc("coll2/a/sub/c", 1, map("foo", "bar"));
+    persistence.runTransaction(
+        "add documents",
+        () -> {
+          documentCache.add(doc1, doc1.getVersion());
+          documentCache.add(doc2, doc2.getVersion());
+          documentCache.add(doc3, doc3.getVersion());
+        });
+
+    Map<ResourcePath, Long> collectionByteSizes = getCollectionByteSizes();
+    assertEquals(2, collectionByteSizes.size());
+    long coll1Size = collectionByteSizes.get(path("coll1"));
+    long subSize = collectionByteSizes.get(path("coll2/a/sub"));
+    assertTrue(subSize > 0);
+    assertTrue(coll1Size > subSize);
+
+    // Replacing a document with a larger version only adds the difference in size.
+    Document updatedDoc2 = doc("coll1/b", 2, map("foo", "bar", "baz", "qux"));
+    persistence.runTransaction(
+        "update document", () -> documentCache.add(updatedDoc2, updatedDoc2.getVersion()));
+    long updatedColl1Size = getCollectionByteSizes().get(path("coll1"));
+    assertTrue(updatedColl1Size > coll1Size);
+    assertTrue(updatedColl1Size < 2 * coll1Size);
+
+    persistence.runTransaction(
+        "remove documents",
+        () -> {
+          documentCache.remove(doc1.getKey());
+          documentCache.remove(doc2.getKey());
+        });
+    assertEquals(
+        Collections.singletonMap(path("coll2/a/sub"), subSize), getCollectionByteSizes());
+  }
+
+  @Test
+  public void testRestoresSizesAfterRemovingNonAsciiPaths() {
+    TargetData targetData = addNextQuery();
+    long initialSize = garbageCollector.getByteSize();
+
+    // The path has characters whose lengths differ in UTF-16 code units, characters and UTF-8
+    // bytes, so sizes must be added and subtracted with the same measure.
+    Document doc = doc("coll/\uD83D\uDD25\u00e9", 1, map("foo", "bar"));
+    persistence.runTransaction(
+        "add document",
+        () -> {
+          documentCache.add(doc, doc.getVersion());
+          addDocumentToTarget(doc.getKey(), targetData.getTargetId());
+        });
+    assertTrue(garbageCollector.getByteSize() > initialSize);
+
+    persistence.runTransaction(
+        "remove document",
+        () -> {
+          removeDocumentFromTarget(doc.getKey(), targetData.getTargetId());
+          documentCache.remove(doc.getKey());
+        });
+    assertEquals(initialSize, garbageCollector.getByteSize());
+  }
+
+  private Map<ResourcePath, Long> getCollectionByteSizes() {
+    return persistence.runTransaction(
+        "get cache sizes",
+        () ->
+            ((LruDelegate) persistence.getReferenceDelegate())
+                .getCacheSizes()
+                .getCollectionByteSizes());
+  }
+
   @Test
   public void testDisabled() {
     LruGarbageCollector.Params params = LruGarbageCollector.Params.Disabled();
@@ -720,4 +824,93 @@ public abstract class LruGarbageCollectorTestCase {
     assertEquals(10, results.getTargetsRemoved());
     assertEquals(100, results.getDocumentsRemoved());
   }
+
+  @Test
+  public void testIncrementalCollectionRemovesDocumentsInSlices() {
+    // Set a low byte threshold so we can guarantee that GC will run.
+    LruGarbageCollector.Params params = LruGarbageCollector.Params.WithCacheSizeBytes(100);
+
+    // Switch to persistence using our new params.
+    persistence.shutdown();
+    newTestResources(params);
+
+    // Add 100 targets and 10 documents to each
+    for (int i = 0; i < 100; i++) {
+      persistence.runTransaction(
+          "Add a target and some documents",
+          () -> {
+            TargetData targetData = addNextQueryInTransaction();
+            for (int j = 0; j < 10; j++) {
+              Document doc = cacheADocumentInTransaction();
+              addDocumentToTarget(doc.getKey(), targetData.getTargetId());
+            }
+          });
+    }
+
+    // The first slice only removes targets.
+    LruGarbageCollector.Results results =
+        persistence.runTransaction("GC", () -> garbageCollector.collectSlice(new SparseArray<>()));
+    assertTrue(results.hasRun());
+    assertEquals(10, results.getTargetsRemoved());
+    assertEquals(0, results.getDocumentsRemoved());
+    assertTrue(garbageCollector.hasPendingSlices());
+
+    int documentsRemoved = 0;
+    long bytesReclaimed = 0;
+    while (garbageCollector.hasPendingSlices()) {
+      results =
+          persistence.runTransaction(
+              "GC slice", () -> garbageCollector.collectSlice(new SparseArray<>()));
+      assertTrue(results.hasRun());
+      assertEquals(0, results.getTargetsRemoved());
+      assertTrue(results.getDocumentsRemoved() <= params.documentsPerSlice);
+      documentsRemoved += results.getDocumentsRemoved();
+      bytesReclaimed += results.getBytesReclaimed();
+    }
+
+    // The 10 removed targets contained 10 documents each.
+    assertEquals(100, documentsRemoved);
+    assertTrue(bytesReclaimed > 0);
+  }
+
+  @Test
+  public void testIncrementalCollectionStopsAtTargetSize() {
+    // The cache is below the threshold of one byte once all documents are removed.
+    LruGarbageCollector.Params params =
+        new LruGarbageCollector.Params(
+            /* minBytesThreshold= */ 1,
+            /* percentileToCollect= */ 10,
+            /* maximumSequenceNumbersToCollect= */ 1000,
+            /* documentsPerSlice= */ 5);
+
+    persistence.shutdown();
+    newTestResources(params);
+
+    // Use a single transaction so that all documents are eligible for collection.
+    persistence.runTransaction(
+        "add orphaned docs",
+        () -> {
+          for (int i = 0; i < 10; i++) {
+            Document doc = cacheADocumentInTransaction();
+            markDocumentEligibleForGcInTransaction(doc.getKey());
+          }
+        });
+
+    persistence.runTransaction("GC", () -> garbageCollector.collectSlice(new SparseArray<>()));
+    assertTrue(garbageCollector.hasPendingSlices());
+
+    LruGarbageCollector.Results results =
+        persistence.runTransaction(
+            "GC slice", () -> garbageCollector.collectSlice(new SparseArray<>()));
+    assertEquals(5, results.getDocumentsRemoved());
+    assertTrue(garbageCollector.hasPendingSlices());
+
+    // The second slice examines as many documents as allowed, but doesn't need to schedule another
+    // slice since the cache is empty.
+    results =
+        persistence.runTransaction(
+            "GC slice", () -> garbageCollector.collectSlice(new SparseArray<>()));
+    assertEquals(5, results.getDocumentsRemoved());
+    assertFalse(garbageCollector.hasPendingSlices());
+  }
 }
@@ -399,6 +399,26 @@ public abstract class MutationQueueTestCase {
     assertEquals(streamToken2, mutationQueue.getLastStreamToken());
   }
 
+  @Test
+  public void testLookupMutationBatchLargerThanRowLimit() {
+    // Large enough to be read in several chunks by the SQLite mutation queue.
+    StringBuilder largeString = new StringBuilder();
+    for (int i = 0; i < 250000; ++i) {
+      largeString.append("0123456789");
+    }
+    SetMutation mutation = setMutation("foo/large", map("a", largeString.toString()));
+    MutationBatch batch =
+        persistence.runTransaction(
+            "New large mutation batch",
+            () ->
+                mutationQueue.addMutationBatch(
+                    Timestamp.now(), Collections.emptyList(), asList(mutation)));
+
+    assertEquals(batch, mutationQueue.lookupMutationBatch(batch.getBatchId()));
+    assertEquals(
+        asList(batch), mutationQueue.getAllMutationBatchesAffectingDocumentKey(key("foo/large")));
+  }
+
   /** Creates a new MutationBatch with the next batch ID and a set of dummy mutations. */
   private MutationBatch addMutationBatch() {
     return addMutationBatch("foo/bar");
@@ -56,6 +56,23 @@ public final class PersistenceTestHelpers {
     return openSQLitePersistence(nextSQLiteDatabaseName(), params);
   }
 
+  /** Creates and starts a new SQLitePersistence instance that supports concurrent reads. */
+  public static SQLitePersistence createSQLitePersistenceWithConcurrentReads(String name) {
+    DatabaseId databaseId = DatabaseId.forProject("projectId");
+    LocalSerializer serializer = new LocalSerializer(new RemoteSerializer(databaseId));
+    Context context = ApplicationProvider.getApplicationContext();
+    SQLitePersistence persistence =
+        new SQLitePersistence(
+            context,
+            name,
+            databaseId,
+            serializer,
+            LruGarbageCollector.Params.Default(),
+            /* concurrentReadsEnabled= */ true);
+    persistence.start();
+    return persistence;
+  }
+
   /** Creates and starts a new MemoryPersistence instance for testing. */
   public static MemoryPersistence createEagerGCMemoryPersistence() {
     MemoryPersistence persistence = MemoryPersistence.createEagerGcMemoryPersistence();
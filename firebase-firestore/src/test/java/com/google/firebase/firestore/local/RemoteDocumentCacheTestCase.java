@@ -17,9 +17,12 @@ package com.google.firebase.firestore.local;
 import static com.google.firebase.firestore.testutil.TestUtil.assertDoesNotThrow;
 import static com.google.firebase.firestore.testutil.TestUtil.deletedDoc;
 import static com.google.firebase.firestore.testutil.TestUtil.doc;
+import static com.google.firebase.firestore.testutil.TestUtil.filter;
 import static com.google.firebase.firestore.testutil.TestUtil.key;
 import static com.google.firebase.firestore.testutil.TestUtil.map;
+import static com.google.firebase.firestore.testutil.TestUtil.orderBy;
 import static com.google.firebase.firestore.testutil.TestUtil.path;
+import static com.google.firebase.firestore.testutil.TestUtil.query;
 import static com.google.firebase.firestore.testutil.TestUtil.values;
 import static com.google.firebase.firestore.testutil.TestUtil.version;
 import static java.util.Arrays.asList;
@@ -132,6 +135,30 @@ abstract class RemoteDocumentCacheTestCase {
     assertEquals(expected, read);
   }
 
+  // PORTING NOTE: this test only applies to Android, because it's the only platform where the
+  // implementation of getAll stages large key sets in a temporary table.
+  @Test
+  public void testReadLotsOfDocumentsIncludingMissingDocuments() {
+    int lotsOfDocuments = 2000;
+    List<String> paths = new ArrayList<>();
+    Map<DocumentKey, MaybeDocument> expected = new HashMap<>();
+    for (int i = 0; i < lotsOfDocuments; i++) {
+      String path = "foo/" + String.valueOf(i);
+      paths.add(path);
+      MaybeDocument document = i % 2 == 0 ? addTestDocumentAtPath(path) : null;
+      expected.put(DocumentKey.fromPathString(path), document);
+    }
+
+    Map<DocumentKey, MaybeDocument> read = getAll(paths);
+    assertEquals(expected, read);
+
+    // The staged keys of the first lookup must not leak into the next one.
+    read = getAll(asList("foo/0", "foo/1"));
+    assertEquals(2, read.size());
+    assertEquals(expected.get(key("foo/0")), read.get(key("foo/0")));
+    assertNull(read.get(key("foo/1")));
+  }
+
   @Test
   public void testSetAndReadDeletedDocument() {
     String path = "a/b";
@@ -182,6 +209,20 @@ abstract class RemoteDocumentCacheTestCase {
     assertEquals(expected, values(results));
   }
 
+  @Test
+  public void testDocumentsMatchingQueryExcludesSubcollections() {
+    Map<String, Object> docData = map("data", 2);
+    addTestDocumentAtPath("a/1");
+    addTestDocumentAtPath("a/1/b/1");
+    addTestDocumentAtPath("a/2/b/1/c/1");
+
+    Query query = Query.atPath(path("a"));
+    ImmutableSortedMap<DocumentKey, Document> results =
+        remoteDocumentCache.getAllDocumentsMatchingQuery(query, SnapshotVersion.NONE);
+    List<Document> expected = asList(doc("a/1", 42, docData));
+    assertEquals(expected, values(results));
+  }
+
   @Test
   public void testDocumentsMatchingQuerySinceReadTime() {
     Map<String, Object> docData = map("data", 2);
@@ -209,6 +250,57 @@ abstract class RemoteDocumentCacheTestCase {
     assertEquals(expected, values(results));
   }
 
+  @Test
+  public void testDocumentsMatchingFilteredQuery() {
+    Document doc1 = doc("coll/1", 1, map("a", 1, "b", "x", "tags", asList("red", "blue")));
+    Document doc2 = doc("coll/2", 1, map("a", 2.5, "b", "y", "tags", asList("green")));
+    Document doc3 = doc("coll/3", 1, map("a", "str", "nested", map("b", "x")));
+    Document doc4 = doc("coll/4", 1, map("a", Double.NaN));
+    Document doc5 = doc("other/1", 1, map("a", 1, "b", "x"));
+    for (Document doc : asList(doc1, doc2, doc3, doc4, doc5)) {
+      add(doc, version(1));
+    }
+
+    assertQueryResults(query("coll").filter(filter("a", "==", 1)), doc1);
+    assertQueryResults(query("coll").filter(filter("a", "==", 1.0)), doc1);
+    assertQueryResults(query("coll").filter(filter("a", ">", 1)), doc2);
+    assertQueryResults(query("coll").filter(filter("a", "<=", 2.5)), doc1, doc2, doc4);
+    assertQueryResults(query("coll").filter(filter("a", ">=", "a")), doc3);
+    assertQueryResults(query("coll").filter(filter("a", "==", Double.NaN)), doc4);
+    assertQueryResults(query("coll").filter(filter("a", "in", asList(2.5, "str"))), doc2, doc3);
+    assertQueryResults(query("coll").filter(filter("b", "==", "x")), doc1);
+    assertQueryResults(query("coll").filter(filter("nested.b", "==", "x")), doc3);
+    assertQueryResults(query("coll").filter(filter("tags", "array-contains", "blue")), doc1);
+    assertQueryResults(
+        query("coll").filter(filter("tags", "array-contains-any", asList("red", "green"))),
+        doc1,
+        doc2);
+    assertQueryResults(query("coll").filter(filter("b", "!=", "x")), doc2);
+    assertQueryResults(query("coll").orderBy(orderBy("tags")), doc1, doc2);
+  }
+
+  @Test
+  public void testFilteredQueryReflectsUpdatesAndRemovals() {
+    add(doc("coll/1", 1, map("a", 1)), version(1));
+    add(doc("coll/2", 1, map("a", 1)), version(1));
+
+    Document updated = doc("coll/1", 2, map("a", 2));
+    add(updated, version(2));
+    remove("coll/2");
+
+    assertQueryResults(query("coll").filter(filter("a", "==", 1)));
+    assertQueryResults(query("coll").filter(filter("a", "==", 2)), updated);
+
+    add(deletedDoc("coll/1", 3), version(3));
+    assertQueryResults(query("coll").filter(filter("a", "==", 2)));
+  }
+
+  private void assertQueryResults(Query query, Document... expected) {
+    ImmutableSortedMap<DocumentKey, Document> results =
+        remoteDocumentCache.getAllDocumentsMatchingQuery(query, SnapshotVersion.NONE);
+    assertEquals(asList(expected), values(results));
+  }
+
   private Document addTestDocumentAtPath(String path) {
     return addTestDocumentAtPath(path, 42, 42);
   }
@@ -14,6 +14,16 @@
 
 package com.google.firebase.firestore.local;
 
+import static com.google.firebase.firestore.testutil.TestUtil.doc;
+import static com.google.firebase.firestore.testutil.TestUtil.map;
+import static com.google.firebase.firestore.testutil.TestUtil.version;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
@@ -26,4 +36,47 @@ public final class SQLiteRemoteDocumentCacheTest extends RemoteDocumentCacheTest
   Persistence getPersistence() {
     return PersistenceTestHelpers.createSQLitePersistence();
   }
+
+  @Test
+  public void testReusesCompiledStatements() {
+    SQLitePersistence persistence = PersistenceTestHelpers.createSQLitePersistence();
+    RemoteDocumentCache remoteDocumentCache = persistence.getRemoteDocumentCache();
+    SQLitePersistence.StatementCache statementCache = persistence.getStatementCache();
+
+    persistence.runTransaction(
+        "add a", () -> remoteDocumentCache.add(doc("coll/a", 1, map("foo", "bar")), version(1)));
+    long missCount = statementCache.getMissCount();
+    long hitCount = statementCache.getHitCount();
+
+    persistence.runTransaction(
+        "add b", () -> remoteDocumentCache.add(doc("coll/b", 1, map("foo", "bar")), version(1)));
+    assertEquals(missCount, statementCache.getMissCount());
+    assertTrue(statementCache.getHitCount() > hitCount);
+
+    persistence.shutdown();
+    assertEquals(0, statementCache.size());
+  }
+
+  @Test
+  public void testClosesEvictedStatementsOnlyWhenRequested() {
+    SQLiteDatabase db = SQLiteDatabase.create(null);
+    db.execSQL("CREATE TABLE foo (bar INTEGER)");
+    SQLitePersistence.StatementCache statementCache = new SQLitePersistence.StatementCache(1);
+
+    SQLiteStatement inserter = statementCache.get(db, "INSERT INTO foo (bar) VALUES (1)");
+    statementCache.get(db, "DELETE FROM foo");
+    assertEquals(1, statementCache.size());
+
+    // The evicted statement can still be used by the caller that prepared it.
+    inserter.executeInsert();
+
+    statementCache.closeEvictedStatements();
+    try {
+      inserter.executeInsert();
+      fail("Expected the evicted statement to be closed");
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+    db.close();
+  }
 }
@@ -19,11 +19,15 @@ import static com.google.firebase.firestore.local.EncodedPath.encode;
 import static com.google.firebase.firestore.testutil.TestUtil.filter;
 import static com.google.firebase.firestore.testutil.TestUtil.key;
 import static com.google.firebase.firestore.testutil.TestUtil.map;
+import static com.google.firebase.firestore.testutil.TestUtil.patchMutation;
 import static com.google.firebase.firestore.testutil.TestUtil.path;
 import static com.google.firebase.firestore.testutil.TestUtil.query;
+import static com.google.firebase.firestore.testutil.TestUtil.setMutation;
 import static com.google.firebase.firestore.testutil.TestUtil.version;
+import static com.google.firebase.firestore.testutil.TestUtil.wrapObject;
 import static com.google.firebase.firestore.util.Assert.fail;
 import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -37,12 +41,15 @@ import com.google.firebase.database.collection.ImmutableSortedMap;
 import com.google.firebase.firestore.core.Query;
 import com.google.firebase.firestore.model.DatabaseId;
 import com.google.firebase.firestore.model.DocumentKey;
+import com.google.firebase.firestore.model.ObjectValue;
 import com.google.firebase.firestore.model.ResourcePath;
+import com.google.firebase.firestore.model.mutation.MutationBatch;
 import com.google.firebase.firestore.proto.MaybeDocument;
 import com.google.firebase.firestore.proto.Target;
 import com.google.firebase.firestore.proto.WriteBatch;
 import com.google.firebase.firestore.remote.RemoteSerializer;
 import com.google.firestore.v1.Document;
+import com.google.firestore.v1.Value;
 import com.google.firestore.v1.Write;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Timestamp;
@@ -433,6 +440,8 @@ public class SQLiteSchemaTest {
         "INSERT INTO remote_documents (path, read_time_seconds, read_time_nanos, contents) VALUES (?, ?, ?, ?)",
         new Object[] {encode(path("coll/new")), 0, 3000, createDummyDocument("coll/new")});
 
+    // The remote document cache requires the current schema.
+    schema.runMigrations(10, SQLiteSchema.VERSION);
     SQLiteRemoteDocumentCache remoteDocumentCache = createRemoteDocumentCache();
 
     // Verify that queries with SnapshotVersion.NONE return all results, regardless of whether the
@@ -569,6 +578,189 @@ public class SQLiteSchemaTest {
             });
   }
 
+  @Test
+  public void populatesFieldIndexForExistingDocuments() {
+    schema.runMigrations(0, 11);
+    db.execSQL(
+        "INSERT INTO remote_documents (path, read_time_seconds, read_time_nanos, contents) VALUES (?, ?, ?, ?)",
+        new Object[] {
+          encode(path("coll/a")), 0, 1000, createDummyDocument("coll/a", "foo", "bar")
+        });
+    db.execSQL(
+        "INSERT INTO remote_documents (path, read_time_seconds, read_time_nanos, contents) VALUES (?, ?, ?, ?)",
+        new Object[] {
+          encode(path("coll/b")), 0, 1000, createDummyDocument("coll/b", "foo", "baz")
+        });
+
+    schema.runMigrations(11, 12);
+
+    new SQLitePersistence.Query(
+            db, "SELECT COUNT(*) FROM field_index WHERE field_path = ? AND document_path = ?")
+        .binding("foo", encode(path("coll/a")))
+        .first(row -> assertEquals(1, row.getInt(0)));
+
+    schema.runMigrations(12, SQLiteSchema.VERSION);
+    SQLiteRemoteDocumentCache remoteDocumentCache = createRemoteDocumentCache();
+    ImmutableSortedMap<DocumentKey, com.google.firebase.firestore.model.Document> results =
+        remoteDocumentCache.getAllDocumentsMatchingQuery(
+            query("coll").filter(filter("foo", "==", "bar")), version(0));
+    assertResultsContain(results, "coll/a");
+  }
+
+  @Test
+  public void populatesPathLengthForExistingDocuments() {
+    schema.runMigrations(0, 12);
+    db.execSQL(
+        "INSERT INTO remote_documents (path, read_time_seconds, read_time_nanos, contents) VALUES (?, ?, ?, ?)",
+        new Object[] {encode(path("coll/a")), 0, 1000, createDummyDocument("coll/a")});
+    db.execSQL(
+        "INSERT INTO remote_documents (path, read_time_seconds, read_time_nanos, contents) VALUES (?, ?, ?, ?)",
+        new Object[] {
+          encode(path("coll/a/sub/b")), 0, 1000, createDummyDocument("coll/a/sub/b")
+        });
+
+    schema.runMigrations(12, 13);
+
+    new SQLitePersistence.Query(db, "SELECT path_length FROM remote_documents WHERE path = ?")
+        .binding(encode(path("coll/a/sub/b")))
+        .first(row -> assertEquals(4, row.getInt(0)));
+
+    SQLiteRemoteDocumentCache remoteDocumentCache = createRemoteDocumentCache();
+    ImmutableSortedMap<DocumentKey, com.google.firebase.firestore.model.Document> results =
+        remoteDocumentCache.getAllDocumentsMatchingQuery(query("coll"), version(0));
+    assertResultsContain(results, "coll/a");
+    results = remoteDocumentCache.getAllDocumentsMatchingQuery(query("coll/a/sub"), version(0));
+    assertResultsContain(results, "coll/a/sub/b");
+  }
+
+  @Test
+  public void rebuildsDocumentOverlays() {
+    // Simulate a client that wrote mutations with an SDK version that doesn't maintain the
+    // overlays, after a newer version had already written an overlay for coll/c.
+    schema.runMigrations();
+    db.execSQL(
+        "INSERT INTO document_overlays (uid, path, collection_path, has_local_mutations) "
+            + "VALUES ('user', ?, ?, 0)",
+        new Object[] {encode(path("coll/c")), encode(path("coll"))});
+    db.execSQL(
+        "INSERT INTO remote_documents (path, contents) VALUES (?, ?)",
+        new Object[] {encode(path("coll/a")), createDummyDocument("coll/a", "a", "1")});
+    addEncodedMutationBatch(
+        "user",
+        new MutationBatch(
+            1,
+            com.google.firebase.Timestamp.now(),
+            emptyList(),
+            asList(patchMutation("coll/a", map("b", "2")), setMutation("coll/b", map("c", "3")))));
+    addEncodedMutationBatch(
+        "user",
+        new MutationBatch(
+            2,
+            com.google.firebase.Timestamp.now(),
+            emptyList(),
+            asList(patchMutation("coll/a", map("b", "4")))));
+
+    schema.runMigrations(14, SQLiteSchema.VERSION);
+
+    Map<String, ObjectValue> overlays = new HashMap<>();
+    new SQLitePersistence.Query(
+            db, "SELECT path, has_local_mutations, contents FROM document_overlays WHERE uid = ?")
+        .binding("user")
+        .forEach(
+            row -> {
+              assertEquals(1, row.getInt(1));
+              try {
+                com.google.firebase.firestore.model.MaybeDocument overlay =
+                    serializer.decodeMaybeDocument(MaybeDocument.parseFrom(row.getBlob(2)));
+                overlays.put(
+                    decodeResourcePath(row.getString(0)).canonicalString(),
+                    ((com.google.firebase.firestore.model.Document) overlay).getData());
+              } catch (InvalidProtocolBufferException e) {
+                throw fail(e, "MaybeDocument failed to parse");
+              }
+            });
+    assertEquals(
+        map("coll/a", wrapObject(map("a", "1", "b", "4")), "coll/b", wrapObject(map("c", "3"))),
+        overlays);
+  }
+
+  private void addEncodedMutationBatch(String uid, MutationBatch batch) {
+    db.execSQL(
+        "INSERT INTO mutations (uid, batch_id, mutations) VALUES (?, ?, ?)",
+        new Object[] {
+          uid, batch.getBatchId(), serializer.encodeMutationBatch(batch).toByteArray()
+        });
+  }
+
+  @Test
+  public void populatesOrphanedDocuments() {
+    schema.runMigrations(0, 15);
+    // coll/a is orphaned, coll/b belongs to a target and coll/c has no sentinel row.
+    db.execSQL(
+        "INSERT INTO target_documents (target_id, path, sequence_number) VALUES (0, ?, 1)",
+        new Object[] {encode(path("coll/a"))});
+    db.execSQL(
+        "INSERT INTO target_documents (target_id, path, sequence_number) VALUES (0, ?, 2)",
+        new Object[] {encode(path("coll/b"))});
+    db.execSQL(
+        "INSERT INTO target_documents (target_id, path) VALUES (1, ?)",
+        new Object[] {encode(path("coll/b"))});
+    db.execSQL(
+        "INSERT INTO target_documents (target_id, path) VALUES (1, ?)",
+        new Object[] {encode(path("coll/c"))});
+
+    schema.runMigrations(15, 16);
+
+    List<String> orphanedPaths = new ArrayList<>();
+    new SQLitePersistence.Query(db, "SELECT path, sequence_number FROM orphaned_documents")
+        .forEach(
+            row -> {
+              orphanedPaths.add(decodeResourcePath(row.getString(0)).canonicalString());
+              assertEquals(1, row.getLong(1));
+            });
+    assertEquals(asList("coll/a"), orphanedPaths);
+  }
+
+  @Test
+  public void populatesCacheSizes() {
+    schema.runMigrations(0, 16);
+    byte[] docA = createDummyDocument("coll/a");
+    byte[] docB = createDummyDocument("coll/b");
+    db.execSQL(
+        "INSERT INTO remote_documents (path, contents) VALUES (?, ?)",
+        new Object[] {encode(path("coll/a")), docA});
+    db.execSQL(
+        "INSERT INTO remote_documents (path, contents) VALUES (?, ?)",
+        new Object[] {encode(path("coll/b")), docB});
+    byte[] target = Target.newBuilder().setTargetId(1).build().toByteArray();
+    db.execSQL(
+        "INSERT INTO targets (target_id, canonical_id, target_proto) VALUES (1, 'foo', ?)",
+        new Object[] {target});
+    db.execSQL(
+        "INSERT INTO target_documents (target_id, path) VALUES (1, ?)",
+        new Object[] {encode(path("coll/a"))});
+
+    schema.runMigrations(16, 17);
+
+    long expectedDocumentsSize =
+        EncodedPath.byteLength(encode(path("coll/a")))
+            + docA.length
+            + EncodedPath.byteLength(encode(path("coll/b")))
+            + docB.length;
+    new SQLitePersistence.Query(
+            db, "SELECT document_count, byte_size FROM collection_sizes WHERE collection_path = ?")
+        .binding(encode(path("coll")))
+        .first(
+            row -> {
+              assertEquals(2, row.getLong(0));
+              assertEquals(expectedDocumentsSize, row.getLong(1));
+            });
+
+    long expectedTargetSize = target.length + EncodedPath.byteLength(encode(path("coll/a")));
+    new SQLitePersistence.Query(db, "SELECT byte_size FROM target_sizes WHERE target_id = 1")
+        .first(row -> assertEquals(expectedTargetSize, row.getLong(0)));
+  }
+
   private SQLiteRemoteDocumentCache createRemoteDocumentCache() {
     SQLitePersistence persistence =
         new SQLitePersistence(serializer, LruGarbageCollector.Params.Default(), opener);
@@ -586,6 +778,18 @@ public class SQLiteSchemaTest {
         .toByteArray();
   }
 
+  private byte[] createDummyDocument(String name, String field, String value) {
+    return MaybeDocument.newBuilder()
+        .setDocument(
+            Document.newBuilder()
+                .setName("projects/foo/databases/(default)/documents/" + name)
+                .putFields(field, Value.newBuilder().setStringValue(value).build())
+                .setUpdateTime(Timestamp.newBuilder().setSeconds(1))
+                .build())
+        .build()
+        .toByteArray();
+  }
+
   private Target createDummyQueryTargetWithLimboFreeVersion(int targetId) {
     return Target.newBuilder()
         .setTargetId(targetId)
@@ -0,0 +1,96 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.local;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class SQLiteSnapshotReadTest {
+
+  private String databaseName;
+  private SQLitePersistence persistence;
+
+  @Before
+  public void setUp() {
+    databaseName = PersistenceTestHelpers.nextSQLiteDatabaseName();
+    persistence = PersistenceTestHelpers.createSQLitePersistenceWithConcurrentReads(databaseName);
+  }
+
+  @After
+  public void tearDown() {
+    persistence.shutdown();
+  }
+
+  @Test
+  public void testReturnsResultOfRead() {
+    assertTrue(persistence.isConcurrentReadsEnabled());
+    assertEquals("result", persistence.runSnapshotRead("read", () -> "result"));
+  }
+
+  @Test
+  public void testRetriesReadIfTransactionCommits() {
+    AtomicInteger attempts = new AtomicInteger();
+    String result =
+        persistence.runSnapshotRead(
+            "read",
+            () -> {
+              if (attempts.incrementAndGet() == 1) {
+                persistence.runTransaction("write", () -> {});
+              }
+              return "result";
+            });
+    assertEquals("result", result);
+    assertEquals(2, attempts.get());
+  }
+
+  @Test
+  public void testFailsIfTransactionsCommitDuringEveryAttempt() {
+    AtomicInteger attempts = new AtomicInteger();
+    try {
+      persistence.runSnapshotRead(
+          "read",
+          () -> {
+            attempts.incrementAndGet();
+            persistence.runTransaction("write", () -> {});
+            return "result";
+          });
+      fail("Expected ConcurrentModificationException");
+    } catch (ConcurrentModificationException e) {
+      assertEquals(3, attempts.get());
+    }
+  }
+
+  @Test
+  public void testRejectsSecondInstanceForSameDatabase() {
+    try {
+      PersistenceTestHelpers.createSQLitePersistenceWithConcurrentReads(databaseName);
+      fail("Expected the database to be locked");
+    } catch (RuntimeException e) {
+      assertTrue(e.getMessage().startsWith("Failed to gain exclusive lock"));
+    }
+  }
+}
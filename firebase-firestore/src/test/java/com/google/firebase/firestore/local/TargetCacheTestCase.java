@@ -173,6 +173,32 @@ public abstract class TargetCacheTestCase {
     assertFalse(targetCache.containsKey(key2));
   }
 
+  @Test
+  public void testSetAndReadTargetResults() {
+    TargetData rooms = newTargetData(query("rooms"), 1, 1);
+    addTargetData(rooms);
+
+    assertNull(targetCache.getTargetResults(rooms.getTargetId()));
+
+    TargetResults results = new TargetResults(asList(key("rooms/foo"), key("rooms/bar")));
+    setTargetResults(rooms.getTargetId(), results);
+    assertEquals(results, targetCache.getTargetResults(rooms.getTargetId()));
+
+    TargetResults updatedResults = new TargetResults(asList(key("rooms/bar")));
+    setTargetResults(rooms.getTargetId(), updatedResults);
+    assertEquals(updatedResults, targetCache.getTargetResults(rooms.getTargetId()));
+  }
+
+  @Test
+  public void testRemoveQueryRemovesTargetResultsToo() {
+    TargetData rooms = newTargetData(query("rooms"), 1, 1);
+    addTargetData(rooms);
+    setTargetResults(rooms.getTargetId(), new TargetResults(asList(key("rooms/foo"))));
+
+    removeTargetData(rooms);
+    assertNull(targetCache.getTargetResults(rooms.getTargetId()));
+  }
+
   @Test
   public void testAddOrRemoveMatchingKeys() {
     DocumentKey key = key("foo/bar");
@@ -344,6 +370,11 @@ public abstract class TargetCacheTestCase {
     persistence.runTransaction("removeTargetData", () -> targetCache.removeTargetData(targetData));
   }
 
+  private void setTargetResults(int targetId, TargetResults results) {
+    persistence.runTransaction(
+        "setTargetResults", () -> targetCache.setTargetResults(targetId, results));
+  }
+
   private void addMatchingKey(DocumentKey key, int targetId) {
     final ImmutableSortedSet<DocumentKey> keys = DocumentKey.emptyKeySet().insert(key);
 
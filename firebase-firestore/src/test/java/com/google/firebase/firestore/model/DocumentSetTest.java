@@ -72,6 +72,22 @@ public class DocumentSetTest {
     assertNull(set.getDocument(DOC3.getKey()));
   }
 
+  @Test
+  public void testAddAll() {
+    Document doc4 = doc("docs/4", 0, map("sort", 0));
+    DocumentSet set = docSet(TEST_COMPARATOR, DOC1).addAll(Arrays.asList(DOC2, doc4, DOC3));
+
+    assertEquals(Arrays.asList(doc4, DOC3, DOC1, DOC2), set.toList());
+    assertEquals(4, set.size());
+    assertEquals(doc4, set.getDocument(doc4.getKey()));
+    assertEquals(docSet(TEST_COMPARATOR, DOC1, DOC2, DOC3, doc4), set);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAddAllRejectsDuplicateKeys() {
+    docSet(TEST_COMPARATOR, DOC1).addAll(Collections.singletonList(DOC1));
+  }
+
   @Test
   public void testFirstAndLastDocument() {
     DocumentSet emptySet = docSet(TEST_COMPARATOR);
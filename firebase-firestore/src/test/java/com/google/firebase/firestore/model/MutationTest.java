@@ -14,6 +14,7 @@
 
 package com.google.firebase.firestore.model;
 
+import static com.google.firebase.firestore.testutil.TestUtil.DELETE_SENTINEL;
 import static com.google.firebase.firestore.testutil.TestUtil.deleteMutation;
 import static com.google.firebase.firestore.testutil.TestUtil.deletedDoc;
 import static com.google.firebase.firestore.testutil.TestUtil.doc;
@@ -29,6 +30,7 @@ import static com.google.firebase.firestore.testutil.TestUtil.unknownDoc;
 import static com.google.firebase.firestore.testutil.TestUtil.version;
 import static com.google.firebase.firestore.testutil.TestUtil.wrap;
 import static com.google.firebase.firestore.testutil.TestUtil.wrapObject;
+import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -39,6 +41,7 @@ import com.google.firebase.firestore.model.mutation.ArrayTransformOperation;
 import com.google.firebase.firestore.model.mutation.FieldMask;
 import com.google.firebase.firestore.model.mutation.FieldTransform;
 import com.google.firebase.firestore.model.mutation.Mutation;
+import com.google.firebase.firestore.model.mutation.MutationBatch;
 import com.google.firebase.firestore.model.mutation.MutationResult;
 import com.google.firebase.firestore.model.mutation.PatchMutation;
 import com.google.firebase.firestore.model.mutation.Precondition;
@@ -703,4 +706,83 @@ public class MutationTest {
 
     assertEquals(wrap(2L), ((Document) mutatedDoc).getField(field("sum")));
   }
+
+  @Test
+  public void testSquashesSetsIntoLastSet() {
+    Mutation set1 = setMutation("collection/key", map("foo", "foo-value"));
+    Mutation set2 = setMutation("collection/key", map("bar", "bar-value"));
+
+    assertEquals(asList(set2), mutationBatch(set1).squash(asList(set2)));
+  }
+
+  @Test
+  public void testSquashesPatchIntoSet() {
+    Mutation set = setMutation("collection/key", map("foo", "foo-value", "baz", "baz-value"));
+    Mutation patch =
+        patchMutation(
+            "collection/key", map("foo", "new-foo", "bar.nested", 1, "baz", DELETE_SENTINEL));
+
+    assertEquals(
+        asList(setMutation("collection/key", map("foo", "new-foo", "bar", map("nested", 1)))),
+        mutationBatch(set).squash(asList(patch)));
+  }
+
+  @Test
+  public void testSquashesPatchesWithSameEffect() {
+    Mutation patch1 = patchMutation("collection/key", map("foo.bar", "a", "baz", "b"));
+    Mutation patch2 =
+        patchMutation("collection/key", map("foo", map("qux", "c"), "baz", DELETE_SENTINEL));
+
+    List<Mutation> squashed = mutationBatch(patch1).squash(asList(patch2));
+    assertEquals(1, squashed.size());
+    // foo.bar is written as part of foo.
+    assertEquals(fieldMask("foo", "baz"), ((PatchMutation) squashed.get(0)).getMask());
+
+    List<MaybeDocument> baseDocs =
+        asList(
+            doc("collection/key", 1, map("foo", map("bar", "x", "other", "y"), "baz", 1, "z", 2)),
+            doc("collection/key", 1, map()),
+            deletedDoc("collection/key", 1),
+            null);
+    for (MaybeDocument baseDoc : baseDocs) {
+      MaybeDocument expected = patch1.applyToLocalView(baseDoc, baseDoc, Timestamp.now());
+      expected = patch2.applyToLocalView(expected, baseDoc, Timestamp.now());
+      MaybeDocument actual = squashed.get(0).applyToLocalView(baseDoc, baseDoc, Timestamp.now());
+      assertEquals(expected, actual);
+    }
+  }
+
+  @Test
+  public void testDoesNotSquashMutationsThatCouldFailDifferently() {
+    Mutation set = setMutation("collection/key", map("foo", "foo-value"));
+    Mutation patch = patchMutation("collection/key", map("foo", "bar"));
+    Mutation merge =
+        patchMutation("collection/key", map("foo", "bar"), Collections.singletonList(field("foo")));
+
+    // The set succeeds even if the patch fails.
+    assertNull(mutationBatch(patch).squash(asList(set)));
+    // The merge succeeds even if the patch fails.
+    assertNull(mutationBatch(patch).squash(asList(merge)));
+    assertNull(mutationBatch(set).squash(asList(deleteMutation("collection/key"))));
+    Mutation increment = transformMutation("collection/key", map("sum", FieldValue.increment(1)));
+    assertNull(mutationBatch(set).squash(asList(increment)));
+  }
+
+  @Test
+  public void testDoesNotSquashBatchesWithDifferentDocuments() {
+    Mutation set1 = setMutation("collection/a", map("foo", "foo-value"));
+    Mutation set2 = setMutation("collection/b", map("foo", "foo-value"));
+    Mutation set3 = setMutation("collection/a", map("foo", "new-value"));
+
+    assertNull(mutationBatch(set1).squash(asList(set2)));
+    assertNull(mutationBatch(set1).squash(asList(set3, set2)));
+    assertNull(mutationBatch(set1, set2).squash(asList(set3)));
+    // Both batches have two mutations, but the earlier one doesn't write collection/b.
+    assertNull(mutationBatch(set1, set3).squash(asList(set3, set2)));
+    assertEquals(asList(set3, set2), mutationBatch(set1, set2).squash(asList(set2, set3)));
+  }
+
+  private static MutationBatch mutationBatch(Mutation... mutations) {
+    return new MutationBatch(1, Timestamp.now(), Collections.emptyList(), asList(mutations));
+  }
 }
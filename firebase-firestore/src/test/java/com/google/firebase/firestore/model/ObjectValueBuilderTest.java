@@ -226,4 +226,79 @@ public class ObjectValueBuilderTest {
     ObjectValue object = builder.build();
     assertEquals(wrapObject("a", map("b", fooString)), object);
   }
+
+  @Test
+  public void setsFieldInReplacedNestedObject() {
+    ObjectValue.Builder builder = wrapObject("a", map("x", fooString)).toBuilder();
+    builder.set(field("a"), wrapObject("b", fooString).getProto());
+    builder.set(field("a.c"), barValue);
+    ObjectValue object = builder.build();
+    assertEquals(wrapObject("a", map("b", fooString, "c", barString)), object);
+  }
+
+  @Test
+  public void setsFieldInDeletedNestedObject() {
+    ObjectValue.Builder builder = wrapObject("a", map("b", fooString, "c", fooString)).toBuilder();
+    builder.delete(field("a"));
+    builder.delete(field("a.b"));
+    assertEquals(wrapObject(), builder.build());
+
+    builder.set(field("a.c"), barValue);
+    assertEquals(wrapObject("a", map("c", barString)), builder.build());
+  }
+
+  @Test
+  public void deletesFieldInReplacedPrimitive() {
+    ObjectValue.Builder builder = wrapObject("a", map("b", fooString)).toBuilder();
+    builder.set(field("a"), fooValue);
+    builder.delete(field("a.b"));
+    ObjectValue object = builder.build();
+    assertEquals(wrapObject("a", fooString), object);
+  }
+
+  @Test
+  public void buildsIndependentObjects() {
+    ObjectValue.Builder builder = ObjectValue.newBuilder();
+    builder.set(field("a.b"), fooValue);
+    ObjectValue first = builder.build();
+    builder.set(field("a.c"), barValue);
+    builder.delete(field("a.b"));
+    ObjectValue second = builder.build();
+
+    assertEquals(wrapObject("a", map("b", fooString)), first);
+    assertEquals(wrapObject("a", map("c", barString)), second);
+  }
+
+  @Test
+  public void appliesChangesOfPreviousBuilders() {
+    ObjectValue base = wrapObject("a", map("b", fooString, "c", fooString), "d", fooString);
+    ObjectValue first = base.toBuilder().set(field("a.b"), barValue).build();
+    ObjectValue second =
+        first.toBuilder().set(field("a"), wrapObject("e", fooString).getProto()).build();
+    ObjectValue third = second.toBuilder().set(field("a.f"), barValue).delete(field("d")).build();
+
+    assertEquals(wrapObject("a", map("b", barString, "c", fooString), "d", fooString), first);
+    assertEquals(wrapObject("a", map("e", fooString), "d", fooString), second);
+    assertEquals(wrapObject("a", map("e", fooString, "f", barString)), third);
+  }
+
+  @Test
+  public void readsFieldsBeforeBuildingObject() {
+    ObjectValue base = wrapObject("a", map("b", fooString, "c", fooString), "d", fooString);
+    ObjectValue object =
+        base.toBuilder()
+            .set(field("a.b"), barValue)
+            .set(field("e"), wrapObject("f", fooString).getProto())
+            .delete(field("d"))
+            .build();
+
+    assertEquals(barValue, object.get(field("a.b")));
+    assertEquals(fooValue, object.get(field("a.c")));
+    assertEquals(fooValue, object.get(field("e.f")));
+    assertEquals(null, object.get(field("d")));
+    assertEquals(null, object.get(field("a.b.c")));
+    assertEquals(wrapObject("b", barString, "c", fooString).getProto(), object.get(field("a")));
+    assertEquals(
+        wrapObject("a", map("b", barString, "c", fooString), "e", map("f", fooString)), object);
+  }
 }
@@ -20,17 +20,26 @@ import static com.google.firebase.firestore.testutil.TestUtil.key;
 import static com.google.firebase.firestore.testutil.TestUtil.map;
 import static com.google.firebase.firestore.testutil.TestUtil.ref;
 import static com.google.firebase.firestore.testutil.TestUtil.wrapRef;
+import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import com.google.common.testing.EqualsTester;
 import com.google.firebase.Timestamp;
 import com.google.firebase.firestore.GeoPoint;
 import com.google.firebase.firestore.testutil.ComparatorTester;
 import com.google.firebase.firestore.testutil.TestUtil;
+import com.google.firestore.v1.MapValue;
 import com.google.firestore.v1.Value;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -229,6 +238,57 @@ public class ValuesTest {
     assertCanonicalId(TestUtil.wrap(map("c", 3, "b", 2, "a", "1")), "{a:1,b:2,c:3}");
   }
 
+  @Test
+  public void testComparesMapsRegardlessOfFieldOrder() {
+    Value unsorted = mapValue("c", TestUtil.wrap(3), "a", TestUtil.wrap(1), "b", TestUtil.wrap(2));
+    Value sorted = mapValue("a", TestUtil.wrap(1), "b", TestUtil.wrap(2), "c", TestUtil.wrap(3));
+    Value greater = mapValue("a", TestUtil.wrap(1), "b", TestUtil.wrap(3));
+
+    assertEquals(0, Values.compare(unsorted, sorted));
+    assertEquals(0, Values.compare(sorted, unsorted));
+    assertTrue(Values.compare(unsorted, greater) < 0);
+    assertTrue(Values.compare(greater, unsorted) > 0);
+  }
+
+  @Test
+  public void testMemoizesSortedEntriesOfUnsortedMaps() {
+    Value unsorted = mapValue("b", TestUtil.wrap(2), "a", TestUtil.wrap(1));
+    Value sorted = mapValue("a", TestUtil.wrap(1), "b", TestUtil.wrap(2));
+
+    Collection<Map.Entry<String, Value>> entries = Values.sortedEntries(unsorted.getMapValue());
+    assertEquals(asList("a", "b"), keys(entries));
+    assertSame(entries, Values.sortedEntries(unsorted.getMapValue()));
+
+    // The cache is keyed by identity, so an equal map is sorted on its own.
+    Value equalUnsorted = mapValue("b", TestUtil.wrap(2), "a", TestUtil.wrap(1));
+    Collection<Map.Entry<String, Value>> equalEntries =
+        Values.sortedEntries(equalUnsorted.getMapValue());
+    assertNotSame(entries, equalEntries);
+    assertEquals(asList("a", "b"), keys(equalEntries));
+
+    assertCanonicalId(unsorted, "{a:1,b:2}");
+    assertEquals(0, Values.compare(unsorted, sorted));
+
+    // Maps that are already sorted are iterated directly.
+    assertEquals(asList("a", "b"), keys(Values.sortedEntries(sorted.getMapValue())));
+  }
+
+  private static Value mapValue(Object... keysAndValues) {
+    MapValue.Builder mapValue = MapValue.newBuilder();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      mapValue.putFields((String) keysAndValues[i], (Value) keysAndValues[i + 1]);
+    }
+    return Value.newBuilder().setMapValue(mapValue).build();
+  }
+
+  private static List<String> keys(Collection<Map.Entry<String, Value>> entries) {
+    List<String> keys = new ArrayList<>();
+    for (Map.Entry<String, Value> entry : entries) {
+      keys.add(entry.getKey());
+    }
+    return keys;
+  }
+
   private void assertCanonicalId(Value proto, String expectedCanonicalId) {
     assertEquals(expectedCanonicalId, Values.canonicalId(proto));
   }
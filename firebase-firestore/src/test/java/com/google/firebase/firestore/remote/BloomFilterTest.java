@@ -0,0 +1,86 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.remote;
+
+import static com.google.firebase.firestore.testutil.TestUtil.bloomFilter;
+import static com.google.firebase.firestore.testutil.TestUtil.byteString;
+import static com.google.firebase.firestore.testutil.TestUtil.expectError;
+import static com.google.firebase.firestore.testutil.TestUtil.key;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class BloomFilterTest {
+  private static final String DOCUMENTS_PREFIX =
+      "projects/test-project/databases/(default)/documents/";
+
+  @Test
+  public void testEmptyBloomFilterContainsNothing() {
+    BloomFilter bloomFilter = new BloomFilter(ByteString.EMPTY, 0, 0);
+    assertEquals(0, bloomFilter.getBitCount());
+    assertFalse(bloomFilter.mightContain(""));
+    assertFalse(bloomFilter.mightContain(DOCUMENTS_PREFIX + "coll/doc"));
+  }
+
+  @Test
+  public void testBitCountExcludesPadding() {
+    assertEquals(8, new BloomFilter(byteString(0), 0, 1).getBitCount());
+    assertEquals(1, new BloomFilter(byteString(0), 7, 1).getBitCount());
+    assertEquals(13, new BloomFilter(byteString(0, 0), 3, 1).getBitCount());
+  }
+
+  @Test
+  public void testRejectsInvalidArguments() {
+    expectError(() -> new BloomFilter(byteString(0), -1, 1), "Invalid padding: -1");
+    expectError(() -> new BloomFilter(byteString(0), 8, 1), "Invalid padding: 8");
+    expectError(() -> new BloomFilter(byteString(0), 0, -1), "Invalid hash count: -1");
+    expectError(() -> new BloomFilter(byteString(0), 0, 0), "Invalid hash count: 0");
+    expectError(
+        () -> new BloomFilter(ByteString.EMPTY, 1, 0),
+        "Expected padding of 0 when bitmap length is 0");
+  }
+
+  @Test
+  public void testMatchesBackendEncoding() {
+    // Generated with an independent implementation of the backend's hash functions, which contains
+    // the names of coll/doc0, coll/doc1 and coll/doc2.
+    BloomFilter bloomFilter = new BloomFilter(byteString(0, 16, 32, 162, 64, 32, 1, 0), 3, 3);
+
+    assertTrue(bloomFilter.mightContain(DOCUMENTS_PREFIX + "coll/doc0"));
+    assertTrue(bloomFilter.mightContain(DOCUMENTS_PREFIX + "coll/doc1"));
+    assertTrue(bloomFilter.mightContain(DOCUMENTS_PREFIX + "coll/doc2"));
+    for (int i = 3; i < 20; ++i) {
+      assertFalse(bloomFilter.mightContain(DOCUMENTS_PREFIX + "coll/doc" + i));
+    }
+  }
+
+  @Test
+  public void testContainsAllAddedDocuments() {
+    BloomFilter bloomFilter =
+        bloomFilter(100, 7, key("coll/a"), key("coll/b"), key("coll/c/sub/d"));
+
+    assertTrue(bloomFilter.mightContain(DOCUMENTS_PREFIX + "coll/a"));
+    assertTrue(bloomFilter.mightContain(DOCUMENTS_PREFIX + "coll/b"));
+    assertTrue(bloomFilter.mightContain(DOCUMENTS_PREFIX + "coll/c/sub/d"));
+  }
+}
@@ -0,0 +1,110 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import androidx.test.core.app.ApplicationProvider;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.local.PersistenceTestHelpers;
+import com.google.firebase.firestore.util.AsyncQueue;
+import com.google.firestore.v1.FirestoreGrpc;
+import io.grpc.ManagedChannelBuilder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class GrpcCallProviderTest {
+
+  private static final int THREAD_COUNT = 4;
+
+  @After
+  public void tearDown() {
+    GrpcCallProvider.overrideChannelBuilder(null);
+  }
+
+  @Test
+  public void testCreatesDeferredChannelOnce() throws Exception {
+    AtomicInteger channelCount = new AtomicInteger();
+    GrpcCallProvider.overrideChannelBuilder(
+        () -> {
+          channelCount.incrementAndGet();
+          return ManagedChannelBuilder.forTarget("localhost");
+        });
+    GrpcCallProvider callProvider =
+        new GrpcCallProvider(
+            new AsyncQueue(),
+            ApplicationProvider.getApplicationContext(),
+            PersistenceTestHelpers.nextDatabaseInfo(),
+            /* firestoreHeaders= */ null,
+            /* deferChannelCreation= */ true);
+
+    // Transactions create calls off the AsyncQueue, so the first calls can race each other.
+    CountDownLatch start = new CountDownLatch(1);
+    List<Task<?>> calls = new ArrayList<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < THREAD_COUNT; ++i) {
+      Thread thread =
+          new Thread(
+              () -> {
+                try {
+                  start.await();
+                } catch (InterruptedException e) {
+                  throw new RuntimeException(e);
+                }
+                Task<?> call = callProvider.createClientCall(FirestoreGrpc.getCommitMethod());
+                synchronized (calls) {
+                  calls.add(call);
+                }
+              });
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    // The channel is already being created.
+    assertNull(callProvider.prewarmChannel());
+    for (Task<?> call : calls) {
+      awaitQuietly(call);
+    }
+    callProvider.shutdown();
+    assertEquals(1, channelCount.get());
+  }
+
+  /** Waits for the task, whose success depends on the environment the test runs in. */
+  private static void awaitQuietly(Task<?> task) throws InterruptedException {
+    try {
+      Tasks.await(task, 10, TimeUnit.SECONDS);
+    } catch (ExecutionException | TimeoutException e) {
+      // Only the number of channels matters.
+    }
+  }
+}
@@ -14,8 +14,10 @@
 
 package com.google.firebase.firestore.remote;
 
+import static com.google.firebase.firestore.testutil.TestUtil.ARBITRARY_SEQUENCE_NUMBER;
 import static com.google.firebase.firestore.testutil.TestUtil.activeLimboQueries;
 import static com.google.firebase.firestore.testutil.TestUtil.activeQueries;
+import static com.google.firebase.firestore.testutil.TestUtil.bloomFilter;
 import static com.google.firebase.firestore.testutil.TestUtil.deletedDoc;
 import static com.google.firebase.firestore.testutil.TestUtil.doc;
 import static com.google.firebase.firestore.testutil.TestUtil.key;
@@ -32,6 +34,8 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.google.firebase.database.collection.ImmutableSortedSet;
+import com.google.firebase.firestore.core.Target;
+import com.google.firebase.firestore.local.QueryPurpose;
 import com.google.firebase.firestore.local.TargetData;
 import com.google.firebase.firestore.model.Document;
 import com.google.firebase.firestore.model.DocumentKey;
@@ -457,6 +461,83 @@ public class RemoteEventTest {
     assertEquals(0, event.getDocumentUpdates().size());
   }
 
+  @Test
+  public void testExistenceFilterMismatchWithBloomFilterRemovesOnlyDeletedDocuments() {
+    Map<Integer, TargetData> targetMap = activeQueries(1);
+
+    Document doc1 = doc("docs/1", 1, map("value", 1));
+    Document doc2 = doc("docs/2", 2, map("value", 2));
+    Document doc3 = doc("docs/3", 3, map("value", 3));
+
+    WatchChangeAggregator aggregator =
+        createAggregator(
+            targetMap,
+            noOutstandingResponses,
+            keySet(doc1.getKey(), doc2.getKey(), doc3.getKey()),
+            new WatchTargetChange(WatchTargetChangeType.Current, asList(1)));
+    aggregator.createRemoteEvent(version(3));
+
+    // The backend only reports doc1 and doc3, so doc2 was deleted while we were offline.
+    aggregator.handleExistenceFilter(
+        new WatchChange.ExistenceFilterWatchChange(
+            1, new ExistenceFilter(2, bloomFilter(100, 7, doc1.getKey(), doc3.getKey()))));
+
+    RemoteEvent event = aggregator.createRemoteEvent(version(4));
+
+    assertEquals(0, event.getTargetMismatches().size());
+    assertEquals(0, event.getDocumentUpdates().size());
+    TargetChange targetChange = event.getTargetChanges().get(1);
+    assertEquals(keySet(doc2.getKey()), targetChange.getRemovedDocuments());
+    assertTrue(targetChange.isCurrent());
+  }
+
+  @Test
+  public void testExistenceFilterMismatchWithBloomFilterFalsePositiveResetsTarget() {
+    Map<Integer, TargetData> targetMap = activeQueries(1);
+
+    Document doc1 = doc("docs/1", 1, map("value", 1));
+    Document doc2 = doc("docs/2", 2, map("value", 2));
+
+    WatchChangeAggregator aggregator =
+        createAggregator(
+            targetMap,
+            noOutstandingResponses,
+            keySet(doc1.getKey(), doc2.getKey()),
+            new WatchTargetChange(WatchTargetChangeType.Current, asList(1)));
+    aggregator.createRemoteEvent(version(3));
+
+    // The bloom filter reports both documents (e.g. because of a false positive), which doesn't
+    // explain the mismatch.
+    aggregator.handleExistenceFilter(
+        new WatchChange.ExistenceFilterWatchChange(
+            1, new ExistenceFilter(1, bloomFilter(100, 7, doc1.getKey(), doc2.getKey()))));
+
+    RemoteEvent event = aggregator.createRemoteEvent(version(4));
+
+    assertEquals(Collections.singleton(1), event.getTargetMismatches());
+    TargetChange expected = targetChange(ByteString.EMPTY, false, null, null, asList(doc1, doc2));
+    assertEquals(expected, event.getTargetChanges().get(1));
+  }
+
+  @Test
+  public void testExistenceFilterMismatchWithEmptyBloomFilterResetsTarget() {
+    Map<Integer, TargetData> targetMap = activeQueries(1);
+
+    Document doc1 = doc("docs/1", 1, map("value", 1));
+
+    WatchChangeAggregator aggregator =
+        createAggregator(targetMap, noOutstandingResponses, keySet(doc1.getKey()));
+    aggregator.createRemoteEvent(version(3));
+
+    aggregator.handleExistenceFilter(
+        new WatchChange.ExistenceFilterWatchChange(
+            1, new ExistenceFilter(0, new BloomFilter(ByteString.EMPTY, 0, 0))));
+
+    RemoteEvent event = aggregator.createRemoteEvent(version(4));
+
+    assertEquals(Collections.singleton(1), event.getTargetMismatches());
+  }
+
   @Test
   public void testExistenceFilterMismatchRemovesCurrentChanges() {
     Map<Integer, TargetData> targetMap = activeQueries(1);
@@ -489,6 +570,17 @@ public class RemoteEventTest {
     assertEquals(mapping1, event.getTargetChanges().get(1));
   }
 
+  /** Returns a target map with a limbo resolution that listens to all given documents at once. */
+  private static Map<Integer, TargetData> documentsLimboTarget(int targetId, DocumentKey... keys) {
+    TargetData targetData =
+        new TargetData(
+            Target.forDocuments(asList(keys)),
+            targetId,
+            ARBITRARY_SEQUENCE_NUMBER,
+            QueryPurpose.LIMBO_RESOLUTION);
+    return Collections.singletonMap(targetId, targetData);
+  }
+
   @Test
   public void testDocumentUpdate() {
     Map<Integer, TargetData> targetMap = activeQueries(1);
@@ -641,6 +733,42 @@ public class RemoteEventTest {
     assertEquals(0, event.getResolvedLimboDocuments().size());
   }
 
+  @Test
+  public void testSynthesizesDeletesForMissingDocumentsOfDocumentsTarget() {
+    Map<Integer, TargetData> targetMap =
+        documentsLimboTarget(1, key("foo/a"), key("foo/b"), key("foo/c"));
+
+    Document docA = doc("foo/a", 2, map("key", "a"));
+    DocumentChange docAChange = new DocumentChange(asList(1), emptyList(), docA.getKey(), docA);
+    WatchTargetChange current = new WatchTargetChange(WatchTargetChangeType.Current, asList(1));
+
+    RemoteEvent event =
+        createRemoteEvent(
+            3, targetMap, noOutstandingResponses, keySet(key("foo/c")), docAChange, current);
+
+    // foo/a was returned and foo/c is already synced, so only foo/b is deleted.
+    assertEquals(2, event.getDocumentUpdates().size());
+    assertEquals(docA, event.getDocumentUpdates().get(docA.getKey()));
+    NoDocument expected = deletedDoc("foo/b", 3);
+    assertEquals(expected, event.getDocumentUpdates().get(expected.getKey()));
+    Set<DocumentKey> resolvedLimboDocuments = event.getResolvedLimboDocuments();
+    assertEquals(2, resolvedLimboDocuments.size());
+    assertTrue(resolvedLimboDocuments.contains(docA.getKey()));
+    assertTrue(resolvedLimboDocuments.contains(expected.getKey()));
+  }
+
+  @Test
+  public void testDoesNotSynthesizeDeletesForDocumentsTargetInWrongState() {
+    Map<Integer, TargetData> targetMap = documentsLimboTarget(1, key("foo/a"), key("foo/b"));
+
+    WatchTargetChange wrongState = new WatchTargetChange(WatchTargetChangeType.NoChange, asList(1));
+
+    RemoteEvent event =
+        createRemoteEvent(3, targetMap, noOutstandingResponses, noExistingKeys, wrongState);
+    assertEquals(0, event.getDocumentUpdates().size());
+    assertEquals(0, event.getResolvedLimboDocuments().size());
+  }
+
   @Test
   public void testSeparatesUpdates() {
     Map<Integer, TargetData> targetMap = activeQueries(1);
@@ -14,6 +14,7 @@
 
 package com.google.firebase.firestore.remote;
 
+import static com.google.firebase.firestore.testutil.TestUtil.byteString;
 import static com.google.firebase.firestore.testutil.TestUtil.deleteMutation;
 import static com.google.firebase.firestore.testutil.TestUtil.deletedDoc;
 import static com.google.firebase.firestore.testutil.TestUtil.doc;
@@ -31,6 +32,7 @@ import static com.google.firebase.firestore.testutil.TestUtil.verifyMutation;
 import static com.google.firebase.firestore.testutil.TestUtil.wrap;
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
@@ -52,10 +54,12 @@ import com.google.firebase.firestore.model.ResourcePath;
 import com.google.firebase.firestore.model.SnapshotVersion;
 import com.google.firebase.firestore.model.Values;
 import com.google.firebase.firestore.model.mutation.Mutation;
+import com.google.firebase.firestore.remote.WatchChange.ExistenceFilterWatchChange;
 import com.google.firebase.firestore.remote.WatchChange.WatchTargetChange;
 import com.google.firebase.firestore.remote.WatchChange.WatchTargetChangeType;
 import com.google.firebase.firestore.testutil.TestUtil;
 import com.google.firestore.v1.ArrayValue;
+import com.google.firestore.v1.BitSequence;
 import com.google.firestore.v1.Cursor;
 import com.google.firestore.v1.Document;
 import com.google.firestore.v1.DocumentChange;
@@ -492,6 +496,31 @@ public final class RemoteSerializerTest {
         q.toTarget());
   }
 
+  @Test
+  public void testEncodesMultiDocumentTargets() {
+    com.google.firebase.firestore.core.Target target =
+        com.google.firebase.firestore.core.Target.forDocuments(
+            asList(key("docs/1"), key("docs/2"), key("other/3")));
+    Target actual =
+        serializer.encodeTarget(new TargetData(target, 1, 2, QueryPurpose.LIMBO_RESOLUTION));
+
+    DocumentsTarget.Builder docs =
+        DocumentsTarget.newBuilder()
+            .addDocuments("projects/p/databases/d/documents/docs/1")
+            .addDocuments("projects/p/databases/d/documents/docs/2")
+            .addDocuments("projects/p/databases/d/documents/other/3");
+    Target expected =
+        Target.newBuilder()
+            .setDocuments(docs)
+            .setTargetId(1)
+            .setResumeToken(ByteString.EMPTY)
+            .build();
+
+    assertEquals(expected, actual);
+    assertEquals(
+        serializer.decodeDocumentsTarget(serializer.encodeDocumentsTarget(target)), target);
+  }
+
   @Test
   public void testEncodesFirstLevelAncestorQueries() {
     Query q = Query.atPath(ResourcePath.fromString("messages"));
@@ -1156,4 +1185,72 @@ public final class RemoteSerializerTest {
                     .build());
     assertEquals(expected, actual);
   }
+
+  @Test
+  public void testConvertsExistenceFilterWithBloomFilter() {
+    ExistenceFilterWatchChange actual =
+        (ExistenceFilterWatchChange)
+            serializer.decodeWatchChange(
+                ListenResponse.newBuilder()
+                    .setFilter(
+                        com.google.firestore.v1.ExistenceFilter.newBuilder()
+                            .setTargetId(1)
+                            .setCount(3)
+                            .setUnchangedNames(
+                                com.google.firestore.v1.BloomFilter.newBuilder()
+                                    .setBits(
+                                        BitSequence.newBuilder()
+                                            .setBitmap(byteString(0, 16, 32, 162, 64, 32, 1, 0))
+                                            .setPadding(3))
+                                    .setHashCount(3)))
+                    .build());
+
+    assertEquals(1, actual.getTargetId());
+    assertEquals(3, actual.getExistenceFilter().getCount());
+    BloomFilter bloomFilter = actual.getExistenceFilter().getUnchangedNames();
+    assertEquals(61, bloomFilter.getBitCount());
+    assertTrue(
+        bloomFilter.mightContain("projects/test-project/databases/(default)/documents/coll/doc0"));
+    assertFalse(
+        bloomFilter.mightContain("projects/test-project/databases/(default)/documents/coll/doc3"));
+  }
+
+  @Test
+  public void testConvertsExistenceFilterWithoutBloomFilter() {
+    ExistenceFilterWatchChange actual =
+        (ExistenceFilterWatchChange)
+            serializer.decodeWatchChange(
+                ListenResponse.newBuilder()
+                    .setFilter(
+                        com.google.firestore.v1.ExistenceFilter.newBuilder()
+                            .setTargetId(1)
+                            .setCount(3))
+                    .build());
+
+    assertEquals(3, actual.getExistenceFilter().getCount());
+    assertNull(actual.getExistenceFilter().getUnchangedNames());
+  }
+
+  @Test
+  public void testIgnoresInvalidBloomFilter() {
+    ExistenceFilterWatchChange actual =
+        (ExistenceFilterWatchChange)
+            serializer.decodeWatchChange(
+                ListenResponse.newBuilder()
+                    .setFilter(
+                        com.google.firestore.v1.ExistenceFilter.newBuilder()
+                            .setTargetId(1)
+                            .setCount(3)
+                            .setUnchangedNames(
+                                com.google.firestore.v1.BloomFilter.newBuilder()
+                                    .setBits(
+                                        BitSequence.newBuilder()
+                                            .setBitmap(byteString(1))
+                                            .setPadding(8))
+                                    .setHashCount(1)))
+                    .build());
+
+    assertEquals(3, actual.getExistenceFilter().getCount());
+    assertNull(actual.getExistenceFilter().getUnchangedNames());
+  }
 }
@@ -0,0 +1,234 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.remote;
+
+import static com.google.firebase.firestore.testutil.TestUtil.map;
+import static com.google.firebase.firestore.testutil.TestUtil.mutationResult;
+import static com.google.firebase.firestore.testutil.TestUtil.setMutation;
+import static com.google.firebase.firestore.testutil.TestUtil.version;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+import androidx.test.core.app.ApplicationProvider;
+import com.google.firebase.database.collection.ImmutableSortedSet;
+import com.google.firebase.firestore.auth.User;
+import com.google.firebase.firestore.core.OnlineState;
+import com.google.firebase.firestore.local.LocalStore;
+import com.google.firebase.firestore.local.Persistence;
+import com.google.firebase.firestore.local.PersistenceTestHelpers;
+import com.google.firebase.firestore.local.SimpleQueryEngine;
+import com.google.firebase.firestore.model.DocumentKey;
+import com.google.firebase.firestore.model.mutation.Mutation;
+import com.google.firebase.firestore.model.mutation.MutationBatchResult;
+import com.google.firebase.firestore.model.mutation.MutationResult;
+import com.google.firebase.firestore.util.AsyncQueue;
+import com.google.firebase.firestore.util.Consumer;
+import io.grpc.Status;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests how the RemoteStore combines pending writes into requests if write coalescing is on. */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class RemoteStoreWriteCoalescingTest {
+
+  private AsyncQueue queue;
+  private Persistence persistence;
+  private LocalStore localStore;
+  private MockDatastore datastore;
+  private RemoteStore remoteStore;
+
+  private final List<MutationBatchResult> successfulWrites = new ArrayList<>();
+  private final List<Integer> rejectedBatchIds = new ArrayList<>();
+
+  @Before
+  public void setUp() throws Exception {
+    queue = new AsyncQueue();
+    persistence = PersistenceTestHelpers.createEagerGCMemoryPersistence();
+    localStore = new LocalStore(persistence, new SimpleQueryEngine(), User.UNAUTHENTICATED);
+    localStore.start();
+    datastore =
+        new MockDatastore(
+            PersistenceTestHelpers.nextDatabaseInfo(),
+            queue,
+            ApplicationProvider.getApplicationContext());
+    remoteStore =
+        new RemoteStore(
+            new RecordingCallback(),
+            localStore,
+            datastore,
+            queue,
+            new NoOpConnectivityMonitor(),
+            /* maxPendingWrites= */ 100,
+            /* writeCoalescingEnabled= */ true);
+    queue.runSync(remoteStore::start);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    queue.runSync(remoteStore::shutdown);
+    persistence.shutdown();
+  }
+
+  @Test
+  public void testCoalescesAdjacentBatchesForDifferentDocuments() throws Exception {
+    Mutation setA = setMutation("coll/a", map("v", 1));
+    Mutation setB = setMutation("coll/b", map("v", 1));
+    Mutation setA2 = setMutation("coll/a", map("v", 2));
+    Mutation setC = setMutation("coll/c", map("v", 1));
+    writeBatches(asList(setA), asList(setB), asList(setA2), asList(setC));
+
+    queue.runSync(
+        () -> {
+          assertEquals(2, datastore.writesSent());
+          assertEquals(asList(setA, setB), datastore.waitForWriteSend());
+          // coll/a is written again, so the third batch starts a new request.
+          assertEquals(asList(setA2, setC), datastore.waitForWriteSend());
+        });
+  }
+
+  @Test
+  public void testLimitsNumberOfWritesPerRequest() throws Exception {
+    // Two batches that together exceed the limit of 500 writes per request.
+    List<Mutation> batch1 = setMutations("first", 300);
+    List<Mutation> batch2 = setMutations("second", 300);
+    writeBatches(batch1, batch2);
+
+    queue.runSync(
+        () -> {
+          assertEquals(2, datastore.writesSent());
+          assertEquals(batch1, datastore.waitForWriteSend());
+          assertEquals(batch2, datastore.waitForWriteSend());
+        });
+  }
+
+  @Test
+  public void testAcknowledgesEachBatchOfCoalescedRequest() throws Exception {
+    Mutation setA = setMutation("coll/a", map("v", 1));
+    Mutation setB = setMutation("coll/b", map("v", 1));
+    Mutation setC = setMutation("coll/c", map("v", 1));
+    writeBatches(asList(setA, setB), asList(setC));
+
+    queue.runSync(
+        () -> {
+          assertEquals(asList(setA, setB, setC), datastore.waitForWriteSend());
+          datastore.ackWrite(
+              version(10), asList(mutationResult(1), mutationResult(2), mutationResult(3)));
+        });
+
+    assertEquals(2, successfulWrites.size());
+    MutationBatchResult first = successfulWrites.get(0);
+    assertEquals(1, first.getBatch().getBatchId());
+    assertEquals(version(10), first.getCommitVersion());
+    assertEquals(asList(version(1), version(2)), versions(first.getMutationResults()));
+    MutationBatchResult second = successfulWrites.get(1);
+    assertEquals(2, second.getBatch().getBatchId());
+    assertEquals(asList(version(3)), versions(second.getMutationResults()));
+  }
+
+  @Test
+  public void testResendsBatchesIndividuallyAfterCoalescedRequestIsRejected() throws Exception {
+    Mutation setA = setMutation("coll/a", map("v", 1));
+    Mutation setB = setMutation("coll/b", map("v", 1));
+    writeBatches(asList(setA), asList(setB));
+
+    queue.runSync(
+        () -> {
+          assertEquals(asList(setA, setB), datastore.waitForWriteSend());
+          // We don't know which batch caused the error, so none of them is rejected yet.
+          datastore.failWrite(Status.INVALID_ARGUMENT);
+          assertEquals(Collections.emptyList(), rejectedBatchIds);
+
+          assertEquals(2, datastore.writesSent());
+          assertEquals(asList(setA), datastore.waitForWriteSend());
+          assertEquals(asList(setB), datastore.waitForWriteSend());
+
+          // The first batch is rejected on its own, and the second one is sent again.
+          datastore.failWrite(Status.INVALID_ARGUMENT);
+          assertEquals(asList(1), rejectedBatchIds);
+          assertEquals(asList(setB), datastore.waitForWriteSend());
+          datastore.ackWrite(version(10), asList(mutationResult(1)));
+        });
+
+    assertEquals(1, successfulWrites.size());
+    assertEquals(2, successfulWrites.get(0).getBatch().getBatchId());
+  }
+
+  /** Writes each list of mutations in a batch of its own and lets the RemoteStore send them. */
+  @SafeVarargs
+  private final void writeBatches(List<Mutation>... batches) throws Exception {
+    for (List<Mutation> batch : batches) {
+      localStore.writeLocally(batch);
+    }
+    queue.runSync(remoteStore::fillWritePipeline);
+  }
+
+  private static List<Mutation> setMutations(String prefix, int count) {
+    List<Mutation> mutations = new ArrayList<>(count);
+    for (int i = 0; i < count; ++i) {
+      mutations.add(setMutation("coll/" + prefix + i, map("v", i)));
+    }
+    return mutations;
+  }
+
+  private static List<Object> versions(List<MutationResult> results) {
+    List<Object> versions = new ArrayList<>();
+    for (MutationResult result : results) {
+      versions.add(result.getVersion());
+    }
+    return versions;
+  }
+
+  private class RecordingCallback implements RemoteStore.RemoteStoreCallback {
+    @Override
+    public void handleRemoteEvent(RemoteEvent remoteEvent) {}
+
+    @Override
+    public void handleRejectedListen(int targetId, Status error) {}
+
+    @Override
+    public void handleSuccessfulWrite(MutationBatchResult successfulWrite) {
+      successfulWrites.add(successfulWrite);
+    }
+
+    @Override
+    public void handleRejectedWrite(int batchId, Status error) {
+      rejectedBatchIds.add(batchId);
+    }
+
+    @Override
+    public void handleOnlineStateChange(OnlineState onlineState) {}
+
+    @Override
+    public ImmutableSortedSet<DocumentKey> getRemoteKeysForTarget(int targetId) {
+      return DocumentKey.emptyKeySet();
+    }
+  }
+
+  private static class NoOpConnectivityMonitor implements ConnectivityMonitor {
+    @Override
+    public void addCallback(Consumer<NetworkStatus> callback) {}
+
+    @Override
+    public void shutdown() {}
+  }
+}
@@ -0,0 +1,109 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.remote;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class WritePipelineWindowTest {
+
+  @Test
+  public void testStartsAtMinimumSize() {
+    WritePipelineWindow window = new WritePipelineWindow(10, 100);
+    assertEquals(10, window.getSize());
+    assertEquals(-1, window.getSmoothedRttMs());
+  }
+
+  @Test
+  public void testGrowsOncePerRoundWhileRttIsStable() {
+    WritePipelineWindow window = new WritePipelineWindow(10, 100);
+
+    acknowledge(window, 9, 50);
+    assertEquals(10, window.getSize());
+
+    acknowledge(window, 1, 50);
+    assertEquals(20, window.getSize());
+
+    acknowledge(window, 20, 60);
+    assertEquals(40, window.getSize());
+    assertEquals(59, window.getSmoothedRttMs());
+  }
+
+  @Test
+  public void testDoesNotGrowBeyondMaximumSize() {
+    WritePipelineWindow window = new WritePipelineWindow(10, 30);
+
+    acknowledge(window, 10, 50);
+    assertEquals(20, window.getSize());
+
+    acknowledge(window, 20, 50);
+    assertEquals(30, window.getSize());
+
+    acknowledge(window, 30, 50);
+    assertEquals(30, window.getSize());
+  }
+
+  @Test
+  public void testShrinksWhenRttIncreases() {
+    WritePipelineWindow window = new WritePipelineWindow(10, 100);
+    acknowledge(window, 10, 50);
+    acknowledge(window, 20, 50);
+    assertEquals(40, window.getSize());
+
+    // Queueing delays raise the smoothed round-trip time well above the lowest one.
+    acknowledge(window, 40, 500);
+    assertEquals(20, window.getSize());
+
+    acknowledge(window, 20, 500);
+    assertEquals(10, window.getSize());
+
+    acknowledge(window, 10, 500);
+    assertEquals(10, window.getSize());
+  }
+
+  @Test
+  public void testShrinksOnFailure() {
+    WritePipelineWindow window = new WritePipelineWindow(10, 100);
+    acknowledge(window, 10, 50);
+    acknowledge(window, 20, 50);
+    assertEquals(40, window.getSize());
+
+    window.onWriteFailed();
+    assertEquals(20, window.getSize());
+
+    window.onWriteFailed();
+    window.onWriteFailed();
+    assertEquals(10, window.getSize());
+  }
+
+  @Test
+  public void testSupportsWindowOfOne() {
+    WritePipelineWindow window = new WritePipelineWindow(1, 1);
+    acknowledge(window, 10, 50);
+    assertEquals(1, window.getSize());
+  }
+
+  private static void acknowledge(WritePipelineWindow window, int count, long rttMs) {
+    for (int i = 0; i < count; ++i) {
+      window.onWriteAcknowledged(rttMs);
+    }
+  }
+}
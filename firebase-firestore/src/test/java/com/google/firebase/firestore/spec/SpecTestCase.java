@@ -309,6 +309,7 @@ public abstract class SpecTestCase implements RemoteStoreCallback {
             datastore,
             currentUser,
             maxConcurrentLimboResolutions,
+            /* limboResolutionBatchSize= */ 1,
             new FirebaseFirestoreSettings.Builder().build());
 
     ComponentProvider provider =
@@ -19,11 +19,14 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import com.google.firebase.firestore.util.AsyncQueue.DelayedTask;
+import com.google.firebase.firestore.util.AsyncQueue.Priority;
 import com.google.firebase.firestore.util.AsyncQueue.TimerId;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.junit.Before;
 import org.junit.Test;
 import org.robolectric.annotation.Config;
@@ -36,6 +39,9 @@ public class AsyncQueueTest {
   private static final TimerId TIMER_ID_2 = TimerId.LISTEN_STREAM_IDLE;
   private static final TimerId TIMER_ID_3 = TimerId.WRITE_STREAM_CONNECTION_BACKOFF;
 
+  /** The time of the queue's clock, which only advances when a test advances it. */
+  private final AtomicLong clockNanos = new AtomicLong();
+
   private AsyncQueue queue;
   private ArrayList<Integer> completedSteps;
   private List<Integer> expectedSteps;
@@ -43,7 +49,7 @@ public class AsyncQueueTest {
 
   @Before
   public void before() {
-    queue = new AsyncQueue();
+    queue = new AsyncQueue(clockNanos::get);
     completedSteps = new ArrayList<>();
     expectedSteps = null;
     expectedStepsCompleted = new Semaphore(0);
@@ -124,6 +130,63 @@ public class AsyncQueueTest {
     assertEquals(Arrays.asList(1, 2, 3, 4), completedSteps);
   }
 
+  @Test
+  public void runsTasksOfHigherPriorityFirst() {
+    expectedSteps = Arrays.asList(1, 2, 3, 4, 5, 6);
+    // Queue everything from the queue to ensure that all tasks are queued before any of them runs.
+    queue.enqueueAndForget(
+        () -> {
+          queue.enqueueAndForget(Priority.BACKGROUND, runnableForStep(5));
+          queue.enqueueAndForget(Priority.NORMAL, runnableForStep(3));
+          queue.enqueueAndForget(Priority.INTERACTIVE, runnableForStep(1));
+          queue.enqueueAndForget(Priority.BACKGROUND, runnableForStep(6));
+          queue.enqueueAndForget(Priority.NORMAL, runnableForStep(4));
+          queue.enqueueAndForget(Priority.INTERACTIVE, runnableForStep(2));
+        });
+    waitForExpectedSteps();
+  }
+
+  @Test
+  public void queuesCommandsOfPriorityExecutorInItsLane() {
+    expectedSteps = Arrays.asList(1, 2, 3);
+    queue.enqueueAndForget(
+        () -> {
+          queue.getExecutor().execute(runnableForStep(2));
+          queue.enqueueAndForget(Priority.BACKGROUND, runnableForStep(3));
+          queue.getExecutor(Priority.INTERACTIVE).execute(runnableForStep(1));
+        });
+    waitForExpectedSteps();
+  }
+
+  @Test
+  public void runsStarvingTasksInQueueOrder() {
+    expectedSteps = Arrays.asList(1, 2, 3, 4);
+    queue.enqueueAndForget(
+        () -> {
+          queue.enqueueAndForget(Priority.INTERACTIVE, runnableForStep(1));
+          queue.enqueueAndForget(Priority.BACKGROUND, runnableForStep(2));
+          clockNanos.addAndGet(
+              TimeUnit.MILLISECONDS.toNanos(AsyncQueue.STARVATION_THRESHOLD_MS + 100));
+          queue.enqueueAndForget(Priority.INTERACTIVE, runnableForStep(3));
+          queue.enqueueAndForget(Priority.NORMAL, runnableForStep(4));
+        });
+    waitForExpectedSteps();
+  }
+
+  @Test
+  public void recordsQueueWaitTimes() throws Exception {
+    queue.enqueueAndForget(Priority.INTERACTIVE, runnableForStep(1));
+    queue.enqueueAfterDelay(TimerId.GARBAGE_COLLECTION, 1, runnableForStep(2));
+    while (completedSteps.size() < 2) {
+      queue.runSync(() -> {});
+    }
+
+    assertEquals(1, queue.getQueueWaitStats(Priority.INTERACTIVE).getCount());
+    assertEquals(1, queue.getQueueWaitStats(Priority.BACKGROUND).getCount());
+    assertEquals(1, queue.getQueueWaitStats(TimerId.GARBAGE_COLLECTION).getCount());
+    assertTrue(queue.getQueueWaitStats(Priority.NORMAL).getCount() >= 1);
+  }
+
   @Test
   public void tasksAreScheduledWithRespectToShutdown() {
     expectedSteps = Arrays.asList(1, 2, 4);
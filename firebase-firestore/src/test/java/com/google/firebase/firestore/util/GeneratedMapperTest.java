@@ -0,0 +1,159 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.firebase.firestore.testutil.TestUtil.map;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.firebase.firestore.DocumentId;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.GenerateMapper;
+import com.google.firebase.firestore.TestUtil;
+import com.google.firebase.firestore.ThrowOnExtraProperties;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class GeneratedMapperTest {
+
+  /** Converted by the mapper that firebase-firestore-processor generates for it. */
+  @GenerateMapper
+  @ThrowOnExtraProperties
+  public static class City {
+    public String name;
+    public long population;
+    public List<String> districts;
+    @DocumentId public String id;
+  }
+
+  public static class Country {
+    public String name;
+    public List<City> cities;
+  }
+
+  /** Not annotated, so it has no generated mapper. */
+  public static class Village {
+    public String name;
+  }
+
+  @After
+  public void tearDown() {
+    // The generated mapper must be used instead of the reflection-based one.
+    assertFalse(CustomClassMapper.hasBeanMapper(City.class));
+  }
+
+  @Test
+  public void testDeserializesWithGeneratedMapper() {
+    DocumentReference ref = TestUtil.documentReference("cities/sf");
+    City city =
+        CustomClassMapper.convertToCustomClass(
+            map("name", "San Francisco", "population", 883305L, "districts", asList("Mission")),
+            City.class,
+            ref);
+
+    assertEquals("San Francisco", city.name);
+    assertEquals(883305L, city.population);
+    assertEquals(asList("Mission"), city.districts);
+    assertEquals("sf", city.id);
+  }
+
+  @Test
+  public void testSerializesWithGeneratedMapper() {
+    City city = new City();
+    city.name = "San Francisco";
+    city.population = 883305L;
+    city.id = "sf";
+
+    Object serialized = CustomClassMapper.convertToPlainJavaTypes(city);
+
+    assertEquals(map("name", "San Francisco", "population", 883305L, "districts", null), serialized);
+  }
+
+  @Test
+  public void testUsesGeneratedMapperForNestedObjects() {
+    Map<String, Object> data =
+        map(
+            "name",
+            "USA",
+            "cities",
+            asList(map("name", "San Francisco"), map("name", "Los Angeles")));
+    Country country = CustomClassMapper.convertToCustomClass(data, Country.class, null);
+
+    assertTrue(CustomClassMapper.hasBeanMapper(Country.class));
+    assertEquals("Los Angeles", country.cities.get(1).name);
+
+    Object serialized = CustomClassMapper.convertToPlainJavaTypes(country);
+    assertEquals(
+        map(
+            "name",
+            "USA",
+            "cities",
+            asList(
+                map("name", "San Francisco", "population", 0L, "districts", null),
+                map("name", "Los Angeles", "population", 0L, "districts", null))),
+        serialized);
+  }
+
+  @Test
+  public void testReportsErrorsWithPropertyPath() {
+    try {
+      CustomClassMapper.convertToCustomClass(
+          map("name", "USA", "cities", asList(map("population", "many"))), Country.class, null);
+      fail("Expected exception");
+    } catch (RuntimeException e) {
+      assertThat(e).hasMessageThat().contains("(found in field 'cities.[0].population')");
+    }
+  }
+
+  @Test
+  public void testPrimitivePropertiesRejectNull() {
+    try {
+      CustomClassMapper.convertToCustomClass(map("population", null), City.class, null);
+      fail("Expected exception");
+    } catch (RuntimeException e) {
+      assertThat(e).hasMessageThat().contains("(found in field 'population')");
+    }
+  }
+
+  @Test
+  public void testAppliesClassAnnotationsToUnknownProperties() {
+    try {
+      CustomClassMapper.convertToCustomClass(map("mayor", "London Breed"), City.class, null);
+      fail("Expected exception");
+    } catch (RuntimeException e) {
+      assertThat(e).hasMessageThat().contains("No setter/field for mayor found on class");
+    }
+  }
+
+  @Test
+  public void testFallsBackToReflectionWithoutGeneratedMapper() {
+    Village village =
+        CustomClassMapper.convertToCustomClass(map("name", "Hobbiton"), Village.class, null);
+    assertEquals("Hobbiton", village.name);
+    assertEquals(map("name", "Hobbiton"), CustomClassMapper.convertToPlainJavaTypes(village));
+    assertTrue(CustomClassMapper.hasBeanMapper(Village.class));
+  }
+}
@@ -0,0 +1,61 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.firebase.firestore.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class QueueWaitStatsTest {
+
+  @Test
+  public void testReportsZeroWithoutRecords() {
+    QueueWaitStats stats = new QueueWaitStats();
+    assertEquals(0, stats.getCount());
+    assertEquals(0, stats.getAverageWaitMs());
+    assertEquals(0, stats.getMaxWaitMs());
+    assertEquals(0, stats.getPercentileWaitMs(0.99));
+  }
+
+  @Test
+  public void testReportsPercentilesAsBucketBounds() {
+    QueueWaitStats stats = new QueueWaitStats();
+    for (int i = 0; i < 98; ++i) {
+      stats.record(0);
+    }
+    stats.record(5);
+    stats.record(300);
+
+    assertEquals(100, stats.getCount());
+    assertEquals(3, stats.getAverageWaitMs());
+    assertEquals(300, stats.getMaxWaitMs());
+    assertEquals(0, stats.getPercentileWaitMs(0.5));
+    assertEquals(7, stats.getPercentileWaitMs(0.99));
+    assertEquals(300, stats.getPercentileWaitMs(1));
+  }
+
+  @Test
+  public void testIgnoresNegativeWaitTimes() {
+    QueueWaitStats stats = new QueueWaitStats();
+    stats.record(-5);
+    assertEquals(1, stats.getCount());
+    assertEquals(0, stats.getMaxWaitMs());
+  }
+}
@@ -63,6 +63,7 @@ import com.google.firebase.firestore.model.mutation.Precondition;
 import com.google.firebase.firestore.model.mutation.SetMutation;
 import com.google.firebase.firestore.model.mutation.TransformMutation;
 import com.google.firebase.firestore.model.mutation.VerifyMutation;
+import com.google.firebase.firestore.remote.BloomFilter;
 import com.google.firebase.firestore.remote.RemoteEvent;
 import com.google.firebase.firestore.remote.TargetChange;
 import com.google.firebase.firestore.remote.WatchChange;
@@ -71,6 +72,9 @@ import com.google.firebase.firestore.remote.WatchChangeAggregator;
 import com.google.firestore.v1.Value;
 import com.google.protobuf.ByteString;
 import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -95,6 +99,9 @@ public class TestUtil {
 
   public static final long ARBITRARY_SEQUENCE_NUMBER = 2;
 
+  /** The database ID used to encode document names for bloom filters in tests. */
+  public static final DatabaseId TEST_DATABASE_ID = DatabaseId.forProject("test-project");
+
   @SuppressWarnings("unchecked")
   public static <T> Map<String, T> map(Object... entries) {
     Map<String, T> res = new LinkedHashMap<>();
@@ -383,6 +390,53 @@ public class TestUtil {
     return activeLimboQueries(docKey, asList(targets));
   }
 
+  /**
+   * Creates a bloom filter of the given size that contains the names of the given documents in
+   * {@link #TEST_DATABASE_ID}, encoded the same way as by the backend.
+   */
+  public static BloomFilter bloomFilter(int bitCount, int hashCount, DocumentKey... keys) {
+    byte[] bitmap = new byte[(bitCount + 7) / 8];
+    for (DocumentKey key : keys) {
+      String name =
+          "projects/"
+              + TEST_DATABASE_ID.getProjectId()
+              + "/databases/"
+              + TEST_DATABASE_ID.getDatabaseId()
+              + "/documents/"
+              + key.getPath().canonicalString();
+      BigInteger[] hashes = md5Hashes(name);
+      for (int i = 0; i < hashCount; ++i) {
+        int bitIndex =
+            hashes[0]
+                .add(hashes[1].multiply(BigInteger.valueOf(i)))
+                .mod(BigInteger.ONE.shiftLeft(64))
+                .mod(BigInteger.valueOf(bitCount))
+                .intValue();
+        bitmap[bitIndex / 8] |= (byte) (1 << (bitIndex % 8));
+      }
+    }
+    return new BloomFilter(ByteString.copyFrom(bitmap), bitmap.length * 8 - bitCount, hashCount);
+  }
+
+  /** Splits the MD5 hash of the given value into two unsigned little-endian 64-bit integers. */
+  private static BigInteger[] md5Hashes(String value) {
+    byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("MD5").digest(value.getBytes(Charsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+    BigInteger[] hashes = new BigInteger[2];
+    for (int i = 0; i < 2; ++i) {
+      byte[] bigEndian = new byte[8];
+      for (int j = 0; j < 8; ++j) {
+        bigEndian[j] = digest[i * 8 + 7 - j];
+      }
+      hashes[i] = new BigInteger(/*signum=*/ 1, bigEndian);
+    }
+    return hashes;
+  }
+
   public static RemoteEvent noChangeEvent(int targetId, int version) {
     return noChangeEvent(targetId, version, resumeToken(version));
   }